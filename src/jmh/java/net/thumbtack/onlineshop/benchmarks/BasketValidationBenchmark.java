@@ -0,0 +1,108 @@
+package net.thumbtack.onlineshop.benchmarks;
+
+import net.thumbtack.onlineshop.domain.models.Basket;
+import net.thumbtack.onlineshop.domain.models.Product;
+import net.thumbtack.onlineshop.dto.ProductDto;
+import net.thumbtack.onlineshop.service.BasketValidator;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Проверка списка покупок из корзины: прежний вложенный перебор корзины с удалением
+ * из ArrayList против {@link BasketValidator}
+ * <br>
+ * Клиент выкупает всю корзину в случайном порядке, каждый десятый товар из запроса
+ * отсутствует в корзине. База данных не нужна.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BasketValidationBenchmark {
+
+    @Param({"10", "100", "1000", "10000"})
+    public int size;
+
+    private List<Basket> basket;
+    private List<ProductDto> toBuy;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random random = new Random(42);
+        basket = new ArrayList<>(size);
+        toBuy = new ArrayList<>(size);
+
+        for (int i = 0; i < size; ++i) {
+            Product product = new Product("product" + i, 1000, 10);
+            product.setId((long) i);
+            basket.add(new Basket(null, product, 10));
+
+            long id = i % 10 == 9 ? size + i : i;
+            toBuy.add(new ProductDto(id, "product" + i, 10, 1 + random.nextInt(10)));
+        }
+
+        Collections.shuffle(toBuy, random);
+    }
+
+    @Benchmark
+    public Object legacy() {
+        List<ProductDto> copy = new ArrayList<>(toBuy);
+        removeInvalidProducts(copy, basket);
+        return copy;
+    }
+
+    @Benchmark
+    public Object validator() {
+        return BasketValidator.validate(new ArrayList<>(toBuy), basket);
+    }
+
+    /**
+     * Прежняя реализация ClientService.removeInvalidProducts
+     */
+    private static void removeInvalidProducts(List<ProductDto> toBuy, List<Basket> basket) {
+
+        List<ProductDto> copyList = new ArrayList<>(toBuy);
+
+        for (ProductDto product : copyList) {
+
+            Basket basketEntity = null;
+            for (Basket entity : basket) {
+                if (entity.getProduct().getId().equals(product.getId())) {
+                    basketEntity = entity;
+                    break;
+                }
+            }
+
+            if (basketEntity == null) {
+                toBuy.remove(product);
+                continue;
+            }
+
+            if (!basketEntity.getProduct().getName().equals(product.getName())
+                    || !basketEntity.getProduct().getPrice().equals(product.getPrice())) {
+                toBuy.remove(product);
+                continue;
+            }
+
+            if (product.getCount() == null || product.getCount() > basketEntity.getCount()) {
+                product.setCount(basketEntity.getCount());
+            }
+
+            if (product.getCount() > basketEntity.getProduct().getCount()) {
+                toBuy.remove(product);
+                continue;
+            }
+
+            if (basketEntity.getProduct().getDeleted()) {
+                toBuy.remove(product);
+            }
+        }
+    }
+}
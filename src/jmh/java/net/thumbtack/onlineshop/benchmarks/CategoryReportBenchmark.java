@@ -0,0 +1,122 @@
+package net.thumbtack.onlineshop.benchmarks;
+
+import net.thumbtack.onlineshop.OnlineShopServer;
+import net.thumbtack.onlineshop.domain.dao.AccountDao;
+import net.thumbtack.onlineshop.domain.dao.CategoryDao;
+import net.thumbtack.onlineshop.domain.dao.ProductDao;
+import net.thumbtack.onlineshop.domain.dao.PurchaseDao;
+import net.thumbtack.onlineshop.domain.models.*;
+import net.thumbtack.onlineshop.service.ServerControlService;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.boot.SpringApplication;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Страница ведомости истории покупок по категории из 100 000 товаров: прежняя выборка
+ * (все товары категории загружаются в память и передаются в запрос списком IN)
+ * против подзапроса к productcategory в самом запросе страницы
+ * <br>
+ * Для запуска нужна база данных из application.properties (или указанная через
+ * -Dspring.datasource.url=...). Все таблицы базы данных будут очищены.
+ * <pre>
+ * gradle jmh -Pjmh.include=CategoryReportBenchmark
+ * </pre>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CategoryReportBenchmark {
+
+    private static final int PRODUCTS = 100_000;
+    private static final int PURCHASES = 200_000;
+    private static final int BATCH = 5000;
+    private static final int PAGE = 100;
+
+    private ConfigurableApplicationContext context;
+    private PurchaseDao purchaseDao;
+    private ProductDao productDao;
+    private List<Long> categories;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        context = SpringApplication.run(
+                OnlineShopServer.class,
+                "--rest_http_port=0",
+                "--spring.jpa.show-sql=false",
+                "--spring.jpa.properties.hibernate.use_sql_comments=false"
+        );
+
+        context.getBean(ServerControlService.class).clear();
+        purchaseDao = context.getBean(PurchaseDao.class);
+        productDao = context.getBean(ProductDao.class);
+        TransactionTemplate transaction = new TransactionTemplate(context.getBean(PlatformTransactionManager.class));
+
+        Account client = AccountFactory.createClient(
+                "Клиент", "Клиентов", "client@mail.ru", "address",
+                "89000000000", "benchmark", "password123"
+        );
+        context.getBean(AccountDao.class).insert(client);
+
+        Category category = new Category("benchmark");
+        context.getBean(CategoryDao.class).insert(category);
+        categories = Collections.singletonList(category.getId());
+
+        List<Product> products = new ArrayList<>();
+        for (int start = 0; start < PRODUCTS; start += BATCH) {
+            int end = Math.min(PRODUCTS, start + BATCH);
+            int first = start;
+
+            transaction.execute(status -> {
+                for (int i = first; i < end; ++i) {
+                    Product product = new Product("product" + i, 100, 1000);
+                    productDao.insert(product);
+                    productDao.insertCategory(new ProductCategory(product, category));
+                    products.add(product);
+                }
+                return null;
+            });
+        }
+
+        Random random = new Random(42);
+        for (int start = 0; start < PURCHASES; start += BATCH) {
+            int end = Math.min(PURCHASES, start + BATCH);
+            int first = start;
+
+            transaction.execute(status -> {
+                for (int i = first; i < end; ++i) {
+                    Product product = products.get(random.nextInt(PRODUCTS));
+                    purchaseDao.insert(new Purchase(product, client, new Date(), 1, product.getPrice()));
+                }
+                return null;
+            });
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    public List<PurchaseRow> productsList() {
+        List<Long> ids = new ArrayList<>();
+        productDao.getAllWithCategories(categories).forEach(product -> ids.add(product.getId()));
+
+        return purchaseDao.getPurchases(PurchaseQuery.page(
+                PurchaseQuery.Sort.PRODUCT, new PurchaseFilter(null, ids, null, null, null), PAGE, 0));
+    }
+
+    @Benchmark
+    public List<PurchaseRow> subquery() {
+        return purchaseDao.getPurchases(PurchaseQuery.page(
+                PurchaseQuery.Sort.PRODUCT, new PurchaseFilter(null, null, categories, null, null), PAGE, 0));
+    }
+}
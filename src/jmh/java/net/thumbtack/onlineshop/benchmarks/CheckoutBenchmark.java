@@ -0,0 +1,126 @@
+package net.thumbtack.onlineshop.benchmarks;
+
+import net.thumbtack.onlineshop.OnlineShopServer;
+import net.thumbtack.onlineshop.domain.dao.AccountDao;
+import net.thumbtack.onlineshop.domain.dao.ProductDao;
+import net.thumbtack.onlineshop.domain.dao.SessionDao;
+import net.thumbtack.onlineshop.domain.models.Account;
+import net.thumbtack.onlineshop.domain.models.AccountFactory;
+import net.thumbtack.onlineshop.domain.models.Product;
+import net.thumbtack.onlineshop.domain.models.Session;
+import net.thumbtack.onlineshop.dto.ProductDto;
+import net.thumbtack.onlineshop.service.ClientService;
+import net.thumbtack.onlineshop.service.ServerControlService;
+import net.thumbtack.onlineshop.service.ServiceException;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.boot.SpringApplication;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Сравнение синхронной и пакетной покупки товара (checkout_mode = sync/batch)
+ * <br>
+ * Множество клиентов одновременно покупают товары из небольшого набора популярных товаров.
+ * Для запуска нужна база данных из application.properties (или указанная через
+ * -Dspring.datasource.url=...). Все таблицы базы данных будут очищены.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@Threads(32)
+public class CheckoutBenchmark {
+
+    // Количество популярных товаров
+    private static final int PRODUCTS = 4;
+
+    @State(Scope.Benchmark)
+    public static class Server {
+
+        @Param({"sync", "batch"})
+        public String mode;
+
+        private ConfigurableApplicationContext context;
+        private ClientService clientService;
+        private AccountDao accountDao;
+        private SessionDao sessionDao;
+        private final List<ProductDto> products = new ArrayList<>();
+        private final AtomicInteger clients = new AtomicInteger();
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            context = SpringApplication.run(
+                    OnlineShopServer.class,
+                    "--checkout_mode=" + mode,
+                    "--rest_http_port=0",
+                    "--spring.jpa.show-sql=false",
+                    "--spring.jpa.properties.hibernate.use_sql_comments=false"
+            );
+
+            context.getBean(ServerControlService.class).clear();
+            clientService = context.getBean(ClientService.class);
+            accountDao = context.getBean(AccountDao.class);
+            sessionDao = context.getBean(SessionDao.class);
+
+            ProductDao productDao = context.getBean(ProductDao.class);
+            for (int i = 0; i < PRODUCTS; ++i) {
+                Product product = new Product("product" + i, Integer.MAX_VALUE, 1);
+                productDao.insert(product);
+                products.add(new ProductDto(product.getId(), product.getName(), product.getPrice(), 1));
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            context.close();
+        }
+
+        /**
+         * Создаёт нового клиента с большим количеством денег на счету
+         *
+         * @return сессия клиента
+         */
+        String createClient() {
+            int number = clients.incrementAndGet();
+            Account account = AccountFactory.createClient(
+                    "Клиент", "Клиентов", "client@mail.ru", "address",
+                    "89000000000", "benchmark" + number, "password123"
+            );
+            account.setDeposit(Integer.MAX_VALUE);
+            accountDao.insert(account);
+
+            String session = UUID.randomUUID().toString();
+            sessionDao.insert(new Session(session, account));
+            return session;
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+
+        private String session;
+        private int next;
+
+        @Setup(Level.Trial)
+        public void setUp(Server server) {
+            session = server.createClient();
+            next = server.clients.get();
+        }
+    }
+
+    @Benchmark
+    public ProductDto buyProduct(Server server, Client client) throws ServiceException {
+        ProductDto product = server.products.get(client.next++ % PRODUCTS);
+        return server.clientService.buyProduct(
+                client.session,
+                new ProductDto(product.getId(), product.getName(), product.getPrice(), 1)
+        );
+    }
+
+}
@@ -0,0 +1,93 @@
+package net.thumbtack.onlineshop.benchmarks;
+
+import net.thumbtack.onlineshop.service.analytics.PurchaseColumns;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Date;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Запросы аналитики по истории покупок в {@link PurchaseColumns}: топ товаров за всю историю,
+ * топ клиентов за месяц и суммы по категориям и неделям, в одном потоке и во всех процессорах
+ * <br>
+ * История покупок за два года генерируется случайно: 10 000 товаров (у каждого одна или две
+ * категории из 100) и 100 000 клиентов. База данных не нужна, но 100 миллионов покупок
+ * занимают около 2 ГБ памяти.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Benchmark)
+public class ColumnarAnalyticsBenchmark {
+
+    private static final int PRODUCTS = 10_000;
+    private static final int CLIENTS = 100_000;
+    private static final int CATEGORIES = 100;
+    private static final long START = 1546300800000L;
+    private static final long MINUTES = 2 * 365 * 24 * 60;
+
+    @Param({"10000000", "100000000"})
+    public int rows;
+
+    // 0 - по количеству процессоров
+    @Param({"1", "0"})
+    public int threads;
+
+    private ForkJoinPool pool;
+    private PurchaseColumns columns;
+    private int[][] categories;
+
+    private Date monthStart;
+    private Date monthEnd;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random random = new Random(42);
+        pool = new ForkJoinPool(threads > 0 ? threads : Runtime.getRuntime().availableProcessors());
+        columns = new PurchaseColumns(pool);
+
+        for (int i = 0; i < rows; ++i) {
+            long minute = (long) i * MINUTES / rows;
+            columns.append(
+                    random.nextInt(PRODUCTS),
+                    random.nextInt(CLIENTS),
+                    new Date(START + minute * 60_000),
+                    1 + random.nextInt(5),
+                    100 + random.nextInt(10_000));
+        }
+
+        categories = new int[PRODUCTS][];
+        for (int i = 0; i < PRODUCTS; ++i) {
+            categories[i] = i % 3 == 0
+                    ? new int[]{random.nextInt(CATEGORIES), random.nextInt(CATEGORIES)}
+                    : new int[]{random.nextInt(CATEGORIES)};
+        }
+
+        monthStart = new Date(START + 400L * 24 * 60 * 60_000);
+        monthEnd = new Date(monthStart.getTime() + 30L * 24 * 60 * 60_000);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        pool.shutdownNow();
+    }
+
+    @Benchmark
+    public Object topProducts() {
+        return columns.topProducts(10, null, null);
+    }
+
+    @Benchmark
+    public Object topClientsForMonth() {
+        return columns.topClients(10, monthStart, monthEnd);
+    }
+
+    @Benchmark
+    public Object categoriesByWeek() {
+        return columns.categoriesByWeek(categories, null, null);
+    }
+}
@@ -0,0 +1,81 @@
+package net.thumbtack.onlineshop.benchmarks;
+
+import net.thumbtack.onlineshop.domain.models.Product;
+import net.thumbtack.onlineshop.domain.models.Purchase;
+import net.thumbtack.onlineshop.service.mail.PurchaseMailRenderer;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Формирование письма о покупке корзины: прежняя склейка строк против разобранных шаблонов
+ * {@link PurchaseMailRenderer} с буфером потока
+ * <br>
+ * База данных не нужна. Стоит запускать с -prof gc, чтобы сравнить и количество выделенной памяти.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PurchaseMailBenchmark {
+
+    @Param({"1", "10", "100"})
+    public int size;
+
+    private List<Purchase> purchases;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        purchases = new ArrayList<>(size);
+
+        for (int i = 0; i < size; ++i) {
+            Product product = new Product("product" + i, 1000, 10 + i);
+            purchases.add(new Purchase(product, null, new Date(), 1 + i % 5, 10 + i));
+        }
+    }
+
+    @Benchmark
+    public Object legacy() {
+        return createBasketReport(purchases);
+    }
+
+    @Benchmark
+    public Object templates() {
+        return PurchaseMailRenderer.render("Уведомление о покупке товаров", purchases);
+    }
+
+    /**
+     * Прежняя реализация MailService.sendBuyBasketReport
+     */
+    private static String createBasketReport(List<Purchase> purchases) {
+        StringBuilder purchaseList = new StringBuilder();
+        int sum = 0;
+
+        for (Purchase entry : purchases) {
+            purchaseList.append(
+                    createProductEntry(entry.getProduct().getName(), entry.getCount(), entry.getPrice())
+            );
+            purchaseList.append("<hr>");
+
+            sum += entry.getCount() * entry.getPrice();
+        }
+
+        return "<h4>Уведомление о покупке товаров</h4>" +
+                purchaseList.toString() +
+                "<b>Общая сумма:</b> " + sum + " руб." +
+                "<br><br>" +
+                "<b>Спасибо за покупку!</b>";
+    }
+
+    private static String createProductEntry(String name, int count, int price) {
+        return
+                "<b>Товар:</b>" + name + "<br>" +
+                "<b>Количество:</b> " + count + "<br>" +
+                "<b>Цена за единицу:</b> " + price + "руб. <br>";
+    }
+}
@@ -0,0 +1,144 @@
+package net.thumbtack.onlineshop.benchmarks;
+
+import net.thumbtack.onlineshop.OnlineShopServer;
+import net.thumbtack.onlineshop.domain.dao.AccountDao;
+import net.thumbtack.onlineshop.domain.dao.ProductDao;
+import net.thumbtack.onlineshop.domain.dao.PurchaseDao;
+import net.thumbtack.onlineshop.domain.models.*;
+import net.thumbtack.onlineshop.service.ServerControlService;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.boot.SpringApplication;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.persistence.EntityManager;
+import javax.persistence.TemporalType;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Страница и итоги истории покупок за один день из года покупок. Время запросов выводится
+ * по процентилям (p0.99 - 99-й процентиль), день выбирается случайно для каждого запроса.
+ * <br>
+ * Для запуска нужна база данных из application.properties (или указанная через
+ * -Dspring.datasource.url=...). Все таблицы базы данных будут очищены. История покупок
+ * заполняется копированием записей запросами insert ... select, но при 50 000 000 записей
+ * это всё равно занимает долгое время.
+ * <pre>
+ * gradle jmh -Pjmh.include=PurchaseRangeBenchmark
+ * </pre>
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PurchaseRangeBenchmark {
+
+    private static final int CLIENTS = 1000;
+    private static final int PRODUCTS = 1000;
+    private static final int SEED = 10_000;
+    private static final int CHUNK = 1_000_000;
+    private static final int DAYS = 365;
+    private static final long DAY = 24 * 60 * 60 * 1000L;
+    private static final int PAGE = 100;
+
+    @Param({"50000000"})
+    private int rows;
+
+    private ConfigurableApplicationContext context;
+    private PurchaseDao purchaseDao;
+    private Date start;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        context = SpringApplication.run(
+                OnlineShopServer.class,
+                "--rest_http_port=0",
+                "--spring.jpa.show-sql=false",
+                "--spring.jpa.properties.hibernate.use_sql_comments=false"
+        );
+
+        context.getBean(ServerControlService.class).clear();
+        purchaseDao = context.getBean(PurchaseDao.class);
+        EntityManager manager = context.getBean(EntityManager.class);
+        TransactionTemplate transaction = new TransactionTemplate(context.getBean(PlatformTransactionManager.class));
+
+        AccountDao accountDao = context.getBean(AccountDao.class);
+        List<Account> clients = new ArrayList<>();
+        for (int i = 0; i < CLIENTS; ++i) {
+            Account account = AccountFactory.createClient(
+                    "Клиент", "Клиентов", "client@mail.ru", "address",
+                    "89000000000", "benchmark" + i, "password123"
+            );
+            accountDao.insert(account);
+            clients.add(account);
+        }
+
+        ProductDao productDao = context.getBean(ProductDao.class);
+        List<Product> products = new ArrayList<>();
+        for (int i = 0; i < PRODUCTS; ++i) {
+            Product product = new Product("product" + i, 100 + i, 1000);
+            productDao.insert(product);
+            products.add(product);
+        }
+
+        start = new Date(System.currentTimeMillis() / DAY * DAY - DAYS * DAY);
+
+        Random random = new Random(42);
+        transaction.execute(status -> {
+            for (int i = 0; i < SEED; ++i) {
+                Product product = products.get(random.nextInt(PRODUCTS));
+                Account client = clients.get(random.nextInt(CLIENTS));
+                Date date = new Date(start.getTime() + (long) (random.nextDouble() * DAYS * DAY));
+                purchaseDao.insert(new Purchase(product, client, date, 1 + random.nextInt(5), product.getPrice()));
+            }
+            return null;
+        });
+
+        // Копируем уже добавленные записи со случайным временем покупки внутри того же года
+        long size = SEED;
+        while (size < rows) {
+            long count = Math.min(CHUNK, Math.min(size, rows - size));
+
+            transaction.execute(status -> manager.createNativeQuery(
+                    "insert into purchase (count, date, price, account_id, product_id)" +
+                            " select count, date_add(:start, interval floor(rand() * :seconds) second)," +
+                            " price, account_id, product_id from purchase limit :count")
+                    .setParameter("start", start, TemporalType.TIMESTAMP)
+                    .setParameter("seconds", DAYS * DAY / 1000)
+                    .setParameter("count", count)
+                    .executeUpdate());
+
+            size += count;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    public List<PurchaseRow> productsPage() {
+        return purchaseDao.getPurchases(PurchaseQuery.after(PurchaseQuery.Sort.PRODUCT, randomDay(), null, null, PAGE));
+    }
+
+    @Benchmark
+    public List<PurchaseRow> clientsPage() {
+        return purchaseDao.getPurchases(PurchaseQuery.after(PurchaseQuery.Sort.CLIENT, randomDay(), null, null, PAGE));
+    }
+
+    @Benchmark
+    public PurchaseTotals totals() {
+        return purchaseDao.getTotals(randomDay());
+    }
+
+    private PurchaseFilter randomDay() {
+        Date since = new Date(start.getTime() + ThreadLocalRandom.current().nextInt(DAYS) * DAY);
+        return new PurchaseFilter(null, null, null, since, new Date(since.getTime() + DAY));
+    }
+}
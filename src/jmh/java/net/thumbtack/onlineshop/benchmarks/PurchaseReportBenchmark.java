@@ -0,0 +1,145 @@
+package net.thumbtack.onlineshop.benchmarks;
+
+import net.thumbtack.onlineshop.OnlineShopServer;
+import net.thumbtack.onlineshop.domain.dao.AccountDao;
+import net.thumbtack.onlineshop.domain.dao.ProductDao;
+import net.thumbtack.onlineshop.domain.dao.PurchaseDao;
+import net.thumbtack.onlineshop.domain.models.Account;
+import net.thumbtack.onlineshop.domain.models.AccountFactory;
+import net.thumbtack.onlineshop.domain.models.Product;
+import net.thumbtack.onlineshop.domain.models.Purchase;
+import net.thumbtack.onlineshop.domain.models.PurchaseFilter;
+import net.thumbtack.onlineshop.domain.models.PurchaseQuery;
+import net.thumbtack.onlineshop.domain.models.PurchaseRow;
+import net.thumbtack.onlineshop.dto.PurchasesDto;
+import net.thumbtack.onlineshop.service.ServerControlService;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.boot.SpringApplication;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.persistence.EntityManager;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Root;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Страница ведомости истории покупок из 1000 записей: прежняя выборка сущностей Purchase
+ * (вместе с аккаунтами и товарами) против проекции в {@link PurchaseRow}
+ * <br>
+ * Для запуска нужна база данных из application.properties (или указанная через
+ * -Dspring.datasource.url=...). Все таблицы базы данных будут очищены. Память, которая
+ * выделяется на одну страницу, показывает профилировщик gc (gc.alloc.rate.norm):
+ * <pre>
+ * gradle jmh -Pjmh.include=PurchaseReportBenchmark -Pjmh.profilers=gc
+ * </pre>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PurchaseReportBenchmark {
+
+    private static final int CLIENTS = 200;
+    private static final int PRODUCTS = 200;
+    private static final int PURCHASES = 20_000;
+    private static final int PAGE = 1000;
+
+    private ConfigurableApplicationContext context;
+    private PurchaseDao purchaseDao;
+    private EntityManager manager;
+    private TransactionTemplate transaction;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        context = SpringApplication.run(
+                OnlineShopServer.class,
+                "--rest_http_port=0",
+                "--spring.jpa.show-sql=false",
+                "--spring.jpa.properties.hibernate.use_sql_comments=false"
+        );
+
+        context.getBean(ServerControlService.class).clear();
+        purchaseDao = context.getBean(PurchaseDao.class);
+        manager = context.getBean(EntityManager.class);
+        transaction = new TransactionTemplate(context.getBean(PlatformTransactionManager.class));
+
+        AccountDao accountDao = context.getBean(AccountDao.class);
+        List<Account> clients = new ArrayList<>();
+        for (int i = 0; i < CLIENTS; ++i) {
+            Account account = AccountFactory.createClient(
+                    "Клиент", "Клиентов", "client@mail.ru", "address",
+                    "89000000000", "benchmark" + i, "password123"
+            );
+            accountDao.insert(account);
+            clients.add(account);
+        }
+
+        ProductDao productDao = context.getBean(ProductDao.class);
+        List<Product> products = new ArrayList<>();
+        for (int i = 0; i < PRODUCTS; ++i) {
+            Product product = new Product("product" + i, 100 + i, 1000);
+            productDao.insert(product);
+            products.add(product);
+        }
+
+        Random random = new Random(42);
+        transaction.execute(status -> {
+            for (int i = 0; i < PURCHASES; ++i) {
+                Product product = products.get(random.nextInt(PRODUCTS));
+                Account client = clients.get(random.nextInt(CLIENTS));
+                purchaseDao.insert(new Purchase(product, client, new Date(), 1 + random.nextInt(5), product.getPrice()));
+            }
+            return null;
+        });
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    public PurchasesDto entities() {
+        return transaction.execute(status -> {
+            CriteriaBuilder builder = manager.getCriteriaBuilder();
+            CriteriaQuery<Purchase> criteria = builder.createQuery(Purchase.class);
+            Root<Purchase> from = criteria.from(Purchase.class);
+
+            criteria.select(from);
+            criteria.orderBy(builder.asc(from.get("product")), builder.asc(from.get("id")));
+
+            PurchasesDto result = new PurchasesDto();
+            manager.createQuery(criteria).setMaxResults(PAGE).getResultList().forEach(purchase ->
+                    result.addPurchase(new PurchasesDto.PurchaseDto(new PurchaseRow(
+                            purchase.getId(),
+                            purchase.getDate(),
+                            purchase.getAccount().getId(),
+                            purchase.getAccount().getFullName(),
+                            purchase.getProduct().getId(),
+                            purchase.getProduct().getName(),
+                            purchase.getCount(),
+                            purchase.getPrice())))
+            );
+            return result;
+        });
+    }
+
+    @Benchmark
+    public PurchasesDto projection() {
+        PurchasesDto result = new PurchasesDto();
+        PurchaseQuery query = PurchaseQuery.page(PurchaseQuery.Sort.PRODUCT, PurchaseFilter.ALL, PAGE, 0);
+        purchaseDao.getPurchases(query).forEach(row ->
+                result.addPurchase(new PurchasesDto.PurchaseDto(row))
+        );
+        return result;
+    }
+}
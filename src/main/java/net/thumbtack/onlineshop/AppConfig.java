@@ -1,9 +1,14 @@
 package net.thumbtack.onlineshop;
 
+import net.thumbtack.onlineshop.service.listeners.PurchaseEventExecutor;
+import org.springframework.boot.autoconfigure.task.TaskExecutionAutoConfiguration;
+import org.springframework.boot.task.TaskExecutorBuilder;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.PropertySource;
 import org.springframework.scheduling.annotation.EnableAsync;
+import org.springframework.scheduling.annotation.EnableScheduling;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
 import org.springframework.security.crypto.password.PasswordEncoder;
 import springfox.documentation.builders.PathSelectors;
@@ -16,6 +21,7 @@ import springfox.documentation.swagger2.annotations.EnableSwagger2;
 @Configuration
 @EnableSwagger2
 @EnableAsync
+@EnableScheduling
 public class AppConfig {
 
     /**
@@ -42,5 +48,14 @@ public class AppConfig {
         return new BCryptPasswordEncoder();
     }
 
+    /**
+     * Пул потоков Spring MVC (например, для выгрузки истории покупок). Spring Boot не создаёт его сам,
+     * если в контексте есть другой пул ({@link PurchaseEventExecutor}).
+     */
+    @Bean(name = TaskExecutionAutoConfiguration.APPLICATION_TASK_EXECUTOR_BEAN_NAME)
+    public ThreadPoolTaskExecutor applicationTaskExecutor(TaskExecutorBuilder builder) {
+        return builder.build();
+    }
+
 
 }
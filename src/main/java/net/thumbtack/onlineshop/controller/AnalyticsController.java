@@ -0,0 +1,54 @@
+package net.thumbtack.onlineshop.controller;
+
+import net.thumbtack.onlineshop.dto.AnalyticsDto;
+import net.thumbtack.onlineshop.service.PurchaseAnalytics;
+import net.thumbtack.onlineshop.service.ServiceException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.*;
+
+/**
+ * Контроллер аналитики по истории покупок
+ */
+@RestController
+@RequestMapping("api/analytics")
+public class AnalyticsController {
+
+    private PurchaseAnalytics analytics;
+
+    @Autowired
+    public AnalyticsController(PurchaseAnalytics analytics) {
+        this.analytics = analytics;
+    }
+
+    @GetMapping("products")
+    public AnalyticsDto getTopProducts(
+            @CookieValue("JAVASESSIONID") String session,
+            @RequestParam(name = "limit", required = false, defaultValue = "10") int limit,
+            @RequestParam(name = "from", required = false) String from,
+            @RequestParam(name = "to", required = false) String to
+    ) throws ServiceException {
+
+        return analytics.getTopProducts(session, limit, from, to);
+    }
+
+    @GetMapping("clients")
+    public AnalyticsDto getTopClients(
+            @CookieValue("JAVASESSIONID") String session,
+            @RequestParam(name = "limit", required = false, defaultValue = "10") int limit,
+            @RequestParam(name = "from", required = false) String from,
+            @RequestParam(name = "to", required = false) String to
+    ) throws ServiceException {
+
+        return analytics.getTopClients(session, limit, from, to);
+    }
+
+    @GetMapping("categories")
+    public AnalyticsDto getCategoriesByWeek(
+            @CookieValue("JAVASESSIONID") String session,
+            @RequestParam(name = "from", required = false) String from,
+            @RequestParam(name = "to", required = false) String to
+    ) throws ServiceException {
+
+        return analytics.getCategoriesByWeek(session, from, to);
+    }
+}
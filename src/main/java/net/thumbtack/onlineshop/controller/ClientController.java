@@ -1,13 +1,13 @@
 package net.thumbtack.onlineshop.controller;
 
 import net.thumbtack.onlineshop.dto.AccountDto;
+import net.thumbtack.onlineshop.dto.BasketDeltaDto;
 import net.thumbtack.onlineshop.dto.DepositDto;
 import net.thumbtack.onlineshop.dto.ProductDto;
 import net.thumbtack.onlineshop.dto.ResultBasketDto;
 import net.thumbtack.onlineshop.dto.actions.Edit;
 import net.thumbtack.onlineshop.dto.actions.Register;
 import net.thumbtack.onlineshop.dto.validation.ValidationException;
-import net.thumbtack.onlineshop.service.AccountService;
 import net.thumbtack.onlineshop.service.ClientService;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpStatus;
@@ -26,12 +26,10 @@ import java.util.List;
 public class ClientController {
 
     private ClientService clientService;
-    private AccountService accountService;
 
     @Autowired
-    public ClientController(ClientService clientService, AccountService accountService) {
+    public ClientController(ClientService clientService) {
         this.clientService = clientService;
-        this.accountService = accountService;
     }
 
     @PutMapping("deposits")
@@ -53,13 +51,14 @@ public class ClientController {
     public AccountDto getDeposit(
             @CookieValue("JAVASESSIONID") String session) throws Exception {
 
-        return new AccountDto(accountService.getAccount(session));
+        return clientService.getDeposit(session);
     }
 
     @PostMapping("purchases")
     @ResponseStatus(HttpStatus.OK)
     public ProductDto buyProduct(
             @CookieValue("JAVASESSIONID") String session,
+            @RequestHeader(name = "Idempotency-Key", required = false) String idempotencyKey,
             @RequestBody @Validated(Register.class) ProductDto product,
             BindingResult result) throws Exception {
 
@@ -71,7 +70,7 @@ public class ClientController {
             product.setCount(1);
         }
 
-        return clientService.buyProduct(session, product);
+        return clientService.buyProduct(session, product, idempotencyKey);
     }
 
     @PostMapping("baskets")
@@ -92,6 +91,24 @@ public class ClientController {
         return clientService.addToBasket(session, product);
     }
 
+    @PostMapping(value = "baskets", params = "delta=true")
+    @ResponseStatus(HttpStatus.OK)
+    public BasketDeltaDto addToBasketDelta(
+            @CookieValue("JAVASESSIONID") String session,
+            @RequestBody @Validated(Register.class) ProductDto product,
+            BindingResult result) throws Exception {
+
+        if (result.hasErrors()) {
+            throw new ValidationException(result);
+        }
+
+        if (product.getCount() == null) {
+            product.setCount(1);
+        }
+
+        return clientService.addToBasketDelta(session, product);
+    }
+
 
     @DeleteMapping("baskets/{id}")
     @ResponseStatus(HttpStatus.OK)
@@ -124,6 +141,20 @@ public class ClientController {
         return clientService.editProductCount(session, product);
     }
 
+    @PutMapping(value = "baskets", params = "delta=true")
+    @ResponseStatus(HttpStatus.OK)
+    public BasketDeltaDto editProductCountDelta(
+            @CookieValue("JAVASESSIONID") String session,
+            @RequestBody @Validated(Edit.class) ProductDto product,
+            BindingResult result) throws Exception {
+
+        if (result.hasErrors()) {
+            throw new ValidationException(result);
+        }
+
+        return clientService.editProductCountDelta(session, product);
+    }
+
     @GetMapping("baskets")
     @ResponseStatus(HttpStatus.OK)
     public List<ProductDto> getBasket(
@@ -132,10 +163,20 @@ public class ClientController {
         return clientService.getBasket(session);
     }
 
+    @GetMapping(value = "baskets", params = "since")
+    @ResponseStatus(HttpStatus.OK)
+    public BasketDeltaDto getBasketDelta(
+            @CookieValue("JAVASESSIONID") String session,
+            @RequestParam("since") long since) throws Exception {
+
+        return clientService.getBasketDelta(session, since);
+    }
+
     @PostMapping("purchases/baskets")
     @ResponseStatus(HttpStatus.OK)
     public ResultBasketDto buyBasket(
             @CookieValue("JAVASESSIONID") String session,
+            @RequestHeader(name = "Idempotency-Key", required = false) String idempotencyKey,
             @RequestBody @Validated(Register.class) List<ProductDto> toBuy,
             BindingResult result) throws Exception {
 
@@ -143,7 +184,7 @@ public class ClientController {
             throw new ValidationException(result);
         }
 
-        return clientService.buyBasket(session, toBuy);
+        return clientService.buyBasket(session, toBuy, idempotencyKey);
     }
 
 }
@@ -4,6 +4,7 @@ import net.thumbtack.onlineshop.dto.ErrorDto;
 import net.thumbtack.onlineshop.dto.validation.ValidationException;
 import net.thumbtack.onlineshop.service.ServiceException;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
 import org.springframework.validation.FieldError;
 import org.springframework.web.bind.annotation.ControllerAdvice;
 import org.springframework.web.bind.annotation.ExceptionHandler;
@@ -16,15 +17,28 @@ import org.springframework.web.bind.annotation.ResponseStatus;
 @ControllerAdvice
 public class ExceptionHandlerController {
 
-    @ResponseStatus(HttpStatus.BAD_REQUEST)
+    /**
+     * Сервисные ошибки возвращаются с кодом 400, кроме повторного использования
+     * ключа идемпотентности для другого запроса (422) и повтора запроса,
+     * который ещё выполняется (409)
+     */
     @ExceptionHandler(ServiceException.class)
     @ResponseBody
-    public ErrorDto handleServiceException(ServiceException exception) {
-        return new ErrorDto(
+    public ResponseEntity<ErrorDto> handleServiceException(ServiceException exception) {
+        ErrorDto error = new ErrorDto(
                 exception.getErrorCode().getErrorCode(),
                 exception.getField(),
                 exception.getMessage()
         );
+
+        switch (exception.getErrorCode()) {
+            case IDEMPOTENCY_KEY_REUSED:
+                return new ResponseEntity<>(error, HttpStatus.UNPROCESSABLE_ENTITY);
+            case IDEMPOTENCY_IN_PROGRESS:
+                return new ResponseEntity<>(error, HttpStatus.CONFLICT);
+            default:
+                return new ResponseEntity<>(error, HttpStatus.BAD_REQUEST);
+        }
     }
 
     @ResponseStatus(HttpStatus.BAD_REQUEST)
@@ -0,0 +1,67 @@
+package net.thumbtack.onlineshop.controller;
+
+import net.thumbtack.onlineshop.dto.AnalyticsDto;
+import net.thumbtack.onlineshop.dto.PurchasesDto;
+import net.thumbtack.onlineshop.service.PurchaseHistory;
+import net.thumbtack.onlineshop.service.ServiceException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.*;
+
+/**
+ * Контроллер отчётов по всей истории покупок, в том числе по файлам архива
+ */
+@RestController
+@RequestMapping("api/history")
+public class HistoryController {
+
+    private PurchaseHistory history;
+
+    @Autowired
+    public HistoryController(PurchaseHistory history) {
+        this.history = history;
+    }
+
+    @GetMapping("totals")
+    public PurchasesDto getTotals(
+            @CookieValue("JAVASESSIONID") String session,
+            @RequestParam(name = "from", required = false) String from,
+            @RequestParam(name = "to", required = false) String to
+    ) throws ServiceException {
+
+        return history.getTotals(session, from, to);
+    }
+
+    @GetMapping("products")
+    public AnalyticsDto getTopProducts(
+            @CookieValue("JAVASESSIONID") String session,
+            @RequestParam(name = "limit", required = false, defaultValue = "10") int limit,
+            @RequestParam(name = "from", required = false) String from,
+            @RequestParam(name = "to", required = false) String to
+    ) throws ServiceException {
+
+        return history.getTopProducts(session, limit, from, to);
+    }
+
+    @GetMapping("clients")
+    public AnalyticsDto getTopClients(
+            @CookieValue("JAVASESSIONID") String session,
+            @RequestParam(name = "limit", required = false, defaultValue = "10") int limit,
+            @RequestParam(name = "from", required = false) String from,
+            @RequestParam(name = "to", required = false) String to
+    ) throws ServiceException {
+
+        return history.getTopClients(session, limit, from, to);
+    }
+
+    @GetMapping("clients/{id}")
+    public PurchasesDto getClientPurchases(
+            @CookieValue("JAVASESSIONID") String session,
+            @PathVariable long id,
+            @RequestParam(name = "limit", required = false, defaultValue = "100") int limit,
+            @RequestParam(name = "from", required = false) String from,
+            @RequestParam(name = "to", required = false) String to
+    ) throws ServiceException {
+
+        return history.getClientPurchases(session, id, limit, from, to);
+    }
+}
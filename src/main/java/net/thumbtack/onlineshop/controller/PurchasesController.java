@@ -1,10 +1,15 @@
 package net.thumbtack.onlineshop.controller;
 
 import net.thumbtack.onlineshop.dto.PurchasesDto;
+import net.thumbtack.onlineshop.service.PurchaseExport;
 import net.thumbtack.onlineshop.service.PurchasesService;
 import net.thumbtack.onlineshop.service.PurchasesService.Target;
 import net.thumbtack.onlineshop.service.ServiceException;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import java.util.List;
 
@@ -25,7 +30,10 @@ public class PurchasesController {
             @RequestParam(name = "offset", required = false, defaultValue = "0") int offset,
             @RequestParam(name = "limit", required = false, defaultValue = "10") int limit,
             @RequestParam(name = "id", required = false) List<Long> ids,
-            @RequestParam(name = "categories", required = false) List<Long> categories
+            @RequestParam(name = "categories", required = false) List<Long> categories,
+            @RequestParam(name = "after", required = false) String after,
+            @RequestParam(name = "from", required = false) String from,
+            @RequestParam(name = "to", required = false) String to
     ) throws ServiceException {
 
         Target requestTarget = Target.CLIENT;
@@ -35,6 +43,27 @@ public class PurchasesController {
         }
 
         return purchasesService.getPurchases(
-                session, requestTarget, offset, limit, ids, categories);
+                session, requestTarget, offset, limit, ids, categories, after, from, to);
+    }
+
+    @GetMapping("purchases/export")
+    public ResponseEntity<StreamingResponseBody> exportPurchases(
+            @CookieValue("JAVASESSIONID") String session,
+            @RequestParam(name = "format", required = false, defaultValue = "csv") String format,
+            @RequestParam(name = "client", required = false) List<Long> clients,
+            @RequestParam(name = "product", required = false) List<Long> products,
+            @RequestParam(name = "categories", required = false) List<Long> categories,
+            @RequestParam(name = "from", required = false) String from,
+            @RequestParam(name = "to", required = false) String to
+    ) throws ServiceException {
+
+        PurchaseExport export = purchasesService.export(
+                session, format, clients, products, categories, from, to);
+
+        return ResponseEntity.ok()
+                .contentType(MediaType.parseMediaType(export.getFormat().getContentType() + ";charset=UTF-8"))
+                .header(HttpHeaders.CONTENT_DISPOSITION,
+                        "attachment; filename=purchases." + export.getFormat().getExtension())
+                .body(export::writeTo);
     }
 }
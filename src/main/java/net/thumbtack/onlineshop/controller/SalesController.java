@@ -0,0 +1,49 @@
+package net.thumbtack.onlineshop.controller;
+
+import net.thumbtack.onlineshop.dto.SalesDto;
+import net.thumbtack.onlineshop.service.SalesRollupService;
+import net.thumbtack.onlineshop.service.ServiceException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.*;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Контроллер отчётов о продажах
+ */
+@RestController
+@RequestMapping("api")
+public class SalesController {
+
+    private SalesRollupService salesService;
+
+    @Autowired
+    public SalesController(SalesRollupService salesService) {
+        this.salesService = salesService;
+    }
+
+    @GetMapping("sales")
+    public SalesDto getSales(
+            @CookieValue("JAVASESSIONID") String session,
+            @RequestParam(name = "dimension") String dimension,
+            @RequestParam(name = "period", required = false, defaultValue = "day") String period,
+            @RequestParam(name = "id", required = false) List<Long> ids,
+            @RequestParam(name = "from") String from,
+            @RequestParam(name = "to") String to
+    ) throws ServiceException {
+
+        return salesService.getSales(session, dimension, period, ids, from, to);
+    }
+
+    @PostMapping("sales/rebuild")
+    public Map<String, Integer> rebuild(
+            @CookieValue("JAVASESSIONID") String session,
+            @RequestParam(name = "from") String from,
+            @RequestParam(name = "to") String to
+    ) throws ServiceException {
+
+        return Collections.singletonMap("rows", salesService.rebuild(session, from, to));
+    }
+}
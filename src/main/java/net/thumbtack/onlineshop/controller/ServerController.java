@@ -2,11 +2,15 @@ package net.thumbtack.onlineshop.controller;
 
 import net.thumbtack.onlineshop.dto.ServerConfigurationDto;
 import net.thumbtack.onlineshop.service.ServerControlService;
+import net.thumbtack.onlineshop.service.ServiceException;
+import net.thumbtack.onlineshop.service.metrics.MetricsService;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpStatus;
 import org.springframework.web.bind.annotation.*;
 
+import java.util.Map;
+
 /**
  * Контроллер запросов для управления и настройкой сервера
  */
@@ -24,10 +28,12 @@ public class ServerController {
     private boolean debug;
 
     private ServerControlService serverControl;
+    private MetricsService metricsService;
 
     @Autowired
-    public ServerController(ServerControlService serverControl) {
+    public ServerController(ServerControlService serverControl, MetricsService metricsService) {
         this.serverControl = serverControl;
+        this.metricsService = metricsService;
     }
 
     @GetMapping("settings")
@@ -45,5 +51,11 @@ public class ServerController {
         return "{}";
     }
 
+    @GetMapping("metrics")
+    @ResponseStatus(HttpStatus.OK)
+    public Map<String, Map<String, Number>> getMetrics(
+            @CookieValue("JAVASESSIONID") String session) throws ServiceException {
+        return metricsService.getMetrics(session);
+    }
 
 }
@@ -13,7 +13,9 @@ import javax.persistence.criteria.CriteriaBuilder;
 import javax.persistence.criteria.CriteriaDelete;
 import javax.persistence.criteria.CriteriaQuery;
 import javax.persistence.criteria.Root;
+import java.util.Collection;
 import java.util.List;
+import java.util.Set;
 
 @Transactional
 @Repository
@@ -141,6 +143,16 @@ public class AccountDao implements Dao {
         return typed.getSingleResult() != 0;
     }
 
+    /**
+     * Находит id аккаунтов, которых нет в БД
+     *
+     * @param ids список id аккаунтов
+     * @return id, которых нет в БД (без повторений, в порядке списка)
+     */
+    public Set<Long> findMissing(Collection<Long> ids) {
+        return IdLookup.findMissing(manager, Account.class, ids);
+    }
+
     /**
      * Проверяет наличие пользователя с данным логином в БД
      *
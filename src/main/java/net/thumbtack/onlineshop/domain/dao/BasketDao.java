@@ -7,12 +7,14 @@ import org.springframework.stereotype.Repository;
 
 import javax.persistence.EntityManager;
 import javax.persistence.NoResultException;
+import javax.persistence.TemporalType;
 import javax.persistence.TypedQuery;
 import javax.persistence.criteria.CriteriaBuilder;
 import javax.persistence.criteria.CriteriaDelete;
 import javax.persistence.criteria.CriteriaQuery;
 import javax.persistence.criteria.Root;
 import javax.transaction.Transactional;
+import java.util.Date;
 import java.util.List;
 
 @Transactional
@@ -78,7 +80,6 @@ public class BasketDao implements Dao {
         criteria.select(from);
         criteria.where(
                 builder.equal(from.get("account"), account.getId()),
-                builder.and(),
                 builder.equal(from.get("product"), productId)
         );
 
@@ -114,6 +115,72 @@ public class BasketDao implements Dao {
 
     }
 
+    /**
+     * Получает записи из всех корзин вместе с товарами и пользователями
+     *
+     * @return содержимое всех корзин
+     */
+    public List<Basket> getAll() {
+
+        CriteriaBuilder builder = manager.getCriteriaBuilder();
+        CriteriaQuery<Basket> criteria = builder.createQuery(Basket.class);
+        Root<Basket> from = criteria.from(Basket.class);
+
+        // Товары и пользователи загружаются тем же запросом
+        from.fetch("product");
+        from.fetch("account");
+        criteria.select(from);
+
+        return manager.createQuery(criteria).getResultList();
+    }
+
+    /**
+     * Устанавливает количество товара в корзине. Если записи в корзине нет, то добавляет её.
+     *
+     * @param accountId id пользователя
+     * @param productId id товара
+     * @param count     количество товара
+     * @param touched   время последнего изменения записи
+     */
+    public void save(long accountId, long productId, int count, Date touched) {
+        // Одна запись на пару (account_id, product_id) гарантируется индексом k_account_product
+        manager.createNativeQuery(
+                "insert into basket (account_id, product_id, count, touched) values (?, ?, ?, ?)" +
+                        " on duplicate key update count = values(count), touched = values(touched)")
+                .setParameter(1, accountId)
+                .setParameter(2, productId)
+                .setParameter(3, count)
+                .setParameter(4, touched, TemporalType.TIMESTAMP)
+                .executeUpdate();
+    }
+
+    /**
+     * Удаляет запись из корзины
+     *
+     * @param accountId id пользователя
+     * @param productId id товара
+     */
+    public void delete(long accountId, long productId) {
+        manager.createNativeQuery("delete from basket where account_id = ? and product_id = ?")
+                .setParameter(1, accountId)
+                .setParameter(2, productId)
+                .executeUpdate();
+    }
+
+    /**
+     * Удаляет не больше limit записей, которые не менялись с указанного времени
+     *
+     * @param date  граница времени
+     * @param limit максимальное количество удаляемых записей
+     * @return количество удалённых записей
+     */
+    public int deleteTouchedBefore(Date date, int limit) {
+        return manager.createNativeQuery("delete from basket where touched < ? limit ?")
+                .setParameter(1, date, TemporalType.TIMESTAMP)
+                .setParameter(2, limit)
+                .executeUpdate();
+    }
+
     /**
      * Удаляет всю таблицу записей в корзинах
      */
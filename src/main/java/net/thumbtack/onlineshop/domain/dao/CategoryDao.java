@@ -12,7 +12,9 @@ import javax.persistence.criteria.CriteriaDelete;
 import javax.persistence.criteria.CriteriaQuery;
 import javax.persistence.criteria.Root;
 import javax.transaction.Transactional;
+import java.util.Collection;
 import java.util.List;
+import java.util.Set;
 
 @Transactional
 @Repository
@@ -71,6 +73,16 @@ public class CategoryDao implements Dao {
         return typed.getSingleResult() != 0;
     }
 
+    /**
+     * Находит id категорий, которых нет в БД
+     *
+     * @param ids список id категорий
+     * @return id, которых нет в БД (без повторений, в порядке списка)
+     */
+    public Set<Long> findMissing(Collection<Long> ids) {
+        return IdLookup.findMissing(manager, Category.class, ids);
+    }
+
     /**
      * Получает категорию по её id
      *
@@ -94,6 +106,23 @@ public class CategoryDao implements Dao {
 
     }
 
+    /**
+     * Получает категории по списку id
+     *
+     * @param ids список id категорий
+     * @return найденные категории
+     */
+    public List<Category> get(Collection<Long> ids) {
+        CriteriaBuilder builder = manager.getCriteriaBuilder();
+        CriteriaQuery<Category> criteria = builder.createQuery(Category.class);
+        Root<Category> from = criteria.from(Category.class);
+
+        criteria.select(from);
+        criteria.where(from.get("id").in(ids));
+
+        return manager.createQuery(criteria).getResultList();
+    }
+
     /**
      * Получает список всех категорий
      *
@@ -0,0 +1,132 @@
+package net.thumbtack.onlineshop.domain.dao;
+
+import net.thumbtack.onlineshop.domain.models.DepositEntry;
+import net.thumbtack.onlineshop.domain.models.DepositSnapshot;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Repository;
+
+import javax.persistence.EntityManager;
+import javax.persistence.TypedQuery;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaDelete;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Root;
+import javax.transaction.Transactional;
+
+@Transactional
+@Repository
+public class DepositDao implements Dao {
+
+    private EntityManager manager;
+
+    @Autowired
+    public DepositDao(EntityManager manager) {
+        this.manager = manager;
+    }
+
+    /**
+     * Добавляет движение денег на счету
+     *
+     * @param entry движение денег
+     */
+    public void insert(DepositEntry entry) {
+        manager.persist(entry);
+    }
+
+    /**
+     * Добавляет снимок остатка на счету
+     *
+     * @param snapshot снимок остатка
+     */
+    public void insertSnapshot(DepositSnapshot snapshot) {
+        manager.persist(snapshot);
+    }
+
+    /**
+     * Получает снимок остатка на счету клиента
+     *
+     * @param accountId id клиента
+     * @return снимок остатка или null, если снимка ещё нет
+     */
+    public DepositSnapshot getSnapshot(long accountId) {
+        return manager.find(DepositSnapshot.class, accountId);
+    }
+
+    /**
+     * Считает сумму движений денег клиента после указанной записи
+     *
+     * @param accountId id клиента
+     * @param entryId   id записи, после которой нужно считать
+     * @return сумма движений денег
+     */
+    public long getDelta(long accountId, long entryId) {
+        CriteriaBuilder builder = manager.getCriteriaBuilder();
+        CriteriaQuery<Long> criteria = builder.createQuery(Long.class);
+        Root<DepositEntry> from = criteria.from(DepositEntry.class);
+
+        criteria.select(builder.sumAsLong(from.<Integer>get("amount")));
+        criteria.where(
+                builder.equal(from.get("account"), accountId),
+                builder.greaterThan(from.<Long>get("id"), entryId)
+        );
+
+        TypedQuery<Long> typed = manager.createQuery(criteria);
+        Long result = typed.getSingleResult();
+        return result == null ? 0 : result;
+    }
+
+    /**
+     * Получает id последнего движения денег
+     *
+     * @return id последней записи или 0, если записей нет
+     */
+    public long getLastEntryId() {
+        Number last = (Number) manager.createNativeQuery(
+                "select max(id) from deposit_entry")
+                .getSingleResult();
+
+        return last == null ? 0 : last.longValue();
+    }
+
+    /**
+     * Переносит в снимки остатков все движения денег с id не больше указанного
+     * <br>
+     * Вызывающий код должен гарантировать, что все записи до этой границы уже зафиксированы.
+     *
+     * @param maxId id последней переносимой записи
+     * @return количество изменённых снимков
+     */
+    public int compact(long maxId) {
+
+        if (maxId <= 0) {
+            return 0;
+        }
+
+        // Подзапрос с group by MySQL материализует, поэтому его можно использовать
+        // в update той же таблицы
+        return manager.createNativeQuery(
+                "update deposit_snapshot s join (" +
+                        " select e.account_id, sum(e.amount) total, max(e.id) last_id" +
+                        " from deposit_entry e join deposit_snapshot d on d.account_id = e.account_id" +
+                        " where e.id > d.entry_id and e.id <= ? group by e.account_id" +
+                        ") delta on delta.account_id = s.account_id" +
+                        " set s.balance = s.balance + delta.total, s.entry_id = delta.last_id")
+                .setParameter(1, maxId)
+                .executeUpdate();
+    }
+
+    /**
+     * Удаляет таблицы движений денег и снимков остатков
+     */
+    public void clear() {
+        CriteriaBuilder builder = manager.getCriteriaBuilder();
+
+        CriteriaDelete<DepositEntry> entries = builder.createCriteriaDelete(DepositEntry.class);
+        entries.from(DepositEntry.class);
+        manager.createQuery(entries).executeUpdate();
+
+        CriteriaDelete<DepositSnapshot> snapshots = builder.createCriteriaDelete(DepositSnapshot.class);
+        snapshots.from(DepositSnapshot.class);
+        manager.createQuery(snapshots).executeUpdate();
+    }
+}
@@ -0,0 +1,60 @@
+package net.thumbtack.onlineshop.domain.dao;
+
+import javax.persistence.EntityManager;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Path;
+import javax.persistence.criteria.Root;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Проверка существования списка id одним запросом вместо запроса на каждый id
+ */
+final class IdLookup {
+
+    // Сколько id передаётся в одном операторе IN
+    static final int CHUNK_SIZE = 1000;
+
+    private IdLookup() {
+
+    }
+
+    /**
+     * Находит id, которых нет в таблице сущности. Длинные списки проверяются
+     * запросами SELECT id ... WHERE id IN (...) по {@link #CHUNK_SIZE} id.
+     *
+     * @param manager менеджер сущностей
+     * @param type    класс сущности
+     * @param ids     список id (может содержать повторения)
+     * @return отсутствующие id без повторений в порядке списка
+     */
+    static <T> Set<Long> findMissing(EntityManager manager, Class<T> type, Collection<Long> ids) {
+        Set<Long> missing = new LinkedHashSet<>(ids);
+
+        if (missing.isEmpty()) {
+            return missing;
+        }
+
+        List<Long> unique = new ArrayList<>(missing);
+        CriteriaBuilder builder = manager.getCriteriaBuilder();
+
+        for (int from = 0; from < unique.size(); from += CHUNK_SIZE) {
+            List<Long> chunk = unique.subList(from, Math.min(unique.size(), from + CHUNK_SIZE));
+
+            CriteriaQuery<Long> criteria = builder.createQuery(Long.class);
+            Root<T> root = criteria.from(type);
+            Path<Long> id = root.get("id");
+
+            criteria.select(id);
+            criteria.where(id.in(chunk));
+
+            missing.removeAll(manager.createQuery(criteria).getResultList());
+        }
+
+        return missing;
+    }
+}
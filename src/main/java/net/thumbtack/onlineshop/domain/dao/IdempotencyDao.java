@@ -0,0 +1,100 @@
+package net.thumbtack.onlineshop.domain.dao;
+
+import net.thumbtack.onlineshop.domain.models.Account;
+import net.thumbtack.onlineshop.domain.models.IdempotencyRecord;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Repository;
+
+import javax.persistence.EntityManager;
+import javax.persistence.NoResultException;
+import javax.persistence.TypedQuery;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaDelete;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Root;
+import javax.transaction.Transactional;
+import java.util.Date;
+
+@Transactional
+@Repository
+public class IdempotencyDao implements Dao {
+
+    private EntityManager manager;
+
+    @Autowired
+    public IdempotencyDao(EntityManager manager) {
+        this.manager = manager;
+    }
+
+    /**
+     * Сохраняет результат запроса
+     *
+     * @param record результат запроса
+     */
+    public void insert(IdempotencyRecord record) {
+        manager.persist(record);
+    }
+
+    /**
+     * Дописывает результат запроса в уже сохранённую запись
+     *
+     * @param record результат запроса
+     */
+    public void update(IdempotencyRecord record) {
+        manager.merge(record);
+    }
+
+    /**
+     * Получает сохранённый результат запроса
+     *
+     * @param account        аккаунт, который выполнял запрос
+     * @param idempotencyKey ключ идемпотентности
+     * @return результат запроса или null, если запроса с таким ключом не было
+     */
+    public IdempotencyRecord get(Account account, String idempotencyKey) {
+        CriteriaBuilder builder = manager.getCriteriaBuilder();
+        CriteriaQuery<IdempotencyRecord> criteria = builder.createQuery(IdempotencyRecord.class);
+        Root<IdempotencyRecord> from = criteria.from(IdempotencyRecord.class);
+
+        criteria.select(from);
+        criteria.where(
+                builder.equal(from.get("account"), account.getId()),
+                builder.equal(from.get("idempotencyKey"), idempotencyKey)
+        );
+
+        TypedQuery<IdempotencyRecord> typed = manager.createQuery(criteria);
+        try {
+            return typed.getSingleResult();
+        } catch (NoResultException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Удаляет все результаты, которые были сохранены раньше указанного времени
+     *
+     * @param date граница времени
+     * @return количество удалённых записей
+     */
+    public int deleteOlderThan(Date date) {
+        CriteriaBuilder builder = manager.getCriteriaBuilder();
+        CriteriaDelete<IdempotencyRecord> criteria = builder.createCriteriaDelete(IdempotencyRecord.class);
+        Root<IdempotencyRecord> from = criteria.from(IdempotencyRecord.class);
+
+        criteria.where(builder.lessThan(from.<Date>get("created"), date));
+
+        return manager.createQuery(criteria).executeUpdate();
+    }
+
+    /**
+     * Удаляет таблицу результатов запросов
+     */
+    public void clear() {
+        CriteriaBuilder builder = manager.getCriteriaBuilder();
+        CriteriaDelete<IdempotencyRecord> criteria = builder.createCriteriaDelete(IdempotencyRecord.class);
+
+        criteria.from(IdempotencyRecord.class);
+
+        manager.createQuery(criteria).executeUpdate();
+    }
+}
@@ -0,0 +1,102 @@
+package net.thumbtack.onlineshop.domain.dao;
+
+import net.thumbtack.onlineshop.domain.models.OutboxEntry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Repository;
+
+import javax.persistence.EntityManager;
+import javax.persistence.TemporalType;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaDelete;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Root;
+import javax.transaction.Transactional;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+@Transactional
+@Repository
+public class OutboxDao implements Dao {
+
+    private EntityManager manager;
+
+    @Autowired
+    public OutboxDao(EntityManager manager) {
+        this.manager = manager;
+    }
+
+    /**
+     * Сохраняет запись о событии. Вызывается в транзакции, в которой сохраняются покупки.
+     *
+     * @param entry запись о событии
+     */
+    public void insert(OutboxEntry entry) {
+        manager.persist(entry);
+    }
+
+    /**
+     * Забирает не больше limit самых старых записей, которые никем не забраны или аренда
+     * которых истекла. Записи забираются одним UPDATE, поэтому несколько серверов
+     * не получат одну и ту же запись.
+     *
+     * @param owner уникальный идентификатор владельца
+     * @param now   текущее время
+     * @param until до какого времени забрать записи
+     * @param limit максимальное количество записей
+     * @return забранные записи по порядку id
+     */
+    public List<OutboxEntry> claim(String owner, Date now, Date until, int limit) {
+        int claimed = manager.createNativeQuery(
+                "update outbox set owner = ?, claimed_until = ? " +
+                        "where claimed_until is null or claimed_until < ? order by id limit ?")
+                .setParameter(1, owner)
+                .setParameter(2, until, TemporalType.TIMESTAMP)
+                .setParameter(3, now, TemporalType.TIMESTAMP)
+                .setParameter(4, limit)
+                .executeUpdate();
+
+        if (claimed == 0) {
+            return Collections.emptyList();
+        }
+
+        CriteriaBuilder builder = manager.getCriteriaBuilder();
+        CriteriaQuery<OutboxEntry> criteria = builder.createQuery(OutboxEntry.class);
+        Root<OutboxEntry> from = criteria.from(OutboxEntry.class);
+
+        criteria.select(from);
+        criteria.where(builder.equal(from.get("owner"), owner));
+        criteria.orderBy(builder.asc(from.get("id")));
+
+        return manager.createQuery(criteria).getResultList();
+    }
+
+    /**
+     * Удаляет доставленные записи
+     *
+     * @param ids id записей
+     */
+    public void delete(Collection<Long> ids) {
+        if (ids.isEmpty()) {
+            return;
+        }
+
+        CriteriaBuilder builder = manager.getCriteriaBuilder();
+        CriteriaDelete<OutboxEntry> criteria = builder.createCriteriaDelete(OutboxEntry.class);
+        Root<OutboxEntry> from = criteria.from(OutboxEntry.class);
+
+        criteria.where(from.get("id").in(ids));
+
+        manager.createQuery(criteria).executeUpdate();
+    }
+
+    @Override
+    public void clear() {
+        CriteriaBuilder builder = manager.getCriteriaBuilder();
+        CriteriaDelete<OutboxEntry> criteria = builder.createCriteriaDelete(OutboxEntry.class);
+        criteria.from(OutboxEntry.class);
+
+        manager.createQuery(criteria).executeUpdate();
+    }
+}
@@ -6,6 +6,7 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Repository;
 
 import javax.persistence.EntityManager;
+import javax.persistence.LockModeType;
 import javax.persistence.NoResultException;
 import javax.persistence.Query;
 import javax.persistence.TypedQuery;
@@ -15,6 +16,7 @@ import javax.persistence.criteria.CriteriaQuery;
 import javax.persistence.criteria.Root;
 import javax.transaction.Transactional;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -120,6 +122,46 @@ public class ProductDao implements Dao {
         }
     }
 
+    /**
+     * Получает товары по списку id
+     *
+     * @param ids список id товаров
+     * @return найденные товары
+     */
+    public List<Product> get(Collection<Long> ids) {
+        CriteriaBuilder builder = manager.getCriteriaBuilder();
+        CriteriaQuery<Product> criteria = builder.createQuery(Product.class);
+        Root<Product> from = criteria.from(Product.class);
+
+        criteria.select(from);
+        criteria.where(from.get("id").in(ids));
+
+        return manager.createQuery(criteria).getResultList();
+    }
+
+    /**
+     * Получает товары по списку id и блокирует их на запись до конца транзакции
+     * <br>
+     * Товары блокируются в порядке возрастания id, поэтому две транзакции,
+     * которые блокируют пересекающиеся наборы товаров, не приведут к взаимной блокировке.
+     *
+     * @param ids список id товаров
+     * @return найденные товары, отсортированные по id
+     */
+    public List<Product> getForUpdate(Collection<Long> ids) {
+        CriteriaBuilder builder = manager.getCriteriaBuilder();
+        CriteriaQuery<Product> criteria = builder.createQuery(Product.class);
+        Root<Product> from = criteria.from(Product.class);
+
+        criteria.select(from);
+        criteria.where(from.get("id").in(ids));
+        criteria.orderBy(builder.asc(from.get("id")));
+
+        TypedQuery<Product> typed = manager.createQuery(criteria);
+        typed.setLockMode(LockModeType.PESSIMISTIC_WRITE);
+        return typed.getResultList();
+    }
+
     /**
      * Провряет, что товар с таким id существует
      *
@@ -138,6 +180,16 @@ public class ProductDao implements Dao {
         return result.getSingleResult() != 0;
     }
 
+    /**
+     * Находит id товаров, которых нет в БД
+     *
+     * @param ids список id товаров
+     * @return id, которых нет в БД (без повторений, в порядке списка)
+     */
+    public Set<Long> findMissing(Collection<Long> ids) {
+        return IdLookup.findMissing(manager, Product.class, ids);
+    }
+
     /**
      * Получает весь список товаров (за исключением удалённых)
      *
@@ -1,16 +1,41 @@
 package net.thumbtack.onlineshop.domain.dao;
 
+import net.thumbtack.onlineshop.domain.models.Account;
+import net.thumbtack.onlineshop.domain.models.ArchivedPurchase;
+import net.thumbtack.onlineshop.domain.models.Product;
+import net.thumbtack.onlineshop.domain.models.ProductCategory;
 import net.thumbtack.onlineshop.domain.models.Purchase;
+import net.thumbtack.onlineshop.domain.models.PurchaseFilter;
+import net.thumbtack.onlineshop.domain.models.PurchaseQuery;
+import net.thumbtack.onlineshop.domain.models.PurchaseRow;
+import net.thumbtack.onlineshop.domain.models.PurchaseTotals;
+import org.hibernate.CacheMode;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.query.NativeQuery;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Repository;
 
 import javax.persistence.EntityManager;
+import javax.persistence.TemporalType;
 import javax.persistence.TypedQuery;
 import javax.persistence.criteria.*;
 import javax.transaction.Transactional;
-import java.util.Collections;
-import java.util.List;
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
+/**
+ * История покупок
+ * <br>
+ * Старые записи переносятся в архив (таблица purchase_archive, см. {@link #archive(Date, int)}).
+ * Выборки читают архив, только если промежуток времени выборки начинается не позже последней
+ * записи архива: записи архива и оперативной таблицы объединяются в одну выборку в том же порядке.
+ * Время последней записи архива читается из БД в той же транзакции, что и сама выборка
+ * (см. {@link #getLastArchived()}), поэтому граница и записи таблиц берутся из одного снимка БД:
+ * выборка не пропустит записи, которые в это время переносятся в архив, в том числе
+ * другим экземпляром сервера.
+ */
 @Transactional
 @Repository
 public class PurchaseDao implements Dao {
@@ -30,116 +55,513 @@ public class PurchaseDao implements Dao {
     }
 
     /**
-     * Получает историю покупок отсортированных по товарам
+     * Получает страницу истории покупок
+     * <br>
+     * Если условие выборки ограничивает промежуток времени, то он выбирается по индексу
+     * (date, product_id) или (date, account_id) в зависимости от порядка записей.
      *
-     * @param limit количество записей
-     * @param offset с какой записи начать выдачу
+     * @param query условие выборки, порядок записей и позиция страницы
      * @return история покупок
      */
-    public List<Purchase> getPurchasesSortedByProducts(int limit, int offset) {
+    public List<PurchaseRow> getPurchases(PurchaseQuery query) {
+        return select(query.getSort().getField(), query.getFilter(),
+                query.getAfterKey(), query.getAfterId(), query.getLimit(), query.getOffset());
+    }
+
+    /**
+     * Считает итоги истории покупок по условию выборки. Условие выборки
+     * совпадает с {@link #getPurchases(PurchaseQuery)}
+     *
+     * @param filter условие выборки
+     * @return количество выкупленного товара и сумма покупок
+     */
+    public PurchaseTotals getTotals(PurchaseFilter filter) {
+        PurchaseTotals totals = totals(Purchase.class, filter);
+
+        if (inArchive(filter)) {
+            PurchaseTotals archived = totals(ArchivedPurchase.class, filter);
+            totals = new PurchaseTotals(
+                    totals.getCount() + archived.getCount(),
+                    totals.getAmount() + archived.getAmount());
+        }
+
+        return totals;
+    }
+
+    /**
+     * Получает записи о покупках по списку id вместе с товарами и клиентами одним запросом
+     *
+     * @param ids список id записей
+     * @return найденные записи
+     */
+    public List<Purchase> get(Collection<Long> ids) {
+        if (ids.isEmpty()) {
+            return Collections.emptyList();
+        }
+
         CriteriaBuilder builder = manager.getCriteriaBuilder();
         CriteriaQuery<Purchase> criteria = builder.createQuery(Purchase.class);
         Root<Purchase> from = criteria.from(Purchase.class);
 
+        from.fetch("product");
+        from.fetch("account");
         criteria.select(from);
-        criteria.orderBy(builder.asc(from.get("product")));
+        criteria.where(from.get("id").in(ids));
 
-        TypedQuery<Purchase> typed = manager.createQuery(criteria);
-        return typed.setFirstResult(offset).setMaxResults(limit).getResultList();
+        return manager.createQuery(criteria).getResultList();
     }
 
     /**
-     * Получает историю покупок отсортированных по клиентам
+     * Считает сумму покупок по товарам
      *
-     * @param limit количество записей
-     * @param offset с какой записи начать выдачу
-     * @return история покупок
+     * @param filter условие выборки
+     * @return сумма покупок по id товаров
      */
-    public List<Purchase> getPurchasesSortedByClients(int limit, int offset) {
+    public Map<Long, Long> getProductsAmounts(PurchaseFilter filter) {
+        return amounts("product", filter);
+    }
+
+    /**
+     * Считает сумму покупок по клиентам
+     *
+     * @param filter условие выборки
+     * @return сумма покупок по id клиентов
+     */
+    public Map<Long, Long> getClientsAmounts(PurchaseFilter filter) {
+        return amounts("account", filter);
+    }
+
+    /**
+     * Получает время самой первой покупки (в том числе в архиве)
+     *
+     * @return время первой покупки или null, если покупок нет
+     */
+    public Date getFirstDate() {
+        Date first = firstDate(Purchase.class);
+        Date archived = firstDate(ArchivedPurchase.class);
+
+        if (first == null || (archived != null && archived.before(first))) {
+            first = archived;
+        }
+
+        return first;
+    }
+
+    /**
+     * Удаляет не больше limit записей, сделанных раньше указанного времени,
+     * сначала из архива, а затем из оперативной таблицы
+     *
+     * @param before граница времени
+     * @param limit максимальное количество удаляемых записей
+     * @return количество удалённых записей
+     */
+    public int deleteBefore(Date before, int limit) {
+        int deleted = manager.createNativeQuery("delete from purchase_archive where date < ? limit ?")
+                .setParameter(1, before, TemporalType.TIMESTAMP)
+                .setParameter(2, limit)
+                .executeUpdate();
+
+        if (deleted < limit) {
+            deleted += manager.createNativeQuery("delete from purchase where date < ? limit ?")
+                    .setParameter(1, before, TemporalType.TIMESTAMP)
+                    .setParameter(2, limit - deleted)
+                    .executeUpdate();
+        }
+
+        return deleted;
+    }
+
+    /**
+     * Читает всю выборку из истории покупок по порядку id и передаёт каждую строку обработчику
+     * <br>
+     * Строки читаются курсором, который движется только вперёд и получает из БД по fetchSize
+     * строк за раз (для MySQL нужен параметр подключения useCursorFetch=true). Строки не являются
+     * сущностями и не остаются в памяти после обработки, поэтому память не зависит от размера
+     * выборки. Следующие строки читаются только после того, как обработчик вернёт управление.
+     *
+     * @param filter условие выборки
+     * @param fetchSize сколько строк получать из БД за раз
+     * @param consumer обработчик строк
+     */
+    public void scroll(PurchaseFilter filter, int fetchSize, Consumer<PurchaseRow> consumer) {
+        // Записи архива старше записей оперативной таблицы
+        if (inArchive(filter)) {
+            scroll("purchase_archive", filter, fetchSize, consumer);
+        }
+
+        scroll("purchase", filter, fetchSize, consumer);
+    }
+
+    /**
+     * Переносит в архив не больше limit записей, сделанных раньше указанного времени.
+     * Записи копируются в архив и удаляются из оперативной таблицы в одной транзакции.
+     *
+     * @param before граница времени
+     * @param limit максимальное количество переносимых записей
+     * @return количество перенесённых записей
+     */
+    public int archive(Date before, int limit) {
+        // Записи выбираются по индексу (date, product_id)
+        List<?> ids = manager.createNativeQuery("select id from purchase where date < ? limit ?")
+                .setParameter(1, before, TemporalType.TIMESTAMP)
+                .setParameter(2, limit)
+                .getResultList();
+
+        if (ids.isEmpty()) {
+            return 0;
+        }
+
+        manager.createNativeQuery("insert into purchase_archive (id, count, date, price, account_id, product_id)" +
+                " select id, count, date, price, account_id, product_id from purchase where id in (:ids)")
+                .setParameter("ids", ids)
+                .executeUpdate();
+
+        manager.createNativeQuery("delete from purchase where id in (:ids)")
+                .setParameter("ids", ids)
+                .executeUpdate();
+
+        return ids.size();
+    }
+
+    /**
+     * Получает время последней записи в архиве (по индексу (date, ...) архива)
+     *
+     * @return время последней записи в архиве (null - архив пуст)
+     */
+    public Date getLastArchived() {
+        return (Date) manager.createNativeQuery("select max(date) from purchase_archive")
+                .getSingleResult();
+    }
+
+    /**
+     * Удалить всю историю покупок вместе с архивом
+     */
+    public void clear() {
         CriteriaBuilder builder = manager.getCriteriaBuilder();
-        CriteriaQuery<Purchase> criteria = builder.createQuery(Purchase.class);
-        Root<Purchase> from = criteria.from(Purchase.class);
+        CriteriaDelete<Purchase> criteria = builder.createCriteriaDelete(Purchase.class);
 
-        criteria.select(from);
-        criteria.orderBy(builder.asc(from.get("account")));
+        criteria.from(Purchase.class);
 
-        TypedQuery<Purchase> typed = manager.createQuery(criteria);
-        return typed.setFirstResult(offset).setMaxResults(limit).getResultList();
+        manager.createQuery(criteria).executeUpdate();
+
+        CriteriaDelete<ArchivedPurchase> archive = builder.createCriteriaDelete(ArchivedPurchase.class);
+        archive.from(ArchivedPurchase.class);
+
+        manager.createQuery(archive).executeUpdate();
     }
 
     /**
-     * Получает историю покупок для указанных товаров. Список группируется
-     * по товарам
+     * Читает выборку из одной таблицы истории покупок по порядку id
      *
-     * @param products список id товаров
-     * @param limit количество записей
-     * @param offset с какой записи начать выборку
-     * @return история покупок
+     * @param table purchase или purchase_archive
      */
-    public List<Purchase> getProductsPurchases(List<Long> products, int limit, int offset) {
-        if (products == null || products.isEmpty()) {
-            return Collections.emptyList();
+    private void scroll(String table, PurchaseFilter filter, int fetchSize, Consumer<PurchaseRow> consumer) {
+        StringBuilder sql = new StringBuilder(
+                "select p.id, p.date, p.account_id, a.first_name, a.last_name, a.patronymic," +
+                        " p.product_id, pr.name, p.count, p.price" +
+                        " from " + table + " p" +
+                        " left join account a on a.id = p.account_id" +
+                        " left join product pr on pr.id = p.product_id" +
+                        " where 1 = 1");
+        Map<String, Object> parameters = new HashMap<>();
+
+        if (filter.getClients() != null && !filter.getClients().isEmpty()) {
+            sql.append(" and p.account_id in (:clients)");
+            parameters.put("clients", filter.getClients());
+        }
+        if (filter.getProducts() != null && !filter.getProducts().isEmpty()) {
+            sql.append(" and p.product_id in (:products)");
+            parameters.put("products", filter.getProducts());
+        }
+        if (filter.getCategories() != null && !filter.getCategories().isEmpty()) {
+            sql.append(" and p.product_id in (select pc.product_id from productcategory pc where pc.category_id in (:categories))");
+            parameters.put("categories", filter.getCategories());
+        }
+        if (filter.getSince() != null) {
+            sql.append(" and p.date >= :since");
+            parameters.put("since", filter.getSince());
+        }
+        if (filter.getUntil() != null) {
+            sql.append(" and p.date < :until");
+            parameters.put("until", filter.getUntil());
+        }
+
+        sql.append(" order by p.id");
+
+        NativeQuery<?> query = manager.createNativeQuery(sql.toString()).unwrap(NativeQuery.class);
+        parameters.forEach((name, value) -> {
+            if (value instanceof Collection) {
+                query.setParameterList(name, (Collection<?>) value);
+            } else {
+                query.setParameter(name, (Date) value, TemporalType.TIMESTAMP);
+            }
+        });
+
+        query.setFetchSize(fetchSize);
+        query.setReadOnly(true);
+        query.setCacheMode(CacheMode.IGNORE);
+
+        ScrollableResults results = query.scroll(ScrollMode.FORWARD_ONLY);
+        try {
+            while (results.next()) {
+                consumer.accept(toRow(results.get()));
+            }
+        } finally {
+            results.close();
         }
+    }
+
+    /**
+     * Выборка истории покупок, отсортированной по (key, id)
+     * <br>
+     * Запрос выбирает только поля ведомости в {@link PurchaseRow}, поэтому сущности аккаунтов
+     * (вместе с паролями) и товаров не создаются и не хранятся в контексте персистентности.
+     * <br>
+     * Если указана последняя запись предыдущей страницы (afterKey, afterId), то выборка
+     * начинается сразу после неё по индексу (key_id, id), и MySQL не перебирает
+     * пропущенные записи, как при offset. id делает порядок записей однозначным,
+     * поэтому страницы не пересекаются. Если у последней записи нет товара (клиента),
+     * то afterKey равен null.
+     *
+     * @param key поле, по которому сортируется история (product или account)
+     * @param filter условие выборки
+     */
+    private List<PurchaseRow> select(
+            String key, PurchaseFilter filter, Long afterKey, Long afterId, int limit, int offset) {
+        if (!inArchive(filter)) {
+            return select(Purchase.class, key, filter, afterKey, afterId, limit, offset);
+        }
+
+        // Из каждой таблицы берём записи до конца страницы и сливаем их в порядке (key, id)
+        List<PurchaseRow> rows = new ArrayList<>(
+                select(ArchivedPurchase.class, key, filter, afterKey, afterId, offset + limit, 0));
+        rows.addAll(select(Purchase.class, key, filter, afterKey, afterId, offset + limit, 0));
+
+        Function<PurchaseRow, Long> keyId = key.equals("product") ? PurchaseRow::getProductId : PurchaseRow::getClientId;
+        rows.sort(Comparator.comparing(keyId, Comparator.nullsFirst(Comparator.naturalOrder()))
+                .thenComparing(PurchaseRow::getId));
+
+        return new ArrayList<>(rows.subList(Math.min(offset, rows.size()), Math.min(offset + limit, rows.size())));
+    }
 
+    /**
+     * Выборка из одной таблицы истории покупок
+     *
+     * @param table {@link Purchase} или {@link ArchivedPurchase}
+     */
+    private <T> List<PurchaseRow> select(
+            Class<T> table, String key, PurchaseFilter filter, Long afterKey, Long afterId, int limit, int offset) {
         CriteriaBuilder builder = manager.getCriteriaBuilder();
-        CriteriaQuery<Purchase> criteria = builder.createQuery(Purchase.class);
-        Root<Purchase> from = criteria.from(Purchase.class);
+        CriteriaQuery<PurchaseRow> criteria = builder.createQuery(PurchaseRow.class);
+        Root<T> from = criteria.from(table);
+        Path<Long> id = from.get("id");
 
-        // Делаем селект
-        criteria.select(from);
+        // Только поля ведомости: аккаунт и товар не загружаются целиком
+        Join<T, Account> account = from.join("account", JoinType.LEFT);
+        Join<T, Product> product = from.join("product", JoinType.LEFT);
+
+        criteria.select(builder.construct(
+                PurchaseRow.class,
+                id,
+                from.get("date"),
+                account.get("id"),
+                account.get("firstName"),
+                account.get("lastName"),
+                account.get("patronymic"),
+                product.get("id"),
+                product.get("name"),
+                from.get("count"),
+                from.get("price")
+        ));
+
+        List<Predicate> where = where(builder, criteria, from, filter);
 
-        // Оператор IN (product1, product2, ... , productN)
-        Expression<Long> expression = from.get("product");
-        criteria.where(expression.in(products));
+        if (afterId != null) {
+            Path<Long> keyId = from.get(key).get("id");
+
+            // key > afterKey OR (key = afterKey AND id > afterId). Записи без товара (клиента)
+            // идут первыми, поэтому после них: key IS NOT NULL OR (key IS NULL AND id > afterId)
+            where.add(afterKey != null
+                    ? builder.or(
+                            builder.greaterThan(keyId, afterKey),
+                            builder.and(builder.equal(keyId, afterKey), builder.greaterThan(id, afterId)))
+                    : builder.or(
+                            builder.isNotNull(keyId),
+                            builder.and(builder.isNull(keyId), builder.greaterThan(id, afterId))));
+        }
+
+        if (!where.isEmpty()) {
+            criteria.where(where.toArray(new Predicate[0]));
+        }
 
         // Сортируем
-        criteria.orderBy(builder.asc(from.get("product")));
+        criteria.orderBy(builder.asc(from.get(key)), builder.asc(id));
 
-        TypedQuery<Purchase> typed = manager.createQuery(criteria);
+        TypedQuery<PurchaseRow> typed = manager.createQuery(criteria);
         return typed.setFirstResult(offset).setMaxResults(limit).getResultList();
     }
 
     /**
-     * Получает историю покупок для указанных клиентов. Список группируется
-     * по клиентам
+     * Итоги выборки из одной таблицы истории покупок
      *
-     * @param clients список id клентов
-     * @param limit количество записей
-     * @param offset с какой записи начать выборку
-     * @return история покупок
+     * @param table {@link Purchase} или {@link ArchivedPurchase}
      */
-    public List<Purchase> getClientsPurchases(List<Long> clients, int limit, int offset) {
-        if (clients == null || clients.isEmpty()) {
-            return Collections.emptyList();
+    private <T> PurchaseTotals totals(Class<T> table, PurchaseFilter filter) {
+        CriteriaBuilder builder = manager.getCriteriaBuilder();
+        CriteriaQuery<PurchaseTotals> criteria = builder.createQuery(PurchaseTotals.class);
+        Root<T> from = criteria.from(table);
+
+        Expression<Integer> count = from.get("count");
+        Expression<Integer> price = from.get("price");
+
+        criteria.select(builder.construct(
+                PurchaseTotals.class,
+                builder.sumAsLong(count),
+                builder.sumAsLong(builder.prod(count, price))
+        ));
+
+        List<Predicate> where = where(builder, criteria, from, filter);
+
+        if (!where.isEmpty()) {
+            criteria.where(where.toArray(new Predicate[0]));
         }
 
+        return manager.createQuery(criteria).getSingleResult();
+    }
+
+    /**
+     * Сумма покупок по key (product или account) в обеих таблицах истории покупок
+     */
+    private Map<Long, Long> amounts(String key, PurchaseFilter filter) {
+        Map<Long, Long> result = new HashMap<>();
+
+        amounts(Purchase.class, key, filter, result);
+        if (inArchive(filter)) {
+            amounts(ArchivedPurchase.class, key, filter, result);
+        }
+
+        return result;
+    }
+
+    /**
+     * SELECT key_id, SUM(count * price) ... GROUP BY key_id по одной таблице истории покупок
+     */
+    private <T> void amounts(Class<T> table, String key, PurchaseFilter filter, Map<Long, Long> result) {
         CriteriaBuilder builder = manager.getCriteriaBuilder();
-        CriteriaQuery<Purchase> criteria = builder.createQuery(Purchase.class);
-        Root<Purchase> from = criteria.from(Purchase.class);
+        CriteriaQuery<Object[]> criteria = builder.createQuery(Object[].class);
+        Root<T> from = criteria.from(table);
 
-        // Делаем селект
-        criteria.select(from);
+        Path<Long> keyId = from.get(key).get("id");
+        Expression<Integer> count = from.get("count");
+        Expression<Integer> price = from.get("price");
 
-        // Оператор IN
-        Expression<Long> expression = from.get("account");
-        criteria.where(expression.in(clients));
+        criteria.multiselect(keyId, builder.sumAsLong(builder.prod(count, price)));
 
-        // Сортируем
-        criteria.orderBy(builder.asc(from.get("account")));
+        List<Predicate> where = where(builder, criteria, from, filter);
+        where.add(builder.isNotNull(keyId));
+        criteria.where(where.toArray(new Predicate[0]));
+        criteria.groupBy(keyId);
 
-        TypedQuery<Purchase> typed = manager.createQuery(criteria);
-        return typed.setFirstResult(offset).setMaxResults(limit).getResultList();
+        for (Object[] row : manager.createQuery(criteria).getResultList()) {
+            result.merge((Long) row[0], (Long) row[1], Long::sum);
+        }
     }
 
     /**
-     * Удалить всю историю покупок
+     * Время первой покупки в одной таблице истории покупок (по индексу (date, ...))
      */
-    public void clear() {
+    private <T> Date firstDate(Class<T> table) {
         CriteriaBuilder builder = manager.getCriteriaBuilder();
-        CriteriaDelete<Purchase> criteria = builder.createCriteriaDelete(Purchase.class);
+        CriteriaQuery<Date> criteria = builder.createQuery(Date.class);
+        Root<T> from = criteria.from(table);
 
-        criteria.from(Purchase.class);
+        Expression<Date> date = from.get("date");
+        criteria.select(builder.least(date));
 
-        manager.createQuery(criteria).executeUpdate();
+        return manager.createQuery(criteria).getSingleResult();
+    }
+
+    /**
+     * Условия выборки истории покупок. Промежуток времени задаётся условиями
+     * date >= since AND date < until, чтобы MySQL выбирал его по индексу (date, ...).
+     */
+    private static List<Predicate> where(
+            CriteriaBuilder builder, AbstractQuery<?> criteria, Root<?> from, PurchaseFilter filter) {
+        List<Predicate> where = new ArrayList<>();
+
+        // Оператор IN (id1, id2, ... , idN)
+        if (filter.getClients() != null && !filter.getClients().isEmpty()) {
+            where.add(in(from, "account", filter.getClients()));
+        }
+
+        if (filter.getProducts() != null && !filter.getProducts().isEmpty()) {
+            where.add(in(from, "product", filter.getProducts()));
+        }
+
+        if (filter.getCategories() != null && !filter.getCategories().isEmpty()) {
+            where.add(inCategories(criteria, from, filter.getCategories()));
+        }
+
+        if (filter.getSince() != null) {
+            Path<Date> date = from.get("date");
+            where.add(builder.greaterThanOrEqualTo(date, filter.getSince()));
+        }
+
+        if (filter.getUntil() != null) {
+            Path<Date> date = from.get("date");
+            where.add(builder.lessThan(date, filter.getUntil()));
+        }
+
+        return where;
+    }
+
+    /**
+     * Преобразует строку результата {@link #scroll(PurchaseFilter, int, Consumer)}
+     */
+    private static PurchaseRow toRow(Object[] row) {
+        return new PurchaseRow(
+                ((Number) row[0]).longValue(),
+                (Date) row[1],
+                row[2] == null ? null : ((Number) row[2]).longValue(),
+                row[2] == null ? null : PurchaseRow.fullName((String) row[3], (String) row[4], (String) row[5]),
+                row[6] == null ? null : ((Number) row[6]).longValue(),
+                (String) row[7],
+                ((Number) row[8]).intValue(),
+                ((Number) row[9]).intValue()
+        );
+    }
+
+    /**
+     * Условие выборки key IN (id1, id2, ... , idN)
+     */
+    private static Predicate in(Root<?> from, String key, List<Long> ids) {
+        Expression<Long> expression = from.get(key);
+        return expression.in(ids);
+    }
+
+    /**
+     * Условие выборки product_id IN (SELECT product_id FROM productcategory WHERE category_id IN (...))
+     * <br>
+     * Товары из категорий отбираются в БД подзапросом по индексу (category_id, product_id), а не
+     * передаются в запрос списком id. Товар из нескольких указанных категорий не повторяется в выборке.
+     */
+    private static Predicate inCategories(AbstractQuery<?> criteria, Root<?> from, List<Long> categories) {
+        Subquery<Long> products = criteria.subquery(Long.class);
+        Root<ProductCategory> productCategory = products.from(ProductCategory.class);
+
+        Expression<Long> categoryId = productCategory.get("category").get("id");
+        products.select(productCategory.get("product").get("id"));
+        products.where(categoryId.in(categories));
+
+        Expression<Long> productId = from.get("product").get("id");
+        return productId.in(products);
+    }
+
+    /**
+     * Нужно ли читать архив: в архиве есть записи и выборка начинается не позже последней из них
+     */
+    private boolean inArchive(PurchaseFilter filter) {
+        Date last = getLastArchived();
+        return last != null && (filter.getSince() == null || !filter.getSince().after(last));
     }
 }
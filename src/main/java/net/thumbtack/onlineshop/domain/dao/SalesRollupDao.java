@@ -0,0 +1,166 @@
+package net.thumbtack.onlineshop.domain.dao;
+
+import net.thumbtack.onlineshop.domain.models.SalesRollup;
+import net.thumbtack.onlineshop.domain.models.SalesRollup.Dimension;
+import net.thumbtack.onlineshop.domain.models.SalesRollup.Period;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Repository;
+
+import javax.persistence.EntityManager;
+import javax.persistence.TemporalType;
+import javax.persistence.criteria.*;
+import javax.transaction.Transactional;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+@Transactional
+@Repository
+public class SalesRollupDao implements Dao {
+
+    private EntityManager manager;
+
+    @Autowired
+    public SalesRollupDao(EntityManager manager) {
+        this.manager = manager;
+    }
+
+    /**
+     * Добавляет продажи к сводке. Если сводки ещё нет, то создаёт её.
+     *
+     * @param dimension по чему сгруппированы продажи
+     * @param period    период сводки
+     * @param keyId     id товара, категории или клиента
+     * @param bucket    начало периода
+     * @param count     сколько единиц товара выкуплено
+     * @param amount    на какую сумму выкуплено товара
+     */
+    public void add(Dimension dimension, Period period, long keyId, Date bucket, long count, long amount) {
+        // Одна сводка на период гарантируется индексом k_rollup
+        manager.createNativeQuery(
+                "insert into sales_rollup (dimension, period, key_id, bucket, count, amount)" +
+                        " values (?, ?, ?, ?, ?, ?)" +
+                        " on duplicate key update count = count + values(count), amount = amount + values(amount)")
+                .setParameter(1, dimension.name())
+                .setParameter(2, period.name())
+                .setParameter(3, keyId)
+                .setParameter(4, bucket, TemporalType.TIMESTAMP)
+                .setParameter(5, count)
+                .setParameter(6, amount)
+                .executeUpdate();
+    }
+
+    /**
+     * Получает сводки продаж за промежуток времени
+     *
+     * @param dimension по чему сгруппированы продажи
+     * @param period    период сводок
+     * @param ids       id товаров, категорий или клиентов (null/empty - все)
+     * @param since     начало промежутка (включительно)
+     * @param until     конец промежутка (не включительно)
+     * @return сводки, отсортированные по времени и по id
+     */
+    public List<SalesRollup> get(Dimension dimension, Period period, List<Long> ids, Date since, Date until) {
+        CriteriaBuilder builder = manager.getCriteriaBuilder();
+        CriteriaQuery<SalesRollup> criteria = builder.createQuery(SalesRollup.class);
+        Root<SalesRollup> from = criteria.from(SalesRollup.class);
+
+        criteria.select(from);
+
+        List<Predicate> where = new ArrayList<>();
+        where.add(builder.equal(from.get("dimension"), dimension));
+        where.add(builder.equal(from.get("period"), period));
+        where.add(builder.greaterThanOrEqualTo(from.get("bucket"), since));
+        where.add(builder.lessThan(from.get("bucket"), until));
+
+        if (ids != null && !ids.isEmpty()) {
+            Expression<Long> expression = from.get("keyId");
+            where.add(expression.in(ids));
+        }
+
+        criteria.where(where.toArray(new Predicate[0]));
+        criteria.orderBy(builder.asc(from.get("bucket")), builder.asc(from.get("keyId")));
+
+        return manager.createQuery(criteria).getResultList();
+    }
+
+    /**
+     * Пересчитывает сводки за промежуток времени по истории покупок
+     * <br>
+     * Промежуток должен начинаться и заканчиваться в начале дня, иначе дневные
+     * сводки на его границах будут посчитаны не полностью.
+     *
+     * @param from начало промежутка (включительно)
+     * @param to   конец промежутка (не включительно)
+     * @return количество записанных сводок
+     */
+    public int rebuild(Date from, Date to) {
+        manager.createNativeQuery("delete from sales_rollup where bucket >= ? and bucket < ?")
+                .setParameter(1, from, TemporalType.TIMESTAMP)
+                .setParameter(2, to, TemporalType.TIMESTAMP)
+                .executeUpdate();
+
+        int rows = 0;
+        for (Dimension dimension : Dimension.values()) {
+            for (Period period : Period.values()) {
+                rows += manager.createNativeQuery(rebuildQuery(dimension, period))
+                        .setParameter(1, dimension.name())
+                        .setParameter(2, period.name())
+                        .setParameter(3, from, TemporalType.TIMESTAMP)
+                        .setParameter(4, to, TemporalType.TIMESTAMP)
+                        .setParameter(5, from, TemporalType.TIMESTAMP)
+                        .setParameter(6, to, TemporalType.TIMESTAMP)
+                        .executeUpdate();
+            }
+        }
+
+        return rows;
+    }
+
+    /**
+     * Удаляет все сводки
+     */
+    public void clear() {
+        CriteriaBuilder builder = manager.getCriteriaBuilder();
+        CriteriaDelete<SalesRollup> criteria = builder.createCriteriaDelete(SalesRollup.class);
+
+        criteria.from(SalesRollup.class);
+
+        manager.createQuery(criteria).executeUpdate();
+    }
+
+    /**
+     * Запрос, который группирует покупки за промежуток времени в сводки. Покупки берутся
+     * из оперативной таблицы и из архива, в каждой из них - по индексу (date, ...).
+     */
+    private static String rebuildQuery(Dimension dimension, Period period) {
+        String key;
+        String join = "";
+
+        switch (dimension) {
+            case PRODUCT:
+                key = "p.product_id";
+                break;
+            case CATEGORY:
+                key = "pc.category_id";
+                join = " join productcategory pc on pc.product_id = p.product_id";
+                break;
+            default:
+                key = "p.account_id";
+                break;
+        }
+
+        String bucket = period == Period.DAY
+                ? "date(p.date)"
+                : "date_add(date(p.date), interval hour(p.date) hour)";
+
+        return "insert into sales_rollup (dimension, period, key_id, bucket, count, amount)" +
+                " select ?, ?, " + key + ", " + bucket + ", sum(p.count), sum(p.count * p.price)" +
+                " from (select date, count, price, account_id, product_id from purchase" +
+                " where date >= ? and date < ?" +
+                " union all select date, count, price, account_id, product_id from purchase_archive" +
+                " where date >= ? and date < ?) p" + join +
+                " where " + key + " is not null" +
+                " group by " + key + ", " + bucket;
+    }
+}
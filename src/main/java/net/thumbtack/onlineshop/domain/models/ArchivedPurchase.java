@@ -0,0 +1,64 @@
+package net.thumbtack.onlineshop.domain.models;
+
+import org.hibernate.annotations.OnDelete;
+import org.hibernate.annotations.OnDeleteAction;
+
+import javax.persistence.*;
+import java.util.Date;
+
+/**
+ * Запись о покупке в архиве истории покупок
+ * <br>
+ * Старые записи переносятся из таблицы purchase в сжатую таблицу purchase_archive вместе
+ * со своими id и больше не меняются. Поля совпадают с {@link Purchase}, поэтому выборки
+ * по архиву строятся теми же запросами.
+ */
+@Entity
+@Table(name = "purchase_archive")
+public class ArchivedPurchase {
+
+    @Id
+    private Long id;
+
+    @OneToOne
+    @OnDelete(action = OnDeleteAction.CASCADE)
+    private Product product;
+
+    @OneToOne
+    @OnDelete(action = OnDeleteAction.CASCADE)
+    private Account account;
+
+    @Column(nullable = false)
+    @Temporal(TemporalType.TIMESTAMP)
+    private Date date;
+
+    @Column(nullable = false)
+    private Integer count;
+
+    @Column(nullable = false)
+    private Integer price;
+
+    public Long getId() {
+        return id;
+    }
+
+    public Product getProduct() {
+        return product;
+    }
+
+    public Account getAccount() {
+        return account;
+    }
+
+    public Date getDate() {
+        return date;
+    }
+
+    public Integer getCount() {
+        return count;
+    }
+
+    public Integer getPrice() {
+        return price;
+    }
+}
@@ -4,6 +4,7 @@ import org.hibernate.annotations.OnDelete;
 import org.hibernate.annotations.OnDeleteAction;
 
 import javax.persistence.*;
+import java.util.Date;
 import java.util.Objects;
 
 @Entity
@@ -25,6 +26,11 @@ public class Basket {
     @Column(nullable = false, columnDefinition = "int default 0")
     private Integer count;
 
+    // Время последнего изменения записи клиентом
+    @Column(nullable = false)
+    @Temporal(TemporalType.TIMESTAMP)
+    private Date touched = new Date();
+
     public Basket() {
 
     }
@@ -67,6 +73,14 @@ public class Basket {
         this.count = count;
     }
 
+    public Date getTouched() {
+        return touched;
+    }
+
+    public void setTouched(Date touched) {
+        this.touched = touched;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
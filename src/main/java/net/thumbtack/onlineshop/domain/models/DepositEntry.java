@@ -0,0 +1,109 @@
+package net.thumbtack.onlineshop.domain.models;
+
+import org.hibernate.annotations.OnDelete;
+import org.hibernate.annotations.OnDeleteAction;
+
+import javax.persistence.*;
+import java.util.Date;
+import java.util.Objects;
+
+/**
+ * Движение денег на счету клиента (пополнение счёта или оплата покупки)
+ * <br>
+ * Записи только добавляются и никогда не изменяются. Остаток на счету - это сумма
+ * всех движений (см. {@link DepositSnapshot}).
+ */
+@Entity
+@Table(name = "deposit_entry")
+public class DepositEntry {
+
+    public enum Type { DEPOSIT, PURCHASE }
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    @OneToOne
+    @OnDelete(action = OnDeleteAction.CASCADE)
+    private Account account;
+
+    // Положительное число - пополнение, отрицательное - списание
+    @Column(nullable = false)
+    private Integer amount;
+
+    @Column(nullable = false)
+    @Enumerated(EnumType.STRING)
+    private Type type;
+
+    @Column(nullable = false)
+    @Temporal(TemporalType.TIMESTAMP)
+    private Date created;
+
+    public DepositEntry() {
+
+    }
+
+    public DepositEntry(Account account, Integer amount, Type type, Date created) {
+        this.account = account;
+        this.amount = amount;
+        this.type = type;
+        this.created = created;
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public void setId(Long id) {
+        this.id = id;
+    }
+
+    public Account getAccount() {
+        return account;
+    }
+
+    public void setAccount(Account account) {
+        this.account = account;
+    }
+
+    public Integer getAmount() {
+        return amount;
+    }
+
+    public void setAmount(Integer amount) {
+        this.amount = amount;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public void setType(Type type) {
+        this.type = type;
+    }
+
+    public Date getCreated() {
+        return created;
+    }
+
+    public void setCreated(Date created) {
+        this.created = created;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof DepositEntry)) return false;
+        DepositEntry that = (DepositEntry) o;
+        return Objects.equals(id, that.id) &&
+                Objects.equals(account, that.account) &&
+                Objects.equals(amount, that.amount) &&
+                type == that.type &&
+                Objects.equals(created, that.created);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(id, account, amount, type, created);
+    }
+}
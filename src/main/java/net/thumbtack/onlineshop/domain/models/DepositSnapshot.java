@@ -0,0 +1,73 @@
+package net.thumbtack.onlineshop.domain.models;
+
+import javax.persistence.*;
+import java.util.Objects;
+
+/**
+ * Снимок остатка на счету клиента
+ * <br>
+ * Хранит сумму всех движений денег клиента до записи entryId включительно.
+ * Текущий остаток равен balance плюс сумма движений, добавленных после entryId.
+ */
+@Entity
+@Table(name = "deposit_snapshot")
+public class DepositSnapshot {
+
+    @Id
+    private Long accountId;
+
+    @Column(nullable = false)
+    private Integer balance;
+
+    @Column(nullable = false)
+    private Long entryId;
+
+    public DepositSnapshot() {
+
+    }
+
+    public DepositSnapshot(Long accountId, Integer balance, Long entryId) {
+        this.accountId = accountId;
+        this.balance = balance;
+        this.entryId = entryId;
+    }
+
+    public Long getAccountId() {
+        return accountId;
+    }
+
+    public void setAccountId(Long accountId) {
+        this.accountId = accountId;
+    }
+
+    public Integer getBalance() {
+        return balance;
+    }
+
+    public void setBalance(Integer balance) {
+        this.balance = balance;
+    }
+
+    public Long getEntryId() {
+        return entryId;
+    }
+
+    public void setEntryId(Long entryId) {
+        this.entryId = entryId;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof DepositSnapshot)) return false;
+        DepositSnapshot that = (DepositSnapshot) o;
+        return Objects.equals(accountId, that.accountId) &&
+                Objects.equals(balance, that.balance) &&
+                Objects.equals(entryId, that.entryId);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(accountId, balance, entryId);
+    }
+}
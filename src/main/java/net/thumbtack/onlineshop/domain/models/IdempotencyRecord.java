@@ -0,0 +1,155 @@
+package net.thumbtack.onlineshop.domain.models;
+
+import org.hibernate.annotations.OnDelete;
+import org.hibernate.annotations.OnDeleteAction;
+
+import javax.persistence.*;
+import java.util.Date;
+import java.util.Objects;
+
+/**
+ * Сохранённый результат запроса с ключом идемпотентности
+ * <br>
+ * Хранит в себе либо ответ на запрос (в виде JSON), либо код ошибки, с которой
+ * запрос завершился. Повторный запрос с тем же ключом получает этот результат
+ * без повторного выполнения.
+ * <br>
+ * Запись без ответа и без ошибки означает, что запрос ещё выполняется: она сохраняется
+ * в транзакции покупки, а результат дописывается после её фиксации.
+ */
+@Entity
+@Table(name = "idempotency")
+public class IdempotencyRecord {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    @Column(nullable = false)
+    private String idempotencyKey;
+
+    @OneToOne
+    @OnDelete(action = OnDeleteAction.CASCADE)
+    private Account account;
+
+    @Column(nullable = false)
+    private String responseType;
+
+    // Отпечаток тела запроса, по которому отличаются разные запросы с одним ключом
+    private String fingerprint;
+
+    @Lob
+    private String response;
+
+    private String errorCode;
+
+    private String errorField;
+
+    @Column(nullable = false)
+    @Temporal(TemporalType.TIMESTAMP)
+    private Date created;
+
+    public IdempotencyRecord() {
+
+    }
+
+    public IdempotencyRecord(Account account, String idempotencyKey, String responseType, Date created) {
+        this.account = account;
+        this.idempotencyKey = idempotencyKey;
+        this.responseType = responseType;
+        this.created = created;
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public void setId(Long id) {
+        this.id = id;
+    }
+
+    public String getIdempotencyKey() {
+        return idempotencyKey;
+    }
+
+    public void setIdempotencyKey(String idempotencyKey) {
+        this.idempotencyKey = idempotencyKey;
+    }
+
+    public Account getAccount() {
+        return account;
+    }
+
+    public void setAccount(Account account) {
+        this.account = account;
+    }
+
+    public String getResponseType() {
+        return responseType;
+    }
+
+    public void setResponseType(String responseType) {
+        this.responseType = responseType;
+    }
+
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
+    public void setFingerprint(String fingerprint) {
+        this.fingerprint = fingerprint;
+    }
+
+    public String getResponse() {
+        return response;
+    }
+
+    public void setResponse(String response) {
+        this.response = response;
+    }
+
+    public String getErrorCode() {
+        return errorCode;
+    }
+
+    public void setErrorCode(String errorCode) {
+        this.errorCode = errorCode;
+    }
+
+    public String getErrorField() {
+        return errorField;
+    }
+
+    public void setErrorField(String errorField) {
+        this.errorField = errorField;
+    }
+
+    public Date getCreated() {
+        return created;
+    }
+
+    public void setCreated(Date created) {
+        this.created = created;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof IdempotencyRecord)) return false;
+        IdempotencyRecord that = (IdempotencyRecord) o;
+        return Objects.equals(id, that.id) &&
+                Objects.equals(idempotencyKey, that.idempotencyKey) &&
+                Objects.equals(account, that.account) &&
+                Objects.equals(responseType, that.responseType) &&
+                Objects.equals(fingerprint, that.fingerprint) &&
+                Objects.equals(response, that.response) &&
+                Objects.equals(errorCode, that.errorCode) &&
+                Objects.equals(errorField, that.errorField) &&
+                Objects.equals(created, that.created);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(id, idempotencyKey, account, responseType, fingerprint, response, errorCode, errorField, created);
+    }
+}
@@ -0,0 +1,102 @@
+package net.thumbtack.onlineshop.domain.models;
+
+import javax.persistence.*;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Запись об исходящем событии о покупке (transactional outbox)
+ * <br>
+ * Сохраняется в одной транзакции с записями о покупках, поэтому событие есть тогда
+ * и только тогда, когда покупка зафиксирована. Обработчик событий забирает записи
+ * на время аренды (owner, claimedUntil) и удаляет их после доставки.
+ */
+@Entity
+@Table(name = "outbox")
+public class OutboxEntry {
+
+    public enum Type { PRODUCT, BASKET }
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    @Column(nullable = false)
+    @Enumerated(EnumType.STRING)
+    private Type type;
+
+    @Column(nullable = false)
+    private Long accountId;
+
+    // id записей о покупках через запятую
+    @Lob
+    @Column(nullable = false)
+    private String purchases;
+
+    @Column(nullable = false)
+    @Temporal(TemporalType.TIMESTAMP)
+    private Date created;
+
+    // Кто забрал запись (null - запись не забрана)
+    private String owner;
+
+    // До какого времени запись забрана
+    @Temporal(TemporalType.TIMESTAMP)
+    private Date claimedUntil;
+
+    public OutboxEntry() {
+
+    }
+
+    public OutboxEntry(Type type, long accountId, List<Long> purchases, Date created) {
+        this.type = type;
+        this.accountId = accountId;
+        this.purchases = purchases.stream().map(String::valueOf).collect(Collectors.joining(","));
+        this.created = created;
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public void setId(Long id) {
+        this.id = id;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public Long getAccountId() {
+        return accountId;
+    }
+
+    /**
+     * @return id записей о покупках
+     */
+    public List<Long> getPurchaseIds() {
+        List<Long> result = new ArrayList<>();
+
+        for (String id : purchases.split(",")) {
+            if (!id.isEmpty()) {
+                result.add(Long.parseLong(id));
+            }
+        }
+
+        return result;
+    }
+
+    public Date getCreated() {
+        return created;
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+
+    public Date getClaimedUntil() {
+        return claimedUntil;
+    }
+}
@@ -0,0 +1,53 @@
+package net.thumbtack.onlineshop.domain.models;
+
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Условие выборки из истории покупок. Все указанные условия должны выполняться одновременно,
+ * null (или пустой список) - без ограничения.
+ */
+public class PurchaseFilter {
+
+    // Вся история покупок
+    public static final PurchaseFilter ALL = new PurchaseFilter(null, null, null, null, null);
+
+    // id клиентов
+    private final List<Long> clients;
+    // id товаров
+    private final List<Long> products;
+    // id категорий, к которым принадлежат товары
+    private final List<Long> categories;
+    // Начало промежутка времени (включительно)
+    private final Date since;
+    // Конец промежутка времени (не включительно)
+    private final Date until;
+
+    public PurchaseFilter(List<Long> clients, List<Long> products, List<Long> categories, Date since, Date until) {
+        this.clients = clients;
+        this.products = products;
+        this.categories = categories;
+        this.since = since;
+        this.until = until;
+    }
+
+    public List<Long> getClients() {
+        return clients;
+    }
+
+    public List<Long> getProducts() {
+        return products;
+    }
+
+    public List<Long> getCategories() {
+        return categories;
+    }
+
+    public Date getSince() {
+        return since;
+    }
+
+    public Date getUntil() {
+        return until;
+    }
+}
@@ -0,0 +1,87 @@
+package net.thumbtack.onlineshop.domain.models;
+
+/**
+ * Запрос страницы истории покупок: условие выборки, порядок записей и позиция страницы.
+ * Страница задаётся либо смещением, либо последней записью предыдущей страницы.
+ */
+public class PurchaseQuery {
+
+    /**
+     * Поле, по которому сортируется история покупок (вторым полем всегда идёт id записи)
+     */
+    public enum Sort {
+        PRODUCT("product"),
+        CLIENT("account");
+
+        private final String field;
+
+        Sort(String field) {
+            this.field = field;
+        }
+
+        public String getField() {
+            return field;
+        }
+    }
+
+    private final Sort sort;
+    private final PurchaseFilter filter;
+    // Последняя запись предыдущей страницы (null - страница задаётся смещением)
+    private final Long afterKey;
+    private final Long afterId;
+    private final int limit;
+    private final int offset;
+
+    private PurchaseQuery(Sort sort, PurchaseFilter filter, Long afterKey, Long afterId, int limit, int offset) {
+        this.sort = sort;
+        this.filter = filter;
+        this.afterKey = afterKey;
+        this.afterId = afterId;
+        this.limit = limit;
+        this.offset = offset;
+    }
+
+    /**
+     * Страница со смещением
+     *
+     * @param offset с какой записи начать выборку
+     */
+    public static PurchaseQuery page(Sort sort, PurchaseFilter filter, int limit, int offset) {
+        return new PurchaseQuery(sort, filter, null, null, limit, offset);
+    }
+
+    /**
+     * Страница, которая следует за указанной записью
+     *
+     * @param afterKey id товара или клиента последней записи предыдущей страницы
+     *                 (null - у записи нет товара или клиента)
+     * @param afterId id последней записи предыдущей страницы
+     */
+    public static PurchaseQuery after(Sort sort, PurchaseFilter filter, Long afterKey, Long afterId, int limit) {
+        return new PurchaseQuery(sort, filter, afterKey, afterId, limit, 0);
+    }
+
+    public Sort getSort() {
+        return sort;
+    }
+
+    public PurchaseFilter getFilter() {
+        return filter;
+    }
+
+    public Long getAfterKey() {
+        return afterKey;
+    }
+
+    public Long getAfterId() {
+        return afterId;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+}
@@ -0,0 +1,111 @@
+package net.thumbtack.onlineshop.domain.models;
+
+import java.util.Date;
+
+/**
+ * Строка истории покупок: только те поля покупки, клиента и товара, которые нужны в отчётах
+ * <br>
+ * В отличие от {@link Purchase} не является сущностью, поэтому не загружает аккаунт и товар
+ * целиком и не хранится в контексте персистентности.
+ */
+public class PurchaseRow {
+
+    private final long id;
+    private final Date date;
+
+    private final Long clientId;
+    private final String clientFullName;
+
+    private final Long productId;
+    private final String productName;
+
+    private final int count;
+    private final int price;
+
+    public PurchaseRow(
+            long id,
+            Date date,
+            Long clientId,
+            String clientFullName,
+            Long productId,
+            String productName,
+            int count,
+            int price) {
+        this.id = id;
+        this.date = date;
+        this.clientId = clientId;
+        this.clientFullName = clientFullName;
+        this.productId = productId;
+        this.productName = productName;
+        this.count = count;
+        this.price = price;
+    }
+
+    /**
+     * Строка запроса с проекцией (select new): полное имя клиента собирается из частей.
+     * Если клиент удалён, то его имени нет.
+     */
+    public PurchaseRow(
+            Long id,
+            Date date,
+            Long clientId,
+            String firstName,
+            String lastName,
+            String patronymic,
+            Long productId,
+            String productName,
+            Integer count,
+            Integer price) {
+        this(id, date, clientId, clientId == null ? null : fullName(firstName, lastName, patronymic),
+                productId, productName, count, price);
+    }
+
+    /**
+     * Полное имя клиента в том же виде, что и {@link Account#getFullName()}
+     */
+    public static String fullName(String firstName, String lastName, String patronymic) {
+        String fullName = lastName + " " + firstName;
+
+        if (patronymic != null) {
+            fullName = fullName + " " + patronymic;
+        }
+
+        return fullName;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public Date getDate() {
+        return date;
+    }
+
+    public Long getClientId() {
+        return clientId;
+    }
+
+    public String getClientFullName() {
+        return clientFullName;
+    }
+
+    public Long getProductId() {
+        return productId;
+    }
+
+    public String getProductName() {
+        return productName;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public int getPrice() {
+        return price;
+    }
+
+    public long getAmount() {
+        return (long) count * price;
+    }
+}
@@ -0,0 +1,31 @@
+package net.thumbtack.onlineshop.domain.models;
+
+/**
+ * Итоги выборки из истории покупок
+ */
+public class PurchaseTotals {
+
+    public static final PurchaseTotals EMPTY = new PurchaseTotals(0L, 0L);
+
+    // Сколько всего единиц товара выкуплено
+    private final long count;
+    // На какую сумму выкуплено товара
+    private final long amount;
+
+    /**
+     * @param count сумма количества товара (null - в выборке нет записей)
+     * @param amount сумма стоимости покупок (null - в выборке нет записей)
+     */
+    public PurchaseTotals(Long count, Long amount) {
+        this.count = count == null ? 0 : count;
+        this.amount = amount == null ? 0 : amount;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getAmount() {
+        return amount;
+    }
+}
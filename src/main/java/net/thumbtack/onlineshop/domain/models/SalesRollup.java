@@ -0,0 +1,146 @@
+package net.thumbtack.onlineshop.domain.models;
+
+import javax.persistence.*;
+import java.util.Calendar;
+import java.util.Date;
+
+/**
+ * Сводка продаж товара, категории или клиента за час или за день
+ * <br>
+ * Сводки обновляются после каждой покупки и используются в отчётах о продажах
+ * вместо таблицы purchase.
+ */
+@Entity
+@Table(name = "sales_rollup")
+public class SalesRollup {
+
+    /**
+     * По чему сгруппированы продажи
+     */
+    public enum Dimension { PRODUCT, CATEGORY, CLIENT }
+
+    /**
+     * За какой период сгруппированы продажи
+     */
+    public enum Period {
+        HOUR, DAY;
+
+        /**
+         * Получает начало периода, в который попадает указанное время
+         *
+         * @param date время
+         * @return начало часа или дня
+         */
+        public Date truncate(Date date) {
+            Calendar calendar = Calendar.getInstance();
+            calendar.setTime(date);
+
+            if (this == DAY) {
+                calendar.set(Calendar.HOUR_OF_DAY, 0);
+            }
+            calendar.set(Calendar.MINUTE, 0);
+            calendar.set(Calendar.SECOND, 0);
+            calendar.set(Calendar.MILLISECOND, 0);
+
+            return calendar.getTime();
+        }
+    }
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    @Column(nullable = false)
+    @Enumerated(EnumType.STRING)
+    private Dimension dimension;
+
+    @Column(nullable = false)
+    @Enumerated(EnumType.STRING)
+    private Period period;
+
+    // id товара, категории или клиента
+    @Column(nullable = false)
+    private Long keyId;
+
+    // Начало периода
+    @Column(nullable = false)
+    @Temporal(TemporalType.TIMESTAMP)
+    private Date bucket;
+
+    // Сколько единиц товара выкуплено
+    @Column(nullable = false)
+    private Long count;
+
+    // На какую сумму выкуплено товара
+    @Column(nullable = false)
+    private Long amount;
+
+    public SalesRollup() {
+
+    }
+
+    public SalesRollup(Dimension dimension, Period period, Long keyId, Date bucket, Long count, Long amount) {
+        this.dimension = dimension;
+        this.period = period;
+        this.keyId = keyId;
+        this.bucket = bucket;
+        this.count = count;
+        this.amount = amount;
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public void setId(Long id) {
+        this.id = id;
+    }
+
+    public Dimension getDimension() {
+        return dimension;
+    }
+
+    public void setDimension(Dimension dimension) {
+        this.dimension = dimension;
+    }
+
+    public Period getPeriod() {
+        return period;
+    }
+
+    public void setPeriod(Period period) {
+        this.period = period;
+    }
+
+    public Long getKeyId() {
+        return keyId;
+    }
+
+    public void setKeyId(Long keyId) {
+        this.keyId = keyId;
+    }
+
+    public Date getBucket() {
+        return bucket;
+    }
+
+    public void setBucket(Date bucket) {
+        this.bucket = bucket;
+    }
+
+    public Long getCount() {
+        return count;
+    }
+
+    public void setCount(Long count) {
+        this.count = count;
+    }
+
+    public Long getAmount() {
+        return amount;
+    }
+
+    public void setAmount(Long amount) {
+        this.amount = amount;
+    }
+}
@@ -0,0 +1,58 @@
+package net.thumbtack.onlineshop.dto;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import net.thumbtack.onlineshop.service.analytics.PurchaseColumns;
+
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimeZone;
+
+public class AnalyticsDto {
+
+    // Результаты группировки
+    private List<GroupDto> groups = new ArrayList<>();
+
+    public AnalyticsDto(List<PurchaseColumns.Group> groups) {
+        DateFormat format = new SimpleDateFormat("yyyy-MM-dd");
+        // Недели считаются по UTC
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+        groups.forEach(group -> this.groups.add(new GroupDto(group, format)));
+    }
+
+    public List<GroupDto> getGroups() {
+        return groups;
+    }
+
+    // Сумма покупок товара, клиента или категории
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public static class GroupDto {
+
+        // Id товара, клиента или категории
+        private Long id;
+        // Первый день недели (только для группировки по неделям)
+        private String week;
+        // На какую сумму выкуплено товара
+        private Long amount;
+
+        private GroupDto(PurchaseColumns.Group group, DateFormat format) {
+            this.id = group.getKey();
+            this.week = group.getWeek() == null ? null : format.format(group.getWeek());
+            this.amount = group.getAmount();
+        }
+
+        public Long getId() {
+            return id;
+        }
+
+        public String getWeek() {
+            return week;
+        }
+
+        public Long getAmount() {
+            return amount;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package net.thumbtack.onlineshop.dto;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Изменения корзины клиента
+ * <br>
+ * Если full == true, то changed содержит всю корзину и заменяет копию корзины клиента.
+ * Иначе changed содержит только добавленные или изменённые записи, а removed - id удалённых товаров.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class BasketDeltaDto {
+
+    private Long version;
+    private Boolean full;
+    private List<ProductDto> changed = new ArrayList<>();
+    private List<Long> removed;
+
+    private Integer lines;
+    private Long totalCount;
+    private Long totalPrice;
+
+    public BasketDeltaDto() {
+
+    }
+
+    public BasketDeltaDto(long version, boolean full, List<ProductDto> changed, List<Long> removed,
+                          int lines, long totalCount, long totalPrice) {
+        this.version = version;
+        this.full = full;
+        this.changed = changed;
+        this.lines = lines;
+        this.totalCount = totalCount;
+        this.totalPrice = totalPrice;
+
+        if (!removed.isEmpty()) {
+            this.removed = removed;
+        }
+    }
+
+    public Long getVersion() {
+        return version;
+    }
+
+    public void setVersion(Long version) {
+        this.version = version;
+    }
+
+    public Boolean getFull() {
+        return full;
+    }
+
+    public void setFull(Boolean full) {
+        this.full = full;
+    }
+
+    public List<ProductDto> getChanged() {
+        return changed;
+    }
+
+    public void setChanged(List<ProductDto> changed) {
+        this.changed = changed;
+    }
+
+    public List<Long> getRemoved() {
+        return removed;
+    }
+
+    public void setRemoved(List<Long> removed) {
+        this.removed = removed;
+    }
+
+    public Integer getLines() {
+        return lines;
+    }
+
+    public void setLines(Integer lines) {
+        this.lines = lines;
+    }
+
+    public Long getTotalCount() {
+        return totalCount;
+    }
+
+    public void setTotalCount(Long totalCount) {
+        this.totalCount = totalCount;
+    }
+
+    public Long getTotalPrice() {
+        return totalPrice;
+    }
+
+    public void setTotalPrice(Long totalPrice) {
+        this.totalPrice = totalPrice;
+    }
+}
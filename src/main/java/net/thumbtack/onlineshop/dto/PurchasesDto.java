@@ -1,7 +1,7 @@
 package net.thumbtack.onlineshop.dto;
 
 import com.fasterxml.jackson.annotation.JsonInclude;
-import net.thumbtack.onlineshop.domain.models.Purchase;
+import net.thumbtack.onlineshop.domain.models.PurchaseRow;
 
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
@@ -16,28 +16,45 @@ public class PurchasesDto {
     private List<PurchaseDto> purchases = new ArrayList<>();
 
     // Сколько всего товара было выкуплено во всей выборке
-    private Integer totalCount = 0;
-    // На какую сумму было выкуплено товара в выборке
-    private Integer totalAmount = 0;
+    private Long totalCount = 0L;
+    // На какую сумму было выкуплено товара во всей выборке
+    private Long totalAmount = 0L;
+
+    // Позиция следующей страницы (null - страница последняя)
+    private String next;
 
     public void addPurchase(PurchaseDto purchase) {
         purchases.add(purchase);
-        totalCount += purchase.getCount();
-        totalAmount += purchase.getAmount();
     }
 
     public List<PurchaseDto> getPurchases() {
         return purchases;
     }
 
-    public Integer getTotalCount() {
+    public Long getTotalCount() {
         return totalCount;
     }
 
-    public Integer getTotalAmount() {
+    public void setTotalCount(Long totalCount) {
+        this.totalCount = totalCount;
+    }
+
+    public Long getTotalAmount() {
         return totalAmount;
     }
 
+    public void setTotalAmount(Long totalAmount) {
+        this.totalAmount = totalAmount;
+    }
+
+    public String getNext() {
+        return next;
+    }
+
+    public void setNext(String next) {
+        this.next = next;
+    }
+
     // Запись о покупке
     @JsonInclude(JsonInclude.Include.NON_NULL)
     public static class PurchaseDto {
@@ -66,16 +83,16 @@ public class PurchasesDto {
         /**
          * Полная запись о покупке товара
          *
-         * @param purchase запись о покупке товара
+         * @param purchase строка истории покупок
          */
-        public PurchaseDto(Purchase purchase) {
+        public PurchaseDto(PurchaseRow purchase) {
             this(purchase.getPrice(), purchase.getCount(), purchase.getDate());
 
-            clientId = purchase.getAccount().getId();
-            clientFullName = purchase.getAccount().getFullName();
+            clientId = purchase.getClientId();
+            clientFullName = purchase.getClientFullName();
 
-            productId = purchase.getProduct().getId();
-            productName = purchase.getProduct().getName();
+            productId = purchase.getProductId();
+            productName = purchase.getProductName();
         }
 
         private PurchaseDto(int price, int count, Date date) {
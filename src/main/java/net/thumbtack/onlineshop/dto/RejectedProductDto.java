@@ -0,0 +1,89 @@
+package net.thumbtack.onlineshop.dto;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+/**
+ * Товар из запроса, который не был куплен, и причина отказа
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class RejectedProductDto {
+
+    private Long id;
+    private String name;
+    private Integer price;
+    private Integer count;
+
+    private String errorCode;
+    private String field;
+    private String message;
+
+    public RejectedProductDto() {
+
+    }
+
+    public RejectedProductDto(ProductDto product, String errorCode, String field, String message) {
+        this.id = product.getId();
+        this.name = product.getName();
+        this.price = product.getPrice();
+        this.count = product.getCount();
+        this.errorCode = errorCode;
+        this.field = field;
+        this.message = message;
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public void setId(Long id) {
+        this.id = id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public Integer getPrice() {
+        return price;
+    }
+
+    public void setPrice(Integer price) {
+        this.price = price;
+    }
+
+    public Integer getCount() {
+        return count;
+    }
+
+    public void setCount(Integer count) {
+        this.count = count;
+    }
+
+    public String getErrorCode() {
+        return errorCode;
+    }
+
+    public void setErrorCode(String errorCode) {
+        this.errorCode = errorCode;
+    }
+
+    public String getField() {
+        return field;
+    }
+
+    public void setField(String field) {
+        this.field = field;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public void setMessage(String message) {
+        this.message = message;
+    }
+}
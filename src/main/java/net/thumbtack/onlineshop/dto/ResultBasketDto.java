@@ -11,6 +11,7 @@ public class ResultBasketDto {
 
     private List<ProductDto> bought;
     private List<ProductDto> remaining;
+    private List<RejectedProductDto> rejected;
 
     public ResultBasketDto() {
 
@@ -34,6 +35,14 @@ public class ResultBasketDto {
         }
     }
 
+    public ResultBasketDto(List<ProductDto> bought, List<Basket> remaining, List<RejectedProductDto> rejected) {
+        this(bought, remaining);
+
+        if (!rejected.isEmpty()) {
+            this.rejected = new ArrayList<>(rejected);
+        }
+    }
+
     public List<ProductDto> getBought() {
         return bought;
     }
@@ -49,4 +58,12 @@ public class ResultBasketDto {
     public void setRemaining(List<ProductDto> remaining) {
         this.remaining = remaining;
     }
+
+    public List<RejectedProductDto> getRejected() {
+        return rejected;
+    }
+
+    public void setRejected(List<RejectedProductDto> rejected) {
+        this.rejected = rejected;
+    }
 }
@@ -0,0 +1,77 @@
+package net.thumbtack.onlineshop.dto;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import net.thumbtack.onlineshop.domain.models.SalesRollup;
+
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.List;
+
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class SalesDto {
+
+    // Продажи по периодам
+    private List<SaleDto> sales = new ArrayList<>();
+
+    // Сколько всего товара было выкуплено за весь промежуток
+    private Long totalCount = 0L;
+    // На какую сумму было выкуплено товара за весь промежуток
+    private Long totalAmount = 0L;
+
+    public void addSale(SaleDto sale) {
+        sales.add(sale);
+        totalCount += sale.getCount();
+        totalAmount += sale.getAmount();
+    }
+
+    public List<SaleDto> getSales() {
+        return sales;
+    }
+
+    public Long getTotalCount() {
+        return totalCount;
+    }
+
+    public Long getTotalAmount() {
+        return totalAmount;
+    }
+
+    // Продажи товара, категории или клиента за период
+    public static class SaleDto {
+
+        // Id товара, категории или клиента
+        private Long id;
+        // Начало периода
+        private String date;
+        // Сколько единиц товара выкуплено
+        private Long count;
+        // На какую сумму выкуплено товара
+        private Long amount;
+
+        public SaleDto(SalesRollup rollup) {
+            DateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm");
+
+            this.id = rollup.getKeyId();
+            this.date = format.format(rollup.getBucket());
+            this.count = rollup.getCount();
+            this.amount = rollup.getAmount();
+        }
+
+        public Long getId() {
+            return id;
+        }
+
+        public String getDate() {
+            return date;
+        }
+
+        public Long getCount() {
+            return count;
+        }
+
+        public Long getAmount() {
+            return amount;
+        }
+    }
+}
@@ -24,12 +24,14 @@ public class AccountService extends GeneralService {
 
     private AccountDao accountDao;
     private SessionDao sessionDao;
+    private DepositService depositService;
 
     @Autowired
-    public AccountService(AccountDao accountDao, SessionDao sessionDao) {
+    public AccountService(AccountDao accountDao, SessionDao sessionDao, DepositService depositService) {
         super(sessionDao);
         this.accountDao = accountDao;
         this.sessionDao = sessionDao;
+        this.depositService = depositService;
     }
 
     /**
@@ -131,7 +133,7 @@ public class AccountService extends GeneralService {
 
         accountDao.update(account);
 
-        return new AccountDto(account);
+        return toDto(account);
     }
 
     /**
@@ -212,7 +214,24 @@ public class AccountService extends GeneralService {
             throw new ServiceException(ServiceException.ErrorCode.NOT_LOGIN);
         }
 
-        return new AccountDto(session.getAccount());
+        return toDto(session.getAccount());
+    }
+
+    /**
+     * Формирует информацию об аккаунте. Для клиента остаток на счету
+     * берётся из истории движений денег.
+     *
+     * @param account аккаунт пользователя
+     * @return информация об аккаунте
+     */
+    private AccountDto toDto(Account account) {
+        AccountDto result = new AccountDto(account);
+
+        if (!account.isAdmin()) {
+            result.setDeposit(depositService.getBalance(account));
+        }
+
+        return result;
     }
 
     /**
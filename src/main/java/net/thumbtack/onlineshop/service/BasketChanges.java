@@ -0,0 +1,78 @@
+package net.thumbtack.onlineshop.service;
+
+import net.thumbtack.onlineshop.domain.models.Basket;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Изменения корзины клиента начиная с некоторой версии
+ * <br>
+ * Если изменения с указанной версии уже неизвестны, то changed содержит всю корзину,
+ * а full == true (клиент должен заменить свою копию корзины целиком).
+ */
+public class BasketChanges {
+
+    private final long version;
+    private final boolean full;
+    private final List<Basket> changed = new ArrayList<>();
+    private final List<Long> removed = new ArrayList<>();
+
+    private final int lines;
+    private final long totalCount;
+    private final long totalPrice;
+
+    BasketChanges(long version, boolean full, int lines, long totalCount, long totalPrice) {
+        this.version = version;
+        this.full = full;
+        this.lines = lines;
+        this.totalCount = totalCount;
+        this.totalPrice = totalPrice;
+    }
+
+    /**
+     * @return версия корзины, с которой нужно запрашивать следующие изменения
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    public boolean isFull() {
+        return full;
+    }
+
+    /**
+     * @return добавленные и изменённые записи корзины
+     */
+    public List<Basket> getChanged() {
+        return changed;
+    }
+
+    /**
+     * @return id товаров, которые были удалены из корзины
+     */
+    public List<Long> getRemoved() {
+        return removed;
+    }
+
+    /**
+     * @return количество записей в корзине
+     */
+    public int getLines() {
+        return lines;
+    }
+
+    /**
+     * @return количество единиц товаров в корзине
+     */
+    public long getTotalCount() {
+        return totalCount;
+    }
+
+    /**
+     * @return стоимость всей корзины
+     */
+    public long getTotalPrice() {
+        return totalPrice;
+    }
+}
@@ -0,0 +1,795 @@
+package net.thumbtack.onlineshop.service;
+
+import net.thumbtack.onlineshop.domain.dao.BasketDao;
+import net.thumbtack.onlineshop.domain.models.Basket;
+import net.thumbtack.onlineshop.domain.models.Product;
+import net.thumbtack.onlineshop.service.metrics.MetricsSource;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Корзины клиентов в памяти
+ * <br>
+ * Корзины хранятся в памяти, разбитые на группы по id клиента (у каждой группы своя блокировка).
+ * Чтение и изменение корзины не обращаются к БД. Изменённые записи помечаются и периодически
+ * записываются в таблицу basket одной транзакцией: сколько бы раз запись ни менялась между
+ * записями в БД, в БД попадает только её последнее состояние. При запуске сервера корзины
+ * загружаются из таблицы basket.
+ * <br>
+ * Изменения, которые ещё не записаны в БД, теряются при аварийной остановке сервера (не больше
+ * basket_flush_interval_ms). Корзины в памяти считаются верными только при одном экземпляре сервера.
+ * <br>
+ * Каждое изменение записи получает новую версию из общего счётчика, а удалённые записи
+ * какое-то время помнятся, поэтому можно получить изменения корзины с любой недавней версии.
+ * <br>
+ * Если изменение записи не удаётся записать basket_flush_max_attempts раз подряд, а остальные
+ * записи при этом записываются, то изменение отбрасывается (метрика flush_dropped).
+ * <br>
+ * Записи, которые клиент не менял дольше basket_ttl_seconds, периодически удаляются из памяти,
+ * а из БД - частями по basket_expiry_chunk_size записей с паузой между частями.
+ * <br>
+ * Наружу отдаются копии записей. Товар в записи - копия товара из БД (id, название, цена и
+ * признак удаления), которая обновляется при изменении товара администратором.
+ */
+@Service
+public class BasketStore implements MetricsSource, Cache {
+
+    // Количество групп корзин
+    static final int SHARDS = 64;
+
+    // Сколько удалённых записей помнит каждая корзина
+    static final int REMOVED_HISTORY = 64;
+
+    @Value("${basket_ttl_seconds:2592000}")
+    private long ttlSeconds;
+
+    @Value("${basket_flush_max_attempts:10}")
+    private int flushMaxAttempts;
+
+    @Value("${basket_expiry_chunk_size:1000}")
+    private int expiryChunkSize;
+
+    @Value("${basket_expiry_pause_ms:50}")
+    private long expiryPauseMs;
+
+    private BasketDao basketDao;
+    private TransactionTemplate transaction;
+
+    private final Shard[] shards = new Shard[SHARDS];
+
+    // Версии начинаются со времени запуска (в микросекундах), чтобы версии,
+    // которые клиент получил до перезапуска сервера, были меньше новых
+    private final AtomicLong version = new AtomicLong(TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis()));
+
+    // Метрики
+    private final AtomicLong flushes = new AtomicLong();
+    private final AtomicLong flushed = new AtomicLong();
+    private final AtomicLong flushErrors = new AtomicLong();
+    private final AtomicLong flushDropped = new AtomicLong();
+    private volatile long lastFlushMs;
+    private final AtomicLong expiredLines = new AtomicLong();
+    private final AtomicLong expiredRows = new AtomicLong();
+    private volatile long lastExpiryMs;
+
+    @Autowired
+    public BasketStore(BasketDao basketDao, PlatformTransactionManager transactionManager) {
+        this.basketDao = basketDao;
+        this.transaction = new TransactionTemplate(transactionManager);
+
+        for (int i = 0; i < SHARDS; ++i) {
+            shards[i] = new Shard();
+        }
+    }
+
+    /**
+     * Загружает корзины из БД
+     * <br>
+     * Изменения загруженных корзин известны только начиная с момента загрузки.
+     */
+    @PostConstruct
+    public void load() {
+        long loaded = version.incrementAndGet();
+
+        for (Basket basket : basketDao.getAll()) {
+            long accountId = basket.getAccount().getId();
+            Shard shard = getShard(accountId);
+
+            shard.lock.lock();
+            try {
+                Cart cart = shard.baskets.computeIfAbsent(accountId, id -> new Cart(loaded));
+                long touched = basket.getTouched() == null ? System.currentTimeMillis() : basket.getTouched().getTime();
+                cart.put(copy(basket.getProduct()), basket.getCount(), loaded, touched);
+            } finally {
+                shard.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Получает содержимое корзины
+     *
+     * @param accountId id клиента
+     * @return записи корзины в порядке добавления
+     */
+    public List<Basket> get(long accountId) {
+        Shard shard = getShard(accountId);
+        shard.lock.lock();
+
+        try {
+            Cart cart = shard.baskets.get(accountId);
+            List<Basket> result = new ArrayList<>(cart == null ? 0 : cart.lines.size());
+
+            if (cart != null) {
+                cart.lines.values().forEach(line -> result.add(line.toBasket()));
+            }
+            return result;
+        } finally {
+            shard.lock.unlock();
+        }
+    }
+
+    /**
+     * Получает запись из корзины
+     *
+     * @param accountId id клиента
+     * @param productId id товара
+     * @return запись корзины или null, если товара в корзине нет
+     */
+    public Basket get(long accountId, long productId) {
+        Shard shard = getShard(accountId);
+        shard.lock.lock();
+
+        try {
+            Line line = shard.getLine(accountId, productId);
+            return line == null ? null : line.toBasket();
+        } finally {
+            shard.lock.unlock();
+        }
+    }
+
+    /**
+     * Получает изменения корзины начиная с указанной версии
+     *
+     * @param accountId id клиента
+     * @param since     версия корзины, которая уже есть у клиента (0 - вся корзина)
+     * @return изменения корзины
+     */
+    public BasketChanges getChanges(long accountId, long since) {
+        Shard shard = getShard(accountId);
+        shard.lock.lock();
+
+        try {
+            Cart cart = shard.baskets.get(accountId);
+
+            if (cart == null) {
+                return new BasketChanges(version.get(), true, 0, 0, 0);
+            }
+
+            // Версия из будущего - клиент получил её от другого сервера
+            boolean full = since < cart.floor || since > version.get();
+            return cart.changes(full ? Long.MIN_VALUE : since, full, null);
+        } finally {
+            shard.lock.unlock();
+        }
+    }
+
+    /**
+     * Добавляет товар в корзину. Если товар уже есть в корзине, то увеличивает его количество.
+     *
+     * @param accountId id клиента
+     * @param product   товар
+     * @param count     количество товара
+     * @return изменённая запись корзины
+     */
+    public BasketChanges add(long accountId, Product product, int count) {
+        Shard shard = getShard(accountId);
+        shard.lock.lock();
+
+        try {
+            long next = version.incrementAndGet();
+            Cart cart = shard.baskets.computeIfAbsent(accountId, id -> new Cart(next));
+            Line line = cart.lines.get(product.getId());
+
+            if (line == null) {
+                line = cart.put(copy(product), count, next, System.currentTimeMillis());
+            } else {
+                cart.setCount(line, line.count + count, next);
+            }
+
+            shard.markDirty(accountId, product.getId());
+            return cart.changes(next - 1, false, line);
+        } finally {
+            shard.lock.unlock();
+        }
+    }
+
+    /**
+     * Изменяет количество товара в корзине
+     *
+     * @param accountId id клиента
+     * @param productId id товара
+     * @param count     новое количество товара
+     * @return изменённая запись корзины или null, если товара в корзине нет
+     */
+    public BasketChanges setCount(long accountId, long productId, int count) {
+        Shard shard = getShard(accountId);
+        shard.lock.lock();
+
+        try {
+            Line line = shard.getLine(accountId, productId);
+
+            if (line == null) {
+                return null;
+            }
+
+            long next = version.incrementAndGet();
+            Cart cart = shard.baskets.get(accountId);
+
+            cart.setCount(line, count, next);
+            shard.markDirty(accountId, productId);
+            return cart.changes(next - 1, false, line);
+        } finally {
+            shard.lock.unlock();
+        }
+    }
+
+    /**
+     * Уменьшает количество товара в корзине после покупки. Если товара не осталось,
+     * то удаляет его из корзины.
+     *
+     * @param accountId id клиента
+     * @param productId id товара
+     * @param count     купленное количество товара
+     */
+    public void subtract(long accountId, long productId, int count) {
+        Shard shard = getShard(accountId);
+        shard.lock.lock();
+
+        try {
+            Line line = shard.getLine(accountId, productId);
+
+            if (line == null) {
+                return;
+            }
+
+            Cart cart = shard.baskets.get(accountId);
+
+            if (line.count > count) {
+                cart.setCount(line, line.count - count, version.incrementAndGet());
+            } else {
+                cart.remove(productId, version.incrementAndGet());
+            }
+
+            shard.markDirty(accountId, productId);
+        } finally {
+            shard.lock.unlock();
+        }
+    }
+
+    /**
+     * Удаляет товар из корзины
+     *
+     * @param accountId id клиента
+     * @param productId id товара
+     * @return false - если товара в корзине нет
+     */
+    public boolean remove(long accountId, long productId) {
+        Shard shard = getShard(accountId);
+        shard.lock.lock();
+
+        try {
+            if (shard.getLine(accountId, productId) == null) {
+                return false;
+            }
+
+            shard.baskets.get(accountId).remove(productId, version.incrementAndGet());
+            shard.markDirty(accountId, productId);
+            return true;
+        } finally {
+            shard.lock.unlock();
+        }
+    }
+
+    /**
+     * Обновляет товар во всех корзинах после изменения или удаления товара
+     *
+     * @param product товар из БД
+     */
+    public void updateProduct(Product product) {
+        Product updated = copy(product);
+
+        for (Shard shard : shards) {
+            shard.lock.lock();
+            try {
+                for (Cart cart : shard.baskets.values()) {
+                    Line line = cart.lines.get(product.getId());
+                    if (line != null) {
+                        cart.setProduct(line, updated, version.incrementAndGet());
+                    }
+                }
+            } finally {
+                shard.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Записывает изменённые записи корзин в БД
+     * <br>
+     * Все изменения записываются одной транзакцией. Если она не удалась, то изменения
+     * записываются по одному, а записи, изменения которых не удалось записать, снова
+     * помечаются изменёнными и будут записаны при следующей записи изменений.
+     * <br>
+     * Неудачные попытки считаются, только если часть записей записать удалось: если не удалось
+     * ни одной, то скорее всего недоступна БД, и изменения ждут её сколько угодно. Изменение,
+     * которое не удалось записать flushMaxAttempts раз подряд, отбрасывается (например, запись
+     * с товаром, который удалили из БД). Новое изменение записи клиентом сбрасывает счётчик.
+     */
+    @Scheduled(fixedDelayString = "${basket_flush_interval_ms:200}")
+    @PreDestroy
+    public synchronized void flush() {
+        long start = System.nanoTime();
+        List<Change> changes = new ArrayList<>();
+
+        for (Shard shard : shards) {
+            shard.lock.lock();
+            try {
+                shard.drain(changes);
+            } finally {
+                shard.lock.unlock();
+            }
+        }
+
+        if (changes.isEmpty()) {
+            return;
+        }
+
+        int written = changes.size();
+
+        try {
+            write(changes);
+
+        } catch (RuntimeException e) {
+            List<Change> failed = new ArrayList<>();
+
+            for (Change change : changes) {
+                try {
+                    write(Collections.singletonList(change));
+                } catch (RuntimeException single) {
+                    flushErrors.incrementAndGet();
+                    --written;
+                    failed.add(change);
+                }
+            }
+
+            // Запись попадёт в следующую запись изменений уже в своём последнем состоянии
+            boolean counted = written > 0;
+            for (Change change : failed) {
+                retry(change, counted);
+            }
+        }
+
+        flushes.incrementAndGet();
+        flushed.addAndGet(written);
+        lastFlushMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    /**
+     * Снова помечает запись изменённой, если её изменение не удалось записать в БД
+     *
+     * @param counted считать ли эту попытку неудачной для записи
+     */
+    private void retry(Change change, boolean counted) {
+        int attempts = counted ? change.attempts + 1 : change.attempts;
+
+        Shard shard = getShard(change.accountId);
+        shard.lock.lock();
+        try {
+            // Пока запись ждала, клиент мог изменить её ещё раз: тогда это уже новое изменение
+            if (shard.isDirty(change.accountId, change.productId)) {
+                return;
+            }
+
+            if (flushMaxAttempts > 0 && attempts >= flushMaxAttempts) {
+                flushDropped.incrementAndGet();
+                return;
+            }
+
+            shard.markDirty(change.accountId, change.productId);
+            shard.setAttempts(change.accountId, change.productId, attempts);
+        } finally {
+            shard.lock.unlock();
+        }
+    }
+
+    /**
+     * Удаляет записи корзин, которые клиенты не меняли дольше basket_ttl_seconds
+     * <br>
+     * Сначала записи удаляются из памяти, а затем из БД частями, чтобы не блокировать
+     * таблицу basket надолго. Если запись изменили после удаления из памяти, то
+     * она будет снова записана в БД при следующей записи изменений.
+     */
+    @Scheduled(fixedDelayString = "${basket_expiry_interval_ms:3600000}")
+    public void expire() {
+        if (ttlSeconds <= 0) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        long cutoff = System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(ttlSeconds);
+
+        for (Shard shard : shards) {
+            shard.lock.lock();
+            try {
+                expiredLines.addAndGet(shard.expire(cutoff, version));
+            } finally {
+                shard.lock.unlock();
+            }
+        }
+
+        int deleted;
+        do {
+            deleted = basketDao.deleteTouchedBefore(new Date(cutoff), expiryChunkSize);
+            expiredRows.addAndGet(deleted);
+
+            if (deleted >= expiryChunkSize && !pause()) {
+                break;
+            }
+        } while (deleted >= expiryChunkSize);
+
+        lastExpiryMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    @Override
+    public void clear() {
+        for (Shard shard : shards) {
+            shard.lock.lock();
+            try {
+                shard.baskets.clear();
+                shard.dirty.clear();
+                shard.attempts.clear();
+            } finally {
+                shard.lock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public String getMetricsName() {
+        return "baskets";
+    }
+
+    @Override
+    public Map<String, Number> getMetrics() {
+        long accounts = 0;
+        long lines = 0;
+        long dirty = 0;
+
+        for (Shard shard : shards) {
+            shard.lock.lock();
+            try {
+                for (Cart cart : shard.baskets.values()) {
+                    if (!cart.lines.isEmpty()) {
+                        accounts++;
+                        lines += cart.lines.size();
+                    }
+                }
+                for (Set<Long> products : shard.dirty.values()) {
+                    dirty += products.size();
+                }
+            } finally {
+                shard.lock.unlock();
+            }
+        }
+
+        Map<String, Number> metrics = new HashMap<>();
+        metrics.put("accounts", accounts);
+        metrics.put("lines", lines);
+        metrics.put("dirty", dirty);
+        metrics.put("flushes", flushes.get());
+        metrics.put("flushed_lines", flushed.get());
+        metrics.put("flush_errors", flushErrors.get());
+        metrics.put("flush_dropped", flushDropped.get());
+        metrics.put("last_flush_ms", lastFlushMs);
+        metrics.put("expired_lines", expiredLines.get());
+        metrics.put("expired_rows", expiredRows.get());
+        metrics.put("last_expiry_ms", lastExpiryMs);
+
+        return metrics;
+    }
+
+    private void write(List<Change> changes) {
+        transaction.execute(status -> {
+            for (Change change : changes) {
+                if (change.count == null) {
+                    basketDao.delete(change.accountId, change.productId);
+                } else {
+                    basketDao.save(change.accountId, change.productId, change.count, new Date(change.touched));
+                }
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Пауза между частями удаления
+     *
+     * @return false - если поток был прерван
+     */
+    private boolean pause() {
+        if (expiryPauseMs <= 0) {
+            return true;
+        }
+
+        try {
+            Thread.sleep(expiryPauseMs);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private Shard getShard(long accountId) {
+        return shards[(int) Math.floorMod(accountId, (long) SHARDS)];
+    }
+
+    private static Product copy(Product product) {
+        Product copy = new Product(product.getName(), null, product.getPrice());
+        copy.setId(product.getId());
+        copy.setDeleted(product.getDeleted());
+        return copy;
+    }
+
+    /**
+     * Группа корзин
+     */
+    private static class Shard {
+
+        private final ReentrantLock lock = new ReentrantLock();
+
+        // Корзины клиентов группы
+        private final Map<Long, Cart> baskets = new HashMap<>();
+        // Записи, которые изменились после последней записи в БД
+        private final Map<Long, Set<Long>> dirty = new HashMap<>();
+        // Сколько раз подряд не удалось записать изменения записей: id клиента -> id товара -> попытки
+        private final Map<Long, Map<Long, Integer>> attempts = new HashMap<>();
+
+        Line getLine(long accountId, long productId) {
+            Cart cart = baskets.get(accountId);
+            return cart == null ? null : cart.lines.get(productId);
+        }
+
+        /**
+         * Помечает запись изменённой; счётчик неудачных попыток записи сбрасывается
+         */
+        void markDirty(long accountId, long productId) {
+            dirty.computeIfAbsent(accountId, id -> new HashSet<>()).add(productId);
+
+            Map<Long, Integer> failed = attempts.get(accountId);
+            if (failed != null && failed.remove(productId) != null && failed.isEmpty()) {
+                attempts.remove(accountId);
+            }
+        }
+
+        boolean isDirty(long accountId, long productId) {
+            Set<Long> products = dirty.get(accountId);
+            return products != null && products.contains(productId);
+        }
+
+        void setAttempts(long accountId, long productId, int count) {
+            attempts.computeIfAbsent(accountId, id -> new HashMap<>()).put(productId, count);
+        }
+
+        /**
+         * Забирает изменения группы с текущим состоянием записей
+         */
+        void drain(List<Change> changes) {
+            for (Map.Entry<Long, Set<Long>> entry : dirty.entrySet()) {
+                Cart cart = baskets.get(entry.getKey());
+                Map<Long, Integer> failed = attempts.getOrDefault(entry.getKey(), Collections.emptyMap());
+
+                for (long productId : entry.getValue()) {
+                    Line line = cart == null ? null : cart.lines.get(productId);
+                    int attempt = failed.getOrDefault(productId, 0);
+                    changes.add(line == null
+                            ? new Change(entry.getKey(), productId, null, 0, attempt)
+                            : new Change(entry.getKey(), productId, line.count, line.touched, attempt));
+                }
+            }
+            dirty.clear();
+            attempts.clear();
+        }
+
+        /**
+         * Удаляет записи, которые не менялись с момента cutoff, и корзины, которые после
+         * этого не менялись
+         *
+         * @return количество удалённых записей
+         */
+        int expire(long cutoff, AtomicLong version) {
+            int expired = 0;
+            Iterator<Cart> iterator = baskets.values().iterator();
+
+            while (iterator.hasNext()) {
+                Cart cart = iterator.next();
+
+                List<Long> productIds = new ArrayList<>();
+                cart.lines.forEach((productId, line) -> {
+                    if (line.touched < cutoff) {
+                        productIds.add(productId);
+                    }
+                });
+
+                for (long productId : productIds) {
+                    cart.remove(productId, version.incrementAndGet());
+                }
+                expired += productIds.size();
+
+                if (cart.lines.isEmpty() && cart.touched < cutoff) {
+                    iterator.remove();
+                }
+            }
+
+            return expired;
+        }
+    }
+
+    /**
+     * Корзина клиента
+     */
+    private static class Cart {
+
+        // Записи в порядке добавления: id товара -> запись
+        private final Map<Long, Line> lines = new LinkedHashMap<>();
+        // Недавно удалённые товары в порядке удаления: id товара -> версия удаления
+        private final LinkedHashMap<Long, Long> removed = new LinkedHashMap<>();
+
+        // Версия последнего изменения корзины
+        private long version;
+        // Изменения корзины известны только после этой версии
+        private long floor;
+        // Время последнего изменения корзины клиентом
+        private long touched;
+
+        private long totalCount;
+        private long totalPrice;
+
+        Cart(long created) {
+            this.version = created;
+            this.floor = created;
+        }
+
+        Line put(Product product, int count, long version, long touched) {
+            Line line = new Line(product, count, version, touched);
+
+            lines.put(product.getId(), line);
+            removed.remove(product.getId());
+            totalCount += count;
+            totalPrice += (long) count * product.getPrice();
+            this.version = version;
+            this.touched = Math.max(this.touched, touched);
+            return line;
+        }
+
+        void setCount(Line line, int count, long version) {
+            totalCount += count - line.count;
+            totalPrice += (long) (count - line.count) * line.product.getPrice();
+            line.count = count;
+            line.version = version;
+            line.touched = System.currentTimeMillis();
+            this.version = version;
+            this.touched = line.touched;
+        }
+
+        void setProduct(Line line, Product product, long version) {
+            totalPrice += (long) line.count * (product.getPrice() - line.product.getPrice());
+            line.product = product;
+            line.version = version;
+            this.version = version;
+        }
+
+        void remove(long productId, long version) {
+            Line line = lines.remove(productId);
+
+            totalCount -= line.count;
+            totalPrice -= (long) line.count * line.product.getPrice();
+            removed.put(productId, version);
+            this.version = version;
+
+            // Самые старые удаления забываются, изменения до них больше не известны
+            if (removed.size() > REMOVED_HISTORY) {
+                Iterator<Long> oldest = removed.values().iterator();
+                floor = oldest.next();
+                oldest.remove();
+            }
+        }
+
+        /**
+         * Изменения корзины после версии since
+         *
+         * @param only если указана, то в изменения попадает только эта запись
+         */
+        BasketChanges changes(long since, boolean full, Line only) {
+            BasketChanges changes = new BasketChanges(version, full, lines.size(), totalCount, totalPrice);
+
+            if (only != null) {
+                changes.getChanged().add(only.toBasket());
+                return changes;
+            }
+
+            for (Line line : lines.values()) {
+                if (line.version > since) {
+                    changes.getChanged().add(line.toBasket());
+                }
+            }
+
+            if (!full) {
+                removed.forEach((productId, removedVersion) -> {
+                    if (removedVersion > since) {
+                        changes.getRemoved().add(productId);
+                    }
+                });
+            }
+
+            return changes;
+        }
+    }
+
+    /**
+     * Запись корзины
+     */
+    private static class Line {
+
+        private Product product;
+        private int count;
+        // Версия последнего изменения записи
+        private long version;
+        // Время последнего изменения записи клиентом
+        private long touched;
+
+        Line(Product product, int count, long version, long touched) {
+            this.product = product;
+            this.count = count;
+            this.version = version;
+            this.touched = touched;
+        }
+
+        Basket toBasket() {
+            return new Basket(null, product, count);
+        }
+    }
+
+    /**
+     * Состояние записи корзины, которое нужно записать в БД
+     */
+    private static class Change {
+
+        private final long accountId;
+        private final long productId;
+        // null - запись удалена
+        private final Integer count;
+        private final long touched;
+        // Сколько раз подряд это изменение не удалось записать
+        private final int attempts;
+
+        Change(long accountId, long productId, Integer count, long touched, int attempts) {
+            this.accountId = accountId;
+            this.productId = productId;
+            this.count = count;
+            this.touched = touched;
+            this.attempts = attempts;
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package net.thumbtack.onlineshop.service;
+
+import net.thumbtack.onlineshop.domain.models.Basket;
+import net.thumbtack.onlineshop.dto.ProductDto;
+import net.thumbtack.onlineshop.dto.RejectedProductDto;
+import net.thumbtack.onlineshop.utils.LongHashMap;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Проверяет список покупок из корзины
+ * <br>
+ * Корзина индексируется по id товара, после чего список покупок проверяется за один проход.
+ * Каждый товар из запроса попадает либо в список покупок (вместе с записью корзины), либо в
+ * список отклонённых товаров с причиной отказа.
+ */
+public class BasketValidator {
+
+    private final List<Item> valid;
+    private final List<RejectedProductDto> rejected = new ArrayList<>();
+
+    private BasketValidator(int size) {
+        valid = new ArrayList<>(size);
+    }
+
+    /**
+     * Проверяет список покупок
+     * <br>
+     * Товар отклоняется, если его нет в корзине, он удалён, информация о нём неверна,
+     * он указан в запросе повторно или его не хватает на складе. Если количество не указано
+     * или больше чем в корзине, то покупается всё количество из корзины.
+     *
+     * @param toBuy  список покупок
+     * @param basket корзина клиента
+     * @return результат проверки
+     */
+    public static BasketValidator validate(List<ProductDto> toBuy, List<Basket> basket) {
+
+        LongHashMap<Basket> index = new LongHashMap<>(basket.size());
+        for (Basket entity : basket) {
+            index.put(entity.getProduct().getId(), entity);
+        }
+
+        BasketValidator result = new BasketValidator(toBuy.size());
+        LongHashMap<ProductDto> seen = new LongHashMap<>(toBuy.size());
+
+        for (ProductDto product : toBuy) {
+            try {
+                Basket entity = match(product, index, seen);
+                result.valid.add(new Item(product, entity));
+
+            } catch (ServiceException e) {
+                result.rejected.add(new RejectedProductDto(
+                        product, e.getErrorCode().getErrorCode(), e.getField(), e.getMessage()
+                ));
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * @return товары, которые можно купить
+     */
+    public List<Item> getValid() {
+        return valid;
+    }
+
+    /**
+     * @return отклонённые товары с причинами отказа
+     */
+    public List<RejectedProductDto> getRejected() {
+        return rejected;
+    }
+
+    /**
+     * Проверяет один товар из запроса
+     *
+     * @param product товар из запроса
+     * @param index   корзина по id товаров
+     * @param seen    товары, которые уже встречались в запросе
+     * @return запись корзины для товара
+     * @throws ServiceException причина отказа
+     */
+    private static Basket match(
+            ProductDto product,
+            LongHashMap<Basket> index,
+            LongHashMap<ProductDto> seen) throws ServiceException {
+
+        Basket entity = product.getId() == null ? null : index.get(product.getId());
+
+        // Товара нет в корзине или он удалён из БД
+        if (entity == null || entity.getProduct().getDeleted()) {
+            throw new ServiceException(ServiceException.ErrorCode.PRODUCT_NOT_FOUND, "id");
+        }
+
+        if (seen.putIfAbsent(product.getId(), product) != null) {
+            throw new ServiceException(ServiceException.ErrorCode.DUPLICATE_PRODUCT, "id");
+        }
+
+        ClientService.compareProducts(entity.getProduct(), product);
+
+        // Если количество не указано или больше чем в корзине, то берём количество из корзины
+        if (product.getCount() == null || product.getCount() > entity.getCount()) {
+            product.setCount(entity.getCount());
+        }
+
+        if (product.getCount() > entity.getProduct().getCount()) {
+            throw new ServiceException(ServiceException.ErrorCode.NOT_ENOUGH_PRODUCT, "count");
+        }
+
+        return entity;
+    }
+
+    /**
+     * Товар из запроса и соответствующая ему запись корзины
+     */
+    public static class Item {
+
+        private final ProductDto product;
+        private final Basket basket;
+
+        Item(ProductDto product, Basket basket) {
+            this.product = product;
+            this.basket = basket;
+        }
+
+        public ProductDto getProduct() {
+            return product;
+        }
+
+        public Basket getBasket() {
+            return basket;
+        }
+    }
+}
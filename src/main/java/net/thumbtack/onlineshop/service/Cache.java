@@ -0,0 +1,15 @@
+package net.thumbtack.onlineshop.service;
+
+/**
+ * Компонент, который хранит данные из БД в памяти
+ * <br>
+ * Такие данные нужно сбрасывать при очистке БД (см. {@link ServerControlService})
+ */
+public interface Cache {
+
+    /**
+     * Удаляет все данные из памяти
+     */
+    void clear();
+
+}
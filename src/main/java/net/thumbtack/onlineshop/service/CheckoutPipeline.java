@@ -0,0 +1,183 @@
+package net.thumbtack.onlineshop.service;
+
+import net.thumbtack.onlineshop.domain.models.Account;
+import net.thumbtack.onlineshop.dto.ProductDto;
+import net.thumbtack.onlineshop.service.metrics.MetricsSource;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Конвейер пакетной покупки товаров (режим checkout_mode = batch)
+ * <br>
+ * Запросы на покупку товара попадают в ограниченную очередь. Несколько потоков-писателей
+ * забирают из очереди накопившиеся запросы и выполняют их одной транзакцией
+ * (см. {@link CheckoutWriter}). Каждый клиент получает свой собственный результат.
+ */
+@Service
+public class CheckoutPipeline implements MetricsSource {
+
+    @Value("${checkout_mode:sync}")
+    private String mode;
+
+    @Value("${checkout_batch_size:64}")
+    private int batchSize;
+
+    @Value("${checkout_batch_wait_ms:2}")
+    private long batchWaitMs;
+
+    @Value("${checkout_writers:2}")
+    private int writers;
+
+    @Value("${checkout_queue_size:10000}")
+    private int queueSize;
+
+    @Value("${checkout_queue_timeout_ms:1000}")
+    private long queueTimeoutMs;
+
+    @Value("${checkout_await_timeout_ms:10000}")
+    private long awaitTimeoutMs;
+
+    private CheckoutWriter writer;
+
+    private BlockingQueue<CheckoutRequest> queue;
+    private final List<Thread> threads = new ArrayList<>();
+    private volatile boolean running;
+
+    private final CheckoutStats stats = new CheckoutStats();
+
+    @Autowired
+    public CheckoutPipeline(CheckoutWriter writer) {
+        this.writer = writer;
+    }
+
+    /**
+     * Запускает потоки-писатели, если включён пакетный режим
+     */
+    @PostConstruct
+    public void start() {
+
+        if (!isEnabled()) {
+            return;
+        }
+
+        queue = new ArrayBlockingQueue<>(queueSize);
+        running = true;
+
+        for (int i = 0; i < writers; ++i) {
+            Thread thread = new Thread(this::write, "checkout-writer-" + i);
+            thread.setDaemon(true);
+            thread.start();
+            threads.add(thread);
+        }
+    }
+
+    /**
+     * Останавливает потоки-писатели. Запросы, которые уже попали в очередь, будут выполнены.
+     */
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        running = false;
+
+        for (Thread thread : threads) {
+            thread.join(TimeUnit.SECONDS.toMillis(10));
+        }
+        threads.clear();
+    }
+
+    /**
+     * @return true - если включён пакетный режим покупки
+     */
+    public boolean isEnabled() {
+        return "batch".equalsIgnoreCase(mode);
+    }
+
+    /**
+     * Ставит покупку товара в очередь и ожидает её выполнения
+     *
+     * @param account    аккаунт клиента
+     * @param buyProduct информация о товаре
+     * @param claim      ключ идемпотентности запроса (null - без ключа)
+     * @return информация о купленном товаре
+     * @throws ServiceException ошибка покупки, очередь переполнена или покупка
+     *                          не выполнена за checkout_await_timeout_ms
+     */
+    public ProductDto buyProduct(
+            Account account, ProductDto buyProduct, IdempotencyClaim claim
+    ) throws ServiceException {
+
+        CheckoutRequest request = new CheckoutRequest(account, buyProduct, claim);
+
+        try {
+            if (!running || !queue.offer(request, queueTimeoutMs, TimeUnit.MILLISECONDS)) {
+                throw new ServiceException(ServiceException.ErrorCode.CHECKOUT_OVERLOADED);
+            }
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+
+        try {
+            return request.await(awaitTimeoutMs);
+
+        } catch (TimeoutException e) {
+            stats.timeout();
+
+            // Если писатель ещё не взял запрос, то он уже не выполнится
+            if (request.cancel()) {
+                queue.remove(request);
+            }
+            throw new ServiceException(ServiceException.ErrorCode.CHECKOUT_OVERLOADED);
+        }
+    }
+
+    @Override
+    public String getMetricsName() {
+        return "checkout";
+    }
+
+    @Override
+    public Map<String, Number> getMetrics() {
+        Map<String, Number> metrics = new HashMap<>();
+
+        metrics.put("enabled", isEnabled() ? 1 : 0);
+        metrics.put("queue_size", queue == null ? 0 : queue.size());
+        stats.putMetrics(metrics);
+
+        return metrics;
+    }
+
+    /**
+     * Цикл потока-писателя: собирает пакет запросов и выполняет его
+     */
+    private void write() {
+        List<CheckoutRequest> batch = new ArrayList<>(batchSize);
+
+        while (running || !queue.isEmpty()) {
+            try {
+                if (CheckoutWriter.poll(queue, batch, batchSize, batchWaitMs)) {
+                    writer.process(batch, stats);
+                }
+
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+}
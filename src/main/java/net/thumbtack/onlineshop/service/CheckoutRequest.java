@@ -0,0 +1,114 @@
+package net.thumbtack.onlineshop.service;
+
+import net.thumbtack.onlineshop.domain.models.Account;
+import net.thumbtack.onlineshop.dto.ProductDto;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Запрос на покупку товара, который ожидает выполнения в очереди
+ */
+class CheckoutRequest {
+
+    private final long created = System.nanoTime();
+    private final Account account;
+    private final ProductDto buyProduct;
+    // Ключ идемпотентности, который занимается в транзакции покупки (null - без ключа)
+    private final IdempotencyClaim claim;
+    private final CompletableFuture<ProductDto> result = new CompletableFuture<>();
+    // Запрос взят писателем или отменён по таймауту (что случилось раньше)
+    private final AtomicBoolean taken = new AtomicBoolean();
+
+    // Результат применения запроса в транзакции
+    private ServiceException error;
+
+    CheckoutRequest(Account account, ProductDto buyProduct, IdempotencyClaim claim) {
+        this.account = account;
+        this.buyProduct = buyProduct;
+        this.claim = claim;
+    }
+
+    long getCreated() {
+        return created;
+    }
+
+    Account getAccount() {
+        return account;
+    }
+
+    ProductDto getBuyProduct() {
+        return buyProduct;
+    }
+
+    IdempotencyClaim getClaim() {
+        return claim;
+    }
+
+    CompletableFuture<ProductDto> getResult() {
+        return result;
+    }
+
+    ServiceException getError() {
+        return error;
+    }
+
+    void setError(ServiceException error) {
+        this.error = error;
+    }
+
+    /**
+     * Отмечает, что писатель начал выполнять запрос
+     *
+     * @return false - если запрос уже отменён и выполнять его не нужно
+     */
+    boolean start() {
+        return taken.compareAndSet(false, true);
+    }
+
+    /**
+     * Отменяет запрос, который не дождался выполнения
+     *
+     * @return false - если писатель уже начал выполнять запрос
+     */
+    boolean cancel() {
+        return taken.compareAndSet(false, true);
+    }
+
+    /**
+     * Сбрасывает результат применения (транзакция была отменена)
+     */
+    void reset() {
+        error = null;
+    }
+
+    /**
+     * Ожидает выполнения запроса
+     *
+     * @param timeoutMs сколько ждать выполнения
+     * @return информация о купленном товаре
+     * @throws ServiceException ошибка покупки
+     * @throws TimeoutException запрос не выполнен за отведённое время
+     */
+    ProductDto await(long timeoutMs) throws ServiceException, TimeoutException {
+        try {
+            return result.get(timeoutMs, TimeUnit.MILLISECONDS);
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof ServiceException) {
+                throw (ServiceException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package net.thumbtack.onlineshop.service;
+
+import net.thumbtack.onlineshop.service.metrics.RateCounter;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+
+/**
+ * Счётчики выполнения пакетов покупок. У каждой очереди покупок свои счётчики.
+ */
+class CheckoutStats {
+
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong purchases = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong waitTotalMs = new AtomicLong();
+    private final LongAccumulator maxBatchSize = new LongAccumulator(Math::max, 0);
+    private final LongAccumulator maxWaitMs = new LongAccumulator(Math::max, 0);
+    private final RateCounter throughput = new RateCounter(10);
+
+    void batch(int size) {
+        batches.incrementAndGet();
+        maxBatchSize.accumulate(size);
+    }
+
+    void retry() {
+        retries.incrementAndGet();
+    }
+
+    void timeout() {
+        timeouts.incrementAndGet();
+    }
+
+    void purchase(CheckoutRequest request) {
+        recordWait(request);
+        purchases.incrementAndGet();
+        throughput.increment();
+    }
+
+    void reject(CheckoutRequest request) {
+        recordWait(request);
+        rejected.incrementAndGet();
+    }
+
+    void fail(CheckoutRequest request) {
+        recordWait(request);
+        failed.incrementAndGet();
+    }
+
+    /**
+     * Добавляет счётчики в метрики
+     *
+     * @param metrics метрики
+     */
+    void putMetrics(Map<String, Number> metrics) {
+        long batchCount = batches.get();
+        long completed = purchases.get() + rejected.get() + failed.get();
+
+        metrics.put("batches", batchCount);
+        metrics.put("purchases", purchases.get());
+        metrics.put("rejected", rejected.get());
+        metrics.put("failed", failed.get());
+        metrics.put("retried_batches", retries.get());
+        metrics.put("timeouts", timeouts.get());
+        metrics.put("batch_size_avg", batchCount == 0 ? 0 : (double) completed / batchCount);
+        metrics.put("batch_size_max", maxBatchSize.get());
+        metrics.put("wait_ms_avg", completed == 0 ? 0 : (double) waitTotalMs.get() / completed);
+        metrics.put("wait_ms_max", maxWaitMs.get());
+        metrics.put("purchases_per_second", throughput.getRate());
+    }
+
+    private void recordWait(CheckoutRequest request) {
+        long waitMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - request.getCreated());
+        waitTotalMs.addAndGet(waitMs);
+        maxWaitMs.accumulate(waitMs);
+    }
+}
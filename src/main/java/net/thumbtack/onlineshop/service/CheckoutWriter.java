@@ -0,0 +1,250 @@
+package net.thumbtack.onlineshop.service;
+
+import net.thumbtack.onlineshop.domain.dao.ProductDao;
+import net.thumbtack.onlineshop.domain.models.Account;
+import net.thumbtack.onlineshop.domain.models.DepositEntry;
+import net.thumbtack.onlineshop.domain.models.Product;
+import net.thumbtack.onlineshop.dto.ProductDto;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Выполняет пакеты покупок товаров одной транзакцией: блокирует нужные товары и счета
+ * клиентов, проверяет каждый запрос, списывает товар со склада и деньги со счёта и
+ * сохраняет покупки. Каждый запрос пакета получает свой собственный результат.
+ * <br>
+ * Если транзакция пакета не удалась, то запросы пакета выполняются по одному.
+ * <br>
+ * Ключи идемпотентности запросов занимаются в той же транзакции (см. {@link IdempotencyService}).
+ * Если ключ уже занят, то пакет откатывается, а при выполнении по одному этот запрос
+ * получает ошибку IdempotencyInProgress.
+ */
+@Service
+public class CheckoutWriter {
+
+    private DepositService depositService;
+    private ProductDao productDao;
+    private PurchasesService purchasesService;
+    private IdempotencyService idempotencyService;
+    private TransactionTemplate transaction;
+
+    @Autowired
+    public CheckoutWriter(
+            DepositService depositService,
+            ProductDao productDao,
+            PurchasesService purchasesService,
+            IdempotencyService idempotencyService,
+            PlatformTransactionManager transactionManager) {
+        this.depositService = depositService;
+        this.productDao = productDao;
+        this.purchasesService = purchasesService;
+        this.idempotencyService = idempotencyService;
+        this.transaction = new TransactionTemplate(transactionManager);
+    }
+
+    /**
+     * Забирает из очереди очередной пакет запросов
+     *
+     * @param queue     очередь запросов
+     * @param batch     список, в который добавляются запросы пакета
+     * @param batchSize максимальный размер пакета
+     * @param waitMs    сколько ждать остальные запросы пакета после первого
+     * @return false - если за 100 мс в очереди не появилось ни одного запроса
+     */
+    static boolean poll(
+            BlockingQueue<CheckoutRequest> queue,
+            List<CheckoutRequest> batch,
+            int batchSize,
+            long waitMs) throws InterruptedException {
+
+        CheckoutRequest first = queue.poll(100, TimeUnit.MILLISECONDS);
+        if (first == null) {
+            return false;
+        }
+        batch.add(first);
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(waitMs);
+        while (batch.size() < batchSize) {
+            long remaining = deadline - System.nanoTime();
+            CheckoutRequest next = remaining > 0
+                    ? queue.poll(remaining, TimeUnit.NANOSECONDS)
+                    : queue.poll();
+            if (next == null) {
+                break;
+            }
+            batch.add(next);
+        }
+
+        return true;
+    }
+
+    /**
+     * Выполняет пакет покупок. Если транзакция пакета не удалась, то
+     * выполняет каждую покупку пакета отдельной транзакцией.
+     *
+     * @param requests пакет покупок
+     * @param stats    счётчики очереди, из которой взят пакет
+     */
+    void process(List<CheckoutRequest> requests, CheckoutStats stats) {
+
+        // Запросы, которые не дождались выполнения, уже получили ошибку
+        List<CheckoutRequest> batch = new ArrayList<>(requests.size());
+        for (CheckoutRequest request : requests) {
+            if (request.start()) {
+                batch.add(request);
+            }
+        }
+
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        stats.batch(batch.size());
+
+        try {
+            execute(batch);
+            batch.forEach(request -> complete(request, stats));
+
+        } catch (RuntimeException e) {
+
+            if (batch.size() == 1) {
+                fail(batch.get(0), e, stats);
+                return;
+            }
+
+            // Ошибка одного запроса не должна мешать остальным
+            stats.retry();
+            for (CheckoutRequest request : batch) {
+                request.reset();
+                try {
+                    execute(Collections.singletonList(request));
+                    complete(request, stats);
+
+                } catch (RuntimeException single) {
+                    fail(request, single, stats);
+                }
+            }
+        }
+    }
+
+    /**
+     * Выполняет пакет покупок одной транзакцией. Пока транзакция не завершена,
+     * другие списания со счетов клиентов пакета ожидают.
+     *
+     * @param batch пакет покупок
+     */
+    private void execute(List<CheckoutRequest> batch) {
+
+        Set<Long> accountIds = new TreeSet<>();
+        batch.forEach(request -> accountIds.add(request.getAccount().getId()));
+
+        depositService.locked(accountIds, () -> transaction.execute(status -> {
+            apply(batch);
+            return null;
+        }));
+    }
+
+    /**
+     * Применяет пакет покупок в текущей транзакции
+     *
+     * @param batch пакет покупок
+     */
+    private void apply(List<CheckoutRequest> batch) {
+
+        // Ключи идемпотентности занимаются до блокировки товаров, как и при обычной покупке
+        for (CheckoutRequest request : batch) {
+            if (request.getClaim() != null) {
+                idempotencyService.claim(request.getClaim());
+            }
+        }
+
+        Set<Long> productIds = new TreeSet<>();
+        for (CheckoutRequest request : batch) {
+            if (request.getBuyProduct().getId() != null) {
+                productIds.add(request.getBuyProduct().getId());
+            }
+        }
+
+        // Блокируем товары пакета (всегда в порядке возрастания id)
+        Map<Long, Product> products = new HashMap<>();
+        if (!productIds.isEmpty()) {
+            productDao.getForUpdate(productIds).forEach(p -> products.put(p.getId(), p));
+        }
+
+        // Остатки на счетах клиентов пакета
+        Map<Long, Integer> balances = new HashMap<>();
+
+        // Запросы применяются в порядке поступления, поэтому каждый следующий
+        // запрос видит остатки товаров и денег после предыдущих
+        for (CheckoutRequest request : batch) {
+            ProductDto buyProduct = request.getBuyProduct();
+            Product product = buyProduct.getId() == null ? null : products.get(buyProduct.getId());
+            Account account = request.getAccount();
+            int cost;
+
+            try {
+                ClientService.compareProducts(product, buyProduct);
+
+                if (buyProduct.getCount() > product.getCount()) {
+                    throw new ServiceException(ServiceException.ErrorCode.NOT_ENOUGH_PRODUCT, "count");
+                }
+
+                cost = buyProduct.getCount() * buyProduct.getPrice();
+                int balance = balances.computeIfAbsent(account.getId(), id -> depositService.getBalance(account));
+
+                if (cost > balance) {
+                    throw new ServiceException(ServiceException.ErrorCode.NOT_ENOUGH_MONEY);
+                }
+
+                balances.put(account.getId(), balance - cost);
+
+            } catch (ServiceException e) {
+                request.setError(e);
+                continue;
+            }
+
+            // Изменения товара сохранятся при завершении транзакции
+            product.setCount(product.getCount() - buyProduct.getCount());
+            depositService.record(account, -cost, DepositEntry.Type.PURCHASE);
+
+            purchasesService.saveProductPurchase(account, product, buyProduct.getCount());
+        }
+    }
+
+    /**
+     * Завершает запрос после фиксации транзакции
+     */
+    private void complete(CheckoutRequest request, CheckoutStats stats) {
+        if (request.getError() != null) {
+            stats.reject(request);
+            request.getResult().completeExceptionally(request.getError());
+        } else {
+            stats.purchase(request);
+            request.getResult().complete(request.getBuyProduct());
+        }
+    }
+
+    /**
+     * Завершает запрос с непредвиденной ошибкой
+     */
+    private void fail(CheckoutRequest request, RuntimeException e, CheckoutStats stats) {
+        stats.fail(request);
+
+        // Ключ идемпотентности уже занят другим запросом
+        if (request.getClaim() != null && e instanceof DataIntegrityViolationException) {
+            request.getResult().completeExceptionally(
+                    new ServiceException(ServiceException.ErrorCode.IDEMPOTENCY_IN_PROGRESS, "Idempotency-Key")
+            );
+            return;
+        }
+
+        request.getResult().completeExceptionally(e);
+    }
+}
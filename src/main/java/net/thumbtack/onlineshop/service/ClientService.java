@@ -1,19 +1,21 @@
 package net.thumbtack.onlineshop.service;
 
-import net.thumbtack.onlineshop.domain.dao.AccountDao;
-import net.thumbtack.onlineshop.domain.dao.BasketDao;
 import net.thumbtack.onlineshop.domain.dao.ProductDao;
 import net.thumbtack.onlineshop.domain.dao.SessionDao;
 import net.thumbtack.onlineshop.domain.models.Account;
 import net.thumbtack.onlineshop.domain.models.Basket;
 import net.thumbtack.onlineshop.domain.models.Product;
 import net.thumbtack.onlineshop.dto.AccountDto;
+import net.thumbtack.onlineshop.dto.BasketDeltaDto;
 import net.thumbtack.onlineshop.dto.ProductDto;
 import net.thumbtack.onlineshop.dto.ResultBasketDto;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -25,23 +27,35 @@ import java.util.Map;
 public class ClientService extends GeneralService {
 
     private PurchasesService purchasesService;
+    private IdempotencyService idempotencyService;
+    private CheckoutPipeline checkoutPipeline;
+    private HotProductAdmission hotProductAdmission;
+    private DepositService depositService;
 
-    private AccountDao accountDao;
     private ProductDao productDao;
-    private BasketDao basketDao;
+    private BasketStore basketStore;
+    private TransactionTemplate transaction;
 
     @Autowired
     public ClientService(
-            AccountDao accountDao,
             SessionDao sessionDao,
             ProductDao productDao,
-            BasketDao basketDao,
-            PurchasesService purchasesService) {
+            BasketStore basketStore,
+            PurchasesService purchasesService,
+            IdempotencyService idempotencyService,
+            CheckoutPipeline checkoutPipeline,
+            HotProductAdmission hotProductAdmission,
+            DepositService depositService,
+            PlatformTransactionManager transactionManager) {
         super(sessionDao);
-        this.accountDao = accountDao;
         this.productDao = productDao;
-        this.basketDao = basketDao;
+        this.basketStore = basketStore;
         this.purchasesService = purchasesService;
+        this.idempotencyService = idempotencyService;
+        this.checkoutPipeline = checkoutPipeline;
+        this.hotProductAdmission = hotProductAdmission;
+        this.depositService = depositService;
+        this.transaction = new TransactionTemplate(transactionManager);
     }
 
     /**
@@ -53,10 +67,27 @@ public class ClientService extends GeneralService {
     public AccountDto putDeposit(String sessionId, int amount) throws ServiceException {
 
         Account account = getClient(sessionId);
-        account.setDeposit(account.getDeposit() + amount);
-        accountDao.update(account);
 
-        return new AccountDto(account);
+        AccountDto result = new AccountDto(account);
+        result.setDeposit(depositService.deposit(account, amount));
+
+        return result;
+    }
+
+    /**
+     * Получает информацию о клиенте вместе с остатком на его счету
+     *
+     * @param sessionId сессия клиента
+     * @return информация о клиенте
+     */
+    public AccountDto getDeposit(String sessionId) throws ServiceException {
+
+        Account account = getClient(sessionId);
+
+        AccountDto result = new AccountDto(account);
+        result.setDeposit(depositService.getBalance(account));
+
+        return result;
     }
 
     /**
@@ -67,34 +98,79 @@ public class ClientService extends GeneralService {
      * @return информация о купленном товаре
      */
     public ProductDto buyProduct(String sessionId, ProductDto buyProduct) throws ServiceException {
+        return buyProduct(getClient(sessionId), buyProduct);
+    }
+
+    /**
+     * Купить некоторый товар. Повторный запрос с тем же ключом идемпотентности
+     * не выполняет покупку снова, а возвращает результат первого запроса.
+     *
+     * @param sessionId      сессия клиента
+     * @param buyProduct     информиация о товаре
+     * @param idempotencyKey ключ идемпотентности (может отсутствовать)
+     * @return информация о купленном товаре
+     */
+    public ProductDto buyProduct(String sessionId, ProductDto buyProduct, String idempotencyKey) throws ServiceException {
 
         Account account = getClient(sessionId);
-        Product product = productDao.get(buyProduct.getId());
 
-        compareProducts(product, buyProduct);
+        return idempotencyService.execute(
+                account, idempotencyKey, buyProduct, ProductDto.class, () -> buyProduct(account, buyProduct)
+        );
+    }
+
+    /**
+     * Купить некоторый товар
+     *
+     * @param account    аккаунт клиента
+     * @param buyProduct информиация о товаре
+     * @return информация о купленном товаре
+     */
+    private ProductDto buyProduct(Account account, ProductDto buyProduct) throws ServiceException {
 
-        // Товара мало
-        if (buyProduct.getCount() > product.getCount()) {
-            throw new ServiceException(ServiceException.ErrorCode.NOT_ENOUGH_PRODUCT, "count");
+        // Ключ идемпотентности занимается в транзакции покупки, даже если она выполняется в другом потоке
+        IdempotencyClaim claim = idempotencyService.getClaim();
+
+        // Популярный товар покупается через его собственную очередь
+        ProductDto hot = hotProductAdmission.buyProduct(account, buyProduct, claim);
+        if (hot != null) {
+            return hot;
         }
 
-        // Денег не хватает
-        if (buyProduct.getCount() * buyProduct.getPrice() > account.getDeposit()) {
-            throw new ServiceException(ServiceException.ErrorCode.NOT_ENOUGH_MONEY);
+        // В пакетном режиме покупка выполняется вместе с другими покупками одной транзакцией
+        if (checkoutPipeline.isEnabled()) {
+            return checkoutPipeline.buyProduct(account, buyProduct, claim);
         }
 
-        // Обновляем количество товара на складе
-        product.setCount(product.getCount() - buyProduct.getCount());
-        productDao.update(product);
+        // Списание денег, товара и запись о покупке сохраняются одной транзакцией
+        return purchase(account, () -> {
+
+            // Строка товара блокируется, как и в пакетной покупке: её может менять очередь популярного
+            // товара, который только что перестал быть популярным, или покупка корзины
+            Product product = buyProduct.getId() == null
+                    ? null
+                    : productDao.getForUpdate(Collections.singleton(buyProduct.getId()))
+                            .stream().findFirst().orElse(null);
 
-        // Обновляем количество денег на счету клиента
-        account.setDeposit(account.getDeposit() - buyProduct.getCount() * buyProduct.getPrice());
-        accountDao.update(account);
+            compareProducts(product, buyProduct);
+
+            // Товара мало
+            if (buyProduct.getCount() > product.getCount()) {
+                throw new ServiceException(ServiceException.ErrorCode.NOT_ENOUGH_PRODUCT, "count");
+            }
 
-        // Сохраняем покупку в историю покупок
-        purchasesService.saveProductPurchase(account, product, buyProduct.getCount());
+            // Списываем деньги со счёта клиента (если денег не хватает, то будет ошибка)
+            depositService.withdraw(account, buyProduct.getCount() * buyProduct.getPrice());
 
-        return buyProduct;
+            // Обновляем количество товара на складе
+            product.setCount(product.getCount() - buyProduct.getCount());
+            productDao.update(product);
+
+            // Сохраняем покупку в историю покупок
+            purchasesService.saveProductPurchase(account, product, buyProduct.getCount());
+
+            return buyProduct;
+        });
 
     }
 
@@ -103,11 +179,28 @@ public class ClientService extends GeneralService {
      *
      * @param sessionId  сессия клиента
      * @param buyProduct информация о товаре
-     * @return информация о купленном товаре
+     * @return содержание корзины
      */
     public List<ProductDto> addToBasket(String sessionId, ProductDto buyProduct) throws ServiceException {
 
         Account account = getClient(sessionId);
+        addToBasket(account, buyProduct);
+
+        return toDto(basketStore.get(account.getId()));
+    }
+
+    /**
+     * Добавляет товар в корзину и возвращает только изменённую запись корзины
+     *
+     * @param sessionId  сессия клиента
+     * @param buyProduct информация о товаре
+     * @return изменения корзины
+     */
+    public BasketDeltaDto addToBasketDelta(String sessionId, ProductDto buyProduct) throws ServiceException {
+        return toDto(addToBasket(getClient(sessionId), buyProduct));
+    }
+
+    private BasketChanges addToBasket(Account account, ProductDto buyProduct) throws ServiceException {
 
         if (buyProduct.getId() == null) {
             throw new ServiceException(ServiceException.ErrorCode.PRODUCT_NOT_FOUND, "id");
@@ -116,25 +209,8 @@ public class ClientService extends GeneralService {
         Product product = productDao.get(buyProduct.getId());
         compareProducts(product, buyProduct);
 
-        Basket already = basketDao.get(account, product.getId());
-        if (already != null) {
-            // Если продукт уже добавлен в корзину, то просто прибавим его количество
-
-            already.setCount(already.getCount() + buyProduct.getCount());
-            basketDao.update(already);
-
-        } else {
-            // Если продукта в корзине нет, то добавляем его
-
-            Basket basket = new Basket(account, product, buyProduct.getCount());
-            basketDao.insert(basket);
-        }
-
-        // Вернём корзину
-        List<ProductDto> result = new ArrayList<>();
-        basketDao.get(account).forEach(b -> result.add(new ProductDto(b)));
-
-        return result;
+        // Если продукт уже добавлен в корзину, то просто прибавим его количество
+        return basketStore.add(account.getId(), product, buyProduct.getCount());
     }
 
     /**
@@ -146,14 +222,11 @@ public class ClientService extends GeneralService {
     public void deleteFromBasket(String sessionId, long productId) throws ServiceException {
 
         Account account = getClient(sessionId);
-        Basket basket = basketDao.get(account, productId);
 
-        if (basket == null) {
+        if (!basketStore.remove(account.getId(), productId)) {
             throw new ServiceException(ServiceException.ErrorCode.PRODUCT_NOT_FOUND);
         }
 
-        basketDao.delete(basket);
-
     }
 
     /**
@@ -166,12 +239,29 @@ public class ClientService extends GeneralService {
     public List<ProductDto> editProductCount(String sessionId, ProductDto product) throws ServiceException {
 
         Account account = getClient(sessionId);
+        editProductCount(account, product);
+
+        return toDto(basketStore.get(account.getId()));
+    }
+
+    /**
+     * Изменяет количество товара в корзине и возвращает только изменённую запись корзины
+     *
+     * @param sessionId сессия клиент
+     * @param product   информация о товаре
+     * @return изменения корзины
+     */
+    public BasketDeltaDto editProductCountDelta(String sessionId, ProductDto product) throws ServiceException {
+        return toDto(editProductCount(getClient(sessionId), product));
+    }
+
+    private BasketChanges editProductCount(Account account, ProductDto product) throws ServiceException {
 
         if (product.getId() == null) {
             throw new ServiceException(ServiceException.ErrorCode.PRODUCT_NOT_FOUND, "id");
         }
 
-        Basket basket = basketDao.get(account, product.getId());
+        Basket basket = basketStore.get(account.getId(), product.getId());
 
         if (basket == null) {
             throw new ServiceException(ServiceException.ErrorCode.PRODUCT_NOT_FOUND, "id");
@@ -183,12 +273,12 @@ public class ClientService extends GeneralService {
 
         // Проверяем и если всё верно, то изменим количество
         compareProducts(basket.getProduct(), product);
-        basket.setCount(product.getCount());
-        basketDao.update(basket);
+        BasketChanges result = basketStore.setCount(account.getId(), product.getId(), product.getCount());
 
-        // Возвращаем корзину
-        List<ProductDto> result = new ArrayList<>();
-        basketDao.get(account).forEach(b -> result.add(new ProductDto(b)));
+        // Товар мог быть удалён из корзины другим запросом
+        if (result == null) {
+            throw new ServiceException(ServiceException.ErrorCode.PRODUCT_NOT_FOUND, "id");
+        }
 
         return result;
     }
@@ -203,10 +293,21 @@ public class ClientService extends GeneralService {
 
         Account account = getClient(sessionId);
 
-        List<ProductDto> result = new ArrayList<>();
-        basketDao.get(account).forEach(b -> result.add(new ProductDto(b)));
+        return toDto(basketStore.get(account.getId()));
+    }
 
-        return result;
+    /**
+     * Получает изменения корзины клиента начиная с указанной версии
+     *
+     * @param sessionId сессия клиента
+     * @param since     версия корзины, которая уже есть у клиента
+     * @return изменения корзины
+     */
+    public BasketDeltaDto getBasketDelta(String sessionId, long since) throws ServiceException {
+
+        Account account = getClient(sessionId);
+
+        return toDto(basketStore.getChanges(account.getId(), since));
     }
 
     /**
@@ -218,120 +319,190 @@ public class ClientService extends GeneralService {
      * вторая коллекция содержит список оставшихся в корзине товаров
      */
     public ResultBasketDto buyBasket(String sessionId, List<ProductDto> toBuy) throws ServiceException {
+        return buyBasket(getClient(sessionId), toBuy);
+    }
+
+    /**
+     * Выкупает товар из корзины. Повторный запрос с тем же ключом идемпотентности
+     * не выполняет покупку снова, а возвращает результат первого запроса.
+     *
+     * @param sessionId      сессия клиента
+     * @param toBuy          список товаров для покупки
+     * @param idempotencyKey ключ идемпотентности (может отсутствовать)
+     * @return список купленных товаров и список оставшихся в корзине товаров
+     */
+    public ResultBasketDto buyBasket(String sessionId, List<ProductDto> toBuy, String idempotencyKey) throws ServiceException {
 
         Account account = getClient(sessionId);
 
-        // Получаем корзину
-        List<Basket> basket = basketDao.get(account);
+        return idempotencyService.execute(
+                account, idempotencyKey, toBuy, ResultBasketDto.class, () -> buyBasket(account, toBuy)
+        );
+    }
+
+    /**
+     * Выкупает товар из корзины
+     *
+     * @param account аккаунт клиента
+     * @param toBuy   список товаров для покупки
+     * @return список купленных товаров и список оставшихся в корзине товаров
+     */
+    private ResultBasketDto buyBasket(Account account, List<ProductDto> toBuy) throws ServiceException {
+
+        // Получаем корзину вместе с текущими остатками товаров на складе
+        List<Basket> basket = getBasketWithProducts(account);
 
-        // Убираем из списка покупок неверные товары
-        removeInvalidProducts(toBuy, basket);
+        // Отделяем неверные товары от тех, которые можно купить
+        BasketValidator validation = BasketValidator.validate(toBuy, basket);
+        List<BasketValidator.Item> items = validation.getValid();
 
-        // Теперь в списке tobBuy всё валидное
-        // Теперь считаем сколько денег нужно для покупки всего
+        // Считаем сколько денег нужно для покупки всего
         int sum = 0;
-        for (ProductDto product : toBuy) {
-            sum += product.getCount() * product.getPrice();
+        for (BasketValidator.Item item : items) {
+            sum += item.getProduct().getCount() * item.getProduct().getPrice();
         }
 
-        if (sum > account.getDeposit()) {
-            throw new ServiceException(ServiceException.ErrorCode.NOT_ENOUGH_MONEY);
-        }
+        // Начинаем покупать товары: списание денег, товаров и записи о покупках
+        // сохраняются одной транзакцией
+        int total = sum;
+        List<ProductDto> bought = purchase(account, () -> {
 
-        // Начинаем покупать товары
+            // Корзина проверялась по остаткам, прочитанным до транзакции. Блокируем товары
+            // (в порядке id) и проверяем остатки заново, иначе параллельная покупка
+            // того же товара будет перезаписана
+            List<Long> ids = new ArrayList<>(items.size());
+            items.forEach(item -> ids.add(item.getProduct().getId()));
 
-        // Снимаем деньги
-        account.setDeposit(account.getDeposit() - sum);
-        accountDao.update(account);
+            Map<Long, Product> locked = new HashMap<>();
+            if (!ids.isEmpty()) {
+                productDao.getForUpdate(ids).forEach(product -> locked.put(product.getId(), product));
+            }
 
-        // Формируем список покупок
-        Map<Product, Integer> productsPurchases = new HashMap<>();
+            for (BasketValidator.Item item : items) {
+                ProductDto product = item.getProduct();
+                Product currentProduct = locked.get(product.getId());
 
-        for (ProductDto product : toBuy) {
+                compareProducts(currentProduct, product);
 
-            // Уменьшаем количество товаров на складе
-            Product currentProduct = productDao.get(product.getId());
-            currentProduct.setCount(currentProduct.getCount() - product.getCount());
-            productDao.update(currentProduct);
+                if (currentProduct.getDeleted()) {
+                    throw new ServiceException(ServiceException.ErrorCode.PRODUCT_NOT_FOUND, "id");
+                }
 
-            // Удаляем нужное количество товара из корзины
-            // Или совсем из корзины
-            Basket basketEntity = basketDao.get(account, product.getId());
-            basketEntity.setCount(basketEntity.getCount() - product.getCount());
-            if (basketEntity.getCount() == 0) {
-                basketDao.delete(basketEntity);
-            } else {
-                basketDao.update(basketEntity);
+                if (product.getCount() > currentProduct.getCount()) {
+                    throw new ServiceException(ServiceException.ErrorCode.NOT_ENOUGH_PRODUCT, "count");
+                }
             }
 
-            // Сохраняем покупку в историю покупок
-            productsPurchases.put(currentProduct, product.getCount());
-        }
+            // Снимаем деньги (если денег не хватает, то будет ошибка)
+            depositService.withdraw(account, total);
+
+            // Формируем список покупок
+            Map<Product, Integer> productsPurchases = new HashMap<>();
+            List<ProductDto> result = new ArrayList<>(items.size());
 
-        // Сохраняем информацию о покупке корзины
-        purchasesService.saveBasketPurchase(account, productsPurchases);
+            for (BasketValidator.Item item : items) {
+                ProductDto product = item.getProduct();
 
-        // Возвращаем инфу сколько мы купили и сколько в корзине осталось
-        return new ResultBasketDto(toBuy, basketDao.get(account));
+                // Уменьшаем количество товаров на складе
+                Product currentProduct = locked.get(product.getId());
+                currentProduct.setCount(currentProduct.getCount() - product.getCount());
+                productDao.update(currentProduct);
+
+                // Сохраняем покупку в историю покупок
+                productsPurchases.put(currentProduct, product.getCount());
+                result.add(product);
+            }
+
+            // Сохраняем информацию о покупке корзины
+            purchasesService.saveBasketPurchase(account, productsPurchases);
+
+            return result;
+        });
+
+        // Корзина хранится в памяти, поэтому товары удаляются из неё только после фиксации покупки
+        for (ProductDto product : bought) {
+            basketStore.subtract(account.getId(), product.getId(), product.getCount());
+        }
+
+        // Возвращаем инфу сколько мы купили, сколько в корзине осталось и что не удалось купить
+        return new ResultBasketDto(bought, basketStore.get(account.getId()), validation.getRejected());
     }
 
     /**
-     * Убирает из списка покупок все товары, которые не соответсвуют требованиям.
-     * (к примеру товары, которых нет в БД или нет в текущей корзине клиента и т.д.)
+     * Выполняет покупку одной транзакцией под блокировкой счёта клиента. Блокировка снимается
+     * только после завершения транзакции, поэтому следующее списание видит остаток
+     * с учётом этой покупки. Если покупка завершилась ошибкой, то транзакция откатывается.
+     * Ключ идемпотентности запроса занимается в той же транзакции.
      *
-     * @param toBuy  список покупок
-     * @param basket корзина клиента
+     * @param account аккаунт клиента
+     * @param action  покупка
+     * @return результат покупки
+     * @throws ServiceException ошибка покупки
      */
-    private void removeInvalidProducts(List<ProductDto> toBuy, List<Basket> basket) {
-
-        List<ProductDto> copyList = new ArrayList<>(toBuy);
+    private <T> T purchase(Account account, IdempotencyService.Action<T> action) throws ServiceException {
+        try {
+            return depositService.locked(Collections.singleton(account.getId()), () ->
+                    transaction.execute(status -> {
+                        try {
+                            idempotencyService.claim();
+                            return action.run();
+                        } catch (ServiceException e) {
+                            throw new PurchaseFailure(e);
+                        }
+                    })
+            );
+
+        } catch (PurchaseFailure e) {
+            throw e.error;
+        }
+    }
 
-        // Если инфа у товара в списке неверная, то просто не обрабатываем его
-        for (ProductDto product : copyList) {
+    /**
+     * Получает корзину клиента, в которой товары загружены из БД
+     *
+     * @param account аккаунт клиента
+     * @return записи корзины с товарами из БД
+     */
+    private List<Basket> getBasketWithProducts(Account account) {
 
-            // Ищем продукт с таким id в корзине
-            Basket basketEntity = null;
-            for (Basket entity : basket) {
-                if (entity.getProduct().getId().equals(product.getId())) {
-                    basketEntity = entity;
-                    break;
-                }
-            }
+        List<Basket> lines = basketStore.get(account.getId());
+        if (lines.isEmpty()) {
+            return lines;
+        }
 
-            // Если продукта в корзине нет, то и выкидываем его из запроса
-            if (basketEntity == null) {
-                toBuy.remove(product);
-                continue;
-            }
+        List<Long> ids = new ArrayList<>(lines.size());
+        lines.forEach(line -> ids.add(line.getProduct().getId()));
 
-            // Теперь сверяем что данные с бд совпадают
-            // Еси нет, то выкидываем из список покупок
-            try {
-                compareProducts(basketEntity.getProduct(), product);
-            } catch (ServiceException e) {
-                toBuy.remove(product);
-                continue;
-            }
+        Map<Long, Product> products = new HashMap<>();
+        productDao.get(ids).forEach(product -> products.put(product.getId(), product));
 
-            // Если количество не указано, то берём количество из корзины
-            // так же если количество больше чем в корзине
-            if (product.getCount() == null || product.getCount() > basketEntity.getCount()) {
-                product.setCount(basketEntity.getCount());
+        List<Basket> basket = new ArrayList<>(lines.size());
+        for (Basket line : lines) {
+            Product product = products.get(line.getProduct().getId());
+            if (product != null) {
+                basket.add(new Basket(account, product, line.getCount()));
             }
+        }
 
-            // Если количество товара на складе меньше чем мы хотим купить,
-            // то опять выкидываем из списка покупок
-            if (product.getCount() > basketEntity.getProduct().getCount()) {
-                toBuy.remove(product);
-                continue;
-            }
+        return basket;
+    }
 
-            // Если товар удалён из БД
-            if (basketEntity.getProduct().getDeleted()) {
-                toBuy.remove(product);
-            }
-        }
+    private static List<ProductDto> toDto(List<Basket> basket) {
+        List<ProductDto> result = new ArrayList<>(basket.size());
+        basket.forEach(b -> result.add(new ProductDto(b)));
+        return result;
+    }
 
+    private static BasketDeltaDto toDto(BasketChanges changes) {
+        return new BasketDeltaDto(
+                changes.getVersion(),
+                changes.isFull(),
+                toDto(changes.getChanged()),
+                changes.getRemoved(),
+                changes.getLines(),
+                changes.getTotalCount(),
+                changes.getTotalPrice()
+        );
     }
 
     /**
@@ -341,7 +512,7 @@ public class ClientService extends GeneralService {
      * @param buyProduct товар из запроса
      * @throws ServiceException если данные о товарах не совпадают
      */
-    private void compareProducts(Product product, ProductDto buyProduct) throws ServiceException {
+    static void compareProducts(Product product, ProductDto buyProduct) throws ServiceException {
         if (product == null) {
             throw new ServiceException(ServiceException.ErrorCode.PRODUCT_NOT_FOUND, "id");
         }
@@ -355,4 +526,17 @@ public class ClientService extends GeneralService {
         }
     }
 
+    /**
+     * Сервисная ошибка покупки, которая откатывает транзакцию покупки
+     */
+    private static class PurchaseFailure extends RuntimeException {
+
+        private final ServiceException error;
+
+        private PurchaseFailure(ServiceException error) {
+            super(error);
+            this.error = error;
+        }
+    }
+
 }
@@ -0,0 +1,242 @@
+package net.thumbtack.onlineshop.service;
+
+import net.thumbtack.onlineshop.domain.dao.DepositDao;
+import net.thumbtack.onlineshop.domain.models.Account;
+import net.thumbtack.onlineshop.domain.models.DepositEntry;
+import net.thumbtack.onlineshop.domain.models.DepositSnapshot;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * Сервис для работы с деньгами на счету клиента
+ * <br>
+ * Каждое пополнение счёта и каждая оплата покупки добавляют запись в таблицу deposit_entry.
+ * Остаток на счету считается как последний снимок остатка (deposit_snapshot) плюс сумма
+ * записей, добавленных после него. Снимки кэшируются в памяти и периодически обновляются
+ * компактором. Колонка account.deposit больше не изменяется: из неё берётся только
+ * начальный остаток при создании первого снимка.
+ * <br>
+ * Чтобы два одновременных списания не увели остаток в минус, списания для одного клиента
+ * выполняются под блокировкой. Блокировки разбиты на группы по id клиента.
+ * <br>
+ * Любая запись движения денег добавляется и фиксируется, пока удерживается блокировка
+ * клиента. На этом основано компактирование: см. {@link #compact()}.
+ */
+@Service
+public class DepositService implements Cache {
+
+    // Количество групп блокировок
+    static final int LOCK_STRIPES = 256;
+
+    private DepositDao depositDao;
+
+    private final ReentrantLock[] locks = new ReentrantLock[LOCK_STRIPES];
+    private final Map<Long, DepositSnapshot> snapshots = new ConcurrentHashMap<>();
+
+    @Autowired
+    public DepositService(DepositDao depositDao) {
+        this.depositDao = depositDao;
+
+        for (int i = 0; i < LOCK_STRIPES; ++i) {
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Получает остаток на счету клиента
+     *
+     * @param account аккаунт клиента
+     * @return остаток на счету
+     */
+    public int getBalance(Account account) {
+        DepositSnapshot snapshot = getSnapshot(account);
+        return (int) (snapshot.getBalance() + depositDao.getDelta(account.getId(), snapshot.getEntryId()));
+    }
+
+    /**
+     * Пополняет счёт клиента
+     *
+     * @param account аккаунт клиента
+     * @param amount  сумма пополнения
+     * @return остаток на счету после пополнения
+     */
+    public int deposit(Account account, int amount) {
+        // Снимок должен существовать до первой записи, иначе запись попадёт в начальный остаток
+        getSnapshot(account);
+
+        ReentrantLock lock = getLock(account.getId());
+        lock.lock();
+
+        try {
+            record(account, amount, DepositEntry.Type.DEPOSIT);
+        } finally {
+            lock.unlock();
+        }
+
+        return getBalance(account);
+    }
+
+    /**
+     * Списывает деньги со счёта клиента
+     *
+     * @param account аккаунт клиента
+     * @param amount  сумма списания
+     * @return остаток на счету после списания
+     * @throws ServiceException если денег на счету не хватает
+     */
+    public int withdraw(Account account, int amount) throws ServiceException {
+        ReentrantLock lock = getLock(account.getId());
+        lock.lock();
+
+        try {
+            int balance = getBalance(account);
+
+            if (amount > balance) {
+                throw new ServiceException(ServiceException.ErrorCode.NOT_ENOUGH_MONEY);
+            }
+
+            record(account, -amount, DepositEntry.Type.PURCHASE);
+            return balance - amount;
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Добавляет движение денег без проверки остатка. Вызывающий код должен
+     * удерживать блокировку клиента (см. {@link #locked(Collection, Supplier)}).
+     *
+     * @param account аккаунт клиента
+     * @param amount  сумма (отрицательная - списание)
+     * @param type    тип движения
+     */
+    void record(Account account, int amount, DepositEntry.Type type) {
+        depositDao.insert(new DepositEntry(account, amount, type, new Date()));
+    }
+
+    /**
+     * Выполняет действие под блокировками нескольких клиентов. Пока действие выполняется,
+     * списания с их счетов в других потоках ожидают.
+     *
+     * @param accountIds id клиентов
+     * @param action     действие
+     * @return результат действия
+     */
+    <T> T locked(Collection<Long> accountIds, Supplier<T> action) {
+
+        // Блокировки берутся в одном и том же порядке, чтобы потоки не ждали друг друга по кругу
+        TreeSet<Integer> stripes = new TreeSet<>();
+        accountIds.forEach(id -> stripes.add(getStripe(id)));
+
+        List<ReentrantLock> acquired = new ArrayList<>(stripes.size());
+        try {
+            for (int stripe : stripes) {
+                locks[stripe].lock();
+                acquired.add(locks[stripe]);
+            }
+
+            return action.get();
+
+        } finally {
+            acquired.forEach(ReentrantLock::unlock);
+        }
+    }
+
+    /**
+     * Переносит накопившиеся движения денег в снимки остатков
+     * <br>
+     * Переносятся только движения с id не больше границы {@link #getWatermark()}: все они
+     * уже зафиксированы, поэтому в снимок не попадёт запись из незавершённой транзакции.
+     */
+    @Scheduled(fixedDelayString = "${deposit_compaction_interval_ms:60000}")
+    public void compact() {
+        depositDao.compact(getWatermark());
+
+        // Старые снимки остаются верными, но после сброса остаток будет считаться быстрее
+        snapshots.clear();
+    }
+
+    /**
+     * Получает id последнего зафиксированного движения денег
+     * <br>
+     * Граница читается под блокировками всех групп. Записи добавляются и фиксируются
+     * под блокировкой клиента, поэтому в этот момент незавершённых транзакций с записями
+     * нет, и все записи с id не больше границы уже видны.
+     *
+     * @return id последней записи или 0, если записей нет
+     */
+    long getWatermark() {
+        int acquired = 0;
+        try {
+            for (; acquired < LOCK_STRIPES; ++acquired) {
+                locks[acquired].lock();
+            }
+
+            return depositDao.getLastEntryId();
+
+        } finally {
+            for (int i = 0; i < acquired; ++i) {
+                locks[i].unlock();
+            }
+        }
+    }
+
+    @Override
+    public void clear() {
+        snapshots.clear();
+    }
+
+    /**
+     * Получает снимок остатка клиента. Если снимка ещё нет, то создаёт его
+     * из остатка, который хранится в аккаунте.
+     *
+     * @param account аккаунт клиента
+     * @return снимок остатка
+     */
+    private DepositSnapshot getSnapshot(Account account) {
+        DepositSnapshot snapshot = snapshots.get(account.getId());
+
+        if (snapshot != null) {
+            return snapshot;
+        }
+
+        ReentrantLock lock = getLock(account.getId());
+        lock.lock();
+
+        try {
+            snapshot = depositDao.getSnapshot(account.getId());
+
+            if (snapshot == null) {
+                int deposit = account.getDeposit() == null ? 0 : account.getDeposit();
+                snapshot = new DepositSnapshot(account.getId(), deposit, 0L);
+                depositDao.insertSnapshot(snapshot);
+            }
+
+            snapshots.put(account.getId(), snapshot);
+            return snapshot;
+
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private ReentrantLock getLock(long accountId) {
+        return locks[getStripe(accountId)];
+    }
+
+    private int getStripe(long accountId) {
+        return (int) Math.floorMod(accountId, (long) LOCK_STRIPES);
+    }
+}
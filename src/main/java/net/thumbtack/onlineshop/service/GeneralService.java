@@ -22,7 +22,7 @@ public abstract class GeneralService {
      * @return аккаунт администратора
      * @throws ServiceException если пользователь не администратор
      */
-    Account getAdmin(String sessionId) throws ServiceException {
+    protected Account getAdmin(String sessionId) throws ServiceException {
         Account account = getAccount(sessionId);
 
         if (!account.isAdmin()) {
@@ -39,7 +39,7 @@ public abstract class GeneralService {
      * @return аккаунт клиента
      * @throws ServiceException если пользователь является администратором
      */
-    Account getClient(String sessionId) throws ServiceException {
+    protected Account getClient(String sessionId) throws ServiceException {
         Account account = getAccount(sessionId);
 
         if (account.isAdmin()) {
@@ -0,0 +1,390 @@
+package net.thumbtack.onlineshop.service;
+
+import net.thumbtack.onlineshop.domain.dao.ProductDao;
+import net.thumbtack.onlineshop.domain.models.Account;
+import net.thumbtack.onlineshop.domain.models.Product;
+import net.thumbtack.onlineshop.dto.ProductDto;
+import net.thumbtack.onlineshop.service.metrics.MetricsSource;
+import net.thumbtack.onlineshop.service.metrics.RateCounter;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Очереди покупок популярных товаров
+ * <br>
+ * Если товар покупают чаще hot_product_threshold раз в секунду, то он считается популярным.
+ * Остаток популярного товара хранится в памяти: покупка сначала резервирует товар в памяти,
+ * и если товара не хватает, то клиент сразу получает ошибку без обращения к БД. Зарезервированные
+ * покупки попадают в очередь товара, которую разбирает один поток. Он выполняет покупки пакетами
+ * (см. {@link CheckoutWriter}), поэтому покупки популярного товара не ждут друг друга на блокировке
+ * строки товара в БД. Остальные покупки (корзина, обычная покупка после того, как товар перестал
+ * быть популярным, а его очередь ещё разбирается) тоже блокируют строку товара, поэтому
+ * их изменения остатка не перезаписывают друг друга.
+ * <br>
+ * Остаток в памяти - только предварительная проверка: покупка всё равно проверяется в БД.
+ * Если в БД товара оказалось меньше (например, его купили через корзину), то остаток в памяти
+ * сбрасывается. Он также сбрасывается при изменении или удалении товара. Когда частота покупок
+ * падает ниже половины порога, товар перестаёт быть популярным и его очередь останавливается.
+ */
+@Service
+public class HotProductAdmission implements MetricsSource, Cache {
+
+    @Value("${hot_product_threshold:200}")
+    private int threshold;
+
+    @Value("${hot_product_window_seconds:5}")
+    private int windowSeconds;
+
+    @Value("${hot_product_max:16}")
+    private int maxHotProducts;
+
+    @Value("${hot_product_batch_size:128}")
+    private int batchSize;
+
+    @Value("${hot_product_batch_wait_ms:2}")
+    private long batchWaitMs;
+
+    @Value("${hot_product_queue_size:10000}")
+    private int queueSize;
+
+    @Value("${hot_product_queue_timeout_ms:1000}")
+    private long queueTimeoutMs;
+
+    @Value("${checkout_await_timeout_ms:10000}")
+    private long awaitTimeoutMs;
+
+    private CheckoutWriter writer;
+    private ProductDao productDao;
+
+    // Частота покупок каждого товара
+    private final Map<Long, RateCounter> rates = new ConcurrentHashMap<>();
+    // Популярные товары
+    private final Map<Long, HotProduct> hotProducts = new ConcurrentHashMap<>();
+
+    // Метрики
+    private final CheckoutStats stats = new CheckoutStats();
+    private final AtomicLong promotions = new AtomicLong();
+    private final AtomicLong demotions = new AtomicLong();
+    private final AtomicLong soldOut = new AtomicLong();
+
+    @Autowired
+    public HotProductAdmission(CheckoutWriter writer, ProductDao productDao) {
+        this.writer = writer;
+        this.productDao = productDao;
+    }
+
+    /**
+     * Покупает популярный товар через его очередь
+     *
+     * @param account    аккаунт клиента
+     * @param buyProduct информация о товаре
+     * @param claim      ключ идемпотентности запроса (null - без ключа)
+     * @return информация о купленном товаре. null - если товар не популярный и
+     * его нужно покупать как обычно
+     * @throws ServiceException ошибка покупки, очередь переполнена или покупка
+     *                          не выполнена за checkout_await_timeout_ms
+     */
+    public ProductDto buyProduct(
+            Account account, ProductDto buyProduct, IdempotencyClaim claim
+    ) throws ServiceException {
+
+        HotProduct hot = admit(buyProduct.getId());
+        if (hot == null) {
+            return null;
+        }
+
+        // Название и цена проверяются по копии товара в памяти
+        ClientService.compareProducts(hot.product, buyProduct);
+
+        int count = buyProduct.getCount();
+        if (!hot.reserve(count)) {
+            soldOut.incrementAndGet();
+            throw new ServiceException(ServiceException.ErrorCode.NOT_ENOUGH_PRODUCT, "count");
+        }
+
+        CheckoutRequest request = new CheckoutRequest(account, buyProduct, claim);
+
+        try {
+            if (!hot.queue.offer(request, queueTimeoutMs, TimeUnit.MILLISECONDS)) {
+                hot.release(count);
+                throw new ServiceException(ServiceException.ErrorCode.CHECKOUT_OVERLOADED);
+            }
+
+        } catch (InterruptedException e) {
+            hot.release(count);
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+
+        // Очередь могла остановиться, пока в неё добавлялся запрос
+        if (!hot.active && hot.queue.remove(request)) {
+            hot.release(count);
+            return null;
+        }
+
+        try {
+            return request.await(awaitTimeoutMs);
+
+        } catch (TimeoutException e) {
+            stats.timeout();
+
+            if (request.cancel()) {
+                // Поток очереди ещё не взял запрос, и он уже не выполнится
+                hot.queue.remove(request);
+                hot.release(count);
+            } else {
+                // Покупка уже выполняется: резерв вернётся, если она не удастся
+                request.getResult().whenComplete((result, error) -> {
+                    if (error != null) {
+                        hot.release(count);
+                    }
+                });
+            }
+            throw new ServiceException(ServiceException.ErrorCode.CHECKOUT_OVERLOADED);
+
+        } catch (ServiceException e) {
+            hot.release(count);
+
+            // Остаток в памяти больше, чем в БД
+            if (e.getErrorCode() == ServiceException.ErrorCode.NOT_ENOUGH_PRODUCT) {
+                demote(hot);
+            }
+            throw e;
+
+        } catch (RuntimeException e) {
+            hot.release(count);
+            throw e;
+        }
+    }
+
+    /**
+     * Сбрасывает остаток товара в памяти. Вызывается после изменения или удаления товара.
+     *
+     * @param productId id товара
+     */
+    public void invalidate(long productId) {
+        HotProduct hot = hotProducts.get(productId);
+
+        if (hot != null) {
+            demote(hot);
+        }
+    }
+
+    /**
+     * Останавливает очереди товаров, которые перестали быть популярными,
+     * и забывает частоту покупок товаров, которые давно не покупали
+     */
+    @Scheduled(fixedDelayString = "${hot_product_check_interval_ms:1000}")
+    public void cooldown() {
+
+        for (HotProduct hot : hotProducts.values()) {
+            RateCounter rate = rates.get(hot.product.getId());
+
+            if (rate == null || rate.getRate() < threshold / 2.0) {
+                demote(hot);
+            }
+        }
+
+        rates.entrySet().removeIf(entry ->
+                entry.getValue().getRate() == 0 && !hotProducts.containsKey(entry.getKey())
+        );
+    }
+
+    /**
+     * Останавливает все очереди. Запросы, которые уже попали в очереди, будут выполнены.
+     */
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        List<HotProduct> stopped = new ArrayList<>(hotProducts.values());
+        stopped.forEach(this::demote);
+
+        for (HotProduct hot : stopped) {
+            hot.consumer.join(TimeUnit.SECONDS.toMillis(10));
+        }
+    }
+
+    @Override
+    public void clear() {
+        new ArrayList<>(hotProducts.values()).forEach(this::demote);
+        rates.clear();
+    }
+
+    @Override
+    public String getMetricsName() {
+        return "hot_products";
+    }
+
+    @Override
+    public Map<String, Number> getMetrics() {
+        Map<String, Number> metrics = new HashMap<>();
+
+        int queued = 0;
+        for (HotProduct hot : hotProducts.values()) {
+            queued += hot.queue.size();
+        }
+
+        metrics.put("enabled", threshold > 0 ? 1 : 0);
+        metrics.put("hot", hotProducts.size());
+        metrics.put("queue_size", queued);
+        metrics.put("promotions", promotions.get());
+        metrics.put("demotions", demotions.get());
+        metrics.put("sold_out", soldOut.get());
+        stats.putMetrics(metrics);
+
+        return metrics;
+    }
+
+    /**
+     * Отмечает покупку товара и проверяет, популярный ли он
+     *
+     * @param productId id товара
+     * @return популярный товар или null
+     */
+    private HotProduct admit(Long productId) {
+
+        if (threshold <= 0 || productId == null) {
+            return null;
+        }
+
+        RateCounter rate = rates.computeIfAbsent(productId, id -> new RateCounter(windowSeconds));
+        rate.increment();
+
+        HotProduct hot = hotProducts.get(productId);
+        if (hot != null) {
+            return hot;
+        }
+
+        if (rate.getRate() < threshold || hotProducts.size() >= maxHotProducts) {
+            return null;
+        }
+
+        return promote(productId);
+    }
+
+    /**
+     * Загружает остаток товара в память и запускает очередь товара
+     *
+     * @param productId id товара
+     * @return популярный товар или null, если товар не найден
+     */
+    private synchronized HotProduct promote(long productId) {
+
+        HotProduct hot = hotProducts.get(productId);
+        if (hot != null) {
+            return hot;
+        }
+
+        Product product = productDao.get(productId);
+        if (product == null) {
+            return null;
+        }
+
+        hot = new HotProduct(product);
+        hotProducts.put(productId, hot);
+        hot.consumer.start();
+
+        promotions.incrementAndGet();
+        return hot;
+    }
+
+    /**
+     * Останавливает очередь товара
+     *
+     * @param hot популярный товар
+     */
+    private void demote(HotProduct hot) {
+        if (hotProducts.remove(hot.product.getId(), hot)) {
+            hot.active = false;
+            demotions.incrementAndGet();
+        }
+    }
+
+    /**
+     * Популярный товар: остаток в памяти и очередь покупок
+     */
+    private class HotProduct {
+
+        // Копия товара на момент загрузки
+        private final Product product;
+        // Остаток товара, который ещё не зарезервирован
+        private final AtomicInteger available;
+        private final BlockingQueue<CheckoutRequest> queue = new ArrayBlockingQueue<>(queueSize);
+        private final Thread consumer;
+        private volatile boolean active = true;
+
+        HotProduct(Product source) {
+            product = new Product(source.getName(), source.getCount(), source.getPrice());
+            product.setId(source.getId());
+            available = new AtomicInteger(source.getCount());
+
+            consumer = new Thread(this::consume, "hot-product-" + source.getId());
+            consumer.setDaemon(true);
+        }
+
+        /**
+         * Резервирует товар
+         *
+         * @param count количество товара
+         * @return false - если товара не хватает
+         */
+        boolean reserve(int count) {
+            while (true) {
+                int current = available.get();
+
+                if (count > current) {
+                    return false;
+                }
+
+                if (available.compareAndSet(current, current - count)) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * Возвращает резерв, если покупка не удалась
+         *
+         * @param count количество товара
+         */
+        void release(int count) {
+            available.addAndGet(count);
+        }
+
+        /**
+         * Цикл потока очереди: собирает пакет покупок и выполняет его
+         */
+        private void consume() {
+            List<CheckoutRequest> batch = new ArrayList<>(batchSize);
+
+            while (active || !queue.isEmpty()) {
+                try {
+                    if (CheckoutWriter.poll(queue, batch, batchSize, batchWaitMs)) {
+                        writer.process(batch, stats);
+                    }
+
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+
+                } finally {
+                    batch.clear();
+                }
+            }
+        }
+    }
+}
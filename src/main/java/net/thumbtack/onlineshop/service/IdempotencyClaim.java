@@ -0,0 +1,33 @@
+package net.thumbtack.onlineshop.service;
+
+import net.thumbtack.onlineshop.domain.models.IdempotencyRecord;
+
+/**
+ * Запись о ключе идемпотентности выполняющегося запроса
+ * <br>
+ * Покупка занимает ключ в своей транзакции (см. {@link IdempotencyService#claim(IdempotencyClaim)}).
+ * Транзакция может выполняться и в другом потоке (пакетная покупка, очередь популярного товара),
+ * поэтому запись передаётся вместе с запросом на покупку.
+ */
+class IdempotencyClaim {
+
+    private final IdempotencyRecord record;
+    // Транзакция, в которой ключ был занят, зафиксирована
+    private volatile boolean committed;
+
+    IdempotencyClaim(IdempotencyRecord record) {
+        this.record = record;
+    }
+
+    IdempotencyRecord getRecord() {
+        return record;
+    }
+
+    boolean isCommitted() {
+        return committed;
+    }
+
+    void setCommitted(boolean committed) {
+        this.committed = committed;
+    }
+}
@@ -0,0 +1,456 @@
+package net.thumbtack.onlineshop.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import net.thumbtack.onlineshop.domain.dao.IdempotencyDao;
+import net.thumbtack.onlineshop.domain.models.Account;
+import net.thumbtack.onlineshop.domain.models.IdempotencyRecord;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Сервис выполнения запросов с ключом идемпотентности (заголовок Idempotency-Key)
+ * <br>
+ * Первый результат запроса с данным ключом запоминается в ограниченном по размеру кэше
+ * (и, если включено, в таблице idempotency), а повторные запросы с тем же ключом получают
+ * этот результат без повторного выполнения. Если запрос с таким ключом ещё выполняется,
+ * то повторный запрос дожидается его результата.
+ * <br>
+ * Вместе с ключом запоминается отпечаток тела запроса: повторный запрос с тем же ключом,
+ * но с другим телом, завершается ошибкой, а не получает чужой результат.
+ * <br>
+ * Если включено хранение в БД, то покупка занимает ключ в своей транзакции (см. {@link #claim()}),
+ * в том числе пакетная покупка и покупка популярного товара (см. {@link CheckoutWriter}),
+ * поэтому запись о ключе фиксируется вместе с покупкой, и другой экземпляр сервера
+ * не сможет выполнить ту же покупку повторно.
+ * <br>
+ * Ключи действуют в пределах одного аккаунта.
+ */
+@Service
+public class IdempotencyService implements Cache {
+
+    /**
+     * Действие, которое выполняется не более одного раза для каждого ключа
+     */
+    @FunctionalInterface
+    public interface Action<T> {
+        T run() throws ServiceException;
+    }
+
+    // Максимальная длина ключа (совпадает с размером колонки в БД)
+    static final int MAX_KEY_LENGTH = 128;
+
+    @Value("${idempotency_cache_size:10000}")
+    private int cacheSize;
+
+    @Value("${idempotency_ttl_seconds:86400}")
+    private long ttlSeconds;
+
+    @Value("${idempotency_persistent:false}")
+    private boolean persistent;
+
+    private IdempotencyDao idempotencyDao;
+    private ObjectMapper mapper;
+
+    // Запись о ключе запроса, который выполняется в текущем потоке
+    private final ThreadLocal<IdempotencyClaim> pending = new ThreadLocal<>();
+
+    // Кэш результатов в порядке последнего обращения
+    private final LinkedHashMap<String, Entry> cache = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            // Незавершённые запросы не вытесняем, иначе их дубликаты выполнятся повторно
+            return size() > cacheSize && eldest.getValue().result.isDone();
+        }
+    };
+
+    @Autowired
+    public IdempotencyService(IdempotencyDao idempotencyDao, ObjectMapper mapper) {
+        this.idempotencyDao = idempotencyDao;
+        this.mapper = mapper;
+    }
+
+    /**
+     * Выполняет действие, если оно ещё не выполнялось с данным ключом.
+     * <br>
+     * Сервисные ошибки тоже запоминаются: повторный запрос получит ту же ошибку.
+     * Остальные исключения не запоминаются, и запрос с тем же ключом можно повторить.
+     *
+     * @param account        аккаунт, который выполняет запрос
+     * @param idempotencyKey ключ идемпотентности (null - выполнить действие без проверок)
+     * @param request        тело запроса, по которому вычисляется его отпечаток
+     * @param type           тип результата действия
+     * @param action         действие
+     * @return результат действия (сохранённый или только что полученный)
+     * @throws ServiceException ошибка выполнения действия или неверный ключ
+     */
+    public <T> T execute(
+            Account account, String idempotencyKey, Object request, Class<T> type, Action<T> action
+    ) throws ServiceException {
+
+        if (idempotencyKey == null) {
+            return action.run();
+        }
+
+        if (idempotencyKey.isEmpty() || idempotencyKey.length() > MAX_KEY_LENGTH) {
+            throw new ServiceException(ServiceException.ErrorCode.WRONG_IDEMPOTENCY_KEY, "Idempotency-Key");
+        }
+
+        String cacheKey = account.getId() + ":" + idempotencyKey;
+        String fingerprint = fingerprint(request);
+        Entry entry;
+        boolean owner = false;
+
+        synchronized (cache) {
+            entry = cache.get(cacheKey);
+
+            if (entry != null && isExpired(entry.created)) {
+                cache.remove(cacheKey);
+                entry = null;
+            }
+
+            if (entry == null) {
+                entry = new Entry(fingerprint);
+                cache.put(cacheKey, entry);
+                owner = true;
+            }
+        }
+
+        // Запрос с таким ключом уже выполнен или выполняется прямо сейчас
+        if (!owner) {
+            checkFingerprint(entry.fingerprint, fingerprint);
+            return cast(await(entry.result), type);
+        }
+
+        try {
+            // Результат мог сохраниться в БД до перезапуска сервера или другим экземпляром
+            Object result = persistent
+                    ? restore(idempotencyDao.get(account, idempotencyKey), type, fingerprint)
+                    : null;
+
+            if (result == null) {
+                result = run(account, idempotencyKey, fingerprint, type, action);
+            }
+
+            entry.result.complete(result);
+            return cast(result, type);
+
+        } catch (ServiceException e) {
+            // Запрос ещё выполняется другим экземпляром сервера, поэтому его можно повторить позже
+            if (e.getErrorCode() == ServiceException.ErrorCode.IDEMPOTENCY_IN_PROGRESS) {
+                synchronized (cache) {
+                    cache.remove(cacheKey);
+                }
+            }
+            entry.result.completeExceptionally(e);
+            throw e;
+
+        } catch (RuntimeException e) {
+            synchronized (cache) {
+                cache.remove(cacheKey);
+            }
+            entry.result.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Занимает ключ выполняющегося в этом потоке запроса в текущей транзакции
+     * (см. {@link #claim(IdempotencyClaim)}).
+     * <br>
+     * Ничего не делает, если хранение в БД выключено, запрос выполняется без ключа
+     * или вызов сделан вне транзакции.
+     *
+     * @throws ServiceException если ключ уже занят другим запросом
+     */
+    public void claim() throws ServiceException {
+        IdempotencyClaim current = pending.get();
+
+        if (current == null || !TransactionSynchronizationManager.isSynchronizationActive()) {
+            return;
+        }
+
+        try {
+            claim(current);
+        } catch (DataIntegrityViolationException e) {
+            throw new ServiceException(ServiceException.ErrorCode.IDEMPOTENCY_IN_PROGRESS, "Idempotency-Key");
+        }
+    }
+
+    /**
+     * Ключ выполняющегося в этом потоке запроса. Передаётся вместе с покупкой,
+     * если её транзакция выполняется в другом потоке.
+     *
+     * @return ключ запроса или null, если хранение в БД выключено или запрос выполняется без ключа
+     */
+    IdempotencyClaim getClaim() {
+        return pending.get();
+    }
+
+    /**
+     * Занимает ключ запроса в текущей транзакции.
+     * <br>
+     * Запись о ключе фиксируется вместе с транзакцией, а результат запроса дописывается
+     * в неё после фиксации. Если другой экземпляр сервера уже занял этот ключ, то вставка
+     * дождётся его транзакции и завершится ошибкой, а эта транзакция должна откатиться.
+     *
+     * @param claim ключ запроса
+     * @throws DataIntegrityViolationException если ключ уже занят другим запросом
+     */
+    void claim(IdempotencyClaim claim) {
+        // Запись могла остаться от откатившейся транзакции (например, неудачного пакета)
+        claim.getRecord().setId(null);
+        idempotencyDao.insert(claim.getRecord());
+
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCompletion(int status) {
+                claim.setCommitted(status == STATUS_COMMITTED);
+            }
+        });
+    }
+
+    /**
+     * Удаляет устаревшие результаты из кэша и из БД
+     */
+    @Scheduled(fixedDelayString = "${idempotency_cleanup_interval_ms:600000}")
+    public void removeExpired() {
+
+        synchronized (cache) {
+            Iterator<Entry> iterator = cache.values().iterator();
+            while (iterator.hasNext()) {
+                Entry entry = iterator.next();
+                if (entry.result.isDone() && isExpired(entry.created)) {
+                    iterator.remove();
+                }
+            }
+        }
+
+        if (persistent) {
+            idempotencyDao.deleteOlderThan(new Date(System.currentTimeMillis() - ttlSeconds * 1000));
+        }
+    }
+
+    @Override
+    public void clear() {
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+
+    /**
+     * Выполняет действие и сохраняет его результат в БД
+     *
+     * @param account        аккаунт
+     * @param idempotencyKey ключ идемпотентности
+     * @param fingerprint    отпечаток тела запроса
+     * @param type           тип результата
+     * @param action         действие
+     * @return результат действия
+     * @throws ServiceException ошибка выполнения действия
+     */
+    private Object run(
+            Account account, String idempotencyKey, String fingerprint, Class<?> type, Action<?> action
+    ) throws ServiceException {
+
+        if (!persistent) {
+            return action.run();
+        }
+
+        IdempotencyRecord record = new IdempotencyRecord(account, idempotencyKey, type.getName(), new Date());
+        record.setFingerprint(fingerprint);
+
+        IdempotencyClaim current = new IdempotencyClaim(record);
+        pending.set(current);
+
+        try {
+            Object result = action.run();
+            save(current, result, null);
+            return result;
+
+        } catch (ServiceException e) {
+            // Ключ занят другим экземпляром сервера - результат сохранит он
+            if (e.getErrorCode() != ServiceException.ErrorCode.IDEMPOTENCY_IN_PROGRESS) {
+                save(current, null, e);
+            }
+            throw e;
+
+        } finally {
+            pending.remove();
+        }
+    }
+
+    /**
+     * Сохраняет результат действия в БД
+     *
+     * @param current запись о ключе выполненного запроса
+     * @param result  результат действия
+     * @param error   ошибка, с которой завершилось действие
+     */
+    private void save(IdempotencyClaim current, Object result, ServiceException error) {
+
+        IdempotencyRecord record = current.getRecord();
+
+        try {
+            if (error != null) {
+                record.setErrorCode(error.getErrorCode().name());
+                record.setErrorField(error.getField());
+            } else {
+                record.setResponse(mapper.writeValueAsString(result));
+            }
+
+            if (current.isCommitted()) {
+                // Запись о ключе зафиксирована вместе с покупкой, дописываем в неё результат
+                idempotencyDao.update(record);
+            } else {
+                // Ключ не занимался или его транзакция откатилась
+                record.setId(null);
+                idempotencyDao.insert(record);
+            }
+
+        } catch (JsonProcessingException | DataIntegrityViolationException e) {
+            // Результат останется только в кэше. Если запись уже есть в БД,
+            // значит её сохранил другой экземпляр сервера
+        }
+    }
+
+    /**
+     * Восстанавливает результат действия из записи в БД
+     *
+     * @param record      запись из БД
+     * @param type        тип результата
+     * @param fingerprint отпечаток тела повторного запроса
+     * @return результат или null, если записи нет или она устарела
+     * @throws ServiceException если действие завершилось сервисной ошибкой, запрос отличается
+     *                          от сохранённого или ещё выполняется
+     */
+    private Object restore(IdempotencyRecord record, Class<?> type, String fingerprint) throws ServiceException {
+
+        if (record == null || isExpired(record.getCreated().getTime())) {
+            return null;
+        }
+
+        // Один и тот же ключ нельзя использовать для разных запросов
+        if (!type.getName().equals(record.getResponseType())) {
+            throw new ServiceException(ServiceException.ErrorCode.WRONG_IDEMPOTENCY_KEY, "Idempotency-Key");
+        }
+
+        checkFingerprint(record.getFingerprint(), fingerprint);
+
+        if (record.getErrorCode() != null) {
+            throw new ServiceException(
+                    ServiceException.ErrorCode.valueOf(record.getErrorCode()),
+                    record.getErrorField()
+            );
+        }
+
+        // Покупка зафиксирована, но её результат ещё не дописан
+        if (record.getResponse() == null) {
+            throw new ServiceException(ServiceException.ErrorCode.IDEMPOTENCY_IN_PROGRESS, "Idempotency-Key");
+        }
+
+        try {
+            return mapper.readValue(record.getResponse(), type);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Ожидает результат выполняющегося запроса
+     *
+     * @param future результат запроса
+     * @return результат
+     * @throws ServiceException если запрос завершился сервисной ошибкой
+     */
+    private Object await(CompletableFuture<Object> future) throws ServiceException {
+        try {
+            return future.get();
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof ServiceException) {
+                throw (ServiceException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Проверяет, что результат был получен тем же методом API.
+     * Один и тот же ключ нельзя использовать для разных запросов.
+     */
+    private <T> T cast(Object result, Class<T> type) throws ServiceException {
+        if (!type.isInstance(result)) {
+            throw new ServiceException(ServiceException.ErrorCode.WRONG_IDEMPOTENCY_KEY, "Idempotency-Key");
+        }
+        return type.cast(result);
+    }
+
+    /**
+     * Проверяет, что повторный запрос совпадает с первым запросом с этим ключом.
+     * Если отпечаток одного из запросов неизвестен (например, запись сохранена
+     * до появления отпечатков), то запросы считаются совпадающими.
+     */
+    private void checkFingerprint(String saved, String fingerprint) throws ServiceException {
+        if (saved != null && fingerprint != null && !saved.equals(fingerprint)) {
+            throw new ServiceException(ServiceException.ErrorCode.IDEMPOTENCY_KEY_REUSED, "Idempotency-Key");
+        }
+    }
+
+    /**
+     * Вычисляет отпечаток тела запроса (SHA-256 от его JSON)
+     *
+     * @param request тело запроса
+     * @return отпечаток или null, если тело запроса не удалось сериализовать
+     */
+    private String fingerprint(Object request) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return Base64.getEncoder().encodeToString(digest.digest(mapper.writeValueAsBytes(request)));
+
+        } catch (JsonProcessingException | NoSuchAlgorithmException e) {
+            return null;
+        }
+    }
+
+    private boolean isExpired(long created) {
+        return System.currentTimeMillis() - created > ttlSeconds * 1000;
+    }
+
+    /**
+     * Запись в кэше результатов
+     */
+    private static class Entry {
+
+        private final long created = System.currentTimeMillis();
+        private final String fingerprint;
+        private final CompletableFuture<Object> result = new CompletableFuture<>();
+
+        private Entry(String fingerprint) {
+            this.fingerprint = fingerprint;
+        }
+    }
+}
@@ -1,28 +1,51 @@
 package net.thumbtack.onlineshop.service;
 
-import kong.unirest.Unirest;
 import net.thumbtack.onlineshop.domain.models.Account;
-import net.thumbtack.onlineshop.domain.models.Product;
 import net.thumbtack.onlineshop.domain.models.Purchase;
+import net.thumbtack.onlineshop.service.mail.MailDelivery;
+import net.thumbtack.onlineshop.service.mail.MailMessage;
+import net.thumbtack.onlineshop.service.mail.PurchaseMailRenderer;
+import net.thumbtack.onlineshop.service.metrics.MetricsSource;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
-import java.util.List;
+import javax.annotation.PreDestroy;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Сервис почтовых рассылок
+ * <br>
+ * Уведомления о покупках одного клиента, которые пришли в течение mail_coalesce_window_ms
+ * после первой из них, накапливаются в памяти и отправляются одним письмом. Письмо
+ * отправляется раньше, если в нём набралось mail_coalesce_max_purchases покупок.
+ * <br>
+ * Сами письма отправляет {@link MailDelivery} без блокировки вызывающего потока.
  */
 @Service
-public class MailService {
+public class MailService implements MetricsSource {
 
-    @Value("${mail_domain:#{null}}")
-    private String mailDomain;
+    // 0 - отправлять каждое уведомление сразу
+    @Value("${mail_coalesce_window_ms:5000}")
+    private long coalesceWindowMs;
 
-    @Value("${mail_api_key:#{null}}")
-    private String mailApiKey;
+    @Value("${mail_coalesce_max_purchases:100}")
+    private int coalesceMaxPurchases;
 
-    public MailService() {
+    private MailDelivery delivery;
 
+    // Накопленные уведомления по id клиента
+    private final Map<Long, Digest> pending = new ConcurrentHashMap<>();
+
+    private final AtomicLong notifications = new AtomicLong();
+    private final AtomicLong messages = new AtomicLong();
+
+    @Autowired
+    public MailService(MailDelivery delivery) {
+        this.delivery = delivery;
     }
 
     /**
@@ -31,20 +54,7 @@ public class MailService {
      * @param purchase запись о покупке товара
      */
     public void sendBuyProductReport(Purchase purchase) {
-        Product product = purchase.getProduct();
-
-        // Отправляем одним письмом
-        sendMessage(
-                purchase.getAccount().getFirstName(),
-                purchase.getAccount().getEmail(),
-                "Уведомление о покупке товара",
-                "<h4>Уведомление о покупке товара</h4>" +
-                        createProductEntry(product.getName(), purchase.getCount(), purchase.getPrice()) +
-                        "<hr>" +
-                        "<b>Общая сумма:</b> " + (purchase.getCount() * purchase.getPrice()) + " руб." +
-                        "<br><br>" +
-                        "<b>Спасибо за покупку!</b>"
-        );
+        notify(purchase.getAccount(), Collections.singletonList(purchase));
     }
 
     /**
@@ -55,38 +65,117 @@ public class MailService {
      * @param purchases список покупок
      */
     public void sendBuyBasketReport(Account client, List<Purchase> purchases) {
-        // Формируем список покупок текстом
-        StringBuilder purchaseList = new StringBuilder();
+        notify(client, purchases);
+    }
 
-        // Посчитаем сумму всей покупки
-        int sum = 0;
+    /**
+     * Отправляет письма, окно накопления которых закончилось
+     */
+    @Scheduled(fixedDelayString = "${mail_coalesce_flush_ms:500}")
+    public void flush() {
+        flush(System.currentTimeMillis());
+    }
 
-        for (Purchase entry : purchases) {
-            purchaseList.append(
-                    createProductEntry(entry.getProduct().getName(), entry.getCount(), entry.getPrice())
-            );
-            purchaseList.append("<hr>");
+    /**
+     * Отправляет письма, окно накопления которых закончилось к моменту now
+     */
+    void flush(long now) {
+        for (Long clientId : pending.keySet()) {
+            Digest[] expired = new Digest[1];
+
+            pending.computeIfPresent(clientId, (id, digest) -> {
+                if (digest.deadline > now) {
+                    return digest;
+                }
+                expired[0] = digest;
+                return null;
+            });
+
+            if (expired[0] != null) {
+                send(expired[0].client, expired[0].purchases);
+            }
+        }
+    }
 
-            sum += entry.getCount() * entry.getPrice();
+    /**
+     * Отправляет все накопленные письма при остановке сервера
+     */
+    @PreDestroy
+    public void stop() {
+        for (Long clientId : pending.keySet()) {
+            Digest digest = pending.remove(clientId);
+            if (digest != null) {
+                send(digest.client, digest.purchases);
+            }
         }
+    }
+
+    @Override
+    public String getMetricsName() {
+        return "mail";
+    }
+
+    @Override
+    public Map<String, Number> getMetrics() {
+        Map<String, Number> metrics = new HashMap<>();
+        metrics.put("notifications", notifications.get());
+        metrics.put("messages", messages.get());
+        metrics.put("pending_clients", pending.size());
+
+        return metrics;
+    }
+
+    /**
+     * Добавляет покупки к письму клиента или отправляет их сразу
+     */
+    private void notify(Account client, List<Purchase> purchases) {
+        notifications.addAndGet(purchases.size());
+
+        // Если отправка почты не настроена, то и копить нечего
+        if (coalesceWindowMs <= 0 || !delivery.isEnabled()) {
+            send(client, purchases);
+            return;
+        }
+
+        long deadline = System.currentTimeMillis() + coalesceWindowMs;
+        Digest[] full = new Digest[1];
+
+        pending.compute(client.getId(), (id, digest) -> {
+            if (digest == null) {
+                digest = new Digest(client, deadline);
+            }
+            digest.purchases.addAll(purchases);
+
+            if (digest.purchases.size() >= coalesceMaxPurchases) {
+                full[0] = digest;
+                return null;
+            }
+            return digest;
+        });
+
+        if (full[0] != null) {
+            send(full[0].client, full[0].purchases);
+        }
+    }
+
+    /**
+     * Отправляет одно письмо о покупках клиента
+     */
+    private void send(Account client, List<Purchase> purchases) {
+        messages.incrementAndGet();
+
+        String title = purchases.size() == 1 ? "Уведомление о покупке товара" : "Уведомление о покупке товаров";
 
-        // Отправляем всё одним письмом
         sendMessage(
                 client.getFirstName(),
                 client.getEmail(),
-                "Уведомление о покупке товаров",
-                "<h4>Уведомление о покупке товаров</h4>" +
-                        purchaseList.toString() +
-                        "<b>Общая сумма:</b> " + sum + " руб." +
-                        "<br><br>" +
-                        "<b>Спасибо за покупку!</b>"
+                title,
+                PurchaseMailRenderer.render(title, purchases)
         );
-
     }
 
     /**
-     * Отправляет сообщение на почту, если параметры почтового домена и ключа API
-     * были установлены.
+     * Ставит сообщение в очередь на отправку
      *
      * @param recipientName имя получателя
      * @param recipientAddress адрес получателя
@@ -99,32 +188,22 @@ public class MailService {
             String title,
             String content) {
 
-        // Если отправка почты не настроена
-        if (mailDomain == null || mailApiKey == null)
-            return;
-
-        Unirest.post("https://api.mailgun.net/v3/" + mailDomain + "/messages")
-                .basicAuth("api", mailApiKey)
-                .queryString("from", "Notifications <notifications@onlineshop.net>")
-                .queryString("to", recipientName +" <" + recipientAddress + ">")
-                .queryString("subject", title)
-                .queryString("html", content)
-                .asJson();
+        delivery.send(new MailMessage(recipientName, recipientAddress, title, content));
     }
 
     /**
-     * Формирует запись о покупке товара в виде строки
-     *
-     * @param name имя товара
-     * @param count количество товара
-     * @param price цена товара
-     * @return запись о покупке в виде HTML строки
+     * Покупки клиента, которые будут отправлены одним письмом
      */
-    private String createProductEntry(String name, int count, int price) {
-        return
-                "<b>Товар:</b>" + name + "<br>" +
-                "<b>Количество:</b> " + count + "<br>" +
-                "<b>Цена за единицу:</b> " + price + "руб. <br>";
-    }
+    private static class Digest {
+
+        private final Account client;
+        // Когда отправить письмо
+        private final long deadline;
+        private final List<Purchase> purchases = new ArrayList<>();
 
+        private Digest(Account client, long deadline) {
+            this.client = client;
+            this.deadline = deadline;
+        }
+    }
 }
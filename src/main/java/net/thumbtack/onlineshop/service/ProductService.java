@@ -20,16 +20,25 @@ public class ProductService extends GeneralService {
 
     private ProductDao productDao;
     private CategoryDao categoryDao;
+    private HotProductAdmission hotProductAdmission;
+    private BasketStore basketStore;
 
     public enum SortOrder {
         PRODUCT, CATEGORY
     }
 
     @Autowired
-    public ProductService(ProductDao productDao, SessionDao sessionDao, CategoryDao categoryDao) {
+    public ProductService(
+            ProductDao productDao,
+            SessionDao sessionDao,
+            CategoryDao categoryDao,
+            HotProductAdmission hotProductAdmission,
+            BasketStore basketStore) {
         super(sessionDao);
         this.productDao = productDao;
         this.categoryDao = categoryDao;
+        this.hotProductAdmission = hotProductAdmission;
+        this.basketStore = basketStore;
     }
 
     /**
@@ -54,15 +63,7 @@ public class ProductService extends GeneralService {
             // Создаём множество, так как категории в запросе могут повторяться
             Set<Long> categories = new HashSet<>(productDto.getCategories());
 
-            List<Category> newCategories = new ArrayList<>();
-
-            for (long categoryId : categories) {
-                Category category = categoryDao.get(categoryId);
-                if (category == null) {
-                    throw new ServiceException(ServiceException.ErrorCode.CATEGORY_NOT_FOUND, "categories");
-                }
-                newCategories.add(category);
-            }
+            List<Category> newCategories = getCategories(categories);
 
             // И если проблем не было, значит можем обновить объект
             productDao.insert(product);
@@ -114,13 +115,7 @@ public class ProductService extends GeneralService {
             Set<ProductCategory> categories = new HashSet<>();
 
             // Сформируем новый список категорий
-            for (long categoryId : productDto.getCategories()) {
-                Category category = categoryDao.get(categoryId);
-
-                if (category == null) {
-                    throw new ServiceException(ServiceException.ErrorCode.CATEGORY_NOT_FOUND, "categories");
-                }
-
+            for (Category category : getCategories(new HashSet<>(productDto.getCategories()))) {
                 categories.add(new ProductCategory(product, category));
             }
 
@@ -148,6 +143,10 @@ public class ProductService extends GeneralService {
         // то обновляем товар
         productDao.update(product);
 
+        // Остаток товара в памяти больше не верен, а в корзинах нужны новые название и цена
+        hotProductAdmission.invalidate(productId);
+        basketStore.updateProduct(product);
+
         return new ProductDto(product, productDao.getCategories(product.getId()));
     }
 
@@ -174,6 +173,8 @@ public class ProductService extends GeneralService {
 
         // Удаляем в конце товар
         productDao.delete(product);
+        hotProductAdmission.invalidate(id);
+        basketStore.updateProduct(product);
     }
 
     /**
@@ -239,6 +240,27 @@ public class ProductService extends GeneralService {
         return response;
     }
 
+    /**
+     * Получает категории по списку id. Существование всех категорий проверяется одним
+     * запросом, а сами категории загружаются вторым, поэтому количество запросов
+     * не зависит от длины списка.
+     *
+     * @param ids список id категорий без повторений
+     * @return категории
+     * @throws ServiceException если хотя бы одной категории нет
+     */
+    private List<Category> getCategories(Set<Long> ids) throws ServiceException {
+        if (ids.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        if (!categoryDao.findMissing(ids).isEmpty()) {
+            throw new ServiceException(ServiceException.ErrorCode.CATEGORY_NOT_FOUND, "categories");
+        }
+
+        return categoryDao.get(ids);
+    }
+
     /**
      * Получаем список всех товаров и ассоциируемых с ними категорий.
      * <br>
@@ -0,0 +1,271 @@
+package net.thumbtack.onlineshop.service;
+
+import net.thumbtack.onlineshop.domain.dao.ProductDao;
+import net.thumbtack.onlineshop.domain.dao.PurchaseDao;
+import net.thumbtack.onlineshop.domain.dao.SessionDao;
+import net.thumbtack.onlineshop.domain.models.ProductCategory;
+import net.thumbtack.onlineshop.domain.models.Purchase;
+import net.thumbtack.onlineshop.domain.models.PurchaseFilter;
+import net.thumbtack.onlineshop.dto.AnalyticsDto;
+import net.thumbtack.onlineshop.service.analytics.PurchaseColumns;
+import net.thumbtack.onlineshop.utils.LongLongHashMap;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+
+import static net.thumbtack.onlineshop.service.ReportParameters.*;
+
+/**
+ * Сервис аналитики по истории покупок
+ * <br>
+ * При запуске сервера вся история покупок один раз загружается из БД в {@link PurchaseColumns},
+ * после чего новые покупки добавляются к ней из событий о покупке. Запросы аналитики
+ * не обращаются к БД (кроме списка категорий товаров) и выполняются параллельно в своём пуле потоков.
+ * <br>
+ * Покупки, о которых приходят события во время загрузки, откладываются и добавляются
+ * после неё, если загрузка их не прочитала. События приходят после фиксации покупки
+ * с задержкой, поэтому событие может прийти и после того, как загрузка прочитала эту покупку:
+ * загрузка запоминает id прочитанных покупок и такие события отбрасывает.
+ */
+@Service
+public class PurchaseAnalytics extends GeneralService implements Cache {
+
+    @Value("${analytics_enabled:false}")
+    private boolean enabled;
+
+    // 0 - по количеству процессоров
+    @Value("${analytics_threads:0}")
+    private int threads;
+
+    @Value("${analytics_fetch_size:10000}")
+    private int fetchSize;
+
+    private PurchaseDao purchaseDao;
+    private ProductDao productDao;
+
+    private ForkJoinPool pool;
+
+    private final Object lock = new Object();
+    // null - история ещё не загружена
+    private volatile PurchaseColumns columns;
+    // Покупки, о которых пришли события во время загрузки (null - загрузки нет)
+    private Map<Long, Purchase> pending;
+
+    @Autowired
+    public PurchaseAnalytics(SessionDao sessionDao, PurchaseDao purchaseDao, ProductDao productDao) {
+        super(sessionDao);
+        this.purchaseDao = purchaseDao;
+        this.productDao = productDao;
+    }
+
+    /**
+     * Создаёт пул потоков и загружает историю покупок в отдельном потоке, если аналитика включена
+     */
+    @PostConstruct
+    public void start() {
+
+        if (!enabled) {
+            return;
+        }
+
+        pool = new ForkJoinPool(threads > 0 ? threads : Runtime.getRuntime().availableProcessors());
+
+        Thread thread = new Thread(this::load, "analytics-loader");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (pool != null) {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Загружает всю историю покупок из БД. Пока история не загружена, запросы аналитики не выполняются.
+     */
+    public void load() {
+        PurchaseColumns loaded = new PurchaseColumns(pool);
+
+        synchronized (lock) {
+            pending = new HashMap<>();
+        }
+
+        // Id прочитанных покупок (значение 1), нужны только на время загрузки
+        LongLongHashMap scrolled = new LongLongHashMap();
+
+        try {
+            purchaseDao.scroll(new PurchaseFilter(null, null, null, null, null), fetchSize, row -> {
+                scrolled.add(row.getId(), 1);
+
+                if (row.getProductId() == null || row.getClientId() == null) {
+                    return;
+                }
+
+                loaded.append(row.getProductId(), row.getClientId(), row.getDate(), row.getCount(), row.getPrice());
+            });
+
+            synchronized (lock) {
+                pending.values().stream()
+                        .filter(purchase -> scrolled.get(purchase.getId()) == 0)
+                        .sorted(Comparator.comparing(Purchase::getId))
+                        .forEach(purchase -> append(loaded, purchase));
+                columns = loaded;
+            }
+
+        } finally {
+            synchronized (lock) {
+                pending = null;
+            }
+        }
+    }
+
+    /**
+     * Добавляет новые покупки. Вызывается после фиксации транзакции с покупками.
+     *
+     * @param purchases записи о покупках
+     */
+    public void append(List<Purchase> purchases) {
+        synchronized (lock) {
+            if (columns != null) {
+                purchases.forEach(purchase -> append(columns, purchase));
+
+            } else if (pending != null) {
+                purchases.forEach(purchase -> pending.put(purchase.getId(), purchase));
+            }
+        }
+    }
+
+    /**
+     * Получает товары, которых выкуплено на наибольшую сумму
+     *
+     * @param session сессия администратора
+     * @param limit   количество товаров
+     * @param from    первый день промежутка (yyyy-MM-dd, null - с начала истории)
+     * @param to      день после последнего дня промежутка (yyyy-MM-dd, null - до конца истории)
+     * @return товары по убыванию суммы
+     * @throws ServiceException если пользователь не администратор, параметр указан неверно
+     *                          или история покупок не загружена
+     */
+    public AnalyticsDto getTopProducts(String session, int limit, String from, String to) throws ServiceException {
+        getAdmin(session);
+
+        PurchaseColumns data = getColumns();
+        checkLimit(limit);
+        Date since = parseOptionalDate(from, "from");
+        Date until = parseOptionalDate(to, "to");
+        checkRange(since, until);
+
+        return new AnalyticsDto(data.topProducts(limit, since, until));
+    }
+
+    /**
+     * Получает клиентов, которые купили товара на наибольшую сумму
+     *
+     * @param session сессия администратора
+     * @param limit   количество клиентов
+     * @param from    первый день промежутка (yyyy-MM-dd, null - с начала истории)
+     * @param to      день после последнего дня промежутка (yyyy-MM-dd, null - до конца истории)
+     * @return клиенты по убыванию суммы
+     * @throws ServiceException если пользователь не администратор, параметр указан неверно
+     *                          или история покупок не загружена
+     */
+    public AnalyticsDto getTopClients(String session, int limit, String from, String to) throws ServiceException {
+        getAdmin(session);
+
+        PurchaseColumns data = getColumns();
+        checkLimit(limit);
+        Date since = parseOptionalDate(from, "from");
+        Date until = parseOptionalDate(to, "to");
+        checkRange(since, until);
+
+        return new AnalyticsDto(data.topClients(limit, since, until));
+    }
+
+    /**
+     * Получает суммы покупок по категориям товаров и неделям
+     *
+     * @param session сессия администратора
+     * @param from    первый день промежутка (yyyy-MM-dd, null - с начала истории)
+     * @param to      день после последнего дня промежутка (yyyy-MM-dd, null - до конца истории)
+     * @return суммы по неделям и категориям
+     * @throws ServiceException если пользователь не администратор, параметр указан неверно
+     *                          или история покупок не загружена
+     */
+    public AnalyticsDto getCategoriesByWeek(String session, String from, String to) throws ServiceException {
+        getAdmin(session);
+
+        PurchaseColumns data = getColumns();
+        Date since = parseOptionalDate(from, "from");
+        Date until = parseOptionalDate(to, "to");
+        checkRange(since, until);
+
+        return new AnalyticsDto(data.categoriesByWeek(getCategories(), since, until));
+    }
+
+    @Override
+    public void clear() {
+        synchronized (lock) {
+            if (columns != null) {
+                columns.clear();
+            }
+        }
+    }
+
+    private PurchaseColumns getColumns() throws ServiceException {
+        PurchaseColumns result = columns;
+
+        if (result == null) {
+            throw new ServiceException(ServiceException.ErrorCode.ANALYTICS_UNAVAILABLE);
+        }
+
+        return result;
+    }
+
+    /**
+     * Id категорий каждого товара: индекс - id товара
+     */
+    private int[][] getCategories() {
+        Map<Integer, List<Integer>> categories = new HashMap<>();
+        int maxProduct = -1;
+
+        for (ProductCategory category : productDao.getAllWithCategory()) {
+            int product = Math.toIntExact(category.getProduct().getId());
+            categories.computeIfAbsent(product, key -> new ArrayList<>())
+                    .add(Math.toIntExact(category.getCategory().getId()));
+            maxProduct = Math.max(maxProduct, product);
+        }
+
+        int[][] result = new int[maxProduct + 1][];
+        categories.forEach((product, ids) ->
+                result[product] = ids.stream().mapToInt(Integer::intValue).toArray()
+        );
+
+        return result;
+    }
+
+    private static void checkLimit(int limit) throws ServiceException {
+        if (limit <= 0) {
+            throw new ServiceException(ServiceException.ErrorCode.WRONG_REPORT_PARAMETER, "limit");
+        }
+    }
+
+    private static void append(PurchaseColumns columns, Purchase purchase) {
+        if (purchase.getProduct() == null || purchase.getAccount() == null) {
+            return;
+        }
+
+        columns.append(
+                purchase.getProduct().getId(),
+                purchase.getAccount().getId(),
+                purchase.getDate(),
+                purchase.getCount(),
+                purchase.getPrice());
+    }
+}
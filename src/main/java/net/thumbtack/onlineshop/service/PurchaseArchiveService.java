@@ -0,0 +1,121 @@
+package net.thumbtack.onlineshop.service;
+
+import net.thumbtack.onlineshop.domain.dao.PurchaseDao;
+import net.thumbtack.onlineshop.service.metrics.MetricsSource;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Перенос старых записей истории покупок в архив
+ * <br>
+ * В оперативной таблице purchase остаются покупки текущего месяца и purchase_archive_months
+ * полных месяцев до него, а более старые покупки периодически переносятся в сжатую таблицу
+ * purchase_archive частями по purchase_archive_chunk_size записей с паузой между частями.
+ * Выборки из истории покупок читают архив, только если промежуток времени выборки его
+ * захватывает (см. {@link PurchaseDao}).
+ */
+@Service
+public class PurchaseArchiveService implements MetricsSource {
+
+    // 0 - не переносить записи в архив
+    @Value("${purchase_archive_months:0}")
+    private int months;
+
+    @Value("${purchase_archive_chunk_size:1000}")
+    private int chunkSize;
+
+    @Value("${purchase_archive_pause_ms:50}")
+    private long pauseMs;
+
+    private PurchaseDao purchaseDao;
+
+    private final AtomicLong archivedRows = new AtomicLong();
+    private volatile long lastArchiveMs;
+
+    @Autowired
+    public PurchaseArchiveService(PurchaseDao purchaseDao) {
+        this.purchaseDao = purchaseDao;
+    }
+
+    /**
+     * Переносит в архив покупки, сделанные раньше начала хранимых месяцев
+     */
+    @Scheduled(fixedDelayString = "${purchase_archive_interval_ms:3600000}")
+    public void archive() {
+        if (months <= 0) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        Date before = getCutoff(new Date());
+
+        int moved;
+        do {
+            moved = purchaseDao.archive(before, chunkSize);
+            archivedRows.addAndGet(moved);
+
+            if (moved >= chunkSize && !pause()) {
+                break;
+            }
+        } while (moved >= chunkSize);
+
+        lastArchiveMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    @Override
+    public String getMetricsName() {
+        return "purchase_archive";
+    }
+
+    @Override
+    public Map<String, Number> getMetrics() {
+        Map<String, Number> metrics = new HashMap<>();
+        metrics.put("archived_rows", archivedRows.get());
+        metrics.put("last_archive_ms", lastArchiveMs);
+
+        return metrics;
+    }
+
+    /**
+     * Начало самого старого месяца, который остаётся в оперативной таблице
+     *
+     * @param now текущее время
+     */
+    Date getCutoff(Date now) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTime(now);
+        calendar.set(Calendar.DAY_OF_MONTH, 1);
+        calendar.set(Calendar.HOUR_OF_DAY, 0);
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        calendar.add(Calendar.MONTH, -months);
+
+        return calendar.getTime();
+    }
+
+    /**
+     * Пауза между частями переноса
+     *
+     * @return false - если поток был прерван
+     */
+    private boolean pause() {
+        if (pauseMs <= 0) {
+            return true;
+        }
+
+        try {
+            Thread.sleep(pauseMs);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
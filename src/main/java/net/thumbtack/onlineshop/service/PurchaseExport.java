@@ -0,0 +1,174 @@
+package net.thumbtack.onlineshop.service;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import net.thumbtack.onlineshop.domain.models.PurchaseRow;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.function.Consumer;
+
+/**
+ * Выгрузка истории покупок в CSV или NDJSON (по одному JSON объекту на строку)
+ * <br>
+ * Строки записываются в поток по мере чтения из БД через буфер постоянного размера.
+ * Пока клиент не прочитает записанное, запись в поток блокируется, а вместе с ней
+ * останавливается и чтение следующих строк из БД.
+ */
+public class PurchaseExport {
+
+    public enum Format {
+        CSV("text/csv", "csv"),
+        NDJSON("application/x-ndjson", "ndjson");
+
+        private String contentType;
+        private String extension;
+
+        Format(String contentType, String extension) {
+            this.contentType = contentType;
+            this.extension = extension;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+
+        public String getExtension() {
+            return extension;
+        }
+    }
+
+    // Размер буфера записи в символах
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final JsonFactory JSON = new JsonFactory()
+            .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+
+    private static final String[] COLUMNS = {
+            "id", "date", "clientId", "clientFullName", "productId", "productName", "count", "price", "amount"
+    };
+
+    private final Format format;
+    private final Consumer<Consumer<PurchaseRow>> source;
+
+    /**
+     * @param format формат выгрузки
+     * @param source источник строк: передаёт каждую строку выборки обработчику
+     */
+    PurchaseExport(Format format, Consumer<Consumer<PurchaseRow>> source) {
+        this.format = format;
+        this.source = source;
+    }
+
+    public Format getFormat() {
+        return format;
+    }
+
+    /**
+     * Записывает всю выборку в поток. Поток не закрывается.
+     *
+     * @param stream поток ответа
+     * @throws IOException если запись в поток не удалась (например, клиент закрыл соединение)
+     */
+    public void writeTo(OutputStream stream) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8), BUFFER_SIZE);
+
+        try {
+            if (format == Format.CSV) {
+                writeCsv(writer);
+            } else {
+                writeNdjson(writer);
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+        writer.flush();
+    }
+
+    private void writeCsv(Writer writer) throws IOException {
+        DateFormat dates = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+
+        writer.write(String.join(",", COLUMNS));
+        writer.write('\n');
+
+        source.accept(row -> {
+            try {
+                writer.write(Long.toString(row.getId()));
+                writer.write(',');
+                writer.write(dates.format(row.getDate()));
+                writer.write(',');
+                writer.write(csv(row.getClientId()));
+                writer.write(',');
+                writer.write(csv(row.getClientFullName()));
+                writer.write(',');
+                writer.write(csv(row.getProductId()));
+                writer.write(',');
+                writer.write(csv(row.getProductName()));
+                writer.write(',');
+                writer.write(Integer.toString(row.getCount()));
+                writer.write(',');
+                writer.write(Integer.toString(row.getPrice()));
+                writer.write(',');
+                writer.write(Long.toString(row.getAmount()));
+                writer.write('\n');
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    private void writeNdjson(Writer writer) throws IOException {
+        DateFormat dates = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+
+        // Объекты разделяются только переводом строки
+        JsonGenerator json = JSON.createGenerator(writer);
+        json.setRootValueSeparator(null);
+
+        source.accept(row -> {
+            try {
+                json.writeStartObject();
+                json.writeNumberField(COLUMNS[0], row.getId());
+                json.writeStringField(COLUMNS[1], dates.format(row.getDate()));
+                if (row.getClientId() != null) {
+                    json.writeNumberField(COLUMNS[2], row.getClientId());
+                    json.writeStringField(COLUMNS[3], row.getClientFullName());
+                }
+                if (row.getProductId() != null) {
+                    json.writeNumberField(COLUMNS[4], row.getProductId());
+                    json.writeStringField(COLUMNS[5], row.getProductName());
+                }
+                json.writeNumberField(COLUMNS[6], row.getCount());
+                json.writeNumberField(COLUMNS[7], row.getPrice());
+                json.writeNumberField(COLUMNS[8], row.getAmount());
+                json.writeEndObject();
+                json.writeRaw('\n');
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+
+        json.flush();
+    }
+
+    /**
+     * Значение поля CSV. Поля с запятыми, кавычками и переводами строк берутся в кавычки.
+     */
+    static String csv(Object value) {
+        if (value == null) {
+            return "";
+        }
+
+        String text = value.toString();
+        for (int i = 0; i < text.length(); ++i) {
+            char c = text.charAt(i);
+            if (c == ',' || c == '"' || c == '\n' || c == '\r') {
+                return '"' + text.replace("\"", "\"\"") + '"';
+            }
+        }
+
+        return text;
+    }
+}
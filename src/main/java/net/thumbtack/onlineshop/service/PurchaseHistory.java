@@ -0,0 +1,523 @@
+package net.thumbtack.onlineshop.service;
+
+import net.thumbtack.onlineshop.domain.dao.AccountDao;
+import net.thumbtack.onlineshop.domain.dao.ProductDao;
+import net.thumbtack.onlineshop.domain.dao.PurchaseDao;
+import net.thumbtack.onlineshop.domain.dao.SessionDao;
+import net.thumbtack.onlineshop.domain.models.*;
+import net.thumbtack.onlineshop.dto.AnalyticsDto;
+import net.thumbtack.onlineshop.dto.PurchasesDto;
+import net.thumbtack.onlineshop.service.analytics.PurchaseColumns;
+import net.thumbtack.onlineshop.service.analytics.PurchaseMonthFile;
+import net.thumbtack.onlineshop.service.analytics.PurchaseMonthWriter;
+import net.thumbtack.onlineshop.service.metrics.MetricsSource;
+import net.thumbtack.onlineshop.utils.LongLongHashMap;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static net.thumbtack.onlineshop.service.ReportParameters.*;
+
+/**
+ * Отчёты по всей истории покупок, в том числе по выгруженной в файлы архива
+ * <br>
+ * Закрытые месяцы истории покупок периодически выгружаются в каталог archive_files_dir,
+ * по файлу {@link PurchaseMonthFile} на месяц. Файлы покрывают непрерывный промежуток месяцев
+ * и отображаются в память. Отчёт делит свой промежуток времени на три части: покупки
+ * до первого файла и после последнего читаются из БД, а покупки внутри промежутка файлов -
+ * только из файлов, поэтому покупка не учитывается дважды, даже если она осталась в БД.
+ * <br>
+ * Если archive_files_delete включён, то выгруженные покупки удаляются из БД частями по
+ * archive_files_chunk_size записей. Остальные отчёты о покупках читают только БД
+ * и удалённых покупок не видят.
+ */
+@Service
+public class PurchaseHistory extends GeneralService implements Cache, MetricsSource {
+
+    private static final String FILE_PREFIX = "purchases-";
+    private static final String FILE_SUFFIX = ".pmf";
+
+    // Пустая строка - не выгружать историю покупок в файлы
+    @Value("${archive_files_dir:}")
+    private String directory;
+
+    @Value("${archive_files_delete:false}")
+    private boolean delete;
+
+    @Value("${archive_files_chunk_size:1000}")
+    private int chunkSize;
+
+    @Value("${archive_files_fetch_size:10000}")
+    private int fetchSize;
+
+    private PurchaseDao purchaseDao;
+    private ProductDao productDao;
+    private AccountDao accountDao;
+
+    // Файлы архива по возрастанию месяца
+    private volatile List<PurchaseMonthFile> files = Collections.emptyList();
+
+    private final AtomicLong exportedRows = new AtomicLong();
+    private final AtomicLong deletedRows = new AtomicLong();
+    private volatile long lastExportMs;
+
+    @Autowired
+    public PurchaseHistory(
+            SessionDao sessionDao,
+            PurchaseDao purchaseDao,
+            ProductDao productDao,
+            AccountDao accountDao) {
+        super(sessionDao);
+        this.purchaseDao = purchaseDao;
+        this.productDao = productDao;
+        this.accountDao = accountDao;
+    }
+
+    /**
+     * Отображает в память уже выгруженные файлы архива. Если в месяцах файлов есть пропуск,
+     * то используются только файлы до него.
+     *
+     * @throws IOException если каталог или файл архива не удалось прочитать
+     */
+    @PostConstruct
+    public synchronized void start() throws IOException {
+        if (directory.isEmpty()) {
+            return;
+        }
+
+        Path path = Paths.get(directory);
+        Files.createDirectories(path);
+
+        TreeMap<Date, Path> found = new TreeMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(path, FILE_PREFIX + "*" + FILE_SUFFIX)) {
+            for (Path file : stream) {
+                Date month = parseMonth(file.getFileName().toString());
+                if (month != null) {
+                    found.put(month, file);
+                }
+            }
+        }
+
+        List<PurchaseMonthFile> loaded = new ArrayList<>();
+        for (Map.Entry<Date, Path> entry : found.entrySet()) {
+            if (!loaded.isEmpty() && !nextMonth(loaded.get(loaded.size() - 1).getMonth()).equals(entry.getKey())) {
+                break;
+            }
+            loaded.add(PurchaseMonthFile.open(entry.getValue()));
+        }
+
+        files = Collections.unmodifiableList(loaded);
+    }
+
+    /**
+     * Выгружает в файлы закрытые месяцы, которых ещё нет в архиве, и удаляет
+     * выгруженные покупки из БД, если это включено
+     *
+     * @throws IOException если файл архива не удалось записать
+     */
+    @Scheduled(fixedDelayString = "${archive_files_interval_ms:86400000}")
+    public synchronized void export() throws IOException {
+        if (directory.isEmpty()) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        Date current = getMonth(new Date());
+
+        Date month;
+        if (files.isEmpty()) {
+            Date first = purchaseDao.getFirstDate();
+            if (first == null) {
+                return;
+            }
+            month = getMonth(first);
+        } else {
+            month = getUntil(files);
+        }
+
+        List<PurchaseMonthFile> exported = new ArrayList<>(files);
+        Path path = Paths.get(directory);
+
+        // Месяцы без покупок тоже выгружаются, чтобы файлы шли без пропусков
+        while (month.before(current)) {
+            Date next = nextMonth(month);
+            PurchaseMonthWriter writer = new PurchaseMonthWriter(month);
+
+            purchaseDao.scroll(new PurchaseFilter(null, null, null, month, next), fetchSize, row ->
+                    writer.append(row.getId(), row.getDate(), row.getProductId(), row.getClientId(),
+                            row.getCount(), row.getPrice())
+            );
+
+            Path file = path.resolve(getFileName(month));
+            writer.write(file);
+            exported.add(PurchaseMonthFile.open(file));
+            exportedRows.addAndGet(writer.size());
+
+            // Новый файл виден отчётам только вместе со всеми предыдущими
+            files = Collections.unmodifiableList(new ArrayList<>(exported));
+            month = next;
+        }
+
+        if (delete && !exported.isEmpty()) {
+            Date until = getUntil(exported);
+
+            int deleted;
+            do {
+                deleted = purchaseDao.deleteBefore(until, chunkSize);
+                deletedRows.addAndGet(deleted);
+            } while (deleted >= chunkSize);
+        }
+
+        lastExportMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    /**
+     * Получает итоги покупок за промежуток времени
+     *
+     * @param session сессия администратора
+     * @param from    первый день промежутка (yyyy-MM-dd, null - с начала истории)
+     * @param to      день после последнего дня промежутка (yyyy-MM-dd, null - до конца истории)
+     * @return итоги без списка покупок
+     * @throws ServiceException если пользователь не администратор или промежуток указан неверно
+     */
+    public PurchasesDto getTotals(String session, String from, String to) throws ServiceException {
+        getAdmin(session);
+
+        Date since = parseOptionalDate(from, "from");
+        Date until = parseOptionalDate(to, "to");
+        checkRange(since, until);
+
+        long[] totals = new long[2];
+
+        split(since, until, new Source() {
+            @Override
+            public void database(Date since, Date until) {
+                PurchaseTotals result = purchaseDao.getTotals(new PurchaseFilter(null, null, null, since, until));
+                totals[0] += result.getCount();
+                totals[1] += result.getAmount();
+            }
+
+            @Override
+            public void file(PurchaseMonthFile file, Date since, Date until) {
+                file.scan(since, until, null, (id, date, productId, accountId, count, price) -> {
+                    totals[0] += count;
+                    totals[1] += (long) count * price;
+                });
+            }
+        });
+
+        PurchasesDto result = new PurchasesDto();
+        result.setTotalCount(totals[0]);
+        result.setTotalAmount(totals[1]);
+        return result;
+    }
+
+    /**
+     * Получает товары, которых выкуплено на наибольшую сумму
+     *
+     * @param session сессия администратора
+     * @param limit   количество товаров
+     * @param from    первый день промежутка (yyyy-MM-dd, null - с начала истории)
+     * @param to      день после последнего дня промежутка (yyyy-MM-dd, null - до конца истории)
+     * @return товары по убыванию суммы
+     * @throws ServiceException если пользователь не администратор или параметр указан неверно
+     */
+    public AnalyticsDto getTopProducts(String session, int limit, String from, String to) throws ServiceException {
+        return getTop(session, limit, from, to, true);
+    }
+
+    /**
+     * Получает клиентов, которые купили товара на наибольшую сумму
+     *
+     * @param session сессия администратора
+     * @param limit   количество клиентов
+     * @param from    первый день промежутка (yyyy-MM-dd, null - с начала истории)
+     * @param to      день после последнего дня промежутка (yyyy-MM-dd, null - до конца истории)
+     * @return клиенты по убыванию суммы
+     * @throws ServiceException если пользователь не администратор или параметр указан неверно
+     */
+    public AnalyticsDto getTopClients(String session, int limit, String from, String to) throws ServiceException {
+        return getTop(session, limit, from, to, false);
+    }
+
+    /**
+     * Получает покупки клиента по порядку
+     *
+     * @param session  сессия администратора
+     * @param clientId id клиента
+     * @param limit    максимальное количество покупок
+     * @param from     первый день промежутка (yyyy-MM-dd, null - с начала истории)
+     * @param to       день после последнего дня промежутка (yyyy-MM-dd, null - до конца истории)
+     * @return первые limit покупок клиента и итоги по ним
+     * @throws ServiceException если пользователь не администратор, клиент не найден
+     *                          или параметр указан неверно
+     */
+    public PurchasesDto getClientPurchases(
+            String session, long clientId, int limit, String from, String to) throws ServiceException {
+        getAdmin(session);
+
+        checkLimit(limit);
+        Date since = parseOptionalDate(from, "from");
+        Date until = parseOptionalDate(to, "to");
+        checkRange(since, until);
+
+        Account client = accountDao.get(clientId);
+        if (client == null || client.isAdmin()) {
+            throw new ServiceException(ServiceException.ErrorCode.USER_NOT_FOUND);
+        }
+
+        List<PurchaseRow> rows = new ArrayList<>();
+        List<Long> clients = Collections.singletonList(clientId);
+
+        split(since, until, new Source() {
+            @Override
+            public void database(Date since, Date until) {
+                if (rows.size() < limit) {
+                    rows.addAll(purchaseDao.getPurchases(PurchaseQuery.page(PurchaseQuery.Sort.CLIENT,
+                            new PurchaseFilter(clients, null, null, since, until), limit - rows.size(), 0)));
+                }
+            }
+
+            @Override
+            public void file(PurchaseMonthFile file, Date since, Date until) {
+                file.scan(since, until, clientId, (id, date, productId, accountId, count, price) -> {
+                    if (rows.size() < limit) {
+                        rows.add(new PurchaseRow(id, new Date(date), clientId, client.getFullName(),
+                                productId == PurchaseMonthFile.NONE ? null : productId, null, count, price));
+                    }
+                });
+            }
+        });
+
+        // Названия товаров из файлов одним запросом
+        Set<Long> products = new HashSet<>();
+        rows.forEach(row -> {
+            if (row.getProductId() != null && row.getProductName() == null) {
+                products.add(row.getProductId());
+            }
+        });
+
+        Map<Long, String> names = new HashMap<>();
+        if (!products.isEmpty()) {
+            productDao.get(products).forEach(product -> names.put(product.getId(), product.getName()));
+        }
+
+        PurchasesDto result = new PurchasesDto();
+        long count = 0;
+        long amount = 0;
+
+        for (PurchaseRow row : rows) {
+            if (row.getProductId() != null && row.getProductName() == null) {
+                row = new PurchaseRow(row.getId(), row.getDate(), row.getClientId(), row.getClientFullName(),
+                        row.getProductId(), names.get(row.getProductId()), row.getCount(), row.getPrice());
+            }
+
+            result.addPurchase(new PurchasesDto.PurchaseDto(row));
+            count += row.getCount();
+            amount += row.getAmount();
+        }
+
+        result.setTotalCount(count);
+        result.setTotalAmount(amount);
+        return result;
+    }
+
+    /**
+     * Удаляет все файлы архива
+     */
+    @Override
+    public synchronized void clear() {
+        files = Collections.emptyList();
+
+        if (directory.isEmpty()) {
+            return;
+        }
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(Paths.get(directory), FILE_PREFIX + "*")) {
+            for (Path file : stream) {
+                Files.delete(file);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public String getMetricsName() {
+        return "purchase_history";
+    }
+
+    @Override
+    public Map<String, Number> getMetrics() {
+        List<PurchaseMonthFile> current = files;
+
+        Map<String, Number> metrics = new HashMap<>();
+        metrics.put("files", current.size());
+        metrics.put("file_rows", current.stream().mapToLong(PurchaseMonthFile::size).sum());
+        metrics.put("exported_rows", exportedRows.get());
+        metrics.put("deleted_rows", deletedRows.get());
+        metrics.put("last_export_ms", lastExportMs);
+
+        return metrics;
+    }
+
+    /**
+     * Начало месяца
+     *
+     * @param date время
+     */
+    static Date getMonth(Date date) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTime(date);
+        calendar.set(Calendar.DAY_OF_MONTH, 1);
+        calendar.set(Calendar.HOUR_OF_DAY, 0);
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+
+        return calendar.getTime();
+    }
+
+    /**
+     * Имя файла архива за месяц
+     */
+    static String getFileName(Date month) {
+        return FILE_PREFIX + new SimpleDateFormat("yyyy-MM").format(month) + FILE_SUFFIX;
+    }
+
+    private AnalyticsDto getTop(
+            String session, int limit, String from, String to, boolean byProduct) throws ServiceException {
+        getAdmin(session);
+
+        checkLimit(limit);
+        Date since = parseOptionalDate(from, "from");
+        Date until = parseOptionalDate(to, "to");
+        checkRange(since, until);
+
+        LongLongHashMap amounts = new LongLongHashMap();
+
+        split(since, until, new Source() {
+            @Override
+            public void database(Date since, Date until) {
+                PurchaseFilter filter = new PurchaseFilter(null, null, null, since, until);
+                Map<Long, Long> result = byProduct
+                        ? purchaseDao.getProductsAmounts(filter)
+                        : purchaseDao.getClientsAmounts(filter);
+                result.forEach(amounts::add);
+            }
+
+            @Override
+            public void file(PurchaseMonthFile file, Date since, Date until) {
+                file.scan(since, until, null, (id, date, productId, accountId, count, price) -> {
+                    long key = byProduct ? productId : accountId;
+                    if (key != PurchaseMonthFile.NONE) {
+                        amounts.add(key, (long) count * price);
+                    }
+                });
+            }
+        });
+
+        return new AnalyticsDto(PurchaseColumns.top(amounts, limit));
+    }
+
+    /**
+     * Источник покупок для одной части промежутка времени отчёта
+     */
+    private interface Source {
+
+        /**
+         * Покупки из БД за промежуток [since, until)
+         */
+        void database(Date since, Date until);
+
+        /**
+         * Покупки из файла архива за промежуток [since, until)
+         */
+        void file(PurchaseMonthFile file, Date since, Date until);
+    }
+
+    /**
+     * Делит промежуток времени отчёта между БД и файлами архива и передаёт части
+     * источнику по порядку времени
+     *
+     * @param since начало промежутка (включительно, null - с начала истории)
+     * @param until конец промежутка (не включительно, null - до конца истории)
+     */
+    private void split(Date since, Date until, Source source) {
+        List<PurchaseMonthFile> current = files;
+
+        if (current.isEmpty()) {
+            source.database(since, until);
+            return;
+        }
+
+        Date filesSince = current.get(0).getMonth();
+        Date filesUntil = getUntil(current);
+
+        if (since == null || since.before(filesSince)) {
+            Date end = until == null || until.after(filesSince) ? filesSince : until;
+            source.database(since, end);
+        }
+
+        for (int i = 0; i < current.size(); ++i) {
+            Date month = current.get(i).getMonth();
+            Date next = i + 1 < current.size() ? current.get(i + 1).getMonth() : filesUntil;
+
+            if ((until == null || month.before(until)) && (since == null || next.after(since))) {
+                source.file(current.get(i), since, until);
+            }
+        }
+
+        if (until == null || until.after(filesUntil)) {
+            Date begin = since == null || since.before(filesUntil) ? filesUntil : since;
+            source.database(begin, until);
+        }
+    }
+
+    private static Date getUntil(List<PurchaseMonthFile> files) {
+        return nextMonth(files.get(files.size() - 1).getMonth());
+    }
+
+    private static Date nextMonth(Date month) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTime(month);
+        calendar.add(Calendar.MONTH, 1);
+
+        return calendar.getTime();
+    }
+
+    /**
+     * Месяц из имени файла архива или null, если это не файл архива
+     */
+    private static Date parseMonth(String name) {
+        String month = name.substring(FILE_PREFIX.length(), name.length() - FILE_SUFFIX.length());
+
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM");
+        format.setLenient(false);
+        try {
+            return format.parse(month);
+        } catch (ParseException e) {
+            return null;
+        }
+    }
+
+    private static void checkLimit(int limit) throws ServiceException {
+        if (limit <= 0) {
+            throw new ServiceException(ServiceException.ErrorCode.WRONG_REPORT_PARAMETER, "limit");
+        }
+    }
+}
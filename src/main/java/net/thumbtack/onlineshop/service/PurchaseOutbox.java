@@ -0,0 +1,267 @@
+package net.thumbtack.onlineshop.service;
+
+import net.thumbtack.onlineshop.domain.dao.OutboxDao;
+import net.thumbtack.onlineshop.domain.dao.PurchaseDao;
+import net.thumbtack.onlineshop.domain.models.Account;
+import net.thumbtack.onlineshop.domain.models.OutboxEntry;
+import net.thumbtack.onlineshop.domain.models.Purchase;
+import net.thumbtack.onlineshop.service.events.BasketPurchaseEvent;
+import net.thumbtack.onlineshop.service.events.OutboxEvent;
+import net.thumbtack.onlineshop.service.events.ProductPurchaseEvent;
+import net.thumbtack.onlineshop.service.metrics.MetricsSource;
+import net.thumbtack.onlineshop.service.metrics.RateCounter;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.event.TransactionalEventListener;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.*;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+
+/**
+ * События о покупках через таблицу outbox
+ * <br>
+ * Запись о событии сохраняется в одной транзакции с покупками, а поток-обработчик забирает
+ * записи пачками по outbox_batch_size, публикует по ним {@link ProductPurchaseEvent}
+ * и {@link BasketPurchaseEvent} и удаляет доставленные записи. Поэтому события не теряются
+ * при остановке сервера и не появляются для отменённых покупок. Обработчик просыпается
+ * после фиксации каждой транзакции с покупками, а если событий не было - раз в
+ * outbox_poll_interval_ms.
+ * <br>
+ * Каждая запись доставляется своей транзакцией: синхронные обработчики события (сводки продаж)
+ * выполняются в ней же, и запись удаляется только вместе с их изменениями. Если обработчик
+ * завершился ошибкой, то транзакция откатывается, а запись будет доставлена ещё раз после
+ * окончания аренды (outbox_lease_ms). Обработчики после фиксации транзакции (аналитика, письма)
+ * выполняются, только если запись удалена, поэтому повторная доставка их не повторяет.
+ */
+@Service
+public class PurchaseOutbox implements MetricsSource {
+
+    @Value("${outbox_batch_size:100}")
+    private int batchSize;
+
+    @Value("${outbox_poll_interval_ms:1000}")
+    private long pollIntervalMs;
+
+    @Value("${outbox_lease_ms:60000}")
+    private long leaseMs;
+
+    private OutboxDao outboxDao;
+    private PurchaseDao purchaseDao;
+    private ApplicationEventPublisher eventPublisher;
+    private TransactionTemplate transaction;
+
+    private final Semaphore signal = new Semaphore(0);
+    private Thread thread;
+    private volatile boolean running;
+
+    private final AtomicLong dispatched = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong lagTotalMs = new AtomicLong();
+    private final LongAccumulator maxLagMs = new LongAccumulator(Math::max, 0);
+    private volatile long lastLagMs;
+    private final RateCounter throughput = new RateCounter(10);
+
+    @Autowired
+    public PurchaseOutbox(
+            OutboxDao outboxDao,
+            PurchaseDao purchaseDao,
+            ApplicationEventPublisher eventPublisher,
+            PlatformTransactionManager transactionManager) {
+        this.outboxDao = outboxDao;
+        this.purchaseDao = purchaseDao;
+        this.eventPublisher = eventPublisher;
+        this.transaction = new TransactionTemplate(transactionManager);
+    }
+
+    /**
+     * Запускает поток-обработчик
+     */
+    @PostConstruct
+    public void start() {
+        running = true;
+
+        thread = new Thread(this::run, "outbox-dispatcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Останавливает поток-обработчик. Недоставленные записи останутся в таблице.
+     */
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        running = false;
+        signal.release();
+
+        if (thread != null) {
+            thread.join(TimeUnit.SECONDS.toMillis(10));
+            thread = null;
+        }
+    }
+
+    /**
+     * Сохраняет событие о покупке товара. Вызывается в транзакции, в которой сохранена покупка.
+     *
+     * @param purchase запись о покупке
+     */
+    public void add(Purchase purchase) {
+        add(OutboxEntry.Type.PRODUCT, purchase.getAccount(), Collections.singletonList(purchase));
+    }
+
+    /**
+     * Сохраняет событие о покупке корзины. Вызывается в транзакции, в которой сохранены покупки.
+     *
+     * @param client    клиент, который совершил покупку
+     * @param purchases записи о покупках
+     */
+    public void add(Account client, List<Purchase> purchases) {
+        add(OutboxEntry.Type.BASKET, client, purchases);
+    }
+
+    /**
+     * Будит поток-обработчик после фиксации транзакции с покупками
+     *
+     * @param event событие записи в outbox
+     */
+    @TransactionalEventListener(fallbackExecution = true)
+    public void wakeUp(OutboxEvent event) {
+        signal.release();
+    }
+
+    /**
+     * Забирает одну пачку записей и доставляет события по ним
+     *
+     * @return количество забранных записей
+     */
+    public int dispatch() {
+        Date now = new Date();
+        List<OutboxEntry> entries = outboxDao.claim(
+                UUID.randomUUID().toString(), now, new Date(now.getTime() + leaseMs), batchSize);
+
+        if (entries.isEmpty()) {
+            return 0;
+        }
+
+        batches.incrementAndGet();
+
+        Set<Long> ids = new HashSet<>();
+        entries.forEach(entry -> ids.addAll(entry.getPurchaseIds()));
+
+        Map<Long, Purchase> purchases = new HashMap<>();
+        purchaseDao.get(ids).forEach(purchase -> purchases.put(purchase.getId(), purchase));
+
+        int done = 0;
+
+        for (OutboxEntry entry : entries) {
+            // Покупки удалённых товаров и клиентов удаляются вместе с ними
+            List<Purchase> found = new ArrayList<>();
+            for (Long id : entry.getPurchaseIds()) {
+                Purchase purchase = purchases.get(id);
+                if (purchase != null) {
+                    found.add(purchase);
+                }
+            }
+
+            try {
+                transaction.execute(status -> {
+                    if (!found.isEmpty()) {
+                        publish(entry, found);
+                    }
+                    outboxDao.delete(Collections.singletonList(entry.getId()));
+                    return null;
+                });
+            } catch (RuntimeException e) {
+                // Запись останется забранной и будет доставлена после окончания аренды
+                failed.incrementAndGet();
+                continue;
+            }
+
+            ++done;
+
+            long lagMs = Math.max(0, System.currentTimeMillis() - entry.getCreated().getTime());
+            lagTotalMs.addAndGet(lagMs);
+            maxLagMs.accumulate(lagMs);
+            lastLagMs = lagMs;
+        }
+
+        dispatched.addAndGet(done);
+        throughput.add(done);
+
+        return entries.size();
+    }
+
+    @Override
+    public String getMetricsName() {
+        return "outbox";
+    }
+
+    @Override
+    public Map<String, Number> getMetrics() {
+        long delivered = dispatched.get();
+
+        Map<String, Number> metrics = new HashMap<>();
+        metrics.put("dispatched", delivered);
+        metrics.put("failed", failed.get());
+        metrics.put("errors", errors.get());
+        metrics.put("batches", batches.get());
+        metrics.put("lag_ms_avg", delivered == 0 ? 0 : (double) lagTotalMs.get() / delivered);
+        metrics.put("lag_ms_max", maxLagMs.get());
+        metrics.put("lag_ms_last", lastLagMs);
+        metrics.put("events_per_second", throughput.getRate());
+
+        return metrics;
+    }
+
+    private void add(OutboxEntry.Type type, Account client, List<Purchase> purchases) {
+        List<Long> ids = new ArrayList<>();
+        purchases.forEach(purchase -> ids.add(purchase.getId()));
+
+        outboxDao.insert(new OutboxEntry(type, client.getId(), ids, new Date()));
+        eventPublisher.publishEvent(new OutboxEvent(this));
+    }
+
+    private void publish(OutboxEntry entry, List<Purchase> purchases) {
+        if (entry.getType() == OutboxEntry.Type.PRODUCT) {
+            eventPublisher.publishEvent(new ProductPurchaseEvent(this, purchases.get(0)));
+        } else {
+            eventPublisher.publishEvent(new BasketPurchaseEvent(this, purchases.get(0).getAccount(), purchases));
+        }
+    }
+
+    private void run() {
+        while (running) {
+            int claimed;
+            try {
+                claimed = dispatch();
+            } catch (RuntimeException e) {
+                // Например, БД недоступна: повторим после паузы
+                errors.incrementAndGet();
+                claimed = 0;
+            }
+
+            // Пачка заполнена - сразу забираем следующую
+            if (claimed >= batchSize) {
+                continue;
+            }
+
+            try {
+                signal.tryAcquire(pollIntervalMs, TimeUnit.MILLISECONDS);
+                signal.drainPermits();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+}
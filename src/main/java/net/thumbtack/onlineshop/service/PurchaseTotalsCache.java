@@ -0,0 +1,88 @@
+package net.thumbtack.onlineshop.service;
+
+import net.thumbtack.onlineshop.domain.models.PurchaseTotals;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Кэш итогов истории покупок для каждого условия выборки
+ * <br>
+ * Каждая новая покупка увеличивает поколение кэша (см. {@link #reset()}), после чего
+ * итоги, посчитанные в предыдущих поколениях, считаются заново при следующем обращении.
+ * Итоги запоминаются с поколением, которое было до начала подсчёта, поэтому итоги,
+ * посчитанные одновременно с покупкой, не переживут её.
+ */
+@Service
+public class PurchaseTotalsCache implements Cache {
+
+    @Value("${purchase_totals_cache_size:1000}")
+    private int cacheSize;
+
+    private final AtomicLong generation = new AtomicLong();
+
+    // Итоги в порядке последнего обращения
+    private final LinkedHashMap<String, Entry> cache = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > cacheSize;
+        }
+    };
+
+    /**
+     * Получает итоги для условия выборки
+     *
+     * @param filter условие выборки
+     * @param loader подсчёт итогов в БД, если их нет в кэше или они устарели
+     * @return итоги выборки
+     */
+    public PurchaseTotals get(String filter, Supplier<PurchaseTotals> loader) {
+        long current = generation.get();
+
+        synchronized (cache) {
+            Entry entry = cache.get(filter);
+            if (entry != null && entry.generation == current) {
+                return entry.totals;
+            }
+        }
+
+        PurchaseTotals totals = loader.get();
+
+        synchronized (cache) {
+            cache.put(filter, new Entry(current, totals));
+        }
+
+        return totals;
+    }
+
+    /**
+     * Помечает все итоги как устаревшие. Вызывается после фиксации новых покупок.
+     */
+    public void reset() {
+        generation.incrementAndGet();
+    }
+
+    @Override
+    public void clear() {
+        reset();
+
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+
+    private static class Entry {
+
+        private final long generation;
+        private final PurchaseTotals totals;
+
+        private Entry(long generation, PurchaseTotals totals) {
+            this.generation = generation;
+            this.totals = totals;
+        }
+    }
+}
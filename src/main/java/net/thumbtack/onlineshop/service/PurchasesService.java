@@ -7,42 +7,55 @@ import net.thumbtack.onlineshop.domain.dao.SessionDao;
 import net.thumbtack.onlineshop.domain.models.Account;
 import net.thumbtack.onlineshop.domain.models.Product;
 import net.thumbtack.onlineshop.domain.models.Purchase;
+import net.thumbtack.onlineshop.domain.models.PurchaseFilter;
+import net.thumbtack.onlineshop.domain.models.PurchaseQuery;
+import net.thumbtack.onlineshop.domain.models.PurchaseRow;
+import net.thumbtack.onlineshop.domain.models.PurchaseTotals;
 import net.thumbtack.onlineshop.dto.PurchasesDto;
-import net.thumbtack.onlineshop.service.events.BasketPurchaseEvent;
-import net.thumbtack.onlineshop.service.events.ProductPurchaseEvent;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 import java.util.*;
+import java.util.function.Function;
+
+import static net.thumbtack.onlineshop.service.ReportParameters.*;
 
 @Service
 public class PurchasesService extends GeneralService {
 
     public enum Target { CLIENT, PRODUCT }
 
-    private ApplicationEventPublisher eventPublisher;
+    @Value("${export_fetch_size:1000}")
+    private int exportFetchSize;
 
     private PurchaseDao purchaseDao;
     private ProductDao productDao;
     private AccountDao accountDao;
 
+    private PurchaseTotalsCache totalsCache;
+    private PurchaseOutbox outbox;
+
     @Autowired
     public PurchasesService(
             SessionDao sessionDao,
             PurchaseDao purchaseDao,
             AccountDao accountDao,
             ProductDao productDao,
-            ApplicationEventPublisher eventPublisher) {
+            PurchaseTotalsCache totalsCache,
+            PurchaseOutbox outbox) {
         super(sessionDao);
         this.purchaseDao = purchaseDao;
-        this.eventPublisher = eventPublisher;
         this.accountDao = accountDao;
         this.productDao = productDao;
+        this.totalsCache = totalsCache;
+        this.outbox = outbox;
     }
 
     /**
-     * Сохраняет информацию о покупке одного товара
+     * Сохраняет информацию о покупке одного товара. Вызывается в транзакции покупки
+     * (см. {@link ClientService} и {@link CheckoutWriter}), поэтому запись о покупке
+     * и событие о ней сохраняются или откатываются вместе со списанием денег и товара.
      *
      * @param client клиент, который совершил покупку
      * @param product товар, который был куплен
@@ -54,12 +67,13 @@ public class PurchasesService extends GeneralService {
         // Сохраняем запись о покупке товара
         purchaseDao.insert(purchase);
 
-        // Создаём событие о покупке товара
-        eventPublisher.publishEvent(new ProductPurchaseEvent(this, purchase));
+        // Сохраняем событие о покупке товара в транзакции покупки
+        outbox.add(purchase);
     }
 
     /**
-     * Сохраняет информацию о покупке корзины
+     * Сохраняет информацию о покупке корзины. Вызывается в транзакции покупки корзины
+     * (см. {@link ClientService}).
      *
      * @param client клиент, который совершил покупку
      * @param products список товаров и количество того, сколько их было выкуплено
@@ -80,8 +94,8 @@ public class PurchasesService extends GeneralService {
             purchases.add(purchase);
         });
 
-        // Создаём событие о покупке корзины
-        eventPublisher.publishEvent(new BasketPurchaseEvent(this, client, purchases));
+        // Сохраняем событие о покупке корзины в транзакции покупки
+        outbox.add(client, purchases);
     }
 
     /**
@@ -92,9 +106,14 @@ public class PurchasesService extends GeneralService {
      * @param offset позиция начала выборки
      * @param limit размер выборки
      * @param ids id товаров/клиентов
-     * @return история покупок
-     * @throws ServiceException если пользователь не является администратором или
-     * указанный товар или клиент не найден
+     * @param categories категории товаров (только для истории покупок товаров)
+     * @param after позиция, после которой начинается страница (next из предыдущей страницы).
+     *              Если указана, то offset не используется
+     * @param from первый день выборки (yyyy-MM-dd, null - с начала истории)
+     * @param to день после последнего дня выборки (yyyy-MM-dd, null - до конца истории)
+     * @return история покупок с итогами по всей выборке (а не только по странице)
+     * @throws ServiceException если пользователь не является администратором,
+     * указанный товар или клиент не найден или промежуток указан неверно
      */
     public PurchasesDto getPurchases(
             String session,
@@ -102,112 +121,254 @@ public class PurchasesService extends GeneralService {
             int offset,
             int limit,
             List<Long> ids,
-            List<Long> categories) throws ServiceException {
+            List<Long> categories,
+            String after,
+            String from,
+            String to) throws ServiceException {
 
         getAdmin(session);
 
+        Page page = Page.parse(offset, limit, after);
+        Date since = parseOptionalDate(from, "from");
+        Date until = parseOptionalDate(to, "to");
+        checkRange(since, until);
+
         if (target == Target.CLIENT) {
             // Списки покупок для клиентов
-            return getClientPurchases(offset, limit, ids);
+            return getClientPurchases(page, ids, since, until);
 
         } else {
             // Списки покупок для товаров
-            return getProductPurchases(offset, limit, ids, categories);
+            return getProductPurchases(page, ids, categories, since, until);
         }
 
     }
 
+    /**
+     * Подготавливает выгрузку истории покупок. Выборка читается из БД только во время
+     * записи выгрузки в поток (см. {@link PurchaseExport#writeTo(java.io.OutputStream)}).
+     *
+     * @param session сессия пользователя
+     * @param format формат выгрузки (csv или ndjson)
+     * @param clients id клиентов (null/empty - все)
+     * @param products id товаров (null/empty - все)
+     * @param categories id категорий товаров (null/empty - все)
+     * @param from первый день выгрузки (yyyy-MM-dd, null - с начала истории)
+     * @param to день после последнего дня выгрузки (yyyy-MM-dd, null - до конца истории)
+     * @return выгрузка
+     * @throws ServiceException если пользователь не является администратором или
+     * параметр выгрузки указан неверно
+     */
+    public PurchaseExport export(
+            String session,
+            String format,
+            List<Long> clients,
+            List<Long> products,
+            List<Long> categories,
+            String from,
+            String to) throws ServiceException {
+
+        getAdmin(session);
+
+        PurchaseExport.Format exportFormat = parse(PurchaseExport.Format.class, format, "format");
+        Date since = parseOptionalDate(from, "from");
+        Date until = parseOptionalDate(to, "to");
+        checkRange(since, until);
+
+        PurchaseFilter filter = new PurchaseFilter(clients, products, categories, since, until);
+
+        return new PurchaseExport(exportFormat, consumer -> purchaseDao.scroll(filter, exportFetchSize, consumer));
+    }
+
     /**
      * Получает историю покупок для товара или товаров. Для истории покупок товаров можно получить только
      * те записи в истории, товары которых принадлежат определённому списку категорий.
      *
-     * @param offset позиция начала выборки
-     * @param limit размер выборки
+     * @param page страница выборки
      * @param productsId список id товаров, для которых нужно получить историю покупок
      * @param categories список категорий, к которым должны принадлежать товары (null/empty - все товары)
+     * @param since начало промежутка времени (null - с начала истории)
+     * @param until конец промежутка времени, не включительно (null - до конца истории)
      * @return история покупок
      * @throws ServiceException если товар под данным id не был найден
      */
-    private PurchasesDto getProductPurchases(int offset, int limit, List<Long> productsId, List<Long> categories) throws ServiceException {
+    private PurchasesDto getProductPurchases(
+            Page page, List<Long> productsId, List<Long> categories, Date since, Date until) throws ServiceException {
 
-        PurchasesDto result = new PurchasesDto();
-        List<Purchase> purchases;
+        // Категории учитываются, только если список товаров не указан
+        PurchaseFilter filter = productsId == null || productsId.isEmpty()
+                ? new PurchaseFilter(null, null, categories, since, until)
+                : new PurchaseFilter(null, checkProducts(productsId), null, since, until);
 
-        if (productsId == null || productsId.isEmpty()) {
+        return select(PurchaseQuery.Sort.PRODUCT, filter, page, PurchaseRow::getProductId);
+    }
 
-            // Выборка по категориям
-            if (categories != null && !categories.isEmpty()) {
+    /**
+     * Получает историю покупок для клиентов/клиента
+     *
+     * @param page страница выборки
+     * @param clientsId список id клиентов (клиента), для которых нужно получить историю покупок
+     * @param since начало промежутка времени (null - с начала истории)
+     * @param until конец промежутка времени, не включительно (null - до конца истории)
+     * @return история покупок
+     * @throws ServiceException если клиент под указанным id не найден
+     */
+    private PurchasesDto getClientPurchases(
+            Page page, List<Long> clientsId, Date since, Date until) throws ServiceException {
 
-                // Получаем список товаров, которые относяться к данным категориям
-                Set<Product> products = productDao.getAllWithCategories(categories);
+        PurchaseFilter filter = new PurchaseFilter(
+                clientsId == null || clientsId.isEmpty() ? null : checkClients(clientsId),
+                null, null, since, until);
 
-                // Формируем список их id-ов
-                List<Long> resultProductsId = new ArrayList<>();
-                products.forEach(p -> resultProductsId.add(p.getId()));
+        return select(PurchaseQuery.Sort.CLIENT, filter, page, PurchaseRow::getClientId);
+    }
 
-                // Получаем историю покупок для данных товаров
-                purchases = purchaseDao.getProductsPurchases(resultProductsId, limit, offset);
+    /**
+     * Получает страницу истории покупок и итоги по всей выборке
+     *
+     * @param sort порядок записей
+     * @param filter условие выборки
+     * @param page страница выборки
+     * @param key поле, по которому отсортирована выборка
+     */
+    private PurchasesDto select(
+            PurchaseQuery.Sort sort, PurchaseFilter filter, Page page, Function<PurchaseRow, Long> key) {
 
-            } else {
+        List<PurchaseRow> purchases = purchaseDao.getPurchases(page.isKeyset()
+                ? PurchaseQuery.after(sort, filter, page.afterKey, page.afterId, page.limit)
+                : PurchaseQuery.page(sort, filter, page.limit, page.offset));
 
-                // Если список категорий не указан, то получаем для всех
-                purchases = purchaseDao.getPurchasesSortedByProducts(limit, offset);
-            }
+        // Итоги за промежуток времени считаются по индексу (date, ...) и не кэшируются. Состав
+        // категорий меняется без новых покупок, поэтому итоги по категориям тоже не кэшируются.
+        String cacheKey = totalsKey(filter);
+        PurchaseTotals totals = cacheKey == null
+                ? purchaseDao.getTotals(filter)
+                : totalsCache.get(cacheKey, () -> purchaseDao.getTotals(filter));
 
-        } else {
+        return toDto(purchases, totals, page, key);
+    }
 
-            // Проверяем что каждый товар в списке существует
-            for (Long id : productsId) {
-                if (!productDao.exists(id)) {
-                    throw new ServiceException(ServiceException.ErrorCode.PRODUCT_NOT_FOUND);
-                }
-            }
+    /**
+     * Проверяет одним запросом, что каждый товар в списке существует
+     *
+     * @return список id товаров
+     * @throws ServiceException если хотя бы один товар не найден
+     */
+    private List<Long> checkProducts(List<Long> productsId) throws ServiceException {
+        if (!productDao.findMissing(productsId).isEmpty()) {
+            throw new ServiceException(ServiceException.ErrorCode.PRODUCT_NOT_FOUND);
+        }
+        return productsId;
+    }
+
+    /**
+     * Проверяет одним запросом, что каждый клиент в списке существует
+     *
+     * @return список id клиентов
+     * @throws ServiceException если хотя бы один клиент не найден
+     */
+    private List<Long> checkClients(List<Long> clientsId) throws ServiceException {
+        if (!accountDao.findMissing(clientsId).isEmpty()) {
+            throw new ServiceException(ServiceException.ErrorCode.USER_NOT_FOUND);
+        }
+        return clientsId;
+    }
+
+    /**
+     * Формирует ключ кэша итогов для условия выборки
+     *
+     * @return ключ кэша или null, если итоги этой выборки не кэшируются
+     */
+    private static String totalsKey(PurchaseFilter filter) {
+        if (filter.getSince() != null || filter.getUntil() != null
+                || (filter.getCategories() != null && !filter.getCategories().isEmpty())) {
+            return null;
+        }
+
+        if (filter.getProducts() != null && !filter.getProducts().isEmpty()) {
+            return "product:" + new TreeSet<>(filter.getProducts());
+        }
 
-            // Получаем список покупок для товара/товаров
-            purchases = purchaseDao.getProductsPurchases(productsId, limit, offset);
+        if (filter.getClients() != null && !filter.getClients().isEmpty()) {
+            return "account:" + new TreeSet<>(filter.getClients());
         }
 
+        // Без ограничения итоги по товарам и по клиентам совпадают
+        return "*";
+    }
+
+    /**
+     * Формирует ведомость. Если страница заполнена полностью, то в ведомость
+     * добавляется позиция следующей страницы.
+     *
+     * @param totals итоги по всей выборке
+     * @param key поле, по которому отсортирована выборка
+     */
+    private static PurchasesDto toDto(
+            List<PurchaseRow> purchases, PurchaseTotals totals, Page page, Function<PurchaseRow, Long> key) {
+        PurchasesDto result = new PurchasesDto();
+        result.setTotalCount(totals.getCount());
+        result.setTotalAmount(totals.getAmount());
+
         purchases.forEach(purchase ->
                 result.addPurchase(new PurchasesDto.PurchaseDto(purchase))
         );
+
+        if (!purchases.isEmpty() && purchases.size() >= page.limit) {
+            PurchaseRow last = purchases.get(purchases.size() - 1);
+            Long lastKey = key.apply(last);
+            // Товар или клиент записи мог быть удалён: тогда позиция задаётся только id записи
+            result.setNext((lastKey == null ? "" : lastKey) + Page.SEPARATOR + last.getId());
+        }
+
         return result;
     }
 
     /**
-     * Получает историю покупок для клиентов/клиента
-     *
-     * @param offset позиция, с которой необходимо начать выборку
-     * @param limit количество записей
-     * @param clientsId список id клиентов (клиента), для которых нужно получить историю покупок
-     * @return история покупок
-     * @throws ServiceException если клиент под указанным id не найден
+     * Страница выборки: либо смещение, либо последняя запись предыдущей страницы
      */
-    private PurchasesDto getClientPurchases(int offset, int limit, List<Long> clientsId) throws ServiceException {
+    private static class Page {
 
-        PurchasesDto result = new PurchasesDto();
-        List<Purchase> purchases;
+        private static final String SEPARATOR = "_";
 
-        if (clientsId == null || clientsId.isEmpty()) {
+        private final int offset;
+        private final int limit;
+        private final Long afterKey;
+        private final Long afterId;
 
-            // Получаем историю покупок для всех клиентов
-            purchases = purchaseDao.getPurchasesSortedByClients(limit, offset);
+        private Page(int offset, int limit, Long afterKey, Long afterId) {
+            this.offset = offset;
+            this.limit = limit;
+            this.afterKey = afterKey;
+            this.afterId = afterId;
+        }
 
-        } else {
-            // Проверяем что каждый клиент в списке существует
-            for (Long id : clientsId) {
-                if (!accountDao.exists(id)) {
-                    throw new ServiceException(ServiceException.ErrorCode.USER_NOT_FOUND);
+        /**
+         * @param after позиция в виде "{id товара или клиента}_{id записи}" или "_{id записи}",
+         *              если у последней записи нет товара или клиента
+         * @throws ServiceException если позиция указана неверно
+         */
+        static Page parse(int offset, int limit, String after) throws ServiceException {
+            if (after == null || after.isEmpty()) {
+                return new Page(offset, limit, null, null);
+            }
+
+            String[] parts = after.split(SEPARATOR);
+            try {
+                if (parts.length == 2) {
+                    Long afterKey = parts[0].isEmpty() ? null : Long.parseLong(parts[0]);
+                    return new Page(0, limit, afterKey, Long.parseLong(parts[1]));
                 }
+            } catch (NumberFormatException ignored) {
+                // Ошибка ниже
             }
 
-            // Получаем список покупок для клиента/клиентов
-            purchases = purchaseDao.getClientsPurchases(clientsId, limit, offset);
+            throw new ServiceException(ServiceException.ErrorCode.WRONG_PAGE_POSITION, "after");
         }
 
-        purchases.forEach(purchase ->
-                result.addPurchase(new PurchasesDto.PurchaseDto(purchase))
-        );
-        return result;
+        boolean isKeyset() {
+            return afterId != null;
+        }
     }
 
 }
@@ -0,0 +1,67 @@
+package net.thumbtack.onlineshop.service;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * Разбор параметров отчётов и выгрузок
+ */
+final class ReportParameters {
+
+    private static final String DATE_FORMAT = "yyyy-MM-dd";
+
+    private ReportParameters() {
+
+    }
+
+    /**
+     * Получает значение перечисления по имени без учёта регистра
+     *
+     * @throws ServiceException если значение не указано или такого значения нет
+     */
+    static <T extends Enum<T>> T parse(Class<T> type, String value, String field) throws ServiceException {
+        try {
+            return Enum.valueOf(type, value.toUpperCase());
+        } catch (IllegalArgumentException | NullPointerException e) {
+            throw new ServiceException(ServiceException.ErrorCode.WRONG_REPORT_PARAMETER, field);
+        }
+    }
+
+    /**
+     * Получает начало дня в формате yyyy-MM-dd
+     *
+     * @throws ServiceException если день не указан или указан неверно
+     */
+    static Date parseDate(String value, String field) throws ServiceException {
+        SimpleDateFormat format = new SimpleDateFormat(DATE_FORMAT);
+        format.setLenient(false);
+
+        try {
+            return format.parse(value);
+        } catch (ParseException | NullPointerException e) {
+            throw new ServiceException(ServiceException.ErrorCode.WRONG_REPORT_PARAMETER, field);
+        }
+    }
+
+    /**
+     * Получает начало дня в формате yyyy-MM-dd, если он указан
+     *
+     * @return начало дня или null, если день не указан
+     * @throws ServiceException если день указан неверно
+     */
+    static Date parseOptionalDate(String value, String field) throws ServiceException {
+        return value == null || value.isEmpty() ? null : parseDate(value, field);
+    }
+
+    /**
+     * Проверяет, что промежуток времени не пустой
+     *
+     * @throws ServiceException если конец промежутка не позже его начала
+     */
+    static void checkRange(Date since, Date until) throws ServiceException {
+        if (since != null && until != null && !since.before(until)) {
+            throw new ServiceException(ServiceException.ErrorCode.WRONG_REPORT_PARAMETER, "to");
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package net.thumbtack.onlineshop.service;
+
+import net.thumbtack.onlineshop.domain.dao.ProductDao;
+import net.thumbtack.onlineshop.domain.dao.SalesRollupDao;
+import net.thumbtack.onlineshop.domain.dao.SessionDao;
+import net.thumbtack.onlineshop.domain.models.Purchase;
+import net.thumbtack.onlineshop.domain.models.SalesRollup;
+import net.thumbtack.onlineshop.domain.models.SalesRollup.Dimension;
+import net.thumbtack.onlineshop.domain.models.SalesRollup.Period;
+import net.thumbtack.onlineshop.dto.SalesDto;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.*;
+
+import static net.thumbtack.onlineshop.service.ReportParameters.*;
+
+/**
+ * Сервис сводок продаж
+ * <br>
+ * Каждая покупка добавляется к часовым и дневным сводкам своего товара, его категорий
+ * и клиента. Отчёты о продажах читают только сводки, поэтому не зависят от размера
+ * истории покупок. Если сводки разошлись с историей покупок (например, сервер остановился
+ * до обновления сводок), то их можно пересчитать за нужные дни.
+ */
+@Service
+public class SalesRollupService extends GeneralService {
+
+    private SalesRollupDao rollupDao;
+    private ProductDao productDao;
+    private TransactionTemplate transaction;
+
+    @Autowired
+    public SalesRollupService(
+            SessionDao sessionDao,
+            SalesRollupDao rollupDao,
+            ProductDao productDao,
+            PlatformTransactionManager transactionManager) {
+        super(sessionDao);
+        this.rollupDao = rollupDao;
+        this.productDao = productDao;
+        this.transaction = new TransactionTemplate(transactionManager);
+    }
+
+    /**
+     * Добавляет покупки к сводкам продаж
+     * <br>
+     * Покупки, которые попадают в одну сводку, складываются заранее, а сводки
+     * обновляются одной транзакцией в одном и том же порядке, чтобы одновременные
+     * обновления не блокировали друг друга.
+     *
+     * @param purchases записи о покупках
+     */
+    public void record(List<Purchase> purchases) {
+        Map<Key, long[]> sales = new TreeMap<>();
+        Map<Long, List<Long>> categories = new HashMap<>();
+
+        for (Purchase purchase : purchases) {
+            long productId = purchase.getProduct().getId();
+            long count = purchase.getCount();
+            long amount = count * purchase.getPrice();
+
+            List<Long> productCategories = categories.computeIfAbsent(productId, this::getCategories);
+
+            for (Period period : Period.values()) {
+                Date bucket = period.truncate(purchase.getDate());
+
+                add(sales, new Key(Dimension.PRODUCT, period, productId, bucket), count, amount);
+                add(sales, new Key(Dimension.CLIENT, period, purchase.getAccount().getId(), bucket), count, amount);
+
+                for (Long category : productCategories) {
+                    add(sales, new Key(Dimension.CATEGORY, period, category, bucket), count, amount);
+                }
+            }
+        }
+
+        transaction.execute(status -> {
+            sales.forEach((key, value) ->
+                    rollupDao.add(key.dimension, key.period, key.keyId, key.bucket, value[0], value[1])
+            );
+            return null;
+        });
+    }
+
+    /**
+     * Получает отчёт о продажах за промежуток времени
+     *
+     * @param session   сессия администратора
+     * @param dimension по чему сгруппировать продажи (product, category или client)
+     * @param period    период (hour или day)
+     * @param ids       id товаров, категорий или клиентов (null/empty - все)
+     * @param from      первый день промежутка (yyyy-MM-dd)
+     * @param to        день после последнего дня промежутка (yyyy-MM-dd)
+     * @return продажи по периодам и итоги за весь промежуток
+     * @throws ServiceException если пользователь не администратор или параметр отчёта указан неверно
+     */
+    public SalesDto getSales(
+            String session,
+            String dimension,
+            String period,
+            List<Long> ids,
+            String from,
+            String to) throws ServiceException {
+
+        getAdmin(session);
+
+        Dimension salesDimension = parse(Dimension.class, dimension, "dimension");
+        Period salesPeriod = parse(Period.class, period, "period");
+        Date since = parseDate(from, "from");
+        Date until = parseDate(to, "to");
+        checkRange(since, until);
+
+        SalesDto result = new SalesDto();
+
+        rollupDao.get(salesDimension, salesPeriod, ids, since, until).forEach(rollup ->
+                result.addSale(new SalesDto.SaleDto(rollup))
+        );
+
+        return result;
+    }
+
+    /**
+     * Пересчитывает сводки продаж за промежуток времени по истории покупок
+     *
+     * @param session сессия администратора
+     * @param from    первый день промежутка (yyyy-MM-dd)
+     * @param to      день после последнего дня промежутка (yyyy-MM-dd)
+     * @return количество записанных сводок
+     * @throws ServiceException если пользователь не администратор или промежуток указан неверно
+     */
+    public int rebuild(String session, String from, String to) throws ServiceException {
+        getAdmin(session);
+
+        Date since = parseDate(from, "from");
+        Date until = parseDate(to, "to");
+        checkRange(since, until);
+
+        Integer rows = transaction.execute(status -> rollupDao.rebuild(since, until));
+        return rows == null ? 0 : rows;
+    }
+
+    private List<Long> getCategories(long productId) {
+        List<Long> result = new ArrayList<>();
+        productDao.getCategories(productId).forEach(category ->
+                result.add(category.getCategory().getId())
+        );
+        return result;
+    }
+
+    private static void add(Map<Key, long[]> sales, Key key, long count, long amount) {
+        long[] value = sales.computeIfAbsent(key, k -> new long[2]);
+        value[0] += count;
+        value[1] += amount;
+    }
+
+    /**
+     * Сводка, к которой добавляются продажи
+     */
+    private static class Key implements Comparable<Key> {
+
+        private final Dimension dimension;
+        private final Period period;
+        private final long keyId;
+        private final Date bucket;
+
+        private Key(Dimension dimension, Period period, long keyId, Date bucket) {
+            this.dimension = dimension;
+            this.period = period;
+            this.keyId = keyId;
+            this.bucket = bucket;
+        }
+
+        @Override
+        public int compareTo(Key other) {
+            int result = dimension.compareTo(other.dimension);
+            if (result == 0) {
+                result = period.compareTo(other.period);
+            }
+            if (result == 0) {
+                result = Long.compare(keyId, other.keyId);
+            }
+            if (result == 0) {
+                result = bucket.compareTo(other.bucket);
+            }
+            return result;
+        }
+    }
+}
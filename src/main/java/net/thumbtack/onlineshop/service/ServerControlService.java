@@ -13,16 +13,20 @@ import java.util.List;
 public class ServerControlService {
 
     private List<Dao> dao;
+    private List<Cache> caches;
 
     @Autowired
-    public ServerControlService(List<Dao> dao) {
+    public ServerControlService(List<Dao> dao, List<Cache> caches) {
         this.dao = dao;
+        this.caches = caches;
     }
 
     /**
      * Удаляет все существующие таблицы в базе данных
+     * и данные из них, которые хранятся в памяти
      */
     public void clear() {
         dao.forEach(Dao::clear);
+        caches.forEach(Cache::clear);
     }
 }
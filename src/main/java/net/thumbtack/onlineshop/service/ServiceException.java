@@ -18,7 +18,15 @@ public class ServiceException extends Exception {
         SECOND_SUBCATEGORY      ("SecondSubcategory", "Родитель категории не может быть подкатегорией"),
         CATEGORY_TO_SUBCATEGORY ("CategoryToSubcategory", "Нельзя изменить категорию на подкатегорию"),
         EDIT_CATEGORY_EMPTY     ("EditCategoryEmpty", "Хотя бы одно поле должно быть заполнено"),
-        REQUIRED_COUNT          ("RequiredCount", "Не указано количество товара");
+        REQUIRED_COUNT          ("RequiredCount", "Не указано количество товара"),
+        WRONG_IDEMPOTENCY_KEY   ("WrongIdempotencyKey", "Неверный ключ идемпотентности"),
+        IDEMPOTENCY_KEY_REUSED  ("IdempotencyKeyReused", "Ключ идемпотентности уже использован для другого запроса"),
+        IDEMPOTENCY_IN_PROGRESS ("IdempotencyInProgress", "Запрос с этим ключом идемпотентности ещё выполняется"),
+        CHECKOUT_OVERLOADED     ("CheckoutOverloaded", "Сервер перегружен, повторите покупку позже"),
+        DUPLICATE_PRODUCT       ("DuplicateProduct", "Товар указан в запросе несколько раз"),
+        WRONG_PAGE_POSITION     ("WrongPagePosition", "Неверно указана позиция страницы"),
+        WRONG_REPORT_PARAMETER  ("WrongReportParameter", "Неверно указан параметр отчёта"),
+        ANALYTICS_UNAVAILABLE   ("AnalyticsUnavailable", "Аналитика отключена или история покупок ещё загружается");
 
         private String errorCode;
         private String message;
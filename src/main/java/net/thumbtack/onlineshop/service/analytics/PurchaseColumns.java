@@ -0,0 +1,321 @@
+package net.thumbtack.onlineshop.service.analytics;
+
+import net.thumbtack.onlineshop.utils.LongLongHashMap;
+
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * История покупок в памяти по столбцам
+ * <br>
+ * Каждое поле покупки (товар, клиент, минута покупки, количество и цена) хранится в своём
+ * массиве примитивов, поэтому покупка занимает 20 байт, а запросы читают массивы подряд.
+ * Массивы разбиты на блоки по {@link #CHUNK_SIZE} покупок: при добавлении покупок
+ * существующие блоки не копируются. Запросы делят историю на части и группируют
+ * каждую часть в своём потоке {@link ForkJoinPool}, после чего результаты частей складываются.
+ * <br>
+ * Покупки добавляются в конец под блокировкой, а запросы её не берут: запрос видит все
+ * покупки, добавленные до его начала.
+ */
+public class PurchaseColumns {
+
+    static final int CHUNK_BITS = 16;
+    static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    private static final long MINUTE = 60 * 1000;
+
+    // Недели начинаются в понедельник, а 1 января 1970 года - четверг
+    private static final int WEEK_MINUTES = 7 * 24 * 60;
+    private static final int WEEK_SHIFT = 3 * 24 * 60;
+
+    /**
+     * Результат группировки
+     */
+    public static class Group {
+
+        private final long key;
+        private final Date week;
+        private final long amount;
+
+        Group(long key, Date week, long amount) {
+            this.key = key;
+            this.week = week;
+            this.amount = amount;
+        }
+
+        /**
+         * @return id товара, клиента или категории
+         */
+        public long getKey() {
+            return key;
+        }
+
+        /**
+         * @return начало недели (только для группировки по неделям)
+         */
+        public Date getWeek() {
+            return week;
+        }
+
+        /**
+         * @return на какую сумму выкуплено товара
+         */
+        public long getAmount() {
+            return amount;
+        }
+    }
+
+    /**
+     * По чему группировать покупки
+     */
+    @FunctionalInterface
+    private interface Grouping {
+        void add(Chunk chunk, int index, long amount, LongLongHashMap result);
+    }
+
+    private static class Chunk {
+
+        private final int[] product = new int[CHUNK_SIZE];
+        private final int[] account = new int[CHUNK_SIZE];
+        private final int[] minute = new int[CHUNK_SIZE];
+        private final int[] count = new int[CHUNK_SIZE];
+        private final int[] price = new int[CHUNK_SIZE];
+    }
+
+    private final ForkJoinPool pool;
+
+    private final Object appendLock = new Object();
+    private volatile Chunk[] chunks = new Chunk[0];
+    private volatile int size;
+
+    /**
+     * @param pool пул, в котором выполняются запросы
+     */
+    public PurchaseColumns(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Добавляет покупку
+     *
+     * @param productId id товара
+     * @param accountId id клиента
+     * @param date      время покупки
+     * @param count     количество товара
+     * @param price     цена товара
+     */
+    public void append(long productId, long accountId, Date date, int count, int price) {
+        synchronized (appendLock) {
+            int row = size;
+            int chunkIndex = row >>> CHUNK_BITS;
+
+            Chunk[] current = chunks;
+            if (chunkIndex == current.length) {
+                current = Arrays.copyOf(current, current.length + 1);
+                current[chunkIndex] = new Chunk();
+                chunks = current;
+            }
+
+            Chunk chunk = current[chunkIndex];
+            int index = row & CHUNK_MASK;
+            chunk.product[index] = Math.toIntExact(productId);
+            chunk.account[index] = Math.toIntExact(accountId);
+            chunk.minute[index] = Math.toIntExact(Math.floorDiv(date.getTime(), MINUTE));
+            chunk.count[index] = count;
+            chunk.price[index] = price;
+
+            // Запись size публикует значения строки для запросов
+            size = row + 1;
+        }
+    }
+
+    /**
+     * @return количество покупок
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Удаляет все покупки
+     */
+    public void clear() {
+        synchronized (appendLock) {
+            chunks = new Chunk[0];
+            size = 0;
+        }
+    }
+
+    /**
+     * Товары, которых выкуплено на наибольшую сумму
+     *
+     * @param limit количество товаров
+     * @param since начало промежутка времени (включительно, null - с начала истории)
+     * @param until конец промежутка времени (не включительно, null - до конца истории)
+     * @return товары по убыванию суммы
+     */
+    public List<Group> topProducts(int limit, Date since, Date until) {
+        LongLongHashMap result = aggregate(since, until,
+                (chunk, index, amount, groups) -> groups.add(chunk.product[index], amount));
+        return top(result, limit);
+    }
+
+    /**
+     * Клиенты, которые купили товара на наибольшую сумму
+     *
+     * @param limit количество клиентов
+     * @param since начало промежутка времени (включительно, null - с начала истории)
+     * @param until конец промежутка времени (не включительно, null - до конца истории)
+     * @return клиенты по убыванию суммы
+     */
+    public List<Group> topClients(int limit, Date since, Date until) {
+        LongLongHashMap result = aggregate(since, until,
+                (chunk, index, amount, groups) -> groups.add(chunk.account[index], amount));
+        return top(result, limit);
+    }
+
+    /**
+     * Сумма покупок по категориям и неделям. Покупка товара из нескольких категорий
+     * учитывается в каждой из них, покупки товаров без категории не учитываются.
+     *
+     * @param categories id категорий каждого товара (индекс - id товара)
+     * @param since      начало промежутка времени (включительно, null - с начала истории)
+     * @param until      конец промежутка времени (не включительно, null - до конца истории)
+     * @return суммы по неделям и по id категорий
+     */
+    public List<Group> categoriesByWeek(int[][] categories, Date since, Date until) {
+        LongLongHashMap result = aggregate(since, until, (chunk, index, amount, groups) -> {
+            int product = chunk.product[index];
+            if (product >= categories.length || categories[product] == null) {
+                return;
+            }
+
+            long week = Math.floorDiv(chunk.minute[index] + WEEK_SHIFT, WEEK_MINUTES);
+            for (int category : categories[product]) {
+                groups.add(week << 32 | category, amount);
+            }
+        });
+
+        List<Group> groups = new ArrayList<>(result.size());
+        result.forEach((key, amount) -> {
+            long week = key >> 32;
+            Date start = new Date((week * WEEK_MINUTES - WEEK_SHIFT) * MINUTE);
+            groups.add(new Group(key & 0xFFFFFFFFL, start, amount));
+        });
+
+        groups.sort(Comparator.comparing(Group::getWeek).thenComparingLong(Group::getKey));
+        return groups;
+    }
+
+    private LongLongHashMap aggregate(Date since, Date until, Grouping grouping) {
+        int from = since == null ? Integer.MIN_VALUE : Math.toIntExact(Math.floorDiv(since.getTime(), MINUTE));
+        int to = until == null ? Integer.MAX_VALUE : Math.toIntExact(Math.floorDiv(until.getTime(), MINUTE));
+
+        // Снимок: покупки, добавленные во время запроса, не учитываются
+        int rows = size;
+        Chunk[] snapshot = chunks;
+
+        return pool.invoke(new Aggregate(snapshot, 0, rows, from, to, grouping));
+    }
+
+    /**
+     * Группы с наибольшими суммами
+     *
+     * @param groups суммы по ключам
+     * @param limit  количество групп
+     * @return группы по убыванию суммы (при равных суммах - по возрастанию ключа)
+     */
+    public static List<Group> top(LongLongHashMap groups, int limit) {
+        Comparator<Group> order = Comparator.comparingLong(Group::getAmount)
+                .thenComparing(Comparator.comparingLong(Group::getKey).reversed());
+
+        // Минимальная куча из limit наибольших сумм
+        PriorityQueue<Group> heap = new PriorityQueue<>(Math.max(1, limit + 1), order);
+        groups.forEach((key, amount) -> {
+            heap.add(new Group(key, null, amount));
+            if (heap.size() > limit) {
+                heap.poll();
+            }
+        });
+
+        List<Group> result = new ArrayList<>(heap);
+        result.sort(order.reversed());
+        return result;
+    }
+
+    /**
+     * Группировка покупок с номерами [from, to)
+     */
+    private static class Aggregate extends RecursiveTask<LongLongHashMap> {
+
+        private final Chunk[] chunks;
+        private final int from;
+        private final int to;
+        private final int since;
+        private final int until;
+        private final Grouping grouping;
+
+        private Aggregate(Chunk[] chunks, int from, int to, int since, int until, Grouping grouping) {
+            this.chunks = chunks;
+            this.from = from;
+            this.to = to;
+            this.since = since;
+            this.until = until;
+            this.grouping = grouping;
+        }
+
+        @Override
+        protected LongLongHashMap compute() {
+            if (to - from <= CHUNK_SIZE) {
+                return scan();
+            }
+
+            // Делим по границе блока
+            int middle = ((from + (to - from) / 2) >>> CHUNK_BITS) << CHUNK_BITS;
+            if (middle <= from) {
+                middle = from + CHUNK_SIZE;
+            }
+
+            Aggregate left = new Aggregate(chunks, from, middle, since, until, grouping);
+            left.fork();
+            LongLongHashMap right = new Aggregate(chunks, middle, to, since, until, grouping).compute();
+            LongLongHashMap result = left.join();
+
+            // Меньшую таблицу прибавляем к большей
+            if (result.size() < right.size()) {
+                right.addAll(result);
+                return right;
+            }
+            result.addAll(right);
+            return result;
+        }
+
+        private LongLongHashMap scan() {
+            LongLongHashMap result = new LongLongHashMap();
+
+            int row = from;
+            while (row < to) {
+                Chunk chunk = chunks[row >>> CHUNK_BITS];
+                int index = row & CHUNK_MASK;
+                int end = Math.min(CHUNK_SIZE, index + (to - row));
+
+                int[] minutes = chunk.minute;
+                int[] counts = chunk.count;
+                int[] prices = chunk.price;
+
+                for (int i = index; i < end; ++i) {
+                    int minute = minutes[i];
+                    if (minute >= since && minute < until) {
+                        grouping.add(chunk, i, (long) counts[i] * prices[i], result);
+                    }
+                }
+
+                row += end - index;
+            }
+
+            return result;
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package net.thumbtack.onlineshop.service.analytics;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Date;
+
+/**
+ * Файл архива покупок одного месяца, отображённый в память
+ * <br>
+ * Покупки хранятся по столбцам:
+ * <pre>
+ * int magic, int version, long начало месяца (мс), int количество покупок
+ * int n, long[n] словарь id товаров (по возрастанию)
+ * int m, long[m] словарь id клиентов (по возрастанию)
+ * int длина, пары чисел переменной длины: разности id записей и времени покупок (с)
+ *            с предыдущей покупкой
+ * номера товаров в словаре (1, 2 или 4 байта, по размеру словаря)
+ * номера клиентов в словаре (1, 2 или 4 байта)
+ * int[] количество товара
+ * int[] цены
+ * </pre>
+ * Файл не читается в кучу: запросы читают отображение напрямую, а страницы файла
+ * кэширует операционная система. Файл не меняется после записи, поэтому читать его
+ * можно из нескольких потоков одновременно.
+ */
+public class PurchaseMonthFile {
+
+    static final int MAGIC = 0x504D4631;
+    static final int VERSION = 1;
+
+    // id вместо null (id в БД начинаются с 1)
+    public static final long NONE = 0;
+
+    /**
+     * Обработчик покупок из файла
+     */
+    @FunctionalInterface
+    public interface Consumer {
+        /**
+         * @param id        id записи о покупке
+         * @param date      время покупки (мс)
+         * @param productId id товара ({@link #NONE} - товар не указан)
+         * @param accountId id клиента ({@link #NONE} - клиент не указан)
+         * @param count     количество товара
+         * @param price     цена товара
+         */
+        void accept(long id, long date, long productId, long accountId, int count, int price);
+    }
+
+    private final ByteBuffer buffer;
+    private final Date month;
+    private final int size;
+
+    private final long[] products;
+    private final long[] accounts;
+    private final int productWidth;
+    private final int accountWidth;
+
+    // Начала разделов файла
+    private final int deltas;
+    private final int productCodes;
+    private final int accountCodes;
+    private final int counts;
+    private final int prices;
+
+    private PurchaseMonthFile(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+
+        if (buffer.remaining() < 20 || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IOException("Not a purchase archive file");
+        }
+
+        month = new Date(buffer.getLong(8));
+        size = buffer.getInt(16);
+
+        int position = 20;
+        products = readDictionary(position);
+        position += 4 + products.length * 8;
+        accounts = readDictionary(position);
+        position += 4 + accounts.length * 8;
+
+        productWidth = width(products.length);
+        accountWidth = width(accounts.length);
+
+        deltas = position + 4;
+        productCodes = deltas + buffer.getInt(position);
+        accountCodes = productCodes + size * productWidth;
+        counts = accountCodes + size * accountWidth;
+        prices = counts + size * 4;
+
+        if (prices + size * 4 != buffer.limit()) {
+            throw new IOException("Purchase archive file is damaged");
+        }
+    }
+
+    /**
+     * Отображает файл архива в память
+     *
+     * @param path путь к файлу
+     * @return файл архива
+     * @throws IOException если файл не удалось прочитать или это не файл архива
+     */
+    public static PurchaseMonthFile open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Purchase archive file is too large: " + path);
+            }
+
+            // Отображение остаётся доступным после закрытия канала
+            return new PurchaseMonthFile(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * @return начало месяца
+     */
+    public Date getMonth() {
+        return month;
+    }
+
+    /**
+     * @return количество покупок
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Передаёт обработчику покупки за промежуток времени
+     *
+     * @param since     начало промежутка времени (включительно, null - с начала месяца)
+     * @param until     конец промежутка времени (не включительно, null - до конца месяца)
+     * @param accountId только покупки этого клиента (null - все покупки)
+     * @param consumer  обработчик покупок
+     */
+    public void scan(Date since, Date until, Long accountId, Consumer consumer) {
+        long from = since == null ? Long.MIN_VALUE : since.getTime();
+        long to = until == null ? Long.MAX_VALUE : until.getTime();
+
+        int account = -1;
+        if (accountId != null) {
+            // Клиента нет в словаре - нет и его покупок
+            account = Arrays.binarySearch(accounts, accountId);
+            if (account < 0) {
+                return;
+            }
+        }
+
+        long start = month.getTime();
+        int position = deltas;
+        long id = 0;
+        long second = 0;
+
+        for (int i = 0; i < size; ++i) {
+            long value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = buffer.get(position++);
+                value |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            id += (value >>> 1) ^ -(value & 1);
+
+            value = 0;
+            shift = 0;
+            do {
+                b = buffer.get(position++);
+                value |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            second += (value >>> 1) ^ -(value & 1);
+
+            int accountCode = code(accountCodes, i, accountWidth);
+            if (account >= 0 && accountCode != account) {
+                continue;
+            }
+
+            long date = start + second * 1000;
+            if (date < from || date >= to) {
+                continue;
+            }
+
+            consumer.accept(
+                    id,
+                    date,
+                    products[code(productCodes, i, productWidth)],
+                    accounts[accountCode],
+                    buffer.getInt(counts + i * 4),
+                    buffer.getInt(prices + i * 4));
+        }
+    }
+
+    /**
+     * Ширина номера в словаре из size значений
+     */
+    static int width(int size) {
+        if (size <= 1 << 8) {
+            return 1;
+        }
+        return size <= 1 << 16 ? 2 : 4;
+    }
+
+    private int code(int offset, int index, int width) {
+        switch (width) {
+            case 1:
+                return buffer.get(offset + index) & 0xFF;
+            case 2:
+                return buffer.getShort(offset + index * 2) & 0xFFFF;
+            default:
+                return buffer.getInt(offset + index * 4);
+        }
+    }
+
+    private long[] readDictionary(int position) throws IOException {
+        int length = buffer.getInt(position);
+        if (length < 0 || position + 4 + (long) length * 8 > buffer.limit()) {
+            throw new IOException("Purchase archive file is damaged");
+        }
+
+        long[] result = new long[length];
+        for (int i = 0; i < length; ++i) {
+            result[i] = buffer.getLong(position + 4 + i * 8);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,186 @@
+package net.thumbtack.onlineshop.service.analytics;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Date;
+
+/**
+ * Запись покупок одного месяца в файл архива по столбцам (формат описан в {@link PurchaseMonthFile})
+ * <br>
+ * Покупки накапливаются в памяти в массивах примитивов, а файл записывается целиком
+ * во временный файл, который затем переименовывается: недописанный файл архива не появляется.
+ */
+public class PurchaseMonthWriter {
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final long month;
+
+    private long[] ids = new long[INITIAL_CAPACITY];
+    private long[] seconds = new long[INITIAL_CAPACITY];
+    private long[] products = new long[INITIAL_CAPACITY];
+    private long[] accounts = new long[INITIAL_CAPACITY];
+    private int[] counts = new int[INITIAL_CAPACITY];
+    private int[] prices = new int[INITIAL_CAPACITY];
+    private int size;
+
+    /**
+     * @param month начало месяца
+     */
+    public PurchaseMonthWriter(Date month) {
+        this.month = month.getTime();
+    }
+
+    /**
+     * Добавляет покупку
+     *
+     * @param id        id записи о покупке
+     * @param date      время покупки
+     * @param productId id товара (null - товар не указан)
+     * @param accountId id клиента (null - клиент не указан)
+     * @param count     количество товара
+     * @param price     цена товара
+     */
+    public void append(long id, Date date, Long productId, Long accountId, int count, int price) {
+        if (size == ids.length) {
+            int capacity = size * 2;
+            ids = Arrays.copyOf(ids, capacity);
+            seconds = Arrays.copyOf(seconds, capacity);
+            products = Arrays.copyOf(products, capacity);
+            accounts = Arrays.copyOf(accounts, capacity);
+            counts = Arrays.copyOf(counts, capacity);
+            prices = Arrays.copyOf(prices, capacity);
+        }
+
+        ids[size] = id;
+        seconds[size] = Math.floorDiv(date.getTime() - month, 1000L);
+        products[size] = productId == null ? PurchaseMonthFile.NONE : productId;
+        accounts[size] = accountId == null ? PurchaseMonthFile.NONE : accountId;
+        counts[size] = count;
+        prices[size] = price;
+        ++size;
+    }
+
+    /**
+     * @return количество покупок
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Записывает файл архива
+     *
+     * @param path путь к файлу
+     * @throws IOException если файл записать не удалось
+     */
+    public void write(Path path) throws IOException {
+        long[] productDictionary = dictionary(products);
+        long[] accountDictionary = dictionary(accounts);
+
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+            out.writeInt(PurchaseMonthFile.MAGIC);
+            out.writeInt(PurchaseMonthFile.VERSION);
+            out.writeLong(month);
+            out.writeInt(size);
+
+            writeDictionary(out, productDictionary);
+            writeDictionary(out, accountDictionary);
+
+            // Id записей и время покупок - разности с предыдущей покупкой
+            ByteArrayOutputStream deltas = new ByteArrayOutputStream();
+            long previousId = 0;
+            long previousSecond = 0;
+            for (int i = 0; i < size; ++i) {
+                writeVarLong(deltas, ids[i] - previousId);
+                writeVarLong(deltas, seconds[i] - previousSecond);
+                previousId = ids[i];
+                previousSecond = seconds[i];
+            }
+
+            out.writeInt(deltas.size());
+            deltas.writeTo(out);
+
+            writeCodes(out, products, productDictionary);
+            writeCodes(out, accounts, accountDictionary);
+
+            for (int i = 0; i < size; ++i) {
+                out.writeInt(counts[i]);
+            }
+            for (int i = 0; i < size; ++i) {
+                out.writeInt(prices[i]);
+            }
+        }
+
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Различные id по возрастанию
+     */
+    private long[] dictionary(long[] values) {
+        long[] sorted = Arrays.copyOf(values, size);
+        Arrays.sort(sorted);
+
+        int unique = 0;
+        for (int i = 0; i < sorted.length; ++i) {
+            if (i == 0 || sorted[i] != sorted[i - 1]) {
+                sorted[unique++] = sorted[i];
+            }
+        }
+
+        return Arrays.copyOf(sorted, unique);
+    }
+
+    private static void writeDictionary(DataOutputStream out, long[] dictionary) throws IOException {
+        out.writeInt(dictionary.length);
+        for (long value : dictionary) {
+            out.writeLong(value);
+        }
+    }
+
+    /**
+     * Номера id в словаре фиксированной ширины (1, 2 или 4 байта)
+     */
+    private void writeCodes(DataOutputStream out, long[] values, long[] dictionary) throws IOException {
+        int width = PurchaseMonthFile.width(dictionary.length);
+
+        for (int i = 0; i < size; ++i) {
+            int code = Arrays.binarySearch(dictionary, values[i]);
+            switch (width) {
+                case 1:
+                    out.writeByte(code);
+                    break;
+                case 2:
+                    out.writeShort(code);
+                    break;
+                default:
+                    out.writeInt(code);
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Число переменной длины: знак переносится в младший бит (zigzag),
+     * а затем по 7 бит в байте, старший бит - признак продолжения
+     */
+    private static void writeVarLong(OutputStream out, long value) throws IOException {
+        long zigzag = (value << 1) ^ (value >> 63);
+
+        while ((zigzag & ~0x7FL) != 0) {
+            out.write((int) ((zigzag & 0x7F) | 0x80));
+            zigzag >>>= 7;
+        }
+        out.write((int) zigzag);
+    }
+}
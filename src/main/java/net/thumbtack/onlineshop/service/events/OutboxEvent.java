@@ -0,0 +1,14 @@
+package net.thumbtack.onlineshop.service.events;
+
+import org.springframework.context.ApplicationEvent;
+
+/**
+ * Событие записи в outbox: после фиксации транзакции обработчик outbox
+ * забирает новые записи, не дожидаясь следующего опроса
+ */
+public class OutboxEvent extends ApplicationEvent {
+
+    public OutboxEvent(Object source) {
+        super(source);
+    }
+}
@@ -0,0 +1,108 @@
+package net.thumbtack.onlineshop.service.listeners;
+
+import net.thumbtack.onlineshop.service.metrics.MetricsSource;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.stereotype.Component;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+
+/**
+ * Пул потоков асинхронных обработчиков событий о покупке ({@link PurchaseEventListener})
+ * <br>
+ * Пул ограничен purchase_events_threads потоками и очередью из purchase_events_queue_size задач.
+ * Если очередь заполнена, то задачу выполняет поток, который её отправил (purchase_events_rejection =
+ * caller_runs). В режиме discard лишние задачи (уведомления клиентов) отбрасываются.
+ */
+@Component(PurchaseEventExecutor.NAME)
+public class PurchaseEventExecutor extends ThreadPoolTaskExecutor implements MetricsSource {
+
+    public static final String NAME = "purchaseEventExecutor";
+
+    @Value("${purchase_events_threads:4}")
+    private int threads;
+
+    @Value("${purchase_events_queue_size:1000}")
+    private int queueSize;
+
+    // caller_runs - выполнить в отправившем потоке, discard - отбросить
+    @Value("${purchase_events_rejection:caller_runs}")
+    private String rejection;
+
+    private final AtomicLong tasks = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong waitTotalMs = new AtomicLong();
+    private final AtomicLong runTotalMs = new AtomicLong();
+    private final LongAccumulator maxWaitMs = new LongAccumulator(Math::max, 0);
+    private final LongAccumulator maxRunMs = new LongAccumulator(Math::max, 0);
+
+    public PurchaseEventExecutor() {
+        setThreadNamePrefix("purchase-events-");
+        setWaitForTasksToCompleteOnShutdown(true);
+        setAwaitTerminationSeconds(10);
+
+        // Время ожидания в очереди и время выполнения каждой задачи
+        setTaskDecorator(task -> {
+            long submitted = System.nanoTime();
+
+            return () -> {
+                long started = System.nanoTime();
+                try {
+                    task.run();
+                } finally {
+                    long waitMs = TimeUnit.NANOSECONDS.toMillis(started - submitted);
+                    long runMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+
+                    tasks.incrementAndGet();
+                    waitTotalMs.addAndGet(waitMs);
+                    runTotalMs.addAndGet(runMs);
+                    maxWaitMs.accumulate(waitMs);
+                    maxRunMs.accumulate(runMs);
+                }
+            };
+        });
+    }
+
+    @Override
+    protected ExecutorService initializeExecutor(ThreadFactory threadFactory, RejectedExecutionHandler handler) {
+        setCorePoolSize(threads);
+        setMaxPoolSize(threads);
+        setQueueCapacity(queueSize);
+
+        RejectedExecutionHandler policy = "discard".equalsIgnoreCase(rejection)
+                ? new ThreadPoolExecutor.DiscardPolicy()
+                : new ThreadPoolExecutor.CallerRunsPolicy();
+
+        return super.initializeExecutor(threadFactory, (task, executor) -> {
+            rejected.incrementAndGet();
+            policy.rejectedExecution(task, executor);
+        });
+    }
+
+    @Override
+    public String getMetricsName() {
+        return "purchase_events";
+    }
+
+    @Override
+    public Map<String, Number> getMetrics() {
+        long completed = tasks.get();
+
+        Map<String, Number> metrics = new HashMap<>();
+        metrics.put("threads", getPoolSize());
+        metrics.put("active_threads", getActiveCount());
+        metrics.put("queue_size", getThreadPoolExecutor().getQueue().size());
+        metrics.put("tasks", completed);
+        metrics.put("rejected", rejected.get());
+        metrics.put("wait_ms_avg", completed == 0 ? 0 : (double) waitTotalMs.get() / completed);
+        metrics.put("wait_ms_max", maxWaitMs.get());
+        metrics.put("run_ms_avg", completed == 0 ? 0 : (double) runTotalMs.get() / completed);
+        metrics.put("run_ms_max", maxRunMs.get());
+
+        return metrics;
+    }
+}
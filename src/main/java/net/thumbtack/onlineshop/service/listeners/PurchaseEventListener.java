@@ -1,35 +1,78 @@
 package net.thumbtack.onlineshop.service.listeners;
 
 import net.thumbtack.onlineshop.service.MailService;
+import net.thumbtack.onlineshop.service.PurchaseAnalytics;
+import net.thumbtack.onlineshop.service.PurchaseTotalsCache;
+import net.thumbtack.onlineshop.service.SalesRollupService;
 import net.thumbtack.onlineshop.service.events.BasketPurchaseEvent;
 import net.thumbtack.onlineshop.service.events.ProductPurchaseEvent;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.event.EventListener;
 import org.springframework.scheduling.annotation.Async;
 import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import java.util.Collections;
 
 /**
  * Обработчик событий о покупке товара и корзины
+ * <br>
+ * События публикуются потоком {@link net.thumbtack.onlineshop.service.PurchaseOutbox} в транзакции
+ * доставки записи outbox. Сводки продаж обновляются в этой же транзакции, поэтому повторная доставка
+ * записи не добавляет покупки к сводкам второй раз. Остальные обработчики выполняются только после
+ * фиксации транзакции доставки: аналитика - в потоке доставки, письма - в пуле
+ * {@link PurchaseEventExecutor} (если пул переполнен, то письмо может быть потеряно).
  */
 @Component
 public class PurchaseEventListener {
 
     private MailService mailService;
+    private PurchaseTotalsCache totalsCache;
+    private SalesRollupService salesService;
+    private PurchaseAnalytics analytics;
 
     @Autowired
-    public PurchaseEventListener(MailService mailService) {
+    public PurchaseEventListener(
+            MailService mailService,
+            PurchaseTotalsCache totalsCache,
+            SalesRollupService salesService,
+            PurchaseAnalytics analytics) {
         this.mailService = mailService;
+        this.totalsCache = totalsCache;
+        this.salesService = salesService;
+        this.analytics = analytics;
+    }
+
+    /**
+     * Сбрасывает итоги истории покупок после фиксации транзакции доставки покупки товара
+     *
+     * @param event событие покупки товара
+     */
+    @TransactionalEventListener(fallbackExecution = true)
+    public void resetTotalsAfterProductPurchase(ProductPurchaseEvent event) {
+        totalsCache.reset();
+    }
+
+    /**
+     * Сбрасывает итоги истории покупок после фиксации транзакции доставки покупки корзины
+     *
+     * @param event событие покупки корзины
+     */
+    @TransactionalEventListener(fallbackExecution = true)
+    public void resetTotalsAfterBasketPurchase(BasketPurchaseEvent event) {
+        totalsCache.reset();
     }
 
     /**
      * Уведомляет клиента по электронной почте о покупке товара.
      * <br>
-     * Отправка письма производится асинхронно
+     * Отправка письма производится асинхронно и только после фиксации транзакции
+     * доставки события
      *
      * @param event событие покупки товара
      */
-    @Async
-    @EventListener
+    @Async(PurchaseEventExecutor.NAME)
+    @TransactionalEventListener(fallbackExecution = true)
     public void mailClientAboutProductPurchase(ProductPurchaseEvent event) {
         mailService.sendBuyProductReport(event.getPurchase());
     }
@@ -37,14 +80,63 @@ public class PurchaseEventListener {
     /**
      * Уведомляет клиента по электронной почте о покупке корзины
      * <br>
-     * Отправка производится асинхронно
+     * Отправка производится асинхронно и только после фиксации транзакции
+     * доставки события
      *
      * @param event событие о покупки корзины
      */
-    @Async
-    @EventListener
+    @Async(PurchaseEventExecutor.NAME)
+    @TransactionalEventListener(fallbackExecution = true)
     public void mailClientAboutBasketPurchase(BasketPurchaseEvent event) {
         mailService.sendBuyBasketReport(event.getClient(), event.getPurchases());
     }
 
+    /**
+     * Добавляет покупку товара к сводкам продаж
+     * <br>
+     * Сводки обновляются синхронно в транзакции доставки события
+     *
+     * @param event событие покупки товара
+     */
+    @EventListener
+    public void recordProductSales(ProductPurchaseEvent event) {
+        salesService.record(Collections.singletonList(event.getPurchase()));
+    }
+
+    /**
+     * Добавляет покупку корзины к сводкам продаж
+     * <br>
+     * Сводки обновляются синхронно в транзакции доставки события
+     *
+     * @param event событие покупки корзины
+     */
+    @EventListener
+    public void recordBasketSales(BasketPurchaseEvent event) {
+        salesService.record(event.getPurchases());
+    }
+
+    /**
+     * Добавляет покупку товара к истории покупок для аналитики
+     * <br>
+     * Выполняется в потоке доставки после фиксации транзакции доставки события
+     *
+     * @param event событие покупки товара
+     */
+    @TransactionalEventListener(fallbackExecution = true)
+    public void appendProductAnalytics(ProductPurchaseEvent event) {
+        analytics.append(Collections.singletonList(event.getPurchase()));
+    }
+
+    /**
+     * Добавляет покупку корзины к истории покупок для аналитики
+     * <br>
+     * Выполняется в потоке доставки после фиксации транзакции доставки события
+     *
+     * @param event событие покупки корзины
+     */
+    @TransactionalEventListener(fallbackExecution = true)
+    public void appendBasketAnalytics(BasketPurchaseEvent event) {
+        analytics.append(event.getPurchases());
+    }
+
 }
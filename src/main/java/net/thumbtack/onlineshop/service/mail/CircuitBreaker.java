@@ -0,0 +1,86 @@
+package net.thumbtack.onlineshop.service.mail;
+
+/**
+ * Автоматический выключатель отправки писем
+ * <br>
+ * После threshold неудачных отправок подряд выключатель размыкается, и письма не отправляются
+ * openMs миллисекунд. Затем разрешается одна пробная отправка: если она удалась, то
+ * выключатель замыкается, иначе снова размыкается.
+ */
+public class CircuitBreaker {
+
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private final int threshold;
+    private final long openMs;
+
+    private State state = State.CLOSED;
+    private int failures;
+    private long openedAt;
+    private long opens;
+
+    /**
+     * @param threshold сколько неудачных отправок подряд размыкают выключатель
+     * @param openMs    на сколько миллисекунд размыкается выключатель
+     */
+    public CircuitBreaker(int threshold, long openMs) {
+        this.threshold = threshold;
+        this.openMs = openMs;
+    }
+
+    /**
+     * Проверяет, можно ли отправить письмо
+     *
+     * @param now текущее время (мс)
+     * @return true - если отправка разрешена
+     */
+    public synchronized boolean allow(long now) {
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (now - openedAt < openMs) {
+                    return false;
+                }
+                // Пробная отправка
+                state = State.HALF_OPEN;
+                return true;
+            default:
+                // Пока пробная отправка не завершилась, остальные письма не отправляются
+                return false;
+        }
+    }
+
+    /**
+     * Отмечает удачную отправку
+     */
+    public synchronized void success() {
+        state = State.CLOSED;
+        failures = 0;
+    }
+
+    /**
+     * Отмечает неудачную отправку
+     *
+     * @param now текущее время (мс)
+     */
+    public synchronized void failure(long now) {
+        if (state == State.HALF_OPEN || ++failures >= threshold) {
+            state = State.OPEN;
+            openedAt = now;
+            failures = 0;
+            ++opens;
+        }
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * @return сколько раз выключатель размыкался
+     */
+    public synchronized long getOpens() {
+        return opens;
+    }
+}
@@ -0,0 +1,326 @@
+package net.thumbtack.onlineshop.service.mail;
+
+import net.thumbtack.onlineshop.service.metrics.MetricsSource;
+import net.thumbtack.onlineshop.service.metrics.RateCounter;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+
+/**
+ * Доставка писем через выбранный способ отправки (mail_transport)
+ * <br>
+ * Письма ставятся в очередь размером mail_queue_size и отправляются без блокировки потоков,
+ * одновременно не больше mail_max_concurrency писем. Если очередь заполнена, то письмо
+ * отбрасывается. Временные ошибки повторяются до mail_max_attempts попыток с экспоненциальной
+ * задержкой (от mail_retry_initial_ms до mail_retry_max_ms со случайным разбросом).
+ * <br>
+ * Если почтовый сервис недоступен, то после mail_breaker_failures ошибок подряд отправка
+ * останавливается на mail_breaker_open_ms, а письма, которые пришли за это время, отбрасываются,
+ * чтобы не нагружать сервис и не копить письма в памяти.
+ * <br>
+ * При остановке сервера письма из очереди и отложенные повторы отправляются сразу, а отправка
+ * ждёт не дольше mail_shutdown_timeout_ms. Письма, которые не успели отправиться, считаются
+ * неотправленными.
+ */
+@Service
+public class MailDelivery implements MetricsSource {
+
+    @Value("${mail_transport:mailgun}")
+    private String transportName;
+
+    @Value("${mail_queue_size:1000}")
+    private int queueSize;
+
+    @Value("${mail_max_concurrency:8}")
+    private int maxConcurrency;
+
+    @Value("${mail_max_attempts:5}")
+    private int maxAttempts;
+
+    @Value("${mail_retry_initial_ms:500}")
+    private long retryInitialMs;
+
+    @Value("${mail_retry_max_ms:30000}")
+    private long retryMaxMs;
+
+    @Value("${mail_breaker_failures:5}")
+    private int breakerFailures;
+
+    @Value("${mail_breaker_open_ms:30000}")
+    private long breakerOpenMs;
+
+    @Value("${mail_shutdown_timeout_ms:5000}")
+    private long shutdownTimeoutMs;
+
+    private List<MailTransport> transports;
+
+    private MailTransport transport;
+    private Queue<Delivery> queue;
+    // Письма, которые отправляются прямо сейчас
+    private Set<Delivery> inFlight;
+    // Письма, которые ждут повторной попытки
+    private Set<Delivery> delayed;
+    private Semaphore permits;
+    private CircuitBreaker breaker;
+    // Поток, который откладывает повторные попытки
+    private ScheduledExecutorService retries;
+
+    private final AtomicLong queued = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong retried = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong shed = new AtomicLong();
+    private final AtomicLong latencyMsTotal = new AtomicLong();
+    private final LongAccumulator latencyMsMax = new LongAccumulator(Math::max, 0);
+    private final RateCounter rate = new RateCounter(10);
+
+    @Autowired
+    public MailDelivery(List<MailTransport> transports) {
+        this.transports = transports;
+    }
+
+    @PostConstruct
+    public void start() {
+        transport = transports.stream()
+                .filter(candidate -> candidate.getName().equals(transportName))
+                .findFirst()
+                .orElseThrow(() -> new IllegalStateException("Unknown mail transport: " + transportName));
+
+        queue = new ArrayBlockingQueue<>(queueSize);
+        inFlight = ConcurrentHashMap.newKeySet();
+        delayed = ConcurrentHashMap.newKeySet();
+        permits = new Semaphore(maxConcurrency);
+        breaker = new CircuitBreaker(breakerFailures, breakerOpenMs);
+        retries = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "mail-retry");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Отправляет оставшиеся письма и ждёт их отправки не дольше mail_shutdown_timeout_ms.
+     * Повторные попытки после этого не выполняются.
+     */
+    @PreDestroy
+    public void stop() {
+        retries.shutdownNow();
+
+        // Отложенные повторы не дожидаются своей задержки, а отправляются вместе с очередью
+        for (Delivery delivery : delayed) {
+            if (delayed.remove(delivery)) {
+                enqueue(delivery);
+            }
+        }
+        drain();
+
+        long deadline = System.currentTimeMillis() + shutdownTimeoutMs;
+        while ((!queue.isEmpty() || !inFlight.isEmpty()) && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        // Письма, которые не успели отправиться, считаются неотправленными
+        while (queue.poll() != null) {
+            failed.incrementAndGet();
+        }
+        for (Delivery delivery : inFlight) {
+            if (inFlight.remove(delivery)) {
+                failed.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * @return true - если способ отправки настроен и письма будут отправлены
+     */
+    public boolean isEnabled() {
+        return transport.isEnabled();
+    }
+
+    /**
+     * Ставит письмо в очередь на отправку
+     *
+     * @param message письмо
+     */
+    public void send(MailMessage message) {
+        if (!transport.isEnabled()) {
+            return;
+        }
+
+        queued.incrementAndGet();
+        enqueue(new Delivery(message));
+    }
+
+    @Override
+    public String getMetricsName() {
+        return "mail_delivery";
+    }
+
+    @Override
+    public Map<String, Number> getMetrics() {
+        long count = delivered.get();
+
+        Map<String, Number> metrics = new HashMap<>();
+        metrics.put("queued", queued.get());
+        metrics.put("delivered", count);
+        metrics.put("failed", failed.get());
+        metrics.put("retries", retried.get());
+        metrics.put("rejected", rejected.get());
+        metrics.put("shed", shed.get());
+        metrics.put("queue_size", queue.size());
+        metrics.put("in_flight", maxConcurrency - permits.availablePermits());
+        metrics.put("breaker_state", breaker.getState().ordinal());
+        metrics.put("breaker_opens", breaker.getOpens());
+        metrics.put("latency_ms_avg", count == 0 ? 0 : latencyMsTotal.get() / count);
+        metrics.put("latency_ms_max", latencyMsMax.get());
+        metrics.put("delivered_per_second", rate.getRate());
+
+        return metrics;
+    }
+
+    private void enqueue(Delivery delivery) {
+        if (!queue.offer(delivery)) {
+            rejected.incrementAndGet();
+            return;
+        }
+        drain();
+    }
+
+    /**
+     * Отправляет письма из очереди, пока есть свободные места для одновременной отправки
+     */
+    private void drain() {
+        while (!queue.isEmpty() && permits.tryAcquire()) {
+            Delivery delivery = queue.poll();
+
+            if (delivery == null) {
+                // Очередь успел разобрать другой поток
+                permits.release();
+                continue;
+            }
+
+            if (!breaker.allow(System.currentTimeMillis())) {
+                shed.incrementAndGet();
+                permits.release();
+                continue;
+            }
+
+            attempt(delivery);
+        }
+    }
+
+    private void attempt(Delivery delivery) {
+        delivery.attempts++;
+        inFlight.add(delivery);
+        long start = System.currentTimeMillis();
+
+        CompletableFuture<Void> result;
+        try {
+            result = transport.send(delivery.message);
+        } catch (RuntimeException e) {
+            result = new CompletableFuture<>();
+            result.completeExceptionally(e);
+        }
+
+        result.whenComplete((ignored, error) -> {
+            if (!inFlight.remove(delivery)) {
+                // Сервер остановился, не дождавшись отправки: письмо уже учтено как неотправленное
+                return;
+            }
+
+            permits.release();
+            long now = System.currentTimeMillis();
+
+            if (error == null) {
+                breaker.success();
+                delivered.incrementAndGet();
+                rate.increment();
+                latencyMsTotal.addAndGet(now - start);
+                latencyMsMax.accumulate(now - start);
+            } else if (isRetryable(error)) {
+                breaker.failure(now);
+
+                if (delivery.attempts < maxAttempts) {
+                    retried.incrementAndGet();
+                    schedule(delivery);
+                } else {
+                    failed.incrementAndGet();
+                }
+            } else {
+                // Почтовый сервис ответил, но отказался принять письмо: повторять бесполезно
+                breaker.success();
+                failed.incrementAndGet();
+            }
+
+            drain();
+        });
+    }
+
+    private void schedule(Delivery delivery) {
+        delayed.add(delivery);
+        try {
+            retries.schedule(() -> {
+                // Если сервер останавливается, то повтор уже поставлен в очередь
+                if (delayed.remove(delivery)) {
+                    enqueue(delivery);
+                }
+            }, getBackoff(delivery.attempts), TimeUnit.MILLISECONDS);
+
+        } catch (RejectedExecutionException e) {
+            // Сервер останавливается
+            delayed.remove(delivery);
+            failed.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return задержка перед следующей попыткой после attempts неудачных
+     */
+    long getBackoff(int attempts) {
+        long delay = retryInitialMs;
+        for (int i = 1; i < attempts && delay < retryMaxMs; ++i) {
+            delay *= 2;
+        }
+        delay = Math.min(delay, retryMaxMs);
+
+        // Случайный разброс, чтобы повторные попытки не приходили одновременно
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    private static boolean isRetryable(Throwable error) {
+        if (error instanceof CompletionException && error.getCause() != null) {
+            error = error.getCause();
+        }
+        return !(error instanceof MailException) || ((MailException) error).isRetryable();
+    }
+
+    /**
+     * Письмо и количество попыток его отправить
+     */
+    private static class Delivery {
+
+        private final MailMessage message;
+        private int attempts;
+
+        private Delivery(MailMessage message) {
+            this.message = message;
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package net.thumbtack.onlineshop.service.mail;
+
+/**
+ * Ошибка отправки письма
+ */
+public class MailException extends RuntimeException {
+
+    // Можно ли повторить отправку (например, почтовый сервис временно недоступен)
+    private final boolean retryable;
+
+    public MailException(String message, boolean retryable) {
+        super(message);
+        this.retryable = retryable;
+    }
+
+    public MailException(String message, Throwable cause, boolean retryable) {
+        super(message, cause);
+        this.retryable = retryable;
+    }
+
+    public boolean isRetryable() {
+        return retryable;
+    }
+}
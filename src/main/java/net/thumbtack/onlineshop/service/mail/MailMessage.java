@@ -0,0 +1,39 @@
+package net.thumbtack.onlineshop.service.mail;
+
+/**
+ * Письмо
+ */
+public class MailMessage {
+
+    // Имя получателя
+    private final String recipientName;
+    // Адрес получателя
+    private final String recipientAddress;
+    // Тема письма
+    private final String title;
+    // Содержание письма (в HTML формате)
+    private final String content;
+
+    public MailMessage(String recipientName, String recipientAddress, String title, String content) {
+        this.recipientName = recipientName;
+        this.recipientAddress = recipientAddress;
+        this.title = title;
+        this.content = content;
+    }
+
+    public String getRecipientName() {
+        return recipientName;
+    }
+
+    public String getRecipientAddress() {
+        return recipientAddress;
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    public String getContent() {
+        return content;
+    }
+}
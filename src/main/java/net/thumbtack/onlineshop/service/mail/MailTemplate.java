@@ -0,0 +1,112 @@
+package net.thumbtack.onlineshop.service.mail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Шаблон письма
+ * <br>
+ * Шаблон разбирается один раз при создании: текст между параметрами {{name}} сохраняется
+ * как есть, а параметры заменяются номерами. При формировании письма части шаблона и значения
+ * параметров дописываются в переданный буфер без промежуточных строк. Строковые значения
+ * экранируются для HTML, числа записываются как есть.
+ */
+public class MailTemplate {
+
+    // Текст до каждого параметра и после последнего
+    private final String[] literals;
+    // Номер значения для каждого параметра
+    private final int[] parameters;
+
+    private MailTemplate(String[] literals, int[] parameters) {
+        this.literals = literals;
+        this.parameters = parameters;
+    }
+
+    /**
+     * Разбирает шаблон
+     *
+     * @param source     текст шаблона с параметрами {{name}}
+     * @param parameters имена параметров в порядке, в котором их значения передаются в render
+     * @return шаблон
+     * @throws IllegalArgumentException если в шаблоне есть неизвестный или незакрытый параметр
+     */
+    public static MailTemplate compile(String source, String... parameters) {
+        List<String> names = Arrays.asList(parameters);
+        List<String> literals = new ArrayList<>();
+        List<Integer> indexes = new ArrayList<>();
+
+        int position = 0;
+        int start;
+        while ((start = source.indexOf("{{", position)) >= 0) {
+            int end = source.indexOf("}}", start);
+            if (end < 0) {
+                throw new IllegalArgumentException("Unclosed template parameter at " + start);
+            }
+
+            String name = source.substring(start + 2, end).trim();
+            int index = names.indexOf(name);
+            if (index < 0) {
+                throw new IllegalArgumentException("Unknown template parameter: " + name);
+            }
+
+            literals.add(source.substring(position, start));
+            indexes.add(index);
+            position = end + 2;
+        }
+        literals.add(source.substring(position));
+
+        return new MailTemplate(
+                literals.toArray(new String[0]),
+                indexes.stream().mapToInt(Integer::intValue).toArray());
+    }
+
+    /**
+     * Дописывает письмо по шаблону в буфер
+     *
+     * @param out    буфер
+     * @param values значения параметров
+     */
+    public void render(StringBuilder out, Object... values) {
+        for (int i = 0; i < parameters.length; ++i) {
+            out.append(literals[i]);
+
+            Object value = values[parameters[i]];
+            if (value instanceof Integer || value instanceof Long) {
+                out.append(((Number) value).longValue());
+            } else {
+                escape(String.valueOf(value), out);
+            }
+        }
+        out.append(literals[parameters.length]);
+    }
+
+    /**
+     * Дописывает строку в буфер, заменяя специальные символы HTML
+     */
+    static void escape(String value, StringBuilder out) {
+        for (int i = 0; i < value.length(); ++i) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '&':
+                    out.append("&amp;");
+                    break;
+                case '<':
+                    out.append("&lt;");
+                    break;
+                case '>':
+                    out.append("&gt;");
+                    break;
+                case '"':
+                    out.append("&quot;");
+                    break;
+                case '\'':
+                    out.append("&#39;");
+                    break;
+                default:
+                    out.append(c);
+            }
+        }
+    }
+}
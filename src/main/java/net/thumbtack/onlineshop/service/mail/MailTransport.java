@@ -0,0 +1,29 @@
+package net.thumbtack.onlineshop.service.mail;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Способ отправки писем
+ * <br>
+ * Отправка не блокирует вызывающий поток: результат приходит в {@link CompletableFuture}.
+ */
+public interface MailTransport {
+
+    /**
+     * @return имя способа отправки (значение параметра mail_transport)
+     */
+    String getName();
+
+    /**
+     * @return true - если способ отправки настроен и письма можно отправлять
+     */
+    boolean isEnabled();
+
+    /**
+     * Начинает отправку письма
+     *
+     * @param message письмо
+     * @return результат отправки: завершается с {@link MailException}, если письмо не отправлено
+     */
+    CompletableFuture<Void> send(MailMessage message);
+}
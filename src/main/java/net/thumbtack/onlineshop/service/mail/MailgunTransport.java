@@ -0,0 +1,88 @@
+package net.thumbtack.onlineshop.service.mail;
+
+import kong.unirest.Config;
+import kong.unirest.UnirestInstance;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Отправка писем через Mailgun API
+ * <br>
+ * Запросы выполняются асинхронным HTTP клиентом: потоки сервера не ждут ответа Mailgun.
+ * У подключения и ожидания ответа есть таймауты. Ответы 429 и 5xx, а также ошибки сети
+ * считаются временными, и отправку можно повторить.
+ */
+@Component
+public class MailgunTransport implements MailTransport {
+
+    @Value("${mail_domain:#{null}}")
+    private String mailDomain;
+
+    @Value("${mail_api_key:#{null}}")
+    private String mailApiKey;
+
+    @Value("${mail_connect_timeout_ms:2000}")
+    private int connectTimeoutMs;
+
+    @Value("${mail_socket_timeout_ms:10000}")
+    private int socketTimeoutMs;
+
+    private UnirestInstance unirest;
+
+    @PostConstruct
+    public void start() {
+        unirest = new UnirestInstance(new Config()
+                .connectTimeout(connectTimeoutMs)
+                .socketTimeout(socketTimeoutMs));
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (unirest != null) {
+            unirest.shutDown(false);
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "mailgun";
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return mailDomain != null && mailApiKey != null;
+    }
+
+    @Override
+    public CompletableFuture<Void> send(MailMessage message) {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+
+        unirest.post("https://api.mailgun.net/v3/" + mailDomain + "/messages")
+                .basicAuth("api", mailApiKey)
+                .queryString("from", "Notifications <notifications@onlineshop.net>")
+                .queryString("to", message.getRecipientName() + " <" + message.getRecipientAddress() + ">")
+                .queryString("subject", message.getTitle())
+                .queryString("html", message.getContent())
+                .asEmptyAsync()
+                .whenComplete((response, error) -> {
+                    if (error != null) {
+                        result.completeExceptionally(new MailException("Mailgun request failed", error, true));
+                        return;
+                    }
+
+                    int status = response.getStatus();
+                    if (status >= 200 && status < 300) {
+                        result.complete(null);
+                    } else {
+                        result.completeExceptionally(new MailException(
+                                "Mailgun responded with status " + status, status == 429 || status >= 500));
+                    }
+                });
+
+        return result;
+    }
+}
@@ -0,0 +1,70 @@
+package net.thumbtack.onlineshop.service.mail;
+
+import net.thumbtack.onlineshop.domain.models.Purchase;
+
+import java.util.List;
+
+/**
+ * Формирует письма о покупках товаров
+ * <br>
+ * Шаблоны разбираются один раз при загрузке класса. Письмо собирается в буфере потока,
+ * который переиспользуется между письмами, поэтому на письмо создаётся только итоговая строка.
+ * Слишком выросший буфер (письмо с очень большим количеством покупок) не сохраняется,
+ * чтобы потоки не держали лишнюю память.
+ */
+public class PurchaseMailRenderer {
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final int MAX_BUFFER_SIZE = 256 * 1024;
+
+    private static final MailTemplate HEADER = MailTemplate.compile(
+            "<h4>{{title}}</h4>",
+            "title");
+
+    private static final MailTemplate ENTRY = MailTemplate.compile(
+            "<b>Товар:</b>{{name}}<br>" +
+            "<b>Количество:</b> {{count}}<br>" +
+            "<b>Цена за единицу:</b> {{price}}руб. <br>" +
+            "<hr>",
+            "name", "count", "price");
+
+    private static final MailTemplate FOOTER = MailTemplate.compile(
+            "<b>Общая сумма:</b> {{sum}} руб." +
+            "<br><br>" +
+            "<b>Спасибо за покупку!</b>",
+            "sum");
+
+    private static final ThreadLocal<StringBuilder> BUFFER =
+            ThreadLocal.withInitial(() -> new StringBuilder(BUFFER_SIZE));
+
+    private PurchaseMailRenderer() {
+    }
+
+    /**
+     * Формирует письмо со списком покупок и их общей суммой
+     *
+     * @param title     заголовок письма
+     * @param purchases список покупок
+     * @return содержание письма в HTML формате
+     */
+    public static String render(String title, List<Purchase> purchases) {
+        StringBuilder out = BUFFER.get();
+        out.setLength(0);
+
+        HEADER.render(out, title);
+
+        long sum = 0;
+        for (Purchase purchase : purchases) {
+            ENTRY.render(out, purchase.getProduct().getName(), purchase.getCount(), purchase.getPrice());
+            sum += (long) purchase.getCount() * purchase.getPrice();
+        }
+
+        FOOTER.render(out, sum);
+
+        String result = out.toString();
+        if (out.capacity() > MAX_BUFFER_SIZE) {
+            BUFFER.set(new StringBuilder(BUFFER_SIZE));
+        }
+        return result;
+    }
+}
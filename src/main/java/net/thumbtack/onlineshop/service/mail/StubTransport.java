@@ -0,0 +1,78 @@
+package net.thumbtack.onlineshop.service.mail;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Отправка писем без почтового сервиса (mail_transport = stub) для разработки и тестов
+ * <br>
+ * Последние mail_stub_capacity писем хранятся в памяти. Если указан файл mail_stub_file,
+ * то каждое письмо дописывается в него строкой "адрес | тема | содержание".
+ */
+@Component
+public class StubTransport implements MailTransport {
+
+    @Value("${mail_stub_capacity:100}")
+    private int capacity;
+
+    // Пустая строка - не записывать письма в файл
+    @Value("${mail_stub_file:}")
+    private String file;
+
+    private final Deque<MailMessage> messages = new ArrayDeque<>();
+
+    @Override
+    public String getName() {
+        return "stub";
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return true;
+    }
+
+    @Override
+    public CompletableFuture<Void> send(MailMessage message) {
+        synchronized (messages) {
+            messages.addLast(message);
+            while (messages.size() > capacity) {
+                messages.removeFirst();
+            }
+
+            if (!file.isEmpty()) {
+                String line = message.getRecipientAddress() + " | " + message.getTitle() + " | "
+                        + message.getContent().replace('\n', ' ') + "\n";
+                try {
+                    Files.write(Paths.get(file), line.getBytes(StandardCharsets.UTF_8),
+                            StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+                } catch (IOException e) {
+                    CompletableFuture<Void> result = new CompletableFuture<>();
+                    result.completeExceptionally(new MailException("Cannot write mail stub file", e, false));
+                    return result;
+                }
+            }
+        }
+
+        return CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * @return последние отправленные письма по порядку отправки
+     */
+    public List<MailMessage> getMessages() {
+        synchronized (messages) {
+            return new ArrayList<>(messages);
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package net.thumbtack.onlineshop.service.metrics;
+
+import net.thumbtack.onlineshop.domain.dao.SessionDao;
+import net.thumbtack.onlineshop.service.GeneralService;
+import net.thumbtack.onlineshop.service.ServiceException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Сервис, который собирает метрики всех компонентов сервера
+ */
+@Service
+public class MetricsService extends GeneralService {
+
+    private List<MetricsSource> sources;
+
+    @Autowired
+    public MetricsService(SessionDao sessionDao, List<MetricsSource> sources) {
+        super(sessionDao);
+        this.sources = sources;
+    }
+
+    /**
+     * Получает текущие метрики сервера
+     *
+     * @param sessionId сессия администратора
+     * @return метрики, сгруппированные по компонентам сервера
+     * @throws ServiceException если пользователь не является администратором
+     */
+    public Map<String, Map<String, Number>> getMetrics(String sessionId) throws ServiceException {
+
+        getAdmin(sessionId);
+
+        Map<String, Map<String, Number>> result = new TreeMap<>();
+        sources.forEach(source -> result.put(source.getMetricsName(), new TreeMap<>(source.getMetrics())));
+
+        return result;
+    }
+
+}
@@ -0,0 +1,21 @@
+package net.thumbtack.onlineshop.service.metrics;
+
+import java.util.Map;
+
+/**
+ * Компонент сервера, который публикует свои метрики
+ * (размеры очередей, количество обработанных запросов и т.п.)
+ */
+public interface MetricsSource {
+
+    /**
+     * @return имя группы метрик
+     */
+    String getMetricsName();
+
+    /**
+     * @return текущие значения метрик (имя метрики - значение)
+     */
+    Map<String, Number> getMetrics();
+
+}
@@ -0,0 +1,76 @@
+package net.thumbtack.onlineshop.service.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Счётчик событий в скользящем окне из нескольких последних секунд
+ * <br>
+ * Используется для подсчёта пропускной способности и частоты запросов.
+ * Счётчик потокобезопасный и не использует блокировок.
+ */
+public class RateCounter {
+
+    // Количество событий в каждой секунде окна
+    private final AtomicLongArray counts;
+    // Номер секунды, к которой относится каждая ячейка окна
+    private final AtomicLongArray seconds;
+
+    /**
+     * @param windowSeconds размер окна в секундах
+     */
+    public RateCounter(int windowSeconds) {
+        counts = new AtomicLongArray(windowSeconds);
+        seconds = new AtomicLongArray(windowSeconds);
+    }
+
+    /**
+     * Отмечает одно событие
+     */
+    public void increment() {
+        add(1);
+    }
+
+    /**
+     * Отмечает несколько событий
+     *
+     * @param events количество событий
+     */
+    public void add(long events) {
+        add(events, System.currentTimeMillis());
+    }
+
+    /**
+     * @return среднее количество событий в секунду за всё окно
+     */
+    public double getRate() {
+        return getRate(System.currentTimeMillis());
+    }
+
+    void add(long events, long now) {
+        long second = now / 1000;
+        int index = (int) (second % counts.length());
+
+        // Ячейка принадлежит старой секунде - начинаем считать заново
+        long stored = seconds.get(index);
+        if (stored != second && seconds.compareAndSet(index, stored, second)) {
+            counts.set(index, 0);
+        }
+
+        counts.addAndGet(index, events);
+    }
+
+    double getRate(long now) {
+        long second = now / 1000;
+        long total = 0;
+
+        for (int i = 0; i < counts.length(); ++i) {
+            // Учитываем только ячейки, которые относятся к окну
+            if (second - seconds.get(i) < counts.length()) {
+                total += counts.get(i);
+            }
+        }
+
+        return (double) total / counts.length();
+    }
+
+}
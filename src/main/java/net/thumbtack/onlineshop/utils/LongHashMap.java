@@ -0,0 +1,153 @@
+package net.thumbtack.onlineshop.utils;
+
+/**
+ * Хэш-таблица с ключами типа long
+ * <br>
+ * В отличие от HashMap ключи не упаковываются в Long, а сама таблица хранится в двух массивах
+ * (открытая адресация с линейным пробированием). Удаление ключей не поддерживается.
+ * Таблица не потокобезопасная, значения не могут быть null.
+ *
+ * @param <V> тип значений
+ */
+public class LongHashMap<V> {
+
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] keys;
+    private Object[] values;
+    private int size;
+    private int mask;
+
+    public LongHashMap() {
+        this(MIN_CAPACITY);
+    }
+
+    /**
+     * @param expectedSize ожидаемое количество ключей
+     */
+    public LongHashMap(int expectedSize) {
+        // Таблица заполняется не больше чем наполовину
+        int capacity = MIN_CAPACITY;
+        while (capacity < expectedSize * 2) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    /**
+     * Получает значение по ключу
+     *
+     * @param key ключ
+     * @return значение или null, если ключа нет
+     */
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        int index = index(key);
+
+        while (values[index] != null) {
+            if (keys[index] == key) {
+                return (V) values[index];
+            }
+            index = (index + 1) & mask;
+        }
+
+        return null;
+    }
+
+    /**
+     * @param key ключ
+     * @return true - если ключ есть в таблице
+     */
+    public boolean containsKey(long key) {
+        return get(key) != null;
+    }
+
+    /**
+     * Добавляет или заменяет значение по ключу
+     *
+     * @param key   ключ
+     * @param value значение
+     * @return предыдущее значение или null
+     */
+    @SuppressWarnings("unchecked")
+    public V put(long key, V value) {
+        if (value == null) {
+            throw new IllegalArgumentException("value");
+        }
+
+        int index = index(key);
+
+        while (values[index] != null) {
+            if (keys[index] == key) {
+                V previous = (V) values[index];
+                values[index] = value;
+                return previous;
+            }
+            index = (index + 1) & mask;
+        }
+
+        keys[index] = key;
+        values[index] = value;
+
+        if (++size * 2 > keys.length) {
+            resize();
+        }
+
+        return null;
+    }
+
+    /**
+     * Добавляет значение, если ключа ещё нет в таблице
+     *
+     * @param key   ключ
+     * @param value значение
+     * @return значение, которое уже было в таблице, или null, если значение добавлено
+     */
+    public V putIfAbsent(long key, V value) {
+        V current = get(key);
+        if (current != null) {
+            return current;
+        }
+
+        put(key, value);
+        return null;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    private void resize() {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+
+        allocate(keys.length * 2);
+
+        for (int i = 0; i < oldKeys.length; ++i) {
+            if (oldValues[i] != null) {
+                int index = index(oldKeys[i]);
+                while (values[index] != null) {
+                    index = (index + 1) & mask;
+                }
+                keys[index] = oldKeys[i];
+                values[index] = oldValues[i];
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+    }
+
+    private int index(long key) {
+        // Перемешиваем биты, чтобы последовательные id не шли подряд
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32)) & mask;
+    }
+}
@@ -0,0 +1,151 @@
+package net.thumbtack.onlineshop.utils;
+
+/**
+ * Хэш-таблица сумм с ключами и значениями типа long
+ * <br>
+ * Как и {@link LongHashMap}, хранится в массивах без упаковки ключей и значений
+ * (открытая адресация с линейным пробированием). Используется для группировки:
+ * значения по одному ключу складываются. Таблица не потокобезопасная.
+ */
+public class LongLongHashMap {
+
+    private static final int MIN_CAPACITY = 16;
+
+    /**
+     * Обработчик пар ключ - значение
+     */
+    @FunctionalInterface
+    public interface Consumer {
+        void accept(long key, long value);
+    }
+
+    private long[] keys;
+    private long[] values;
+    private boolean[] used;
+    private int size;
+    private int mask;
+
+    public LongLongHashMap() {
+        this(MIN_CAPACITY);
+    }
+
+    /**
+     * @param expectedSize ожидаемое количество ключей
+     */
+    public LongLongHashMap(int expectedSize) {
+        // Таблица заполняется не больше чем наполовину
+        int capacity = MIN_CAPACITY;
+        while (capacity < expectedSize * 2) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    /**
+     * Получает значение по ключу
+     *
+     * @param key ключ
+     * @return значение или 0, если ключа нет
+     */
+    public long get(long key) {
+        int index = index(key);
+
+        while (used[index]) {
+            if (keys[index] == key) {
+                return values[index];
+            }
+            index = (index + 1) & mask;
+        }
+
+        return 0;
+    }
+
+    /**
+     * Прибавляет число к значению по ключу. Если ключа нет, то добавляет его со значением delta.
+     *
+     * @param key   ключ
+     * @param delta слагаемое
+     */
+    public void add(long key, long delta) {
+        int index = index(key);
+
+        while (used[index]) {
+            if (keys[index] == key) {
+                values[index] += delta;
+                return;
+            }
+            index = (index + 1) & mask;
+        }
+
+        used[index] = true;
+        keys[index] = key;
+        values[index] = delta;
+
+        if (++size * 2 > keys.length) {
+            resize();
+        }
+    }
+
+    /**
+     * Прибавляет к этой таблице все значения другой таблицы
+     *
+     * @param other другая таблица
+     */
+    public void addAll(LongLongHashMap other) {
+        other.forEach(this::add);
+    }
+
+    /**
+     * Передаёт обработчику все пары ключ - значение в произвольном порядке
+     *
+     * @param consumer обработчик
+     */
+    public void forEach(Consumer consumer) {
+        for (int i = 0; i < keys.length; ++i) {
+            if (used[i]) {
+                consumer.accept(keys[i], values[i]);
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    private void resize() {
+        long[] oldKeys = keys;
+        long[] oldValues = values;
+        boolean[] oldUsed = used;
+
+        allocate(keys.length * 2);
+
+        for (int i = 0; i < oldKeys.length; ++i) {
+            if (oldUsed[i]) {
+                int index = index(oldKeys[i]);
+                while (used[index]) {
+                    index = (index + 1) & mask;
+                }
+                used[index] = true;
+                keys[index] = oldKeys[i];
+                values[index] = oldValues[i];
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new long[capacity];
+        used = new boolean[capacity];
+        mask = capacity - 1;
+    }
+
+    private int index(long key) {
+        // Перемешиваем биты, чтобы последовательные id не шли подряд
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32)) & mask;
+    }
+}
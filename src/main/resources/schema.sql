@@ -37,9 +37,11 @@ CREATE TABLE IF NOT EXISTS `basket`
     `count`      int(11)    NOT NULL DEFAULT '0',
     `account_id` bigint(20)          DEFAULT NULL,
     `product_id` bigint(20)          DEFAULT NULL,
+    `touched`    datetime   NOT NULL DEFAULT CURRENT_TIMESTAMP,
     PRIMARY KEY (`id`),
-    KEY `k_account` (`account_id`),
+    UNIQUE KEY `k_account_product` (`account_id`, `product_id`),
     KEY `k_product` (`product_id`),
+    KEY `k_touched` (`touched`),
     CONSTRAINT `fk_basket_product_id` FOREIGN KEY (`product_id`) REFERENCES `product` (`id`) ON DELETE CASCADE,
     CONSTRAINT `fk_basket_account_id` FOREIGN KEY (`account_id`) REFERENCES `account` (`id`) ON DELETE CASCADE
 ) ENGINE = InnoDB
@@ -64,7 +66,7 @@ CREATE TABLE IF NOT EXISTS `productcategory`
     `category_id` bigint(20) DEFAULT NULL,
     `product_id`  bigint(20) DEFAULT NULL,
     PRIMARY KEY (`id`),
-    KEY `k_category` (`category_id`),
+    KEY `k_category` (`category_id`, `product_id`),
     KEY `k_product` (`product_id`),
     CONSTRAINT `fk_productcategory_product_id` FOREIGN KEY (`product_id`) REFERENCES `product` (`id`) ON DELETE CASCADE,
     CONSTRAINT `fk_productcategory_category_id` FOREIGN KEY (`category_id`) REFERENCES `category` (`id`) ON DELETE CASCADE
@@ -81,14 +83,36 @@ CREATE TABLE IF NOT EXISTS `purchase`
     `account_id` bigint(20) DEFAULT NULL,
     `product_id` bigint(20) DEFAULT NULL,
     PRIMARY KEY (`id`),
-    KEY `k_account` (`account_id`),
-    KEY `k_product` (`product_id`),
+    KEY `k_account` (`account_id`, `id`),
+    KEY `k_product` (`product_id`, `id`),
+    KEY `k_date_product` (`date`, `product_id`),
+    KEY `k_date_account` (`date`, `account_id`),
     CONSTRAINT `fk_purchase_product_id` FOREIGN KEY (`product_id`) REFERENCES `product` (`id`) ON DELETE CASCADE,
     CONSTRAINT `fk_purchase_account_id` FOREIGN KEY (`account_id`) REFERENCES `account` (`id`) ON DELETE CASCADE
 ) ENGINE = InnoDB
   AUTO_INCREMENT = 4
   DEFAULT CHARSET = utf8;
 
+CREATE TABLE IF NOT EXISTS `purchase_archive`
+(
+    `id`         bigint(20) NOT NULL,
+    `count`      int(11)    NOT NULL,
+    `date`       datetime   NOT NULL,
+    `price`      int(11)    NOT NULL,
+    `account_id` bigint(20) DEFAULT NULL,
+    `product_id` bigint(20) DEFAULT NULL,
+    PRIMARY KEY (`id`),
+    KEY `k_account` (`account_id`, `id`),
+    KEY `k_product` (`product_id`, `id`),
+    KEY `k_date_product` (`date`, `product_id`),
+    KEY `k_date_account` (`date`, `account_id`),
+    CONSTRAINT `fk_purchase_archive_product_id` FOREIGN KEY (`product_id`) REFERENCES `product` (`id`) ON DELETE CASCADE,
+    CONSTRAINT `fk_purchase_archive_account_id` FOREIGN KEY (`account_id`) REFERENCES `account` (`id`) ON DELETE CASCADE
+) ENGINE = InnoDB
+  ROW_FORMAT = COMPRESSED
+  KEY_BLOCK_SIZE = 8
+  DEFAULT CHARSET = utf8;
+
 CREATE TABLE IF NOT EXISTS `session`
 (
     `id`         bigint(20) NOT NULL AUTO_INCREMENT,
@@ -100,4 +124,76 @@ CREATE TABLE IF NOT EXISTS `session`
     CONSTRAINT `fk_session_account_id` FOREIGN KEY (`account_id`) REFERENCES `account` (`id`) ON DELETE CASCADE
 ) ENGINE = InnoDB
   AUTO_INCREMENT = 5
-  DEFAULT CHARSET = utf8;
\ No newline at end of file
+  DEFAULT CHARSET = utf8;
+
+CREATE TABLE IF NOT EXISTS `idempotency`
+(
+    `id`              bigint(20)   NOT NULL AUTO_INCREMENT,
+    `idempotency_key` varchar(128) NOT NULL,
+    `account_id`      bigint(20)   DEFAULT NULL,
+    `response_type`   varchar(255) NOT NULL,
+    `fingerprint`     varchar(64)  DEFAULT NULL,
+    `response`        longtext,
+    `error_code`      varchar(255) DEFAULT NULL,
+    `error_field`     varchar(255) DEFAULT NULL,
+    `created`         datetime     NOT NULL,
+    PRIMARY KEY (`id`),
+    UNIQUE KEY `k_account_key` (`account_id`, `idempotency_key`),
+    KEY `k_created` (`created`),
+    CONSTRAINT `fk_idempotency_account_id` FOREIGN KEY (`account_id`) REFERENCES `account` (`id`) ON DELETE CASCADE
+) ENGINE = InnoDB
+  DEFAULT CHARSET = utf8;
+
+CREATE TABLE IF NOT EXISTS `deposit_entry`
+(
+    `id`         bigint(20)  NOT NULL AUTO_INCREMENT,
+    `account_id` bigint(20)  DEFAULT NULL,
+    `amount`     int(11)     NOT NULL,
+    `type`       varchar(16) NOT NULL,
+    `created`    datetime    NOT NULL,
+    PRIMARY KEY (`id`),
+    KEY `k_account_entry` (`account_id`, `id`),
+    KEY `k_created` (`created`),
+    CONSTRAINT `fk_deposit_entry_account_id` FOREIGN KEY (`account_id`) REFERENCES `account` (`id`) ON DELETE CASCADE
+) ENGINE = InnoDB
+  DEFAULT CHARSET = utf8;
+
+CREATE TABLE IF NOT EXISTS `deposit_snapshot`
+(
+    `account_id` bigint(20) NOT NULL,
+    `balance`    int(11)    NOT NULL,
+    `entry_id`   bigint(20) NOT NULL DEFAULT '0',
+    PRIMARY KEY (`account_id`),
+    CONSTRAINT `fk_deposit_snapshot_account_id` FOREIGN KEY (`account_id`) REFERENCES `account` (`id`) ON DELETE CASCADE
+) ENGINE = InnoDB
+  DEFAULT CHARSET = utf8;
+
+CREATE TABLE IF NOT EXISTS `sales_rollup`
+(
+    `id`        bigint(20)  NOT NULL AUTO_INCREMENT,
+    `dimension` varchar(16) NOT NULL,
+    `period`    varchar(16) NOT NULL,
+    `key_id`    bigint(20)  NOT NULL,
+    `bucket`    datetime    NOT NULL,
+    `count`     bigint(20)  NOT NULL,
+    `amount`    bigint(20)  NOT NULL,
+    PRIMARY KEY (`id`),
+    UNIQUE KEY `k_rollup` (`dimension`, `period`, `key_id`, `bucket`),
+    KEY `k_bucket` (`dimension`, `period`, `bucket`)
+) ENGINE = InnoDB
+  DEFAULT CHARSET = utf8;
+
+CREATE TABLE IF NOT EXISTS `outbox`
+(
+    `id`            bigint(20)  NOT NULL AUTO_INCREMENT,
+    `type`          varchar(16) NOT NULL,
+    `account_id`    bigint(20)  NOT NULL,
+    `purchases`     longtext    NOT NULL,
+    `created`       datetime    NOT NULL,
+    `owner`         varchar(36) DEFAULT NULL,
+    `claimed_until` datetime    DEFAULT NULL,
+    PRIMARY KEY (`id`),
+    KEY `k_owner` (`owner`),
+    CONSTRAINT `fk_outbox_account_id` FOREIGN KEY (`account_id`) REFERENCES `account` (`id`) ON DELETE CASCADE
+) ENGINE = InnoDB
+  DEFAULT CHARSET = utf8;
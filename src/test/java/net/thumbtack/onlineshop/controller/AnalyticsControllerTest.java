@@ -0,0 +1,53 @@
+package net.thumbtack.onlineshop.controller;
+
+import net.thumbtack.onlineshop.dto.AnalyticsDto;
+import net.thumbtack.onlineshop.service.PurchaseAnalytics;
+import net.thumbtack.onlineshop.service.ServiceException;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.Collections;
+
+import static junit.framework.TestCase.assertEquals;
+import static org.mockito.Mockito.when;
+
+public class AnalyticsControllerTest {
+
+    private AnalyticsController controller;
+
+    @Mock
+    private PurchaseAnalytics mockAnalytics;
+
+    @Before
+    public void setUpClass() {
+        MockitoAnnotations.initMocks(this);
+
+        controller = new AnalyticsController(mockAnalytics);
+    }
+
+    @Test
+    public void testGetTopProducts() throws ServiceException {
+        AnalyticsDto expected = new AnalyticsDto(Collections.emptyList());
+        when(mockAnalytics.getTopProducts("token", 5, "2019-07-01", null)).thenReturn(expected);
+
+        assertEquals(expected, controller.getTopProducts("token", 5, "2019-07-01", null));
+    }
+
+    @Test
+    public void testGetTopClients() throws ServiceException {
+        AnalyticsDto expected = new AnalyticsDto(Collections.emptyList());
+        when(mockAnalytics.getTopClients("token", 10, null, "2019-08-01")).thenReturn(expected);
+
+        assertEquals(expected, controller.getTopClients("token", 10, null, "2019-08-01"));
+    }
+
+    @Test
+    public void testGetCategoriesByWeek() throws ServiceException {
+        AnalyticsDto expected = new AnalyticsDto(Collections.emptyList());
+        when(mockAnalytics.getCategoriesByWeek("token", "2019-07-01", "2019-08-01")).thenReturn(expected);
+
+        assertEquals(expected, controller.getCategoriesByWeek("token", "2019-07-01", "2019-08-01"));
+    }
+}
@@ -1,12 +1,11 @@
 package net.thumbtack.onlineshop.controller;
 
-import net.thumbtack.onlineshop.domain.models.Account;
 import net.thumbtack.onlineshop.dto.AccountDto;
 import net.thumbtack.onlineshop.dto.DepositDto;
 import net.thumbtack.onlineshop.dto.ProductDto;
+import net.thumbtack.onlineshop.dto.BasketDeltaDto;
 import net.thumbtack.onlineshop.dto.ResultBasketDto;
 import net.thumbtack.onlineshop.dto.validation.ValidationException;
-import net.thumbtack.onlineshop.service.AccountService;
 import net.thumbtack.onlineshop.service.ClientService;
 import org.junit.Before;
 import org.junit.Test;
@@ -29,9 +28,6 @@ public class ClientControllerTest {
     @Mock
     private ClientService mockClientService;
 
-    @Mock
-    private AccountService mockAccountService;
-
     @Mock
     private BindingResult mockResult;
 
@@ -39,7 +35,7 @@ public class ClientControllerTest {
     public void setUpClass() {
         MockitoAnnotations.initMocks(this);
 
-        controller = new ClientController(mockClientService, mockAccountService);
+        controller = new ClientController(mockClientService);
     }
 
     @Test
@@ -75,16 +71,15 @@ public class ClientControllerTest {
     @Test
     public void testGetDeposit() throws Exception {
 
-        Account account = new Account();
-        account.setFirstName("Vadim");
-        account.setLastName("Gush");
+        AccountDto expected = new AccountDto();
+        expected.setDeposit(100);
 
-        when(mockAccountService.getAccount("token")).thenReturn(account);
+        when(mockClientService.getDeposit("token")).thenReturn(expected);
 
         AccountDto result = controller.getDeposit("token");
 
-        assertEquals(account.getFirstName(), result.getFirstName());
-        assertEquals(account.getLastName(), result.getLastName());
+        verify(mockClientService).getDeposit("token");
+        assertEquals(expected, result);
 
     }
 
@@ -94,12 +89,12 @@ public class ClientControllerTest {
         ProductDto product = new ProductDto();
         ProductDto expected = new ProductDto();
         when(mockResult.hasErrors()).thenReturn(false);
-        when(mockClientService.buyProduct("token", product))
+        when(mockClientService.buyProduct("token", product, "key"))
                 .thenReturn(expected);
 
-        ProductDto result = controller.buyProduct("token", product, mockResult);
+        ProductDto result = controller.buyProduct("token", "key", product, mockResult);
 
-        verify(mockClientService).buyProduct("token", product);
+        verify(mockClientService).buyProduct("token", product, "key");
         assertEquals(1, (int)product.getCount());
         assertEquals(expected, result);
 
@@ -112,9 +107,9 @@ public class ClientControllerTest {
         when(mockResult.hasErrors()).thenReturn(true);
 
         try {
-            controller.buyProduct("token", product, mockResult);
+            controller.buyProduct("token", "key", product, mockResult);
         } catch (ValidationException e) {
-            verify(mockClientService, never()).buyProduct(any(), any());
+            verify(mockClientService, never()).buyProduct(any(), any(), any());
             throw e;
         }
     }
@@ -137,6 +132,24 @@ public class ClientControllerTest {
 
     }
 
+    @Test
+    public void testAddToBasketDelta() throws Exception {
+
+        ProductDto product = new ProductDto();
+        BasketDeltaDto expected = new BasketDeltaDto();
+
+        when(mockResult.hasErrors()).thenReturn(false);
+        when(mockClientService.addToBasketDelta("token", product))
+                .thenReturn(expected);
+
+        BasketDeltaDto result = controller.addToBasketDelta("token", product, mockResult);
+
+        verify(mockClientService).addToBasketDelta("token", product);
+        verify(mockClientService, never()).addToBasket(any(), any());
+        assertEquals(expected, result);
+        assertEquals(1, (int)product.getCount());
+    }
+
     @Test(expected = ValidationException.class)
     public void testAddToBasketValidation() throws Exception {
 
@@ -176,6 +189,21 @@ public class ClientControllerTest {
         assertEquals(expected, result);
     }
 
+    @Test
+    public void testEditProductCountDelta() throws Exception {
+
+        ProductDto product = new ProductDto();
+        BasketDeltaDto expected = new BasketDeltaDto();
+        when(mockResult.hasErrors()).thenReturn(false);
+        when(mockClientService.editProductCountDelta("token", product))
+                .thenReturn(expected);
+
+        BasketDeltaDto result = controller.editProductCountDelta("token", product, mockResult);
+
+        verify(mockClientService).editProductCountDelta("token", product);
+        assertEquals(expected, result);
+    }
+
     @Test(expected = ValidationException.class)
     public void testEditProductCountValidation() throws Exception {
 
@@ -201,17 +229,29 @@ public class ClientControllerTest {
         assertEquals(expected, result);
     }
 
+    @Test
+    public void testGetBasketDelta() throws Exception {
+        BasketDeltaDto expected = new BasketDeltaDto();
+
+        when(mockClientService.getBasketDelta("token", 10L)).thenReturn(expected);
+
+        BasketDeltaDto result = controller.getBasketDelta("token", 10L);
+
+        verify(mockClientService).getBasketDelta("token", 10L);
+        assertEquals(expected, result);
+    }
+
     @Test
     public void testBuyBasket() throws Exception {
         List<ProductDto> buy = new ArrayList<>();
         ResultBasketDto expected = new ResultBasketDto();
         when(mockResult.hasErrors()).thenReturn(false);
-        when(mockClientService.buyBasket("token", buy))
+        when(mockClientService.buyBasket("token", buy, null))
                 .thenReturn(expected);
 
-        ResultBasketDto result = controller.buyBasket("token", buy, mockResult);
+        ResultBasketDto result = controller.buyBasket("token", null, buy, mockResult);
 
-        verify(mockClientService).buyBasket("token", buy);
+        verify(mockClientService).buyBasket("token", buy, null);
         assertEquals(expected, result);
     }
 
@@ -221,9 +261,9 @@ public class ClientControllerTest {
         when(mockResult.hasErrors()).thenReturn(true);
 
         try {
-            controller.buyBasket("token", null, mockResult);
+            controller.buyBasket("token", null, null, mockResult);
         } catch (ValidationException e) {
-            verify(mockClientService, never()).buyBasket(any(), any());
+            verify(mockClientService, never()).buyBasket(any(), any(), any());
             throw e;
         }
     }
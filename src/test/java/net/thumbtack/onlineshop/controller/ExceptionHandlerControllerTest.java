@@ -0,0 +1,48 @@
+package net.thumbtack.onlineshop.controller;
+
+import net.thumbtack.onlineshop.dto.ErrorDto;
+import net.thumbtack.onlineshop.service.ServiceException;
+import org.junit.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+
+import static junit.framework.TestCase.assertEquals;
+
+public class ExceptionHandlerControllerTest {
+
+    private ExceptionHandlerController controller = new ExceptionHandlerController();
+
+    @Test
+    public void testHandleServiceException() {
+        ResponseEntity<ErrorDto> response = controller.handleServiceException(
+                new ServiceException(ServiceException.ErrorCode.NOT_ENOUGH_MONEY)
+        );
+
+        assertEquals(HttpStatus.BAD_REQUEST, response.getStatusCode());
+        assertEquals(1, response.getBody().getErrors().size());
+    }
+
+    /**
+     * Ключ идемпотентности, использованный для другого запроса
+     */
+    @Test
+    public void testHandleIdempotencyKeyReused() {
+        ResponseEntity<ErrorDto> response = controller.handleServiceException(
+                new ServiceException(ServiceException.ErrorCode.IDEMPOTENCY_KEY_REUSED, "Idempotency-Key")
+        );
+
+        assertEquals(HttpStatus.UNPROCESSABLE_ENTITY, response.getStatusCode());
+    }
+
+    /**
+     * Запрос с этим ключом ещё выполняется
+     */
+    @Test
+    public void testHandleIdempotencyInProgress() {
+        ResponseEntity<ErrorDto> response = controller.handleServiceException(
+                new ServiceException(ServiceException.ErrorCode.IDEMPOTENCY_IN_PROGRESS, "Idempotency-Key")
+        );
+
+        assertEquals(HttpStatus.CONFLICT, response.getStatusCode());
+    }
+}
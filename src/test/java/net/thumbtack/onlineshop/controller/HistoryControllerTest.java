@@ -0,0 +1,62 @@
+package net.thumbtack.onlineshop.controller;
+
+import net.thumbtack.onlineshop.dto.AnalyticsDto;
+import net.thumbtack.onlineshop.dto.PurchasesDto;
+import net.thumbtack.onlineshop.service.PurchaseHistory;
+import net.thumbtack.onlineshop.service.ServiceException;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.Collections;
+
+import static junit.framework.TestCase.assertEquals;
+import static org.mockito.Mockito.when;
+
+public class HistoryControllerTest {
+
+    private HistoryController controller;
+
+    @Mock
+    private PurchaseHistory mockHistory;
+
+    @Before
+    public void setUpClass() {
+        MockitoAnnotations.initMocks(this);
+
+        controller = new HistoryController(mockHistory);
+    }
+
+    @Test
+    public void testGetTotals() throws ServiceException {
+        PurchasesDto expected = new PurchasesDto();
+        when(mockHistory.getTotals("token", "2018-01-01", null)).thenReturn(expected);
+
+        assertEquals(expected, controller.getTotals("token", "2018-01-01", null));
+    }
+
+    @Test
+    public void testGetTopProducts() throws ServiceException {
+        AnalyticsDto expected = new AnalyticsDto(Collections.emptyList());
+        when(mockHistory.getTopProducts("token", 5, null, "2019-01-01")).thenReturn(expected);
+
+        assertEquals(expected, controller.getTopProducts("token", 5, null, "2019-01-01"));
+    }
+
+    @Test
+    public void testGetTopClients() throws ServiceException {
+        AnalyticsDto expected = new AnalyticsDto(Collections.emptyList());
+        when(mockHistory.getTopClients("token", 10, null, null)).thenReturn(expected);
+
+        assertEquals(expected, controller.getTopClients("token", 10, null, null));
+    }
+
+    @Test
+    public void testGetClientPurchases() throws ServiceException {
+        PurchasesDto expected = new PurchasesDto();
+        when(mockHistory.getClientPurchases("token", 3L, 100, "2018-01-01", "2019-01-01")).thenReturn(expected);
+
+        assertEquals(expected, controller.getClientPurchases("token", 3L, 100, "2018-01-01", "2019-01-01"));
+    }
+}
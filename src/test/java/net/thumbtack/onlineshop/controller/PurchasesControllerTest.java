@@ -1,18 +1,24 @@
 package net.thumbtack.onlineshop.controller;
 
 import net.thumbtack.onlineshop.dto.PurchasesDto;
+import net.thumbtack.onlineshop.service.PurchaseExport;
 import net.thumbtack.onlineshop.service.PurchasesService;
 import net.thumbtack.onlineshop.service.ServiceException;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import java.io.ByteArrayOutputStream;
 import java.util.Arrays;
 import java.util.List;
 
 import static junit.framework.TestCase.assertEquals;
-import static org.mockito.Mockito.when;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
 
 public class PurchasesControllerTest {
 
@@ -39,11 +45,11 @@ public class PurchasesControllerTest {
         List<Long> categories = Arrays.asList(1L, 2L, 3L);
         List<Long> ids = Arrays.asList(1L, 3L);
 
-        when(mockService.getPurchases("token", PurchasesService.Target.CLIENT, 5, 10, ids, categories))
+        when(mockService.getPurchases("token", PurchasesService.Target.CLIENT, 5, 10, ids, categories, null, null, null))
                 .thenReturn(expected);
 
         PurchasesDto result = controller.getPurchases(
-                "token", "werew", 5, 10, ids, categories);
+                "token", "werew", 5, 10, ids, categories, null, null, null);
 
         assertEquals(expected, result);
     }
@@ -58,11 +64,11 @@ public class PurchasesControllerTest {
         List<Long> categories = Arrays.asList(1L, 2L, 3L);
         List<Long> ids = Arrays.asList(1L, 3L);
 
-        when(mockService.getPurchases("token", PurchasesService.Target.CLIENT, 5, 10, ids, categories))
+        when(mockService.getPurchases("token", PurchasesService.Target.CLIENT, 5, 10, ids, categories, null, null, null))
                 .thenReturn(expected);
 
         PurchasesDto result = controller.getPurchases(
-                "token", "client", 5, 10, ids, categories);
+                "token", "client", 5, 10, ids, categories, null, null, null);
 
         assertEquals(expected, result);
     }
@@ -77,11 +83,11 @@ public class PurchasesControllerTest {
         List<Long> categories = Arrays.asList(1L, 2L, 3L);
         List<Long> ids = Arrays.asList(1L, 3L);
 
-        when(mockService.getPurchases("token", PurchasesService.Target.PRODUCT, 5, 10, ids, categories))
+        when(mockService.getPurchases("token", PurchasesService.Target.PRODUCT, 5, 10, ids, categories, null, "2019-07-01", "2019-07-02"))
                 .thenReturn(expected);
 
         PurchasesDto result = controller.getPurchases(
-                "token", "product", 5, 10, ids, categories);
+                "token", "product", 5, 10, ids, categories, null, "2019-07-01", "2019-07-02");
 
         assertEquals(expected, result);
     }
@@ -97,11 +103,11 @@ public class PurchasesControllerTest {
         List<Long> categories = Arrays.asList(1L, 2L, 3L);
         List<Long> ids = Arrays.asList(1L, 3L);
 
-        when(mockService.getPurchases("token", PurchasesService.Target.PRODUCT, 5, 10, ids, categories))
+        when(mockService.getPurchases("token", PurchasesService.Target.PRODUCT, 5, 10, ids, categories, null, null, null))
                 .thenThrow(exception);
 
         try {
-            controller.getPurchases("token", "product", 5, 10, ids, categories);
+            controller.getPurchases("token", "product", 5, 10, ids, categories, null, null, null);
         } catch (ServiceException e) {
             assertEquals(exception, e);
             throw e;
@@ -109,4 +115,30 @@ public class PurchasesControllerTest {
 
     }
 
+    /**
+     * Выгрузка истории покупок отдаётся потоком
+     */
+    @Test
+    public void testExportPurchases() throws Exception {
+        List<Long> clients = Arrays.asList(1L, 3L);
+
+        PurchaseExport export = mock(PurchaseExport.class);
+        when(export.getFormat()).thenReturn(PurchaseExport.Format.CSV);
+        when(mockService.export("token", "csv", clients, null, null, "2019-07-01", null))
+                .thenReturn(export);
+
+        ResponseEntity<StreamingResponseBody> result = controller.exportPurchases(
+                "token", "csv", clients, null, null, "2019-07-01", null);
+
+        assertEquals("text/csv;charset=UTF-8", result.getHeaders().getContentType().toString());
+        assertEquals("attachment; filename=purchases.csv",
+                result.getHeaders().getFirst(HttpHeaders.CONTENT_DISPOSITION));
+
+        // Выборка пишется в поток ответа только после возврата из контроллера
+        verify(export, never()).writeTo(any());
+
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        result.getBody().writeTo(stream);
+        verify(export).writeTo(stream);
+    }
 }
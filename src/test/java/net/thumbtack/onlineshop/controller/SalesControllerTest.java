@@ -0,0 +1,48 @@
+package net.thumbtack.onlineshop.controller;
+
+import net.thumbtack.onlineshop.dto.SalesDto;
+import net.thumbtack.onlineshop.service.SalesRollupService;
+import net.thumbtack.onlineshop.service.ServiceException;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static junit.framework.TestCase.assertEquals;
+import static org.mockito.Mockito.when;
+
+public class SalesControllerTest {
+
+    private SalesController controller;
+
+    @Mock
+    private SalesRollupService mockService;
+
+    @Before
+    public void setUpClass() {
+        MockitoAnnotations.initMocks(this);
+
+        controller = new SalesController(mockService);
+    }
+
+    @Test
+    public void testGetSales() throws ServiceException {
+        SalesDto expected = new SalesDto();
+        List<Long> ids = Arrays.asList(1L, 3L);
+
+        when(mockService.getSales("token", "product", "hour", ids, "2019-07-01", "2019-07-02"))
+                .thenReturn(expected);
+
+        assertEquals(expected, controller.getSales("token", "product", "hour", ids, "2019-07-01", "2019-07-02"));
+    }
+
+    @Test
+    public void testRebuild() throws ServiceException {
+        when(mockService.rebuild("token", "2019-07-01", "2019-08-01")).thenReturn(10);
+
+        assertEquals(10, (int) controller.rebuild("token", "2019-07-01", "2019-08-01").get("rows"));
+    }
+}
@@ -2,15 +2,22 @@ package net.thumbtack.onlineshop.controller;
 
 import net.thumbtack.onlineshop.dto.ServerConfigurationDto;
 import net.thumbtack.onlineshop.service.ServerControlService;
+import net.thumbtack.onlineshop.service.ServiceException;
+import net.thumbtack.onlineshop.service.metrics.MetricsService;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 import org.springframework.test.util.ReflectionTestUtils;
 
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
 import static junit.framework.TestCase.assertEquals;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 public class ServerControllerTest {
 
@@ -19,11 +26,14 @@ public class ServerControllerTest {
     @Mock
     private ServerControlService mockService;
 
+    @Mock
+    private MetricsService mockMetricsService;
+
     @Before
     public void setUpClass() {
         MockitoAnnotations.initMocks(this);
 
-        controller = new ServerController(mockService);
+        controller = new ServerController(mockService, mockMetricsService);
 
         ReflectionTestUtils.setField(
                 controller,
@@ -76,4 +86,17 @@ public class ServerControllerTest {
         assertEquals("{}", result);
 
     }
+
+    @Test
+    public void testGetMetrics() throws ServiceException {
+
+        Map<String, Map<String, Number>> metrics = new HashMap<>();
+        metrics.put("checkout", Collections.singletonMap("batches", 1L));
+        when(mockMetricsService.getMetrics("token")).thenReturn(metrics);
+
+        Map<String, Map<String, Number>> result = controller.getMetrics("token");
+
+        verify(mockMetricsService).getMetrics("token");
+        assertEquals(metrics, result);
+    }
 }
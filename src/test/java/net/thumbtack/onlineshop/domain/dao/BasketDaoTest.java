@@ -11,9 +11,11 @@ import org.mockito.MockitoAnnotations;
 import javax.persistence.EntityManager;
 import javax.persistence.NoResultException;
 import javax.persistence.Query;
+import javax.persistence.TemporalType;
 import javax.persistence.TypedQuery;
 import javax.persistence.criteria.*;
 import java.util.Arrays;
+import java.util.Date;
 import java.util.List;
 
 import static org.junit.Assert.assertEquals;
@@ -83,13 +85,13 @@ public class BasketDaoTest {
 
         verify(mockCriteriaQuery).from(Basket.class);
         verify(mockCriteriaQuery).select(mockRoot);
-        verify(mockCriteriaQuery).where(null, null, null);
+        verify(mockCriteriaQuery).where(null, null);
 
         verify(mockRoot).get("account");
         verify(mockRoot).get("product");
 
         verify(mockCriteriaBuilder).equal(null, account.getId());
-        verify(mockCriteriaBuilder).and();
+        verify(mockCriteriaBuilder, never()).and();
         verify(mockCriteriaBuilder).equal(null, 0L);
 
         assertEquals(result, basket);
@@ -115,13 +117,13 @@ public class BasketDaoTest {
 
         verify(mockCriteriaQuery).from(Basket.class);
         verify(mockCriteriaQuery).select(mockRoot);
-        verify(mockCriteriaQuery).where(null, null, null);
+        verify(mockCriteriaQuery).where(null, null);
 
         verify(mockRoot).get("account");
         verify(mockRoot).get("product");
 
         verify(mockCriteriaBuilder).equal(null, account.getId());
-        verify(mockCriteriaBuilder).and();
+        verify(mockCriteriaBuilder, never()).and();
         verify(mockCriteriaBuilder).equal(null, 0L);
     }
 
@@ -158,6 +160,76 @@ public class BasketDaoTest {
         assertEquals(result.size(), basket.size());
     }
 
+    @Test
+    public void testGetAll() {
+        CriteriaBuilder mockCriteriaBuilder = mock(CriteriaBuilder.class);
+        CriteriaQuery<Basket> mockCriteriaQuery = (CriteriaQuery<Basket>) mock(CriteriaQuery.class);
+        TypedQuery<Basket> mockTypedQuery = (TypedQuery<Basket>) mock(TypedQuery.class);
+        Root<Basket> mockRoot = (Root<Basket>) mock(Root.class);
+
+        when(mockEntityManager.getCriteriaBuilder()).thenReturn(mockCriteriaBuilder);
+        when(mockCriteriaBuilder.createQuery(Basket.class)).thenReturn(mockCriteriaQuery);
+        when(mockCriteriaQuery.from(Basket.class)).thenReturn(mockRoot);
+        when(mockEntityManager.createQuery(mockCriteriaQuery)).thenReturn(mockTypedQuery);
+        when(mockTypedQuery.getResultList()).thenReturn(Arrays.asList(new Basket(), new Basket()));
+
+        assertEquals(2, basketDao.getAll().size());
+
+        verify(mockRoot).fetch("product");
+        verify(mockRoot).fetch("account");
+        verify(mockCriteriaQuery).select(mockRoot);
+    }
+
+    @Test
+    public void testSave() {
+        Query mockQuery = mock(Query.class);
+        when(mockEntityManager.createNativeQuery(anyString())).thenReturn(mockQuery);
+        when(mockQuery.setParameter(anyInt(), any())).thenReturn(mockQuery);
+        when(mockQuery.setParameter(anyInt(), any(Date.class), any(TemporalType.class))).thenReturn(mockQuery);
+
+        Date touched = new Date();
+        basketDao.save(1L, 2L, 3, touched);
+
+        // Вставка или обновление одним запросом
+        verify(mockEntityManager, times(1)).createNativeQuery(anyString());
+        verify(mockEntityManager).createNativeQuery(contains("on duplicate key update count = values(count)"));
+        verify(mockQuery).setParameter(4, touched, TemporalType.TIMESTAMP);
+        verify(mockQuery).setParameter(1, 1L);
+        verify(mockQuery).setParameter(2, 2L);
+        verify(mockQuery).setParameter(3, 3);
+        verify(mockQuery, times(1)).executeUpdate();
+    }
+
+    @Test
+    public void testDeleteTouchedBefore() {
+        Query mockQuery = mock(Query.class);
+        when(mockEntityManager.createNativeQuery(anyString())).thenReturn(mockQuery);
+        when(mockQuery.setParameter(anyInt(), any())).thenReturn(mockQuery);
+        when(mockQuery.setParameter(anyInt(), any(Date.class), any(TemporalType.class))).thenReturn(mockQuery);
+        when(mockQuery.executeUpdate()).thenReturn(10);
+
+        Date date = new Date();
+        assertEquals(10, basketDao.deleteTouchedBefore(date, 10));
+
+        verify(mockEntityManager).createNativeQuery(startsWith("delete from basket where touched < ?"));
+        verify(mockQuery).setParameter(1, date, TemporalType.TIMESTAMP);
+        verify(mockQuery).setParameter(2, 10);
+    }
+
+    @Test
+    public void testDeleteByIds() {
+        Query mockQuery = mock(Query.class);
+        when(mockEntityManager.createNativeQuery(anyString())).thenReturn(mockQuery);
+        when(mockQuery.setParameter(anyInt(), any())).thenReturn(mockQuery);
+
+        basketDao.delete(1L, 2L);
+
+        verify(mockEntityManager).createNativeQuery(startsWith("delete from basket"));
+        verify(mockQuery).setParameter(1, 1L);
+        verify(mockQuery).setParameter(2, 2L);
+        verify(mockQuery).executeUpdate();
+    }
+
     @Test
     public void testClear() {
         CriteriaBuilder mockCriteriaBuilder = mock(CriteriaBuilder.class);
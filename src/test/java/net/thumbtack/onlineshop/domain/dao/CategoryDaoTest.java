@@ -11,7 +11,10 @@ import javax.persistence.NoResultException;
 import javax.persistence.Query;
 import javax.persistence.TypedQuery;
 import javax.persistence.criteria.*;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 
 import static org.junit.Assert.*;
@@ -84,6 +87,51 @@ public class CategoryDaoTest {
         verify(mockCriteriaBuilder).equal(null, "value");
     }
 
+    /**
+     * Длинный список id проверяется запросами по 1000 id, повторения не проверяются дважды
+     */
+    @Test
+    public void testFindMissing() {
+        List<Long> ids = new ArrayList<>();
+        for (long id = 1; id <= 2500; ++id) {
+            ids.add(id);
+        }
+        ids.add(1L);
+
+        CriteriaBuilder mockCriteriaBuilder = mock(CriteriaBuilder.class);
+        CriteriaQuery<Long> mockCriteriaQuery = (CriteriaQuery<Long>) mock(CriteriaQuery.class);
+        TypedQuery<Long> mockTypedQuery = (TypedQuery<Long>) mock(TypedQuery.class);
+        Root<Category> mockRoot = (Root<Category>) mock(Root.class);
+        Path mockPath = mock(Path.class);
+
+        when(mockEntityManager.getCriteriaBuilder()).thenReturn(mockCriteriaBuilder);
+        when(mockCriteriaBuilder.createQuery(Long.class)).thenReturn(mockCriteriaQuery);
+        when(mockCriteriaQuery.from(Category.class)).thenReturn(mockRoot);
+        when(mockRoot.get("id")).thenReturn(mockPath);
+        when(mockEntityManager.createQuery(mockCriteriaQuery)).thenReturn(mockTypedQuery);
+
+        // В БД нет категорий 5 и 2001
+        when(mockTypedQuery.getResultList()).thenReturn(
+                without(ids.subList(0, 1000), 5L),
+                ids.subList(1000, 2000),
+                without(ids.subList(2000, 2500), 2001L)
+        );
+
+        assertEquals(new HashSet<>(Arrays.asList(5L, 2001L)), categoryDao.findMissing(ids));
+
+        verify(mockPath).in(ids.subList(0, 1000));
+        verify(mockPath).in(ids.subList(1000, 2000));
+        verify(mockPath).in(ids.subList(2000, 2500));
+        verify(mockTypedQuery, times(3)).getResultList();
+    }
+
+    @Test
+    public void testFindMissingEmpty() {
+        assertTrue(categoryDao.findMissing(Collections.emptyList()).isEmpty());
+
+        verifyZeroInteractions(mockEntityManager);
+    }
+
     @Test
     public void testNotExists() {
 
@@ -207,4 +255,9 @@ public class CategoryDaoTest {
         verify(mockQuery).executeUpdate();
     }
 
+    private static List<Long> without(List<Long> ids, Long id) {
+        List<Long> result = new ArrayList<>(ids);
+        result.remove(id);
+        return result;
+    }
 }
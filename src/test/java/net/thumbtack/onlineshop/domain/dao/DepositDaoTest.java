@@ -0,0 +1,105 @@
+package net.thumbtack.onlineshop.domain.dao;
+
+import net.thumbtack.onlineshop.domain.models.DepositEntry;
+import net.thumbtack.onlineshop.domain.models.DepositSnapshot;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import javax.persistence.EntityManager;
+import javax.persistence.Query;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaDelete;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.*;
+
+public class DepositDaoTest {
+
+    private DepositDao depositDao;
+
+    @Mock
+    private EntityManager mockEntityManager;
+
+    @Before
+    public void setUpClass() {
+        MockitoAnnotations.initMocks(this);
+        depositDao = new DepositDao(mockEntityManager);
+    }
+
+    @Test
+    public void testInsert() {
+        DepositEntry entry = new DepositEntry();
+
+        depositDao.insert(entry);
+
+        verify(mockEntityManager).persist(entry);
+    }
+
+    @Test
+    public void testInsertSnapshot() {
+        DepositSnapshot snapshot = new DepositSnapshot(1L, 100, 0L);
+
+        depositDao.insertSnapshot(snapshot);
+
+        verify(mockEntityManager).persist(snapshot);
+    }
+
+    @Test
+    public void testGetSnapshot() {
+        DepositSnapshot snapshot = new DepositSnapshot(1L, 100, 0L);
+        when(mockEntityManager.find(DepositSnapshot.class, 1L)).thenReturn(snapshot);
+
+        assertEquals(snapshot, depositDao.getSnapshot(1L));
+    }
+
+    @Test
+    public void testGetLastEntryIdEmpty() {
+        Query mockQuery = mock(Query.class);
+        when(mockEntityManager.createNativeQuery(anyString())).thenReturn(mockQuery);
+        when(mockQuery.getSingleResult()).thenReturn(null);
+
+        assertEquals(0, depositDao.getLastEntryId());
+    }
+
+    /**
+     * Если движений денег нет, то компактировать нечего
+     */
+    @Test
+    public void testCompactEmpty() {
+        assertEquals(0, depositDao.compact(0));
+        verify(mockEntityManager, never()).createNativeQuery(anyString());
+    }
+
+    @Test
+    public void testCompact() {
+        Query mockQuery = mock(Query.class);
+        when(mockEntityManager.createNativeQuery(anyString())).thenReturn(mockQuery);
+        when(mockQuery.setParameter(anyInt(), any())).thenReturn(mockQuery);
+        when(mockQuery.executeUpdate()).thenReturn(3);
+
+        assertEquals(3, depositDao.compact(42));
+        verify(mockQuery).setParameter(1, 42L);
+    }
+
+    @Test
+    public void testClear() {
+        CriteriaBuilder mockCriteriaBuilder = mock(CriteriaBuilder.class);
+        CriteriaDelete<DepositEntry> mockEntries = (CriteriaDelete<DepositEntry>) mock(CriteriaDelete.class);
+        CriteriaDelete<DepositSnapshot> mockSnapshots = (CriteriaDelete<DepositSnapshot>) mock(CriteriaDelete.class);
+        Query mockQuery = mock(Query.class);
+
+        when(mockEntityManager.getCriteriaBuilder()).thenReturn(mockCriteriaBuilder);
+        when(mockCriteriaBuilder.createCriteriaDelete(DepositEntry.class)).thenReturn(mockEntries);
+        when(mockCriteriaBuilder.createCriteriaDelete(DepositSnapshot.class)).thenReturn(mockSnapshots);
+        when(mockEntityManager.createQuery(mockEntries)).thenReturn(mockQuery);
+        when(mockEntityManager.createQuery(mockSnapshots)).thenReturn(mockQuery);
+
+        depositDao.clear();
+
+        verify(mockEntries).from(DepositEntry.class);
+        verify(mockSnapshots).from(DepositSnapshot.class);
+        verify(mockQuery, times(2)).executeUpdate();
+    }
+}
@@ -0,0 +1,63 @@
+package net.thumbtack.onlineshop.domain.dao;
+
+import net.thumbtack.onlineshop.domain.models.IdempotencyRecord;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import javax.persistence.EntityManager;
+import javax.persistence.Query;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaDelete;
+
+import static org.mockito.Mockito.*;
+
+public class IdempotencyDaoTest {
+
+    private IdempotencyDao idempotencyDao;
+
+    @Mock
+    private EntityManager mockEntityManager;
+
+    @Before
+    public void setUpClass() {
+        MockitoAnnotations.initMocks(this);
+        idempotencyDao = new IdempotencyDao(mockEntityManager);
+    }
+
+    @Test
+    public void testInsert() {
+        IdempotencyRecord record = new IdempotencyRecord();
+
+        idempotencyDao.insert(record);
+
+        verify(mockEntityManager).persist(record);
+    }
+
+    @Test
+    public void testUpdate() {
+        IdempotencyRecord record = new IdempotencyRecord();
+
+        idempotencyDao.update(record);
+
+        verify(mockEntityManager).merge(record);
+    }
+
+    @Test
+    public void testClear() {
+        CriteriaBuilder mockCriteriaBuilder = mock(CriteriaBuilder.class);
+        CriteriaDelete<IdempotencyRecord> mockCriteria = (CriteriaDelete<IdempotencyRecord>) mock(CriteriaDelete.class);
+        Query mockQuery = mock(Query.class);
+
+        when(mockEntityManager.getCriteriaBuilder()).thenReturn(mockCriteriaBuilder);
+        when(mockCriteriaBuilder.createCriteriaDelete(IdempotencyRecord.class)).thenReturn(mockCriteria);
+        when(mockEntityManager.createQuery(mockCriteria)).thenReturn(mockQuery);
+
+        idempotencyDao.clear();
+
+        verify(mockCriteria).from(IdempotencyRecord.class);
+        verify(mockEntityManager).createQuery(mockCriteria);
+        verify(mockQuery).executeUpdate();
+    }
+}
@@ -0,0 +1,131 @@
+package net.thumbtack.onlineshop.domain.dao;
+
+import net.thumbtack.onlineshop.domain.models.OutboxEntry;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import javax.persistence.EntityManager;
+import javax.persistence.Query;
+import javax.persistence.TemporalType;
+import javax.persistence.TypedQuery;
+import javax.persistence.criteria.*;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+public class OutboxDaoTest {
+
+    private OutboxDao outboxDao;
+
+    @Mock
+    private EntityManager mockEntityManager;
+
+    @Before
+    public void setUpClass() {
+        MockitoAnnotations.initMocks(this);
+        outboxDao = new OutboxDao(mockEntityManager);
+    }
+
+    @Test
+    public void testInsert() {
+        OutboxEntry entry = new OutboxEntry(OutboxEntry.Type.BASKET, 1L, Arrays.asList(2L, 3L), new Date());
+
+        outboxDao.insert(entry);
+
+        verify(mockEntityManager).persist(entry);
+        assertEquals(Arrays.asList(2L, 3L), entry.getPurchaseIds());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testClaim() {
+        Query mockUpdate = mockUpdate(2);
+        CriteriaBuilder mockCriteriaBuilder = mock(CriteriaBuilder.class);
+        CriteriaQuery<OutboxEntry> mockCriteria = (CriteriaQuery<OutboxEntry>) mock(CriteriaQuery.class);
+        Root<OutboxEntry> mockRoot = (Root<OutboxEntry>) mock(Root.class);
+        Path<Object> mockPath = (Path<Object>) mock(Path.class);
+        Predicate mockPredicate = mock(Predicate.class);
+        Order mockOrder = mock(Order.class);
+        TypedQuery<OutboxEntry> mockQuery = (TypedQuery<OutboxEntry>) mock(TypedQuery.class);
+        List<OutboxEntry> entries = Collections.singletonList(new OutboxEntry());
+
+        when(mockEntityManager.getCriteriaBuilder()).thenReturn(mockCriteriaBuilder);
+        when(mockCriteriaBuilder.createQuery(OutboxEntry.class)).thenReturn(mockCriteria);
+        when(mockCriteria.from(OutboxEntry.class)).thenReturn(mockRoot);
+        when(mockRoot.get(anyString())).thenReturn(mockPath);
+        when(mockCriteriaBuilder.equal(mockPath, "owner-1")).thenReturn(mockPredicate);
+        when(mockCriteriaBuilder.asc(mockPath)).thenReturn(mockOrder);
+        when(mockEntityManager.createQuery(mockCriteria)).thenReturn(mockQuery);
+        when(mockQuery.getResultList()).thenReturn(entries);
+
+        Date now = new Date();
+        Date until = new Date(now.getTime() + 1000);
+
+        assertEquals(entries, outboxDao.claim("owner-1", now, until, 50));
+
+        verify(mockUpdate).setParameter(1, "owner-1");
+        verify(mockUpdate).setParameter(2, until, TemporalType.TIMESTAMP);
+        verify(mockUpdate).setParameter(3, now, TemporalType.TIMESTAMP);
+        verify(mockUpdate).setParameter(4, 50);
+        verify(mockCriteria).where(mockPredicate);
+        verify(mockCriteria).orderBy(mockOrder);
+    }
+
+    /**
+     * Если ни одна запись не забрана, то записи не читаются
+     */
+    @Test
+    public void testClaimNothing() {
+        mockUpdate(0);
+
+        assertTrue(outboxDao.claim("owner-1", new Date(), new Date(), 50).isEmpty());
+
+        verify(mockEntityManager, never()).getCriteriaBuilder();
+    }
+
+    @Test
+    public void testDeleteEmpty() {
+        outboxDao.delete(Collections.emptyList());
+
+        verifyZeroInteractions(mockEntityManager);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testClear() {
+        CriteriaBuilder mockCriteriaBuilder = mock(CriteriaBuilder.class);
+        CriteriaDelete<OutboxEntry> mockCriteria = (CriteriaDelete<OutboxEntry>) mock(CriteriaDelete.class);
+        Query mockQuery = mock(Query.class);
+
+        when(mockEntityManager.getCriteriaBuilder()).thenReturn(mockCriteriaBuilder);
+        when(mockCriteriaBuilder.createCriteriaDelete(OutboxEntry.class)).thenReturn(mockCriteria);
+        when(mockEntityManager.createQuery(mockCriteria)).thenReturn(mockQuery);
+
+        outboxDao.clear();
+
+        verify(mockCriteria).from(OutboxEntry.class);
+        verify(mockQuery).executeUpdate();
+    }
+
+    private Query mockUpdate(int claimed) {
+        Query mockUpdate = mock(Query.class);
+
+        when(mockEntityManager.createNativeQuery(startsWith("update outbox"))).thenReturn(mockUpdate);
+        when(mockUpdate.setParameter(anyInt(), any(Date.class), eq(TemporalType.TIMESTAMP))).thenReturn(mockUpdate);
+        when(mockUpdate.setParameter(anyInt(), any())).thenReturn(mockUpdate);
+        when(mockUpdate.executeUpdate()).thenReturn(claimed);
+
+        return mockUpdate;
+    }
+}
@@ -1,17 +1,30 @@
 package net.thumbtack.onlineshop.domain.dao;
 
+import net.thumbtack.onlineshop.domain.models.ArchivedPurchase;
+import net.thumbtack.onlineshop.domain.models.ProductCategory;
 import net.thumbtack.onlineshop.domain.models.Purchase;
+import net.thumbtack.onlineshop.domain.models.PurchaseFilter;
+import net.thumbtack.onlineshop.domain.models.PurchaseQuery;
+import net.thumbtack.onlineshop.domain.models.PurchaseRow;
+import net.thumbtack.onlineshop.domain.models.PurchaseTotals;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.query.NativeQuery;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
 import javax.persistence.EntityManager;
 import javax.persistence.Query;
+import javax.persistence.TemporalType;
 import javax.persistence.TypedQuery;
 import javax.persistence.criteria.*;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
 import java.util.List;
 
 import static junit.framework.TestCase.assertEquals;
@@ -19,15 +32,23 @@ import static org.mockito.Mockito.*;
 
 public class PurchaseDaoTest {
 
+    private static final String LAST_ARCHIVED = "select max(date) from purchase_archive";
+
     private PurchaseDao purchaseDao;
 
     @Mock
     private EntityManager mockEntityManager;
 
+    // Время последней записи архива (по умолчанию архив пуст)
+    @Mock
+    private Query mockLastArchived;
+
     @Before
     public void setUpClass() {
         MockitoAnnotations.initMocks(this);
         purchaseDao = new PurchaseDao(mockEntityManager);
+
+        when(mockEntityManager.createNativeQuery(LAST_ARCHIVED)).thenReturn(mockLastArchived);
     }
 
     @Test
@@ -41,18 +62,19 @@ public class PurchaseDaoTest {
 
     @Test
     public void testGetPurchasesSortedByProducts() {
-        List<Purchase> expected = new ArrayList<>();
+        List<PurchaseRow> expected = new ArrayList<>();
 
         CriteriaBuilder mockCriteriaBuilder = mock(CriteriaBuilder.class);
-        CriteriaQuery<Purchase> mockCriteriaQuery = (CriteriaQuery<Purchase>) mock(CriteriaQuery.class);
-        TypedQuery<Purchase> mockTypedQuery = (TypedQuery<Purchase>) mock(TypedQuery.class);
+        CriteriaQuery<PurchaseRow> mockCriteriaQuery = (CriteriaQuery<PurchaseRow>) mock(CriteriaQuery.class);
+        TypedQuery<PurchaseRow> mockTypedQuery = (TypedQuery<PurchaseRow>) mock(TypedQuery.class);
         Root<Purchase> mockRoot = (Root<Purchase>) mock(Root.class);
         Order mockOrder = mock(Order.class);
         Path mockPath = mock(Path.class);
 
         when(mockEntityManager.getCriteriaBuilder()).thenReturn(mockCriteriaBuilder);
-        when(mockCriteriaBuilder.createQuery(Purchase.class)).thenReturn(mockCriteriaQuery);
+        when(mockCriteriaBuilder.createQuery(PurchaseRow.class)).thenReturn(mockCriteriaQuery);
         when(mockCriteriaQuery.from(Purchase.class)).thenReturn(mockRoot);
+        CompoundSelection<PurchaseRow> mockSelection = mockProjection(mockCriteriaBuilder, mockRoot);
         when(mockEntityManager.createQuery(mockCriteriaQuery)).thenReturn(mockTypedQuery);
 
         when(mockTypedQuery.setFirstResult(1)).thenReturn(mockTypedQuery);
@@ -62,11 +84,14 @@ public class PurchaseDaoTest {
         when(mockRoot.get("product")).thenReturn(mockPath);
         when(mockCriteriaBuilder.asc(mockPath)).thenReturn(mockOrder);
 
-        List<Purchase> result = purchaseDao.getPurchasesSortedByProducts(2, 1);
+        List<PurchaseRow> result = purchaseDao.getPurchases(
+                PurchaseQuery.page(PurchaseQuery.Sort.PRODUCT, PurchaseFilter.ALL, 2, 1));
 
         verify(mockCriteriaQuery).from(Purchase.class);
-        verify(mockCriteriaQuery).select(mockRoot);
-        verify(mockCriteriaQuery).orderBy(mockOrder);
+        verify(mockCriteriaQuery).select(mockSelection);
+        // Порядок записей однозначен благодаря id
+        verify(mockRoot).get("id");
+        verify(mockCriteriaQuery).orderBy(mockOrder, null);
 
         verify(mockEntityManager).createQuery(mockCriteriaQuery);
         verify(mockTypedQuery).setFirstResult(1);
@@ -75,55 +100,60 @@ public class PurchaseDaoTest {
         assertEquals(expected, result);
     }
 
+    /**
+     * Промежуток времени задаётся условиями date >= since AND date < until
+     */
     @Test
-    public void testGetPurchasesSortedByClients() {
-        List<Purchase> expected = new ArrayList<>();
+    public void testGetPurchasesInRange() {
+        List<PurchaseRow> expected = new ArrayList<>();
+        Date since = new Date(1000);
+        Date until = new Date(2000);
 
         CriteriaBuilder mockCriteriaBuilder = mock(CriteriaBuilder.class);
-        CriteriaQuery<Purchase> mockCriteriaQuery = (CriteriaQuery<Purchase>) mock(CriteriaQuery.class);
-        TypedQuery<Purchase> mockTypedQuery = (TypedQuery<Purchase>) mock(TypedQuery.class);
+        CriteriaQuery<PurchaseRow> mockCriteriaQuery = (CriteriaQuery<PurchaseRow>) mock(CriteriaQuery.class);
+        TypedQuery<PurchaseRow> mockTypedQuery = (TypedQuery<PurchaseRow>) mock(TypedQuery.class);
         Root<Purchase> mockRoot = (Root<Purchase>) mock(Root.class);
-        Order mockOrder = mock(Order.class);
-        Path mockPath = mock(Path.class);
+        Path mockDate = mock(Path.class);
+        Predicate mockSince = mock(Predicate.class);
+        Predicate mockUntil = mock(Predicate.class);
 
         when(mockEntityManager.getCriteriaBuilder()).thenReturn(mockCriteriaBuilder);
-        when(mockCriteriaBuilder.createQuery(Purchase.class)).thenReturn(mockCriteriaQuery);
+        when(mockCriteriaBuilder.createQuery(PurchaseRow.class)).thenReturn(mockCriteriaQuery);
         when(mockCriteriaQuery.from(Purchase.class)).thenReturn(mockRoot);
+        mockProjection(mockCriteriaBuilder, mockRoot);
         when(mockEntityManager.createQuery(mockCriteriaQuery)).thenReturn(mockTypedQuery);
 
-        when(mockTypedQuery.setFirstResult(1)).thenReturn(mockTypedQuery);
-        when(mockTypedQuery.setMaxResults(2)).thenReturn(mockTypedQuery);
+        when(mockTypedQuery.setFirstResult(0)).thenReturn(mockTypedQuery);
+        when(mockTypedQuery.setMaxResults(10)).thenReturn(mockTypedQuery);
         when(mockTypedQuery.getResultList()).thenReturn(expected);
 
-        when(mockRoot.get("account")).thenReturn(mockPath);
-        when(mockCriteriaBuilder.asc(mockPath)).thenReturn(mockOrder);
-
-        List<Purchase> result = purchaseDao.getPurchasesSortedByClients(2, 1);
+        when(mockRoot.get("date")).thenReturn(mockDate);
+        when(mockCriteriaBuilder.greaterThanOrEqualTo(mockDate, since)).thenReturn(mockSince);
+        when(mockCriteriaBuilder.lessThan(mockDate, until)).thenReturn(mockUntil);
 
-        verify(mockCriteriaQuery).from(Purchase.class);
-        verify(mockCriteriaQuery).select(mockRoot);
-        verify(mockCriteriaQuery).orderBy(mockOrder);
+        List<PurchaseRow> result = purchaseDao.getPurchases(PurchaseQuery.page(
+                PurchaseQuery.Sort.CLIENT, new PurchaseFilter(null, null, null, since, until), 10, 0));
 
-        verify(mockEntityManager).createQuery(mockCriteriaQuery);
-        verify(mockTypedQuery).setFirstResult(1);
-        verify(mockTypedQuery).setMaxResults(2);
+        verify(mockCriteriaQuery).where(mockSince, mockUntil);
+        verify(mockTypedQuery).setMaxResults(10);
 
         assertEquals(expected, result);
     }
 
     @Test
-    public void testGetProductsPurchases() {
-        List<Purchase> expected = new ArrayList<>();
+    public void testGetPurchasesForProducts() {
+        List<PurchaseRow> expected = new ArrayList<>();
         List<Long> products = Arrays.asList(1L, 2L);
 
         CriteriaBuilder mockCriteriaBuilder = mock(CriteriaBuilder.class);
-        CriteriaQuery<Purchase> mockCriteriaQuery = (CriteriaQuery<Purchase>) mock(CriteriaQuery.class);
-        TypedQuery<Purchase> mockTypedQuery = (TypedQuery<Purchase>) mock(TypedQuery.class);
+        CriteriaQuery<PurchaseRow> mockCriteriaQuery = (CriteriaQuery<PurchaseRow>) mock(CriteriaQuery.class);
+        TypedQuery<PurchaseRow> mockTypedQuery = (TypedQuery<PurchaseRow>) mock(TypedQuery.class);
         Root<Purchase> mockRoot = (Root<Purchase>) mock(Root.class);
 
         when(mockEntityManager.getCriteriaBuilder()).thenReturn(mockCriteriaBuilder);
-        when(mockCriteriaBuilder.createQuery(Purchase.class)).thenReturn(mockCriteriaQuery);
+        when(mockCriteriaBuilder.createQuery(PurchaseRow.class)).thenReturn(mockCriteriaQuery);
         when(mockCriteriaQuery.from(Purchase.class)).thenReturn(mockRoot);
+        CompoundSelection<PurchaseRow> mockSelection = mockProjection(mockCriteriaBuilder, mockRoot);
         when(mockEntityManager.createQuery(mockCriteriaQuery)).thenReturn(mockTypedQuery);
 
         when(mockTypedQuery.setFirstResult(1)).thenReturn(mockTypedQuery);
@@ -138,12 +168,15 @@ public class PurchaseDaoTest {
         when(mockCriteriaBuilder.asc(mockPath)).thenReturn(mockOrder);
         when(mockPath.in(products)).thenReturn(mockPredicate);
 
-        List<Purchase> result = purchaseDao.getProductsPurchases(products,2, 1);
+        List<PurchaseRow> result = purchaseDao.getPurchases(PurchaseQuery.page(
+                PurchaseQuery.Sort.PRODUCT, new PurchaseFilter(null, products, null, null, null), 2, 1));
 
         verify(mockCriteriaQuery).from(Purchase.class);
-        verify(mockCriteriaQuery).select(mockRoot);
-        verify(mockCriteriaQuery).where(mockPredicate);
-        verify(mockCriteriaQuery).orderBy(mockOrder);
+        verify(mockCriteriaQuery).select(mockSelection);
+        verify(mockCriteriaQuery).where(new Predicate[]{mockPredicate});
+        // Порядок записей однозначен благодаря id
+        verify(mockRoot).get("id");
+        verify(mockCriteriaQuery).orderBy(mockOrder, null);
 
         verify(mockEntityManager).createQuery(mockCriteriaQuery);
         verify(mockTypedQuery).setFirstResult(1);
@@ -153,60 +186,445 @@ public class PurchaseDaoTest {
     }
 
     @Test
-    public void testGetClientsPurchases() {
-        List<Purchase> expected = new ArrayList<>();
-        List<Long> clients = Arrays.asList(1L, 2L);
+    public void testGetPurchasesAfter() {
+        List<PurchaseRow> expected = new ArrayList<>();
+        List<Long> products = Arrays.asList(1L, 2L);
 
         CriteriaBuilder mockCriteriaBuilder = mock(CriteriaBuilder.class);
-        CriteriaQuery<Purchase> mockCriteriaQuery = (CriteriaQuery<Purchase>) mock(CriteriaQuery.class);
-        TypedQuery<Purchase> mockTypedQuery = (TypedQuery<Purchase>) mock(TypedQuery.class);
+        CriteriaQuery<PurchaseRow> mockCriteriaQuery = (CriteriaQuery<PurchaseRow>) mock(CriteriaQuery.class);
+        TypedQuery<PurchaseRow> mockTypedQuery = (TypedQuery<PurchaseRow>) mock(TypedQuery.class);
         Root<Purchase> mockRoot = (Root<Purchase>) mock(Root.class);
 
         when(mockEntityManager.getCriteriaBuilder()).thenReturn(mockCriteriaBuilder);
-        when(mockCriteriaBuilder.createQuery(Purchase.class)).thenReturn(mockCriteriaQuery);
+        when(mockCriteriaBuilder.createQuery(PurchaseRow.class)).thenReturn(mockCriteriaQuery);
         when(mockCriteriaQuery.from(Purchase.class)).thenReturn(mockRoot);
+        CompoundSelection<PurchaseRow> mockSelection = mockProjection(mockCriteriaBuilder, mockRoot);
         when(mockEntityManager.createQuery(mockCriteriaQuery)).thenReturn(mockTypedQuery);
 
-        when(mockTypedQuery.setFirstResult(1)).thenReturn(mockTypedQuery);
+        when(mockTypedQuery.setFirstResult(0)).thenReturn(mockTypedQuery);
         when(mockTypedQuery.setMaxResults(2)).thenReturn(mockTypedQuery);
         when(mockTypedQuery.getResultList()).thenReturn(expected);
 
         Path mockPath = mock(Path.class);
-        Order mockOrder = mock(Order.class);
-        Predicate mockPredicate = mock(Predicate.class);
+        Path mockKeyPath = mock(Path.class);
+        Path mockIdPath = mock(Path.class);
+        Predicate mockInPredicate = mock(Predicate.class);
+        Predicate mockAfterPredicate = mock(Predicate.class);
 
-        when(mockRoot.get("account")).thenReturn(mockPath);
-        when(mockCriteriaBuilder.asc(mockPath)).thenReturn(mockOrder);
-        when(mockPath.in(clients)).thenReturn(mockPredicate);
+        when(mockRoot.get("product")).thenReturn(mockPath);
+        when(mockRoot.get("id")).thenReturn(mockIdPath);
+        when(mockPath.get("id")).thenReturn(mockKeyPath);
+        when(mockPath.in(products)).thenReturn(mockInPredicate);
+        when(mockCriteriaBuilder.or(any(), any())).thenReturn(mockAfterPredicate);
+
+        List<PurchaseRow> result = purchaseDao.getPurchases(PurchaseQuery.after(
+                PurchaseQuery.Sort.PRODUCT, new PurchaseFilter(null, products, null, null, null), 2L, 10L, 2));
+
+        // product_id > 2 OR (product_id = 2 AND id > 10)
+        verify(mockCriteriaBuilder).greaterThan(mockKeyPath, 2L);
+        verify(mockCriteriaBuilder).equal(mockKeyPath, 2L);
+        verify(mockCriteriaBuilder).greaterThan(mockIdPath, 10L);
+        verify(mockCriteriaQuery).where(mockInPredicate, mockAfterPredicate);
+
+        // Смещение не используется
+        verify(mockTypedQuery).setFirstResult(0);
+        verify(mockTypedQuery).setMaxResults(2);
 
-        List<Purchase> result = purchaseDao.getClientsPurchases(clients,2, 1);
+        assertEquals(expected, result);
+    }
 
-        verify(mockCriteriaQuery).from(Purchase.class);
-        verify(mockCriteriaQuery).select(mockRoot);
-        verify(mockCriteriaQuery).where(mockPredicate);
-        verify(mockCriteriaQuery).orderBy(mockOrder);
+    /**
+     * Страница после записи без товара: сначала остальные записи без товара, затем все записи с товаром
+     */
+    @Test
+    public void testGetPurchasesAfterWithoutKey() {
+        CriteriaBuilder mockCriteriaBuilder = mock(CriteriaBuilder.class);
+        CriteriaQuery<PurchaseRow> mockCriteriaQuery = (CriteriaQuery<PurchaseRow>) mock(CriteriaQuery.class);
+        TypedQuery<PurchaseRow> mockTypedQuery = (TypedQuery<PurchaseRow>) mock(TypedQuery.class);
+        Root<Purchase> mockRoot = (Root<Purchase>) mock(Root.class);
+
+        when(mockEntityManager.getCriteriaBuilder()).thenReturn(mockCriteriaBuilder);
+        when(mockCriteriaBuilder.createQuery(PurchaseRow.class)).thenReturn(mockCriteriaQuery);
+        when(mockCriteriaQuery.from(Purchase.class)).thenReturn(mockRoot);
+        mockProjection(mockCriteriaBuilder, mockRoot);
+        when(mockEntityManager.createQuery(mockCriteriaQuery)).thenReturn(mockTypedQuery);
+
+        when(mockTypedQuery.setFirstResult(0)).thenReturn(mockTypedQuery);
+        when(mockTypedQuery.setMaxResults(2)).thenReturn(mockTypedQuery);
+        when(mockTypedQuery.getResultList()).thenReturn(new ArrayList<>());
+
+        Path mockPath = mock(Path.class);
+        Path mockKeyPath = mock(Path.class);
+        Path mockIdPath = mock(Path.class);
+        Predicate mockAfterPredicate = mock(Predicate.class);
+
+        when(mockRoot.get("product")).thenReturn(mockPath);
+        when(mockRoot.get("id")).thenReturn(mockIdPath);
+        when(mockPath.get("id")).thenReturn(mockKeyPath);
+        when(mockCriteriaBuilder.or(any(), any())).thenReturn(mockAfterPredicate);
+
+        purchaseDao.getPurchases(PurchaseQuery.after(PurchaseQuery.Sort.PRODUCT, PurchaseFilter.ALL, null, 10L, 2));
+
+        // product_id IS NOT NULL OR (product_id IS NULL AND id > 10)
+        verify(mockCriteriaBuilder).isNotNull(mockKeyPath);
+        verify(mockCriteriaBuilder).isNull(mockKeyPath);
+        verify(mockCriteriaBuilder).greaterThan(mockIdPath, 10L);
+        verify(mockCriteriaQuery).where(new Predicate[]{mockAfterPredicate});
+    }
+
+    /**
+     * Товары из категорий отбираются подзапросом к productcategory в том же запросе
+     */
+    @Test
+    public void testGetPurchasesForCategories() {
+        List<PurchaseRow> expected = new ArrayList<>();
+        List<Long> categories = Arrays.asList(1L, 2L);
+
+        CriteriaBuilder mockCriteriaBuilder = mock(CriteriaBuilder.class);
+        CriteriaQuery<PurchaseRow> mockCriteriaQuery = (CriteriaQuery<PurchaseRow>) mock(CriteriaQuery.class);
+        TypedQuery<PurchaseRow> mockTypedQuery = (TypedQuery<PurchaseRow>) mock(TypedQuery.class);
+        Root<Purchase> mockRoot = (Root<Purchase>) mock(Root.class);
+        Subquery<Long> mockSubquery = (Subquery<Long>) mock(Subquery.class);
+        Root<ProductCategory> mockCategoryRoot = (Root<ProductCategory>) mock(Root.class);
+
+        when(mockEntityManager.getCriteriaBuilder()).thenReturn(mockCriteriaBuilder);
+        when(mockCriteriaBuilder.createQuery(PurchaseRow.class)).thenReturn(mockCriteriaQuery);
+        when(mockCriteriaQuery.from(Purchase.class)).thenReturn(mockRoot);
+        mockProjection(mockCriteriaBuilder, mockRoot);
+        when(mockEntityManager.createQuery(mockCriteriaQuery)).thenReturn(mockTypedQuery);
+
+        when(mockTypedQuery.setFirstResult(1)).thenReturn(mockTypedQuery);
+        when(mockTypedQuery.setMaxResults(2)).thenReturn(mockTypedQuery);
+        when(mockTypedQuery.getResultList()).thenReturn(expected);
+
+        Path mockProduct = mock(Path.class);
+        Path mockProductId = mock(Path.class);
+        Path mockCategory = mock(Path.class);
+        Path mockCategoryId = mock(Path.class);
+        Path mockCategoryProduct = mock(Path.class);
+        Path mockCategoryProductId = mock(Path.class);
+        Predicate mockInCategories = mock(Predicate.class);
+        Predicate mockInProducts = mock(Predicate.class);
+
+        when(mockRoot.get("product")).thenReturn(mockProduct);
+        when(mockProduct.get("id")).thenReturn(mockProductId);
+        when(mockCriteriaQuery.subquery(Long.class)).thenReturn(mockSubquery);
+        when(mockSubquery.from(ProductCategory.class)).thenReturn(mockCategoryRoot);
+        when(mockCategoryRoot.get("category")).thenReturn(mockCategory);
+        when(mockCategory.get("id")).thenReturn(mockCategoryId);
+        when(mockCategoryRoot.get("product")).thenReturn(mockCategoryProduct);
+        when(mockCategoryProduct.get("id")).thenReturn(mockCategoryProductId);
+        when(mockCategoryId.in(categories)).thenReturn(mockInCategories);
+        when(mockProductId.in(new Expression[]{mockSubquery})).thenReturn(mockInProducts);
+
+        List<PurchaseRow> result = purchaseDao.getPurchases(PurchaseQuery.page(
+                PurchaseQuery.Sort.PRODUCT, new PurchaseFilter(null, null, categories, null, null), 2, 1));
+
+        // product_id IN (SELECT product_id FROM productcategory WHERE category_id IN (1, 2))
+        verify(mockSubquery).select(mockCategoryProductId);
+        verify(mockSubquery).where(mockInCategories);
+        verify(mockCriteriaQuery).where(new Predicate[]{mockInProducts});
 
-        verify(mockEntityManager).createQuery(mockCriteriaQuery);
         verify(mockTypedQuery).setFirstResult(1);
         verify(mockTypedQuery).setMaxResults(2);
 
         assertEquals(expected, result);
     }
 
+    @Test
+    public void testGetTotals() {
+        List<Long> products = Arrays.asList(1L, 2L);
+        PurchaseTotals expected = new PurchaseTotals(3L, 30L);
+
+        CriteriaBuilder mockCriteriaBuilder = mock(CriteriaBuilder.class);
+        CriteriaQuery<PurchaseTotals> mockCriteriaQuery = (CriteriaQuery<PurchaseTotals>) mock(CriteriaQuery.class);
+        TypedQuery<PurchaseTotals> mockTypedQuery = (TypedQuery<PurchaseTotals>) mock(TypedQuery.class);
+        Root<Purchase> mockRoot = (Root<Purchase>) mock(Root.class);
+        CompoundSelection<PurchaseTotals> mockSelection = (CompoundSelection<PurchaseTotals>) mock(CompoundSelection.class);
+
+        Path mockProduct = mock(Path.class);
+        Path mockCount = mock(Path.class);
+        Path mockPrice = mock(Path.class);
+        Expression mockAmount = mock(Expression.class);
+        Expression mockCountSum = mock(Expression.class);
+        Expression mockAmountSum = mock(Expression.class);
+        Predicate mockPredicate = mock(Predicate.class);
+
+        when(mockEntityManager.getCriteriaBuilder()).thenReturn(mockCriteriaBuilder);
+        when(mockCriteriaBuilder.createQuery(PurchaseTotals.class)).thenReturn(mockCriteriaQuery);
+        when(mockCriteriaQuery.from(Purchase.class)).thenReturn(mockRoot);
+        when(mockEntityManager.createQuery(mockCriteriaQuery)).thenReturn(mockTypedQuery);
+        when(mockTypedQuery.getSingleResult()).thenReturn(expected);
+
+        when(mockRoot.get("product")).thenReturn(mockProduct);
+        when(mockRoot.get("count")).thenReturn(mockCount);
+        when(mockRoot.get("price")).thenReturn(mockPrice);
+        when(mockProduct.in(products)).thenReturn(mockPredicate);
+        when(mockCriteriaBuilder.prod(mockCount, mockPrice)).thenReturn(mockAmount);
+        when(mockCriteriaBuilder.sumAsLong(mockCount)).thenReturn(mockCountSum);
+        when(mockCriteriaBuilder.sumAsLong(mockAmount)).thenReturn(mockAmountSum);
+        when(mockCriteriaBuilder.construct(PurchaseTotals.class, mockCountSum, mockAmountSum))
+                .thenReturn(mockSelection);
+
+        PurchaseTotals result = purchaseDao.getTotals(new PurchaseFilter(null, products, null, null, null));
+
+        // Тот же фильтр, что и у страницы, но без сортировки и ограничений
+        verify(mockCriteriaQuery).select(mockSelection);
+        verify(mockCriteriaQuery).where(new Predicate[]{mockPredicate});
+        verify(mockCriteriaQuery, never()).orderBy(any(Order[].class));
+        verify(mockTypedQuery, never()).setMaxResults(anyInt());
+
+        assertEquals(expected, result);
+    }
+
+    @Test
+    public void testScroll() {
+        Query mockQuery = mock(Query.class);
+        NativeQuery mockNativeQuery = mock(NativeQuery.class);
+        ScrollableResults mockResults = mock(ScrollableResults.class);
+
+        when(mockEntityManager.createNativeQuery(anyString())).thenReturn(mockQuery);
+        when(mockQuery.unwrap(NativeQuery.class)).thenReturn(mockNativeQuery);
+        when(mockNativeQuery.scroll(ScrollMode.FORWARD_ONLY)).thenReturn(mockResults);
+
+        Date date = new Date();
+        when(mockResults.next()).thenReturn(true, true, false);
+        when(mockResults.get()).thenReturn(
+                new Object[]{1L, date, 3L, "Иван", "Иванов", null, 2L, "iphone", 2, 10},
+                // Клиент удалён
+                new Object[]{5L, date, null, null, null, null, 2L, "iphone", 1, 10}
+        );
+
+        List<Long> clients = Arrays.asList(3L, 4L);
+        List<Long> categories = Collections.singletonList(7L);
+        Date until = new Date();
+        PurchaseFilter filter = new PurchaseFilter(clients, null, categories, null, until);
+
+        List<PurchaseRow> rows = new ArrayList<>();
+        purchaseDao.scroll(filter, 500, rows::add);
+
+        // Только указанные условия
+        verify(mockEntityManager).createNativeQuery(
+                contains(" where 1 = 1 and p.account_id in (:clients) and p.product_id in (" +
+                        "select pc.product_id from productcategory pc where pc.category_id in (:categories))" +
+                        " and p.date < :until order by p.id"));
+        verify(mockNativeQuery).setParameterList("clients", clients);
+        verify(mockNativeQuery).setParameterList("categories", categories);
+        verify(mockNativeQuery).setParameter("until", until, TemporalType.TIMESTAMP);
+
+        // Курсор только вперёд с фиксированным размером выборки
+        verify(mockNativeQuery).setFetchSize(500);
+        verify(mockNativeQuery).setReadOnly(true);
+        verify(mockResults).close();
+
+        assertEquals(2, rows.size());
+        assertEquals(1L, rows.get(0).getId());
+        assertEquals("Иванов Иван", rows.get(0).getClientFullName());
+        assertEquals("iphone", rows.get(0).getProductName());
+        assertEquals(20L, rows.get(0).getAmount());
+        assertEquals(null, rows.get(1).getClientId());
+        assertEquals(null, rows.get(1).getClientFullName());
+    }
+
+    /**
+     * Архив читается вместе с оперативной таблицей, если выборка начинается не позже последней записи архива
+     */
+    @Test
+    public void testScrollArchive() {
+        Query mockQuery = mock(Query.class);
+        NativeQuery mockNativeQuery = mock(NativeQuery.class);
+        ScrollableResults mockResults = mock(ScrollableResults.class);
+
+        when(mockEntityManager.createNativeQuery(anyString())).thenReturn(mockQuery);
+        when(mockEntityManager.createNativeQuery(LAST_ARCHIVED)).thenReturn(mockLastArchived);
+        when(mockQuery.unwrap(NativeQuery.class)).thenReturn(mockNativeQuery);
+        when(mockNativeQuery.scroll(ScrollMode.FORWARD_ONLY)).thenReturn(mockResults);
+
+        when(mockLastArchived.getSingleResult()).thenReturn(new Date(1000));
+
+        purchaseDao.scroll(new PurchaseFilter(null, null, null, new Date(1000), null), 500, row -> { });
+
+        // Сначала архив, затем оперативная таблица
+        InOrder order = inOrder(mockEntityManager);
+        order.verify(mockEntityManager).createNativeQuery(contains(" from purchase_archive p "));
+        order.verify(mockEntityManager).createNativeQuery(contains(" from purchase p "));
+
+        // Выборка начинается после последней записи архива
+        reset(mockEntityManager);
+        when(mockEntityManager.createNativeQuery(anyString())).thenReturn(mockQuery);
+        when(mockEntityManager.createNativeQuery(LAST_ARCHIVED)).thenReturn(mockLastArchived);
+
+        purchaseDao.scroll(new PurchaseFilter(null, null, null, new Date(2000), null), 500, row -> { });
+
+        verify(mockEntityManager, never()).createNativeQuery(contains(" from purchase_archive p "));
+        verify(mockEntityManager).createNativeQuery(contains(" from purchase p "));
+    }
+
+    /**
+     * Страница из архива и оперативной таблицы сливается в порядке (товар, id)
+     */
+    @Test
+    public void testGetPurchasesSortedByProductsWithArchive() {
+        CriteriaBuilder mockCriteriaBuilder = mock(CriteriaBuilder.class);
+        CriteriaQuery<PurchaseRow> mockCriteriaQuery = (CriteriaQuery<PurchaseRow>) mock(CriteriaQuery.class);
+        TypedQuery<PurchaseRow> mockTypedQuery = (TypedQuery<PurchaseRow>) mock(TypedQuery.class);
+        Root<Purchase> mockRoot = (Root<Purchase>) mock(Root.class);
+        Root<ArchivedPurchase> mockArchiveRoot = (Root<ArchivedPurchase>) mock(Root.class);
+
+        when(mockEntityManager.getCriteriaBuilder()).thenReturn(mockCriteriaBuilder);
+        when(mockCriteriaBuilder.createQuery(PurchaseRow.class)).thenReturn(mockCriteriaQuery);
+        when(mockCriteriaQuery.from(Purchase.class)).thenReturn(mockRoot);
+        when(mockCriteriaQuery.from(ArchivedPurchase.class)).thenReturn(mockArchiveRoot);
+        mockProjection(mockCriteriaBuilder, mockRoot);
+        mockProjection(mockCriteriaBuilder, mockArchiveRoot);
+        when(mockEntityManager.createQuery(mockCriteriaQuery)).thenReturn(mockTypedQuery);
+
+        when(mockTypedQuery.setFirstResult(0)).thenReturn(mockTypedQuery);
+        when(mockTypedQuery.setMaxResults(3)).thenReturn(mockTypedQuery);
+        when(mockTypedQuery.getResultList()).thenReturn(
+                // Архив
+                Arrays.asList(row(1, 1), row(2, 2), row(3, 2)),
+                // Оперативная таблица
+                Arrays.asList(row(10, 1), row(11, 3)));
+
+        when(mockLastArchived.getSingleResult()).thenReturn(new Date());
+
+        List<PurchaseRow> result = purchaseDao.getPurchases(
+                PurchaseQuery.page(PurchaseQuery.Sort.PRODUCT, PurchaseFilter.ALL, 2, 1));
+
+        verify(mockCriteriaQuery).from(ArchivedPurchase.class);
+        verify(mockCriteriaQuery).from(Purchase.class);
+        // Из каждой таблицы берутся записи до конца страницы
+        verify(mockTypedQuery, times(2)).setMaxResults(3);
+
+        assertEquals(2, result.size());
+        assertEquals(10L, result.get(0).getId());
+        assertEquals(2L, result.get(1).getId());
+    }
+
+    @Test
+    public void testArchive() {
+        Query mockSelect = mock(Query.class);
+        Query mockInsert = mock(Query.class);
+        Query mockDelete = mock(Query.class);
+        List<Long> ids = Arrays.asList(1L, 2L);
+        Date before = new Date();
+
+        when(mockEntityManager.createNativeQuery(startsWith("select"))).thenReturn(mockSelect);
+        when(mockEntityManager.createNativeQuery(startsWith("insert"))).thenReturn(mockInsert);
+        when(mockEntityManager.createNativeQuery(startsWith("delete"))).thenReturn(mockDelete);
+        when(mockSelect.setParameter(anyInt(), any(Date.class), eq(TemporalType.TIMESTAMP))).thenReturn(mockSelect);
+        when(mockSelect.setParameter(anyInt(), any())).thenReturn(mockSelect);
+        when(mockSelect.getResultList()).thenReturn(ids);
+        when(mockInsert.setParameter("ids", ids)).thenReturn(mockInsert);
+        when(mockDelete.setParameter("ids", ids)).thenReturn(mockDelete);
+
+        assertEquals(2, purchaseDao.archive(before, 100));
+
+        verify(mockSelect).setParameter(1, before, TemporalType.TIMESTAMP);
+        verify(mockSelect).setParameter(2, 100);
+        verify(mockEntityManager).createNativeQuery(contains("insert into purchase_archive"));
+        verify(mockInsert).executeUpdate();
+        verify(mockEntityManager).createNativeQuery("delete from purchase where id in (:ids)");
+        verify(mockDelete).executeUpdate();
+    }
+
+    @Test
+    public void testArchiveNothing() {
+        Query mockSelect = mock(Query.class);
+
+        when(mockEntityManager.createNativeQuery(anyString())).thenReturn(mockSelect);
+        when(mockSelect.setParameter(anyInt(), any(Date.class), eq(TemporalType.TIMESTAMP))).thenReturn(mockSelect);
+        when(mockSelect.setParameter(anyInt(), any())).thenReturn(mockSelect);
+        when(mockSelect.getResultList()).thenReturn(Collections.emptyList());
+
+        assertEquals(0, purchaseDao.archive(new Date(), 100));
+
+        verify(mockEntityManager).createNativeQuery(anyString());
+    }
+
+    /**
+     * Сначала удаляются записи архива, а из оперативной таблицы - только оставшаяся часть
+     */
+    @Test
+    public void testDeleteBefore() {
+        Query mockArchive = mock(Query.class);
+        Query mockPurchase = mock(Query.class);
+        Date before = new Date();
+
+        when(mockEntityManager.createNativeQuery("delete from purchase_archive where date < ? limit ?"))
+                .thenReturn(mockArchive);
+        when(mockEntityManager.createNativeQuery("delete from purchase where date < ? limit ?"))
+                .thenReturn(mockPurchase);
+        when(mockArchive.setParameter(anyInt(), any(Date.class), eq(TemporalType.TIMESTAMP))).thenReturn(mockArchive);
+        when(mockArchive.setParameter(anyInt(), any())).thenReturn(mockArchive);
+        when(mockPurchase.setParameter(anyInt(), any(Date.class), eq(TemporalType.TIMESTAMP))).thenReturn(mockPurchase);
+        when(mockPurchase.setParameter(anyInt(), any())).thenReturn(mockPurchase);
+        when(mockArchive.executeUpdate()).thenReturn(30);
+        when(mockPurchase.executeUpdate()).thenReturn(70);
+
+        assertEquals(100, purchaseDao.deleteBefore(before, 100));
+
+        verify(mockArchive).setParameter(1, before, TemporalType.TIMESTAMP);
+        verify(mockArchive).setParameter(2, 100);
+        verify(mockPurchase).setParameter(1, before, TemporalType.TIMESTAMP);
+        verify(mockPurchase).setParameter(2, 70);
+    }
+
+    @Test
+    public void testDeleteBeforeOnlyArchive() {
+        Query mockArchive = mock(Query.class);
+
+        when(mockEntityManager.createNativeQuery(anyString())).thenReturn(mockArchive);
+        when(mockArchive.setParameter(anyInt(), any(Date.class), eq(TemporalType.TIMESTAMP))).thenReturn(mockArchive);
+        when(mockArchive.setParameter(anyInt(), any())).thenReturn(mockArchive);
+        when(mockArchive.executeUpdate()).thenReturn(100);
+
+        assertEquals(100, purchaseDao.deleteBefore(new Date(), 100));
+
+        verify(mockEntityManager).createNativeQuery(anyString());
+    }
+
     @Test
     public void testClear() {
         CriteriaBuilder mockCriteriaBuilder = mock(CriteriaBuilder.class);
         CriteriaDelete<Purchase> mockCriteria = (CriteriaDelete<Purchase>) mock(CriteriaDelete.class);
+        CriteriaDelete<ArchivedPurchase> mockArchiveCriteria = (CriteriaDelete<ArchivedPurchase>) mock(CriteriaDelete.class);
         Query mockQuery = mock(Query.class);
+        Query mockArchiveQuery = mock(Query.class);
 
         when(mockEntityManager.getCriteriaBuilder()).thenReturn(mockCriteriaBuilder);
         when(mockCriteriaBuilder.createCriteriaDelete(Purchase.class)).thenReturn(mockCriteria);
+        when(mockCriteriaBuilder.createCriteriaDelete(ArchivedPurchase.class)).thenReturn(mockArchiveCriteria);
         when(mockEntityManager.createQuery(mockCriteria)).thenReturn(mockQuery);
+        when(mockEntityManager.createQuery(mockArchiveCriteria)).thenReturn(mockArchiveQuery);
 
         purchaseDao.clear();
 
         verify(mockCriteria).from(Purchase.class);
         verify(mockEntityManager).createQuery(mockCriteria);
         verify(mockQuery).executeUpdate();
+
+        verify(mockArchiveCriteria).from(ArchivedPurchase.class);
+        verify(mockArchiveQuery).executeUpdate();
+    }
+
+    private static PurchaseRow row(long id, long productId) {
+        return new PurchaseRow(id, new Date(), null, null, productId, "product", 1, 10);
+    }
+
+    /**
+     * Проекция на поля ведомости: аккаунт и товар присоединяются, но не выбираются целиком
+     */
+    private static CompoundSelection<PurchaseRow> mockProjection(CriteriaBuilder mockCriteriaBuilder, Root<?> mockRoot) {
+        CompoundSelection<PurchaseRow> mockSelection = (CompoundSelection<PurchaseRow>) mock(CompoundSelection.class);
+        Join mockAccount = mock(Join.class);
+        Join mockProduct = mock(Join.class);
+
+        when(mockRoot.join("account", JoinType.LEFT)).thenReturn(mockAccount);
+        when(mockRoot.join("product", JoinType.LEFT)).thenReturn(mockProduct);
+        when(mockCriteriaBuilder.construct(eq(PurchaseRow.class), any())).thenReturn(mockSelection);
+
+        return mockSelection;
     }
 }
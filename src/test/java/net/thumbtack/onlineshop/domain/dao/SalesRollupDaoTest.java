@@ -0,0 +1,80 @@
+package net.thumbtack.onlineshop.domain.dao;
+
+import net.thumbtack.onlineshop.domain.models.SalesRollup;
+import net.thumbtack.onlineshop.domain.models.SalesRollup.Dimension;
+import net.thumbtack.onlineshop.domain.models.SalesRollup.Period;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import javax.persistence.EntityManager;
+import javax.persistence.Query;
+import javax.persistence.TemporalType;
+import java.util.Date;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.*;
+
+public class SalesRollupDaoTest {
+
+    private SalesRollupDao rollupDao;
+
+    @Mock
+    private EntityManager mockEntityManager;
+
+    @Before
+    public void setUpClass() {
+        MockitoAnnotations.initMocks(this);
+        rollupDao = new SalesRollupDao(mockEntityManager);
+    }
+
+    @Test
+    public void testAdd() {
+        Query mockQuery = mockNativeQuery();
+
+        Date bucket = new Date();
+        rollupDao.add(Dimension.CATEGORY, Period.HOUR, 3L, bucket, 4L, 40L);
+
+        // Вставка или обновление одним запросом
+        verify(mockEntityManager, times(1)).createNativeQuery(anyString());
+        verify(mockEntityManager).createNativeQuery(
+                contains("on duplicate key update count = count + values(count), amount = amount + values(amount)"));
+        verify(mockQuery).setParameter(1, "CATEGORY");
+        verify(mockQuery).setParameter(2, "HOUR");
+        verify(mockQuery).setParameter(3, 3L);
+        verify(mockQuery).setParameter(4, bucket, TemporalType.TIMESTAMP);
+        verify(mockQuery).setParameter(5, 4L);
+        verify(mockQuery).setParameter(6, 40L);
+        verify(mockQuery).executeUpdate();
+    }
+
+    @Test
+    public void testRebuild() {
+        Query mockQuery = mockNativeQuery();
+        when(mockQuery.executeUpdate()).thenReturn(2);
+
+        Date from = new Date(0);
+        Date to = new Date();
+
+        // 6 сводок по 2 записи
+        assertEquals(12, rollupDao.rebuild(from, to));
+
+        verify(mockEntityManager).createNativeQuery("delete from sales_rollup where bucket >= ? and bucket < ?");
+        verify(mockEntityManager, times(6)).createNativeQuery(startsWith("insert into sales_rollup"));
+        verify(mockEntityManager, times(2)).createNativeQuery(contains("join productcategory pc"));
+        verify(mockEntityManager, times(3)).createNativeQuery(contains("interval hour(p.date) hour"));
+        // Покупки из архива тоже учитываются
+        verify(mockEntityManager, times(6)).createNativeQuery(contains("union all select date, count, price, account_id, product_id from purchase_archive"));
+        verify(mockQuery, times(6)).setParameter(6, to, TemporalType.TIMESTAMP);
+        verify(mockQuery, times(7)).executeUpdate();
+    }
+
+    private Query mockNativeQuery() {
+        Query mockQuery = mock(Query.class);
+        when(mockEntityManager.createNativeQuery(anyString())).thenReturn(mockQuery);
+        when(mockQuery.setParameter(anyInt(), any())).thenReturn(mockQuery);
+        when(mockQuery.setParameter(anyInt(), any(Date.class), any(TemporalType.class))).thenReturn(mockQuery);
+        return mockQuery;
+    }
+}
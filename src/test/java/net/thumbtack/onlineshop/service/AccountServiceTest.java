@@ -33,10 +33,13 @@ public class AccountServiceTest {
     @Mock
     private SessionDao mockSessionDao;
 
+    @Mock
+    private DepositService mockDepositService;
+
     @Before
     public void setUpClass() {
         MockitoAnnotations.initMocks(this);
-        accountService = new AccountService(mockAccountDao, mockSessionDao);
+        accountService = new AccountService(mockAccountDao, mockSessionDao, mockDepositService);
     }
 
     /**
@@ -337,6 +340,7 @@ public class AccountServiceTest {
         client.setId(3L);
         when(mockAccountDao.isPasswordMatch(3L, client.getPassword())).thenReturn(true);
         when(mockSessionDao.get("token")).thenReturn(new Session("token", client));
+        when(mockDepositService.getBalance(client)).thenReturn(150);
 
         ClientDto edited = createClientEditDto(
                 "new name", "new last name", "new patro",
@@ -354,6 +358,8 @@ public class AccountServiceTest {
         assertEquals(edited.getAddress(), result.getAddress());
         assertEquals(edited.getEmail(), result.getEmail());
         assertEquals(edited.getPhone(), result.getPhone());
+        // Остаток на счету берётся из истории движений денег
+        assertEquals(150, (int) result.getDeposit());
     }
 
     /**
@@ -366,6 +372,7 @@ public class AccountServiceTest {
         client.setId(3L);
         when(mockAccountDao.isPasswordMatch(3L, "wrong")).thenReturn(false);
         when(mockSessionDao.get("token")).thenReturn(new Session("token", client));
+        when(mockDepositService.getBalance(client)).thenReturn(150);
 
         ClientDto edited = createClientEditDto(
                 "new name", "new last name", "new patro",
@@ -456,6 +463,23 @@ public class AccountServiceTest {
         assertEquals(account.getFirstName(), result.getFirstName());
         assertEquals(account.getLastName(), result.getLastName());
         assertEquals(account.getPosition(), result.getPosition());
+        // У администратора нет счёта
+        verify(mockDepositService, never()).getBalance(any());
+    }
+
+    /**
+     * Получение информации об аккаунте клиента вместе с остатком на счету
+     */
+    @Test
+    public void testGetClientAccount() throws ServiceException {
+        Account client = generateClient();
+        when(mockSessionDao.get("token")).thenReturn(new Session("token", client));
+        when(mockDepositService.getBalance(client)).thenReturn(250);
+
+        AccountDto result = accountService.get("token");
+
+        assertEquals(client.getFirstName(), result.getFirstName());
+        assertEquals(250, (int) result.getDeposit());
     }
 
     /**
@@ -0,0 +1,471 @@
+package net.thumbtack.onlineshop.service;
+
+import net.thumbtack.onlineshop.domain.dao.BasketDao;
+import net.thumbtack.onlineshop.domain.models.Account;
+import net.thumbtack.onlineshop.domain.models.AccountFactory;
+import net.thumbtack.onlineshop.domain.models.Basket;
+import net.thumbtack.onlineshop.domain.models.Product;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.*;
+
+public class BasketStoreTest {
+
+    private BasketStore basketStore;
+
+    @Mock
+    private BasketDao mockBasketDao;
+
+    @Mock
+    private PlatformTransactionManager mockTransactionManager;
+
+    @Before
+    public void setUpClass() {
+        MockitoAnnotations.initMocks(this);
+        basketStore = new BasketStore(mockBasketDao, mockTransactionManager);
+    }
+
+    /**
+     * Повторное добавление товара увеличивает количество, порядок добавления сохраняется
+     */
+    @Test
+    public void testAdd() {
+        basketStore.add(1L, generateProduct(2L), 5);
+        basketStore.add(1L, generateProduct(1L), 1);
+        BasketChanges changes = basketStore.add(1L, generateProduct(2L), 3);
+
+        // Возвращается только изменённая запись и итоги всей корзины
+        assertEquals(1, changes.getChanged().size());
+        assertEquals(8, (int) changes.getChanged().get(0).getCount());
+        assertEquals(2, changes.getLines());
+        assertEquals(9, changes.getTotalCount());
+        assertEquals(90, changes.getTotalPrice());
+
+        List<Basket> result = basketStore.get(1L);
+        assertEquals(2, result.size());
+        assertEquals(2L, (long) result.get(0).getProduct().getId());
+        assertEquals(8, (int) result.get(0).getCount());
+        assertEquals(1L, (long) result.get(1).getProduct().getId());
+
+        // В корзине хранится копия товара без количества на складе
+        assertNull(result.get(0).getProduct().getCount());
+        assertEquals("product2", result.get(0).getProduct().getName());
+
+        // Корзины разных клиентов не пересекаются
+        assertTrue(basketStore.get(2L).isEmpty());
+        assertTrue(basketStore.get(1L + BasketStore.SHARDS).isEmpty());
+    }
+
+    /**
+     * Наружу отдаются копии записей
+     */
+    @Test
+    public void testGetCopy() {
+        basketStore.add(1L, generateProduct(1L), 5);
+
+        basketStore.get(1L).get(0).setCount(100);
+        basketStore.get(1L, 1L).setCount(100);
+
+        assertEquals(5, (int) basketStore.get(1L, 1L).getCount());
+        assertNull(basketStore.get(1L, 2L));
+        assertNull(basketStore.get(2L, 1L));
+    }
+
+    @Test
+    public void testSetCount() {
+        basketStore.add(1L, generateProduct(1L), 5);
+
+        BasketChanges changes = basketStore.setCount(1L, 1L, 2);
+
+        assertEquals(1, changes.getChanged().size());
+        assertEquals(2, (int) changes.getChanged().get(0).getCount());
+        assertEquals(2, changes.getTotalCount());
+        assertEquals(20, changes.getTotalPrice());
+        assertNull(basketStore.setCount(1L, 2L, 2));
+        assertNull(basketStore.setCount(2L, 1L, 2));
+    }
+
+    /**
+     * После покупки всего количества товар удаляется из корзины
+     */
+    @Test
+    public void testSubtract() {
+        basketStore.add(1L, generateProduct(1L), 5);
+        basketStore.add(1L, generateProduct(2L), 5);
+
+        basketStore.subtract(1L, 1L, 2);
+        basketStore.subtract(1L, 2L, 5);
+        basketStore.subtract(1L, 3L, 5);
+
+        List<Basket> result = basketStore.get(1L);
+        assertEquals(1, result.size());
+        assertEquals(3, (int) result.get(0).getCount());
+    }
+
+    @Test
+    public void testRemove() {
+        basketStore.add(1L, generateProduct(1L), 5);
+
+        assertTrue(basketStore.remove(1L, 1L));
+        assertFalse(basketStore.remove(1L, 1L));
+        assertFalse(basketStore.remove(2L, 1L));
+        assertTrue(basketStore.get(1L).isEmpty());
+    }
+
+    /**
+     * Изменение товара администратором видно во всех корзинах
+     */
+    @Test
+    public void testUpdateProduct() {
+        basketStore.add(1L, generateProduct(1L), 5);
+        basketStore.add(2L, generateProduct(1L), 5);
+        basketStore.add(2L, generateProduct(2L), 5);
+
+        Product product = generateProduct(1L);
+        product.setName("updated");
+        product.setDeleted(true);
+        basketStore.updateProduct(product);
+
+        assertEquals("updated", basketStore.get(1L, 1L).getProduct().getName());
+        assertTrue(basketStore.get(2L, 1L).getProduct().getDeleted());
+        assertEquals("product2", basketStore.get(2L, 2L).getProduct().getName());
+    }
+
+    /**
+     * Изменения корзины с версии: изменённые и удалённые записи
+     */
+    @Test
+    public void testGetChanges() {
+        basketStore.add(1L, generateProduct(1L), 5);
+        basketStore.add(1L, generateProduct(2L), 5);
+        long version = basketStore.add(1L, generateProduct(3L), 5).getVersion();
+
+        basketStore.setCount(1L, 1L, 1);
+        basketStore.remove(1L, 2L);
+
+        BasketChanges changes = basketStore.getChanges(1L, version);
+        assertFalse(changes.isFull());
+        assertEquals(1, changes.getChanged().size());
+        assertEquals(1L, (long) changes.getChanged().get(0).getProduct().getId());
+        assertEquals(Collections.singletonList(2L), changes.getRemoved());
+        assertEquals(2, changes.getLines());
+        assertEquals(6, changes.getTotalCount());
+        assertTrue(changes.getVersion() > version);
+
+        // С последней версии изменений нет
+        changes = basketStore.getChanges(1L, changes.getVersion());
+        assertTrue(changes.getChanged().isEmpty());
+        assertTrue(changes.getRemoved().isEmpty());
+
+        // Товар, который снова добавили, больше не считается удалённым
+        basketStore.add(1L, generateProduct(2L), 1);
+        changes = basketStore.getChanges(1L, version);
+        assertEquals(2, changes.getChanged().size());
+        assertTrue(changes.getRemoved().isEmpty());
+    }
+
+    /**
+     * Если изменения с версии неизвестны, то отдаётся вся корзина
+     */
+    @Test
+    public void testGetChangesFull() {
+        long version = basketStore.add(1L, generateProduct(1L), 5).getVersion();
+
+        // Вся корзина
+        BasketChanges changes = basketStore.getChanges(1L, 0);
+        assertTrue(changes.isFull());
+        assertEquals(1, changes.getChanged().size());
+
+        // Версия, которой ещё не было
+        assertTrue(basketStore.getChanges(1L, changes.getVersion() + 1000).isFull());
+
+        // Самые старые удаления забыты
+        for (long id = 2; id <= BasketStore.REMOVED_HISTORY + 2; ++id) {
+            basketStore.add(1L, generateProduct(id), 1);
+            basketStore.remove(1L, id);
+        }
+        changes = basketStore.getChanges(1L, version);
+        assertTrue(changes.isFull());
+        assertEquals(1, changes.getChanged().size());
+        assertTrue(changes.getRemoved().isEmpty());
+
+        // Корзины нет
+        changes = basketStore.getChanges(2L, version);
+        assertTrue(changes.isFull());
+        assertTrue(changes.getChanged().isEmpty());
+    }
+
+    /**
+     * Изменение товара - это изменение записи корзины
+     */
+    @Test
+    public void testUpdateProductChanges() {
+        long version = basketStore.add(1L, generateProduct(1L), 5).getVersion();
+
+        Product product = generateProduct(1L);
+        product.setPrice(20);
+        basketStore.updateProduct(product);
+
+        BasketChanges changes = basketStore.getChanges(1L, version);
+        assertEquals(1, changes.getChanged().size());
+        assertEquals(20, (int) changes.getChanged().get(0).getProduct().getPrice());
+        assertEquals(100, changes.getTotalPrice());
+    }
+
+    /**
+     * В БД записывается только последнее состояние записи
+     */
+    @Test
+    public void testFlush() {
+        basketStore.add(1L, generateProduct(1L), 5);
+        basketStore.add(1L, generateProduct(1L), 5);
+        basketStore.setCount(1L, 1L, 3);
+
+        basketStore.add(2L, generateProduct(2L), 5);
+        basketStore.remove(2L, 2L);
+
+        basketStore.flush();
+
+        verify(mockBasketDao).save(eq(1L), eq(1L), eq(3), any());
+        verify(mockBasketDao, times(1)).save(anyLong(), anyLong(), anyInt(), any());
+        verify(mockBasketDao).delete(2L, 2L);
+        verify(mockTransactionManager, times(1)).commit(any());
+
+        // Повторно ничего не записывается
+        basketStore.flush();
+        verify(mockBasketDao, times(1)).save(anyLong(), anyLong(), anyInt(), any());
+
+        Map<String, Number> metrics = basketStore.getMetrics();
+        assertEquals(1L, metrics.get("flushes"));
+        assertEquals(2L, metrics.get("flushed_lines"));
+        assertEquals(0L, metrics.get("dirty"));
+        assertEquals(1L, metrics.get("lines"));
+    }
+
+    /**
+     * Если общая транзакция не удалась, то записи записываются по одной
+     */
+    @Test
+    public void testFlushError() {
+        basketStore.add(1L, generateProduct(1L), 5);
+        basketStore.add(1L, generateProduct(2L), 5);
+
+        doThrow(new RuntimeException()).when(mockBasketDao).save(eq(1L), eq(1L), eq(5), any());
+
+        basketStore.flush();
+
+        // Неудачная запись пробуется дважды: в общей транзакции и отдельно
+        verify(mockBasketDao, times(2)).save(eq(1L), eq(1L), eq(5), any());
+        verify(mockBasketDao, atLeastOnce()).save(eq(1L), eq(2L), eq(5), any());
+        verify(mockTransactionManager, times(2)).rollback(any());
+        assertEquals(1L, basketStore.getMetrics().get("flush_errors"));
+        assertEquals(1L, basketStore.getMetrics().get("flushed_lines"));
+    }
+
+    /**
+     * Запись, которую не удалось записать, остаётся изменённой и записывается при следующей записи
+     */
+    @Test
+    public void testFlushErrorRetry() {
+        basketStore.add(1L, generateProduct(1L), 5);
+
+        doThrow(new RuntimeException()).when(mockBasketDao).save(eq(1L), eq(1L), eq(5), any());
+        basketStore.flush();
+        assertEquals(1L, basketStore.getMetrics().get("dirty"));
+
+        // Пока БД была недоступна, запись изменилась ещё раз
+        basketStore.setCount(1L, 1L, 7);
+        doNothing().when(mockBasketDao).save(anyLong(), anyLong(), anyInt(), any());
+        basketStore.flush();
+
+        verify(mockBasketDao).save(eq(1L), eq(1L), eq(7), any());
+        assertEquals(0L, basketStore.getMetrics().get("dirty"));
+        assertEquals(1L, basketStore.getMetrics().get("flushed_lines"));
+    }
+
+    /**
+     * Изменение, которое не удаётся записать несколько раз подряд, отбрасывается
+     */
+    @Test
+    public void testFlushErrorDropped() {
+        ReflectionTestUtils.setField(basketStore, "flushMaxAttempts", 3);
+        doThrow(new RuntimeException()).when(mockBasketDao).save(eq(1L), eq(1L), anyInt(), any());
+
+        basketStore.add(1L, generateProduct(1L), 5);
+        for (int i = 0; i < 3; ++i) {
+            // Остальные записи записываются, значит БД доступна
+            basketStore.add(2L, generateProduct(2L), 1);
+            basketStore.flush();
+        }
+
+        // Общая транзакция и отдельная запись на каждую попытку
+        verify(mockBasketDao, times(6)).save(eq(1L), eq(1L), eq(5), any());
+        assertEquals(0L, basketStore.getMetrics().get("dirty"));
+        assertEquals(1L, basketStore.getMetrics().get("flush_dropped"));
+        assertEquals(3L, basketStore.getMetrics().get("flush_errors"));
+
+        // Больше изменение не записывается, а запись остаётся в корзине
+        basketStore.add(2L, generateProduct(2L), 1);
+        basketStore.flush();
+        verify(mockBasketDao, times(6)).save(eq(1L), eq(1L), eq(5), any());
+        assertEquals(5, (int) basketStore.get(1L).get(0).getCount());
+    }
+
+    /**
+     * Если не удалось записать ни одной записи, то попытки не считаются: скорее всего недоступна БД
+     */
+    @Test
+    public void testFlushErrorDatabaseUnavailable() {
+        ReflectionTestUtils.setField(basketStore, "flushMaxAttempts", 2);
+        doThrow(new RuntimeException()).when(mockBasketDao).save(anyLong(), anyLong(), anyInt(), any());
+
+        basketStore.add(1L, generateProduct(1L), 5);
+        basketStore.add(2L, generateProduct(2L), 5);
+        for (int i = 0; i < 3; ++i) {
+            basketStore.flush();
+        }
+
+        assertEquals(2L, basketStore.getMetrics().get("dirty"));
+        assertEquals(0L, basketStore.getMetrics().get("flush_dropped"));
+    }
+
+    /**
+     * Новое изменение записи клиентом сбрасывает счётчик неудачных попыток
+     */
+    @Test
+    public void testFlushErrorAttemptsReset() {
+        ReflectionTestUtils.setField(basketStore, "flushMaxAttempts", 2);
+        doThrow(new RuntimeException()).when(mockBasketDao).save(eq(1L), eq(1L), anyInt(), any());
+
+        basketStore.add(1L, generateProduct(1L), 5);
+        basketStore.add(2L, generateProduct(2L), 1);
+        basketStore.flush();
+
+        basketStore.setCount(1L, 1L, 7);
+        basketStore.add(2L, generateProduct(2L), 1);
+        basketStore.flush();
+
+        assertEquals(1L, basketStore.getMetrics().get("dirty"));
+        assertEquals(0L, basketStore.getMetrics().get("flush_dropped"));
+
+        basketStore.add(2L, generateProduct(2L), 1);
+        basketStore.flush();
+        assertEquals(0L, basketStore.getMetrics().get("dirty"));
+        assertEquals(1L, basketStore.getMetrics().get("flush_dropped"));
+    }
+
+    /**
+     * Старые записи удаляются из памяти и частями из БД
+     */
+    @Test
+    public void testExpire() {
+        ReflectionTestUtils.setField(basketStore, "ttlSeconds", 3600L);
+        ReflectionTestUtils.setField(basketStore, "expiryChunkSize", 2);
+
+        Account client = generateClient(1L);
+        Basket old = new Basket(client, generateProduct(1L), 5);
+        old.setTouched(new Date(System.currentTimeMillis() - 7200_000));
+        Basket recent = new Basket(client, generateProduct(2L), 3);
+        Account other = generateClient(2L);
+        Basket abandoned = new Basket(other, generateProduct(1L), 1);
+        abandoned.setTouched(old.getTouched());
+
+        when(mockBasketDao.getAll()).thenReturn(Arrays.asList(old, recent, abandoned));
+        when(mockBasketDao.deleteTouchedBefore(any(), eq(2))).thenReturn(2, 2, 1);
+
+        basketStore.load();
+        long version = basketStore.getChanges(1L, 0).getVersion();
+
+        basketStore.expire();
+
+        List<Basket> result = basketStore.get(1L);
+        assertEquals(1, result.size());
+        assertEquals(2L, (long) result.get(0).getProduct().getId());
+        assertTrue(basketStore.get(2L).isEmpty());
+
+        // Клиент узнаёт об удалении через изменения корзины
+        assertEquals(Collections.singletonList(1L), basketStore.getChanges(1L, version).getRemoved());
+
+        // Удаление из БД частями, пока не удалится неполная часть
+        verify(mockBasketDao, times(3)).deleteTouchedBefore(any(), eq(2));
+
+        // Удалённые записи не записываются в БД
+        basketStore.flush();
+        verify(mockBasketDao, never()).delete(anyLong(), anyLong());
+
+        Map<String, Number> metrics = basketStore.getMetrics();
+        assertEquals(2L, metrics.get("expired_lines"));
+        assertEquals(5L, metrics.get("expired_rows"));
+    }
+
+    @Test
+    public void testExpireDisabled() {
+        basketStore.add(1L, generateProduct(1L), 5);
+
+        basketStore.expire();
+
+        verify(mockBasketDao, never()).deleteTouchedBefore(any(), anyInt());
+        assertEquals(1, basketStore.get(1L).size());
+    }
+
+    @Test
+    public void testLoad() {
+        Account client = generateClient(1L);
+        when(mockBasketDao.getAll()).thenReturn(Arrays.asList(
+                new Basket(client, generateProduct(1L), 5),
+                new Basket(client, generateProduct(2L), 3)
+        ));
+
+        basketStore.load();
+
+        List<Basket> result = basketStore.get(1L);
+        assertEquals(2, result.size());
+        assertEquals(3, (int) result.get(1).getCount());
+        assertNull(result.get(0).getAccount());
+
+        // Загруженные записи не записываются в БД повторно
+        basketStore.flush();
+        verify(mockBasketDao, never()).save(anyLong(), anyLong(), anyInt(), any());
+    }
+
+    @Test
+    public void testClear() {
+        basketStore.add(1L, generateProduct(1L), 5);
+
+        basketStore.clear();
+        basketStore.flush();
+
+        assertTrue(basketStore.get(1L).isEmpty());
+        verifyZeroInteractions(mockBasketDao);
+        assertEquals(0L, basketStore.getMetrics().get("accounts"));
+    }
+
+    private Product generateProduct(long id) {
+        Product product = new Product("product" + id, 100, 10);
+        product.setId(id);
+        return product;
+    }
+
+    private Account generateClient(long id) {
+        Account account = AccountFactory.createClient(
+                "234324", "234324", "wereww1", "werewr1",
+                "wrewf3", "werwer235", "werw23", "ewr23423"
+        );
+        account.setId(id);
+        return account;
+    }
+}
@@ -0,0 +1,115 @@
+package net.thumbtack.onlineshop.service;
+
+import net.thumbtack.onlineshop.domain.models.Basket;
+import net.thumbtack.onlineshop.domain.models.Product;
+import net.thumbtack.onlineshop.dto.ProductDto;
+import net.thumbtack.onlineshop.dto.RejectedProductDto;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class BasketValidatorTest {
+
+    /**
+     * Верные товары попадают в список покупок вместе с записью корзины
+     */
+    @Test
+    public void testValidate() {
+        List<Basket> basket = generateBasket(3);
+
+        List<ProductDto> toBuy = Arrays.asList(
+                new ProductDto(2L, "product2", 100, 5),
+                new ProductDto(0L, "product0", 100, null),
+                new ProductDto(1L, "product1", 100, 50)
+        );
+
+        BasketValidator result = BasketValidator.validate(toBuy, basket);
+
+        assertTrue(result.getRejected().isEmpty());
+        assertEquals(3, result.getValid().size());
+
+        // Порядок товаров из запроса сохраняется
+        assertSame(basket.get(2), result.getValid().get(0).getBasket());
+        assertSame(basket.get(0), result.getValid().get(1).getBasket());
+
+        // Без количества или больше чем в корзине - всё количество из корзины
+        assertEquals(10, (int) result.getValid().get(1).getProduct().getCount());
+        assertEquals(10, (int) result.getValid().get(2).getProduct().getCount());
+    }
+
+    /**
+     * Каждый неверный товар отклоняется со своей причиной
+     */
+    @Test
+    public void testValidateRejected() {
+        List<Basket> basket = generateBasket(5);
+        basket.get(3).getProduct().setCount(1);
+        basket.get(4).getProduct().setDeleted(true);
+
+        List<ProductDto> toBuy = Arrays.asList(
+                new ProductDto(null, "product0", 100, 1),
+                new ProductDto(10L, "product0", 100, 1),
+                new ProductDto(1L, "product", 100, 1),
+                new ProductDto(2L, "product2", 1, 1),
+                new ProductDto(3L, "product3", 100, 2),
+                new ProductDto(4L, "product4", 100, 1),
+                new ProductDto(0L, "product0", 100, 1),
+                new ProductDto(0L, "product0", 100, 1)
+        );
+
+        BasketValidator result = BasketValidator.validate(toBuy, basket);
+
+        assertEquals(1, result.getValid().size());
+
+        List<RejectedProductDto> rejected = result.getRejected();
+        assertEquals(7, rejected.size());
+        assertRejected(rejected.get(0), ServiceException.ErrorCode.PRODUCT_NOT_FOUND, "id");
+        assertRejected(rejected.get(1), ServiceException.ErrorCode.PRODUCT_NOT_FOUND, "id");
+        assertRejected(rejected.get(2), ServiceException.ErrorCode.WRONG_PRODUCT_INFO, "name");
+        assertRejected(rejected.get(3), ServiceException.ErrorCode.WRONG_PRODUCT_INFO, "price");
+        assertRejected(rejected.get(4), ServiceException.ErrorCode.NOT_ENOUGH_PRODUCT, "count");
+        assertRejected(rejected.get(5), ServiceException.ErrorCode.PRODUCT_NOT_FOUND, "id");
+        assertRejected(rejected.get(6), ServiceException.ErrorCode.DUPLICATE_PRODUCT, "id");
+        assertEquals(0L, (long) rejected.get(6).getId());
+    }
+
+    /**
+     * Пустой запрос и пустая корзина
+     */
+    @Test
+    public void testValidateEmpty() {
+        BasketValidator result = BasketValidator.validate(
+                Collections.singletonList(new ProductDto(1L, "product1", 100, 1)),
+                Collections.emptyList()
+        );
+        assertTrue(result.getValid().isEmpty());
+        assertEquals(1, result.getRejected().size());
+
+        result = BasketValidator.validate(Collections.emptyList(), generateBasket(3));
+        assertTrue(result.getValid().isEmpty());
+        assertTrue(result.getRejected().isEmpty());
+    }
+
+    private void assertRejected(RejectedProductDto rejected, ServiceException.ErrorCode code, String field) {
+        assertEquals(code.getErrorCode(), rejected.getErrorCode());
+        assertEquals(code.getMessage(), rejected.getMessage());
+        assertEquals(field, rejected.getField());
+    }
+
+    private List<Basket> generateBasket(int size) {
+        List<Basket> basket = new ArrayList<>();
+
+        for (int i = 0; i < size; ++i) {
+            Product product = new Product("product" + i, 100, 100);
+            product.setId((long) i);
+            basket.add(new Basket(null, product, 10));
+        }
+
+        return basket;
+    }
+}
@@ -0,0 +1,260 @@
+package net.thumbtack.onlineshop.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import net.thumbtack.onlineshop.domain.dao.IdempotencyDao;
+import net.thumbtack.onlineshop.domain.dao.ProductDao;
+import net.thumbtack.onlineshop.domain.models.Account;
+import net.thumbtack.onlineshop.domain.models.AccountFactory;
+import net.thumbtack.onlineshop.domain.models.DepositEntry;
+import net.thumbtack.onlineshop.domain.models.Product;
+import net.thumbtack.onlineshop.dto.ProductDto;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.AbstractPlatformTransactionManager;
+import org.springframework.transaction.support.DefaultTransactionStatus;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.function.Supplier;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.Mockito.*;
+
+public class CheckoutPipelineTest {
+
+    private CheckoutPipeline pipeline;
+
+    @Mock
+    private DepositService mockDepositService;
+
+    @Mock
+    private ProductDao mockProductDao;
+
+    @Mock
+    private PurchasesService mockPurchasesService;
+
+    @Mock
+    private IdempotencyDao mockIdempotencyDao;
+
+    private IdempotencyService idempotencyService;
+
+    @Before
+    public void setUpClass() {
+        MockitoAnnotations.initMocks(this);
+
+        idempotencyService = new IdempotencyService(mockIdempotencyDao, new ObjectMapper());
+        ReflectionTestUtils.setField(idempotencyService, "cacheSize", 100);
+        ReflectionTestUtils.setField(idempotencyService, "ttlSeconds", 60L);
+        ReflectionTestUtils.setField(idempotencyService, "persistent", true);
+
+        pipeline = new CheckoutPipeline(new CheckoutWriter(
+                mockDepositService,
+                mockProductDao,
+                mockPurchasesService,
+                idempotencyService,
+                new StubTransactionManager()
+        ));
+
+        ReflectionTestUtils.setField(pipeline, "mode", "batch");
+        ReflectionTestUtils.setField(pipeline, "batchSize", 16);
+        ReflectionTestUtils.setField(pipeline, "batchWaitMs", 1L);
+        ReflectionTestUtils.setField(pipeline, "writers", 1);
+        ReflectionTestUtils.setField(pipeline, "queueSize", 16);
+        ReflectionTestUtils.setField(pipeline, "queueTimeoutMs", 10L);
+        ReflectionTestUtils.setField(pipeline, "awaitTimeoutMs", 5000L);
+
+        // Блокировки счетов клиентов просто выполняют действие
+        when(mockDepositService.locked(anyCollection(), any())).thenAnswer(invocation ->
+                invocation.<Supplier<?>>getArgument(1).get()
+        );
+    }
+
+    /**
+     * Покупка через очередь и поток-писатель
+     */
+    @Test
+    public void testBuyProduct() throws Exception {
+        Product product = new Product("product", 5, 10);
+        product.setId(1L);
+        Account client = generateClient(1L, 100);
+
+        when(mockProductDao.getForUpdate(anyCollection())).thenReturn(Collections.singletonList(product));
+        when(mockDepositService.getBalance(any())).thenReturn(100);
+
+        pipeline.start();
+        try {
+            ProductDto result = pipeline.buyProduct(client, new ProductDto(1L, "product", 10, 2), null);
+
+            assertEquals(2, (int) result.getCount());
+            assertEquals(3, (int) product.getCount());
+            verify(mockDepositService).record(client, -20, DepositEntry.Type.PURCHASE);
+
+        } finally {
+            pipeline.stop();
+        }
+
+        Map<String, Number> metrics = pipeline.getMetrics();
+        assertEquals(1, metrics.get("enabled"));
+        assertEquals(1L, metrics.get("batches"));
+        assertEquals(1L, metrics.get("purchases"));
+        assertEquals(1L, metrics.get("batch_size_max"));
+    }
+
+    /**
+     * Ключ идемпотентности занимается в транзакции потока-писателя,
+     * а результат дописывается в запись после фиксации
+     */
+    @Test
+    public void testBuyProductIdempotent() throws Exception {
+        Product product = new Product("product", 5, 10);
+        product.setId(1L);
+        Account client = generateClient(1L, 100);
+        ProductDto buyProduct = new ProductDto(1L, "product", 10, 2);
+
+        when(mockProductDao.getForUpdate(anyCollection())).thenReturn(Collections.singletonList(product));
+        when(mockDepositService.getBalance(any())).thenReturn(100);
+
+        pipeline.start();
+        try {
+            ProductDto result = idempotencyService.execute(client, "key", buyProduct, ProductDto.class,
+                    () -> pipeline.buyProduct(client, buyProduct, idempotencyService.getClaim())
+            );
+
+            assertEquals(2, (int) result.getCount());
+            assertEquals(3, (int) product.getCount());
+
+        } finally {
+            pipeline.stop();
+        }
+
+        // Запись о ключе вставляется один раз (в транзакции писателя), а ответ дописывается в неё
+        verify(mockIdempotencyDao).insert(argThat(record -> "key".equals(record.getIdempotencyKey())));
+        verify(mockIdempotencyDao).update(argThat(record -> record.getResponse() != null));
+    }
+
+    /**
+     * Если ключ уже занят другим экземпляром сервера, то покупка не выполняется
+     */
+    @Test
+    public void testBuyProductIdempotencyKeyTaken() throws Exception {
+        Product product = new Product("product", 5, 10);
+        product.setId(1L);
+        Account client = generateClient(1L, 100);
+        ProductDto buyProduct = new ProductDto(1L, "product", 10, 2);
+
+        when(mockProductDao.getForUpdate(anyCollection())).thenReturn(Collections.singletonList(product));
+        when(mockDepositService.getBalance(any())).thenReturn(100);
+        doThrow(new DataIntegrityViolationException("duplicate")).when(mockIdempotencyDao).insert(any());
+
+        pipeline.start();
+        try {
+            idempotencyService.execute(client, "key", buyProduct, ProductDto.class,
+                    () -> pipeline.buyProduct(client, buyProduct, idempotencyService.getClaim())
+            );
+            fail();
+
+        } catch (ServiceException e) {
+            assertEquals(ServiceException.ErrorCode.IDEMPOTENCY_IN_PROGRESS, e.getErrorCode());
+
+        } finally {
+            pipeline.stop();
+        }
+
+        assertEquals(5, (int) product.getCount());
+        verify(mockDepositService, never()).record(any(), anyInt(), any());
+        verify(mockIdempotencyDao, never()).update(any());
+    }
+
+    /**
+     * Очередь не принимает запросы, если конвейер не запущен
+     */
+    @Test
+    public void testBuyProductOverloaded() {
+        try {
+            pipeline.buyProduct(generateClient(1L, 100), new ProductDto(1L, "product", 10, 2), null);
+            fail();
+        } catch (ServiceException e) {
+            assertEquals(ServiceException.ErrorCode.CHECKOUT_OVERLOADED, e.getErrorCode());
+        }
+    }
+
+    /**
+     * Если писатель не взял запрос за checkout_await_timeout_ms (например, его поток завершился),
+     * то запрос убирается из очереди, а клиент получает ошибку
+     */
+    @Test
+    public void testBuyProductAwaitTimeout() throws Exception {
+        ReflectionTestUtils.setField(pipeline, "awaitTimeoutMs", 20L);
+        // Очередь принимает запросы, но потоков-писателей нет
+        ReflectionTestUtils.setField(pipeline, "queue", new ArrayBlockingQueue<CheckoutRequest>(16));
+        ReflectionTestUtils.setField(pipeline, "running", true);
+
+        try {
+            pipeline.buyProduct(generateClient(1L, 100), new ProductDto(1L, "product", 10, 2), null);
+            fail();
+        } catch (ServiceException e) {
+            assertEquals(ServiceException.ErrorCode.CHECKOUT_OVERLOADED, e.getErrorCode());
+        }
+
+        Map<String, Number> metrics = pipeline.getMetrics();
+        assertEquals(0, metrics.get("queue_size"));
+        assertEquals(1L, metrics.get("timeouts"));
+    }
+
+    /**
+     * В синхронном режиме потоки-писатели не запускаются
+     */
+    @Test
+    public void testSyncMode() throws InterruptedException {
+        ReflectionTestUtils.setField(pipeline, "mode", "sync");
+
+        pipeline.start();
+
+        assertFalse(pipeline.isEnabled());
+        assertEquals(0, pipeline.getMetrics().get("enabled"));
+        pipeline.stop();
+    }
+
+    /**
+     * Менеджер транзакций без БД, который поддерживает синхронизацию с транзакцией
+     */
+    private static class StubTransactionManager extends AbstractPlatformTransactionManager {
+
+        @Override
+        protected Object doGetTransaction() {
+            return new Object();
+        }
+
+        @Override
+        protected void doBegin(Object transaction, TransactionDefinition definition) {
+        }
+
+        @Override
+        protected void doCommit(DefaultTransactionStatus status) {
+        }
+
+        @Override
+        protected void doRollback(DefaultTransactionStatus status) {
+        }
+    }
+
+    private Account generateClient(long id, int deposit) {
+        Account account = AccountFactory.createClient(
+                "234324", "234324", "wereww1", "werewr1",
+                "wrewf3", "werwer235", "werw23", "ewr23423"
+        );
+        account.setId(id);
+        account.setDeposit(deposit);
+        return account;
+    }
+}
@@ -0,0 +1,294 @@
+package net.thumbtack.onlineshop.service;
+
+import net.thumbtack.onlineshop.domain.dao.ProductDao;
+import net.thumbtack.onlineshop.domain.models.Account;
+import net.thumbtack.onlineshop.domain.models.AccountFactory;
+import net.thumbtack.onlineshop.domain.models.DepositEntry;
+import net.thumbtack.onlineshop.domain.models.IdempotencyRecord;
+import net.thumbtack.onlineshop.domain.models.Product;
+import net.thumbtack.onlineshop.dto.ProductDto;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.Mockito.*;
+
+public class CheckoutWriterTest {
+
+    private CheckoutWriter writer;
+    private CheckoutStats stats;
+
+    @Mock
+    private DepositService mockDepositService;
+
+    @Mock
+    private ProductDao mockProductDao;
+
+    @Mock
+    private PurchasesService mockPurchasesService;
+
+    @Mock
+    private IdempotencyService mockIdempotencyService;
+
+    @Mock
+    private PlatformTransactionManager mockTransactionManager;
+
+    @Before
+    public void setUpClass() {
+        MockitoAnnotations.initMocks(this);
+
+        writer = new CheckoutWriter(
+                mockDepositService,
+                mockProductDao,
+                mockPurchasesService,
+                mockIdempotencyService,
+                mockTransactionManager
+        );
+        stats = new CheckoutStats();
+
+        // Блокировки счетов клиентов просто выполняют действие
+        when(mockDepositService.locked(anyCollection(), any())).thenAnswer(invocation ->
+                invocation.<Supplier<?>>getArgument(1).get()
+        );
+    }
+
+    /**
+     * Пакет выполняется одной транзакцией, а каждый запрос получает свой результат
+     */
+    @Test
+    public void testProcessBatch() throws Exception {
+        Product product = new Product("product", 5, 10);
+        product.setId(1L);
+
+        Account client1 = generateClient(1L, 100);
+        Account client2 = generateClient(2L, 100);
+
+        when(mockProductDao.getForUpdate(anyCollection())).thenReturn(Collections.singletonList(product));
+        when(mockDepositService.getBalance(any())).thenReturn(100);
+
+        CheckoutRequest first = new CheckoutRequest(client1, new ProductDto(1L, "product", 10, 3), null);
+        CheckoutRequest second = new CheckoutRequest(client2, new ProductDto(1L, "product", 10, 3), null);
+
+        writer.process(Arrays.asList(first, second), stats);
+
+        // Первый запрос выполнен
+        assertEquals(3, (int) first.getResult().get().getCount());
+        assertEquals(2, (int) product.getCount());
+
+        // Второму запросу не хватило товара
+        try {
+            second.getResult().get();
+            fail();
+        } catch (ExecutionException e) {
+            assertEquals(
+                    ServiceException.ErrorCode.NOT_ENOUGH_PRODUCT,
+                    ((ServiceException) e.getCause()).getErrorCode()
+            );
+        }
+
+        // Все блокировки и изменения в одной транзакции
+        verify(mockTransactionManager).getTransaction(any());
+        verify(mockTransactionManager).commit(any());
+        verify(mockProductDao).getForUpdate(anyCollection());
+        verify(mockDepositService).locked(anyCollection(), any());
+        verify(mockPurchasesService).saveProductPurchase(any(), eq(product), eq(3));
+
+        // Деньги списываются только за выполненную покупку
+        verify(mockDepositService).record(client1, -30, DepositEntry.Type.PURCHASE);
+        verify(mockDepositService, never()).record(eq(client2), anyInt(), any());
+    }
+
+    /**
+     * Неверная информация о товаре и нехватка денег
+     */
+    @Test
+    public void testProcessBatchErrors() throws Exception {
+        Product product = new Product("product", 5, 10);
+        product.setId(1L);
+
+        when(mockProductDao.getForUpdate(anyCollection())).thenReturn(Collections.singletonList(product));
+        when(mockDepositService.getBalance(any())).thenReturn(10);
+
+        CheckoutRequest wrongPrice = new CheckoutRequest(
+                generateClient(1L, 10), new ProductDto(1L, "product", 1, 1), null
+        );
+        CheckoutRequest noMoney = new CheckoutRequest(
+                generateClient(1L, 10), new ProductDto(1L, "product", 10, 2), null
+        );
+
+        writer.process(Arrays.asList(wrongPrice, noMoney), stats);
+
+        assertError(wrongPrice, ServiceException.ErrorCode.WRONG_PRODUCT_INFO);
+        assertError(noMoney, ServiceException.ErrorCode.NOT_ENOUGH_MONEY);
+        assertEquals(5, (int) product.getCount());
+        verify(mockPurchasesService, never()).saveProductPurchase(any(), any(), anyInt());
+        verify(mockDepositService, never()).record(any(), anyInt(), any());
+    }
+
+    /**
+     * Если транзакция пакета не удалась, то запросы выполняются по одному
+     */
+    @Test
+    public void testProcessBatchRetry() throws Exception {
+        Product product = new Product("product", 5, 10);
+        product.setId(1L);
+
+        when(mockProductDao.getForUpdate(anyCollection()))
+                .thenThrow(new IllegalStateException("deadlock"))
+                .thenReturn(Collections.singletonList(product))
+                .thenThrow(new IllegalStateException("deadlock"));
+        when(mockDepositService.getBalance(any())).thenReturn(100);
+
+        CheckoutRequest first = new CheckoutRequest(generateClient(1L, 100), new ProductDto(1L, "product", 10, 1), null);
+        CheckoutRequest second = new CheckoutRequest(generateClient(1L, 100), new ProductDto(1L, "product", 10, 1), null);
+
+        writer.process(Arrays.asList(first, second), stats);
+
+        assertEquals(1, (int) first.getResult().get().getCount());
+
+        try {
+            second.getResult().get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+
+        verify(mockTransactionManager, times(3)).getTransaction(any());
+        verify(mockTransactionManager, times(2)).rollback(any());
+
+        Map<String, Number> metrics = new HashMap<>();
+        stats.putMetrics(metrics);
+        assertEquals(1L, metrics.get("purchases"));
+        assertEquals(1L, metrics.get("failed"));
+        assertEquals(1L, metrics.get("retried_batches"));
+    }
+
+    /**
+     * Ключи идемпотентности занимаются в транзакции пакета. Если ключ уже занят,
+     * то пакет откатывается, остальные запросы выполняются по одному,
+     * а запрос с занятым ключом получает ошибку IdempotencyInProgress
+     */
+    @Test
+    public void testProcessBatchIdempotencyClaim() throws Exception {
+        Product product = new Product("product", 5, 10);
+        product.setId(1L);
+
+        when(mockProductDao.getForUpdate(anyCollection())).thenReturn(Collections.singletonList(product));
+        when(mockDepositService.getBalance(any())).thenReturn(100);
+
+        IdempotencyClaim taken = new IdempotencyClaim(new IdempotencyRecord());
+        IdempotencyClaim free = new IdempotencyClaim(new IdempotencyRecord());
+        doThrow(new DataIntegrityViolationException("duplicate")).when(mockIdempotencyService).claim(taken);
+
+        CheckoutRequest duplicate = new CheckoutRequest(
+                generateClient(1L, 100), new ProductDto(1L, "product", 10, 1), taken
+        );
+        CheckoutRequest other = new CheckoutRequest(
+                generateClient(2L, 100), new ProductDto(1L, "product", 10, 1), free
+        );
+
+        writer.process(Arrays.asList(duplicate, other), stats);
+
+        assertError(duplicate, ServiceException.ErrorCode.IDEMPOTENCY_IN_PROGRESS);
+        assertEquals(1, (int) other.getResult().get().getCount());
+        assertEquals(4, (int) product.getCount());
+
+        // Пакет откатывается на первом занятом ключе, затем каждый запрос выполняется отдельно
+        verify(mockIdempotencyService, times(2)).claim(taken);
+        verify(mockIdempotencyService, times(1)).claim(free);
+        verify(mockTransactionManager, times(2)).rollback(any());
+        verify(mockPurchasesService, times(1)).saveProductPurchase(any(), any(), anyInt());
+    }
+
+    /**
+     * Запрос, отменённый по таймауту, не выполняется
+     */
+    @Test
+    public void testProcessCancelled() throws Exception {
+        Product product = new Product("product", 5, 10);
+        product.setId(1L);
+
+        when(mockProductDao.getForUpdate(anyCollection())).thenReturn(Collections.singletonList(product));
+        when(mockDepositService.getBalance(any())).thenReturn(100);
+
+        CheckoutRequest cancelled = new CheckoutRequest(
+                generateClient(1L, 100), new ProductDto(1L, "product", 10, 1), null
+        );
+        CheckoutRequest active = new CheckoutRequest(
+                generateClient(2L, 100), new ProductDto(1L, "product", 10, 2), null
+        );
+        assertTrue(cancelled.cancel());
+
+        writer.process(Arrays.asList(cancelled, active), stats);
+
+        assertEquals(2, (int) active.getResult().get().getCount());
+        assertFalse(cancelled.getResult().isDone());
+        assertEquals(3, (int) product.getCount());
+
+        // Начатый запрос уже нельзя отменить
+        assertFalse(active.cancel());
+
+        Map<String, Number> metrics = new HashMap<>();
+        stats.putMetrics(metrics);
+        assertEquals(1L, metrics.get("purchases"));
+        assertEquals(1L, metrics.get("batch_size_max"));
+    }
+
+    /**
+     * Из очереди забирается не больше batchSize запросов
+     */
+    @Test
+    public void testPoll() throws Exception {
+        BlockingQueue<CheckoutRequest> queue = new ArrayBlockingQueue<>(16);
+        for (int i = 0; i < 5; ++i) {
+            queue.add(new CheckoutRequest(generateClient(1L, 100), new ProductDto(1L, "product", 10, 1), null));
+        }
+
+        List<CheckoutRequest> batch = new ArrayList<>();
+
+        assertTrue(CheckoutWriter.poll(queue, batch, 3, 1));
+        assertEquals(3, batch.size());
+        assertEquals(2, queue.size());
+
+        batch.clear();
+        assertTrue(CheckoutWriter.poll(queue, batch, 3, 1));
+        assertEquals(2, batch.size());
+
+        batch.clear();
+        assertFalse(CheckoutWriter.poll(queue, batch, 3, 1));
+        assertTrue(batch.isEmpty());
+    }
+
+    private void assertError(CheckoutRequest request, ServiceException.ErrorCode code) throws Exception {
+        try {
+            request.getResult().get(1, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertEquals(code, ((ServiceException) e.getCause()).getErrorCode());
+        }
+    }
+
+    private Account generateClient(long id, int deposit) {
+        Account account = AccountFactory.createClient(
+                "234324", "234324", "wereww1", "werewr1",
+                "wrewf3", "werwer235", "werw23", "ewr23423"
+        );
+        account.setId(id);
+        account.setDeposit(deposit);
+        return account;
+    }
+}
@@ -1,21 +1,26 @@
 package net.thumbtack.onlineshop.service;
 
-import net.thumbtack.onlineshop.domain.dao.AccountDao;
-import net.thumbtack.onlineshop.domain.dao.BasketDao;
 import net.thumbtack.onlineshop.domain.dao.ProductDao;
 import net.thumbtack.onlineshop.domain.dao.SessionDao;
 import net.thumbtack.onlineshop.domain.models.*;
 import net.thumbtack.onlineshop.dto.AccountDto;
+import net.thumbtack.onlineshop.dto.BasketDeltaDto;
 import net.thumbtack.onlineshop.dto.ProductDto;
+import net.thumbtack.onlineshop.dto.RejectedProductDto;
 import net.thumbtack.onlineshop.dto.ResultBasketDto;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.springframework.transaction.PlatformTransactionManager;
 
 import java.util.*;
+import java.util.function.Supplier;
 
 import static junit.framework.TestCase.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.fail;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.*;
@@ -25,9 +30,6 @@ public class ClientServiceTest {
 
     private ClientService clientService;
 
-    @Mock
-    private AccountDao mockAccountDao;
-
     @Mock
     private SessionDao mockSessionDao;
 
@@ -35,21 +37,63 @@ public class ClientServiceTest {
     private ProductDao mockProductDao;
 
     @Mock
-    private BasketDao mockBasketDao;
+    private BasketStore mockBasketStore;
 
     @Mock
     private PurchasesService mockPurchasesService;
 
+    @Mock
+    private IdempotencyService mockIdempotencyService;
+
+    @Mock
+    private CheckoutPipeline mockCheckoutPipeline;
+
+    @Mock
+    private HotProductAdmission mockHotProductAdmission;
+
+    @Mock
+    private DepositService mockDepositService;
+
+    @Mock
+    private PlatformTransactionManager mockTransactionManager;
+
     @Before
-    public void setUpClass() {
+    public void setUpClass() throws ServiceException {
         MockitoAnnotations.initMocks(this);
         clientService = new ClientService(
-                mockAccountDao,
                 mockSessionDao,
                 mockProductDao,
-                mockBasketDao,
-                mockPurchasesService
+                mockBasketStore,
+                mockPurchasesService,
+                mockIdempotencyService,
+                mockCheckoutPipeline,
+                mockHotProductAdmission,
+                mockDepositService,
+                mockTransactionManager
         );
+
+        when(mockDepositService.locked(anyCollection(), any())).thenAnswer(invocation ->
+                invocation.<Supplier<?>>getArgument(1).get()
+        );
+
+        // Остаток на счету клиента хранится прямо в аккаунте
+        when(mockDepositService.getBalance(any())).thenAnswer(invocation ->
+                invocation.<Account>getArgument(0).getDeposit()
+        );
+        when(mockDepositService.deposit(any(), anyInt())).thenAnswer(invocation -> {
+            Account account = invocation.getArgument(0);
+            account.setDeposit(account.getDeposit() + invocation.<Integer>getArgument(1));
+            return account.getDeposit();
+        });
+        when(mockDepositService.withdraw(any(), anyInt())).thenAnswer(invocation -> {
+            Account account = invocation.getArgument(0);
+            int amount = invocation.getArgument(1);
+            if (amount > account.getDeposit()) {
+                throw new ServiceException(ServiceException.ErrorCode.NOT_ENOUGH_MONEY);
+            }
+            account.setDeposit(account.getDeposit() - amount);
+            return account.getDeposit();
+        });
     }
 
     /**
@@ -65,7 +109,7 @@ public class ClientServiceTest {
 
         AccountDto result = clientService.putDeposit("token", 12);
 
-        verify(mockAccountDao).update(client);
+        verify(mockDepositService).deposit(client, 12);
 
         assertEquals(21, (int)result.getDeposit());
 
@@ -84,7 +128,7 @@ public class ClientServiceTest {
         Product product = new Product("product", 5,10);
         product.setId(0L);
 
-        when(mockProductDao.get(0)).thenReturn(product);
+        when(mockProductDao.getForUpdate(Collections.singleton(0L))).thenReturn(Collections.singletonList(product));
 
         ProductDto request = new ProductDto(0L, "product", 10, 5);
         ProductDto result = clientService.buyProduct("token", request);
@@ -94,8 +138,8 @@ public class ClientServiceTest {
         verify(mockProductDao, never()).delete(product);
         // Сервис должен сохранить инфу о покупке данного товара
         verify(mockPurchasesService).saveProductPurchase(client, product, request.getCount());
-        // А запись о клиенте должна изменится
-        verify(mockAccountDao).update(client);
+        // А со счёта клиента должны списаться деньги
+        verify(mockDepositService).withdraw(client, request.getCount() * request.getPrice());
 
         assertEquals(request.getId(), result.getId());
         assertEquals(request.getName(), result.getName());
@@ -105,6 +149,145 @@ public class ClientServiceTest {
 
     }
 
+    /**
+     * Покупка выполняется одной транзакцией под блокировкой счёта клиента и строки товара
+     */
+    @Test
+    public void testBuyProductTransaction() throws ServiceException {
+        Account client = generateClient();
+        client.setDeposit(52);
+
+        when(mockSessionDao.get("token")).thenReturn(new Session("token", client));
+
+        Product product = new Product("product", 5, 10);
+        product.setId(0L);
+        when(mockProductDao.getForUpdate(Collections.singleton(0L))).thenReturn(Collections.singletonList(product));
+
+        clientService.buyProduct("token", new ProductDto(0L, "product", 10, 5));
+
+        verify(mockDepositService).locked(eq(Collections.singleton(client.getId())), any());
+        // Строка товара читается с блокировкой, а не обычным чтением
+        verify(mockProductDao).getForUpdate(Collections.singleton(0L));
+        verify(mockProductDao, never()).get(anyLong());
+        verify(mockTransactionManager).getTransaction(any());
+        verify(mockTransactionManager).commit(any());
+        verify(mockTransactionManager, never()).rollback(any());
+    }
+
+    /**
+     * Ключ идемпотентности занимается в транзакции покупки, до списания денег
+     */
+    @Test
+    public void testBuyProductClaimsIdempotencyKey() throws ServiceException {
+        Account client = generateClient();
+        client.setDeposit(52);
+
+        when(mockSessionDao.get("token")).thenReturn(new Session("token", client));
+
+        Product product = new Product("product", 5, 10);
+        product.setId(0L);
+        when(mockProductDao.getForUpdate(Collections.singleton(0L))).thenReturn(Collections.singletonList(product));
+
+        clientService.buyProduct("token", new ProductDto(0L, "product", 10, 5));
+
+        InOrder order = inOrder(mockTransactionManager, mockIdempotencyService, mockDepositService);
+        order.verify(mockTransactionManager).getTransaction(any());
+        order.verify(mockIdempotencyService).claim();
+        order.verify(mockDepositService).withdraw(any(), eq(50));
+        order.verify(mockTransactionManager).commit(any());
+    }
+
+    /**
+     * Если запись о покупке не сохранилась, то транзакция со списанием денег откатывается
+     */
+    @Test
+    public void testBuyProductRollback() throws ServiceException {
+        Account client = generateClient();
+        client.setDeposit(52);
+
+        when(mockSessionDao.get("token")).thenReturn(new Session("token", client));
+
+        Product product = new Product("product", 5, 10);
+        product.setId(0L);
+        when(mockProductDao.getForUpdate(Collections.singleton(0L))).thenReturn(Collections.singletonList(product));
+        doThrow(new IllegalStateException()).when(mockPurchasesService).saveProductPurchase(any(), any(), anyInt());
+
+        try {
+            clientService.buyProduct("token", new ProductDto(0L, "product", 10, 5));
+            fail();
+        } catch (IllegalStateException e) {
+            verify(mockTransactionManager).rollback(any());
+            verify(mockTransactionManager, never()).commit(any());
+        }
+    }
+
+    /**
+     * Сервисная ошибка тоже откатывает транзакцию и передаётся вызывающему коду
+     */
+    @Test
+    public void testBuyProductServiceErrorRollback() throws ServiceException {
+        Account client = generateClient();
+        client.setDeposit(10);
+
+        when(mockSessionDao.get("token")).thenReturn(new Session("token", client));
+
+        Product product = new Product("product", 5, 10);
+        product.setId(0L);
+        when(mockProductDao.getForUpdate(Collections.singleton(0L))).thenReturn(Collections.singletonList(product));
+
+        try {
+            clientService.buyProduct("token", new ProductDto(0L, "product", 10, 5));
+            fail();
+        } catch (ServiceException e) {
+            assertEquals(ServiceException.ErrorCode.NOT_ENOUGH_MONEY, e.getErrorCode());
+            verify(mockTransactionManager).rollback(any());
+            verify(mockProductDao, never()).update(any());
+        }
+    }
+
+    /**
+     * В пакетном режиме покупка передаётся конвейеру покупок
+     */
+    @Test
+    public void testBuyProductBatch() throws ServiceException {
+        Account client = generateClient();
+        client.setDeposit(52);
+
+        when(mockSessionDao.get("token")).thenReturn(new Session("token", client));
+        when(mockCheckoutPipeline.isEnabled()).thenReturn(true);
+
+        ProductDto request = new ProductDto(0L, "product", 10, 5);
+        when(mockCheckoutPipeline.buyProduct(client, request, null)).thenReturn(request);
+
+        ProductDto result = clientService.buyProduct("token", request);
+
+        assertEquals(request, result);
+        verify(mockCheckoutPipeline).buyProduct(client, request, null);
+        verify(mockProductDao, never()).get(anyLong());
+        verify(mockDepositService, never()).withdraw(any(), anyInt());
+        verify(mockPurchasesService, never()).saveProductPurchase(any(), any(), anyInt());
+    }
+
+    /**
+     * Популярный товар покупается через его очередь
+     */
+    @Test
+    public void testBuyProductHot() throws ServiceException {
+        Account client = generateClient();
+
+        when(mockSessionDao.get("token")).thenReturn(new Session("token", client));
+
+        ProductDto request = new ProductDto(0L, "product", 10, 5);
+        when(mockHotProductAdmission.buyProduct(client, request, null)).thenReturn(request);
+
+        ProductDto result = clientService.buyProduct("token", request);
+
+        assertEquals(request, result);
+        verify(mockCheckoutPipeline, never()).buyProduct(any(), any(), any());
+        verify(mockProductDao, never()).get(anyLong());
+        verify(mockDepositService, never()).withdraw(any(), anyInt());
+    }
+
     /**
      * Проверяем покупку небольшой части товаров
      */
@@ -118,7 +301,7 @@ public class ClientServiceTest {
         Product product = new Product("product", 5,10);
         product.setId(0L);
 
-        when(mockProductDao.get(0)).thenReturn(product);
+        when(mockProductDao.getForUpdate(Collections.singleton(0L))).thenReturn(Collections.singletonList(product));
 
         ProductDto request = new ProductDto(0L, "product", 10, 2);
         ProductDto result = clientService.buyProduct("token", request);
@@ -128,8 +311,8 @@ public class ClientServiceTest {
         verify(mockProductDao, never()).delete(product);
         // Сервис должен сохранить инфу о покупке данного товара
         verify(mockPurchasesService).saveProductPurchase(client, product, request.getCount());
-        // А запись о клиенте должна изменится
-        verify(mockAccountDao).update(client);
+        // А со счёта клиента должны списаться деньги
+        verify(mockDepositService).withdraw(client, request.getCount() * request.getPrice());
 
         assertEquals(request.getId(), result.getId());
         assertEquals(request.getName(), result.getName());
@@ -163,7 +346,7 @@ public class ClientServiceTest {
         } catch (ServiceException e) {
             verify(mockProductDao, never()).delete(any());
             verify(mockProductDao, never()).update(any());
-            verify(mockAccountDao, never()).update(any());
+            verify(mockDepositService, never()).withdraw(any(), anyInt());
             assertEquals(ServiceException.ErrorCode.PRODUCT_NOT_FOUND, e.getErrorCode());
             throw e;
         }
@@ -190,8 +373,8 @@ public class ClientServiceTest {
         } catch (ServiceException e) {
             verify(mockProductDao, never()).delete(any());
             verify(mockProductDao, never()).update(any());
-            verify(mockAccountDao, never()).update(any());
-            verify(mockBasketDao, never()).insert(any());
+            verify(mockDepositService, never()).withdraw(any(), anyInt());
+            verify(mockBasketStore, never()).add(anyLong(), any(), anyInt());
             assertEquals(ServiceException.ErrorCode.PRODUCT_NOT_FOUND, e.getErrorCode());
             throw e;
         }
@@ -218,8 +401,8 @@ public class ClientServiceTest {
         } catch (ServiceException e) {
             verify(mockProductDao, never()).delete(any());
             verify(mockProductDao, never()).update(any());
-            verify(mockAccountDao, never()).update(any());
-            verify(mockBasketDao, never()).insert(any());
+            verify(mockDepositService, never()).withdraw(any(), anyInt());
+            verify(mockBasketStore, never()).add(anyLong(), any(), anyInt());
             assertEquals(ServiceException.ErrorCode.WRONG_PRODUCT_INFO, e.getErrorCode());
             throw e;
         }
@@ -246,8 +429,8 @@ public class ClientServiceTest {
         } catch (ServiceException e) {
             verify(mockProductDao, never()).delete(any());
             verify(mockProductDao, never()).update(any());
-            verify(mockAccountDao, never()).update(any());
-            verify(mockBasketDao, never()).insert(any());
+            verify(mockDepositService, never()).withdraw(any(), anyInt());
+            verify(mockBasketStore, never()).add(anyLong(), any(), anyInt());
             assertEquals(ServiceException.ErrorCode.WRONG_PRODUCT_INFO, e.getErrorCode());
             throw e;
         }
@@ -267,7 +450,7 @@ public class ClientServiceTest {
 
         Product product = new Product("product", 5,10);
 
-        when(mockProductDao.get(0)).thenReturn(product);
+        when(mockProductDao.getForUpdate(Collections.singleton(0L))).thenReturn(Collections.singletonList(product));
 
         try {
             ProductDto request = new ProductDto(0L, "product2", 10, 2);
@@ -275,7 +458,7 @@ public class ClientServiceTest {
         } catch (ServiceException e) {
             verify(mockProductDao, never()).delete(any());
             verify(mockProductDao, never()).update(any());
-            verify(mockAccountDao, never()).update(any());
+            verify(mockDepositService, never()).withdraw(any(), anyInt());
             assertEquals(ServiceException.ErrorCode.WRONG_PRODUCT_INFO, e.getErrorCode());
             throw e;
         }
@@ -295,7 +478,7 @@ public class ClientServiceTest {
 
         Product product = new Product("product", 5,10);
 
-        when(mockProductDao.get(0)).thenReturn(product);
+        when(mockProductDao.getForUpdate(Collections.singleton(0L))).thenReturn(Collections.singletonList(product));
 
         try {
             ProductDto request = new ProductDto(0L, "product", 12, 2);
@@ -303,7 +486,7 @@ public class ClientServiceTest {
         } catch (ServiceException e) {
             verify(mockProductDao, never()).delete(any());
             verify(mockProductDao, never()).update(any());
-            verify(mockAccountDao, never()).update(any());
+            verify(mockDepositService, never()).withdraw(any(), anyInt());
             assertEquals(ServiceException.ErrorCode.WRONG_PRODUCT_INFO, e.getErrorCode());
             throw e;
         }
@@ -322,7 +505,7 @@ public class ClientServiceTest {
                 "product", 5,10
         );
 
-        when(mockProductDao.get(0)).thenReturn(product);
+        when(mockProductDao.getForUpdate(Collections.singleton(0L))).thenReturn(Collections.singletonList(product));
 
         try {
             ProductDto request = new ProductDto(0L, "product", 10, 6);
@@ -330,7 +513,7 @@ public class ClientServiceTest {
         } catch (ServiceException e) {
             verify(mockProductDao, never()).delete(any());
             verify(mockProductDao, never()).update(any());
-            verify(mockAccountDao, never()).update(any());
+            verify(mockDepositService, never()).withdraw(any(), anyInt());
             assertEquals(ServiceException.ErrorCode.NOT_ENOUGH_PRODUCT, e.getErrorCode());
             throw e;
         }
@@ -351,7 +534,7 @@ public class ClientServiceTest {
                 "product", 5,10
         );
 
-        when(mockProductDao.get(0)).thenReturn(product);
+        when(mockProductDao.getForUpdate(Collections.singleton(0L))).thenReturn(Collections.singletonList(product));
 
         try {
             ProductDto request = new ProductDto(0L, "product", 10, 5);
@@ -359,7 +542,7 @@ public class ClientServiceTest {
         } catch (ServiceException e) {
             verify(mockProductDao, never()).delete(any());
             verify(mockProductDao, never()).update(any());
-            verify(mockAccountDao, never()).update(any());
+            verify(mockPurchasesService, never()).saveProductPurchase(any(), any(), anyInt());
             assertEquals(ServiceException.ErrorCode.NOT_ENOUGH_MONEY, e.getErrorCode());
             throw e;
         }
@@ -386,15 +569,16 @@ public class ClientServiceTest {
         ProductDto request = new ProductDto(0L, "product", 10, 50);
 
         Basket basket = new Basket(client, product, request.getCount());
-        when(mockBasketDao.get(client)).thenReturn(Collections.singletonList(basket));
+        when(mockBasketStore.add(1L, product, 50)).thenReturn(generateChanges(basket));
+        when(mockBasketStore.get(1L)).thenReturn(Collections.singletonList(basket));
 
         List<ProductDto> result = clientService.addToBasket("token", request);
 
         // Должна была быть вставка одно единственного товара в корзину
-        verify(mockBasketDao).insert(any());
+        verify(mockBasketStore).add(1L, product, 50);
 
         // Без каких-либо изменений на стороне клиентов или склада
-        verify(mockAccountDao, never()).update(any());
+        verify(mockDepositService, never()).withdraw(any(), anyInt());
         verify(mockProductDao, never()).update(any());
         verify(mockProductDao, never()).delete(any());
 
@@ -421,28 +605,23 @@ public class ClientServiceTest {
         product.setId(0L);
         when(mockProductDao.get(0)).thenReturn(product);
         Basket basket = new Basket(client, product, 3);
-        when(mockBasketDao.get(client, 0)).thenReturn(basket);
 
         // По требованиям он может добавить сколько угодно товара
         // на какую угодно сумму вне зависимости от его депозита
         ProductDto request = new ProductDto(0L, "product", 10, 50);
 
         // Должен вернуть одну запись из корзины с прибавленным количеством
-        when(mockBasketDao.get(client)).thenReturn(Collections.singletonList(
-                new Basket(client, product, request.getCount() + basket.getCount())
-        ));
+        Basket updated = new Basket(client, product, request.getCount() + basket.getCount());
+        when(mockBasketStore.add(1L, product, 50)).thenReturn(generateChanges(updated));
+        when(mockBasketStore.get(1L)).thenReturn(Collections.singletonList(updated));
 
         List<ProductDto> result = clientService.addToBasket("token", request);
 
-        // Проверяем, что у полученного из БД записи корзины изменилось количество
-        assertEquals(53, (int)basket.getCount());
-
-        // Количество должно изменится, но никаких вставок в БД
-        verify(mockBasketDao).update(basket);
-        verify(mockBasketDao, never()).insert(basket);
+        // Количество прибавляет сама корзина
+        verify(mockBasketStore).add(1L, product, 50);
 
         // Без каких-либо изменений на стороне клиентов или склада
-        verify(mockAccountDao, never()).update(any());
+        verify(mockDepositService, never()).withdraw(any(), anyInt());
         verify(mockProductDao, never()).update(any());
         verify(mockProductDao, never()).delete(any());
 
@@ -458,18 +637,15 @@ public class ClientServiceTest {
     public void testDeleteFromBasket() throws ServiceException {
 
         Account client = generateClient();
-        Product product = new Product("product", 1, 1);
-        Basket basket = new Basket(client, product, 2);
 
-        when(mockBasketDao.get(client, 1)).thenReturn(basket);
+        when(mockBasketStore.remove(1L, 1L)).thenReturn(true);
 
         when(mockSessionDao.get("token")).thenReturn(new Session("token", client));
 
         clientService.deleteFromBasket("token", 1);
 
         verify(mockSessionDao).get("token");
-        verify(mockBasketDao).get(client, 1);
-        verify(mockBasketDao).delete(basket);
+        verify(mockBasketStore).remove(1L, 1L);
 
     }
 
@@ -478,14 +654,13 @@ public class ClientServiceTest {
 
         Account client = generateClient();
 
-        when(mockBasketDao.get(client, 1)).thenReturn(null);
+        when(mockBasketStore.remove(1L, 1L)).thenReturn(false);
 
         when(mockSessionDao.get("token")).thenReturn(new Session("token", client));
 
         try {
             clientService.deleteFromBasket("token", 1);
         } catch (ServiceException e) {
-            verify(mockBasketDao, never()).delete(any());
             assertEquals(ServiceException.ErrorCode.PRODUCT_NOT_FOUND, e.getErrorCode());
             throw e;
         }
@@ -500,19 +675,17 @@ public class ClientServiceTest {
         Product product = new Product("product", 1, 1);
         product.setId(0L);
         Basket basket = new Basket(client, product, 3);
-        when(mockBasketDao.get(client, 0)).thenReturn(basket);
+        when(mockBasketStore.get(1L, 0L)).thenReturn(basket);
 
-        when(mockBasketDao.get(client)).thenReturn(Collections.singletonList(
-                new Basket(client, product, 10)
-        ));
+        Basket updated = new Basket(client, product, 10);
+        when(mockBasketStore.setCount(1L, 0L, 10)).thenReturn(generateChanges(updated));
+        when(mockBasketStore.get(1L)).thenReturn(Collections.singletonList(updated));
 
         List<ProductDto> result = clientService.editProductCount("token", new ProductDto(
                 0L, "product", 1, 10
         ));
 
-        assertEquals(10, (int)basket.getCount());
-        verify(mockBasketDao).update(basket);
-        verify(mockBasketDao).get(client);
+        verify(mockBasketStore).setCount(1L, 0L, 10);
 
         assertEquals(1, result.size());
         assertEquals(10, (int)result.get(0).getCount());
@@ -527,11 +700,9 @@ public class ClientServiceTest {
         Product product = new Product("product", 1, 1);
         product.setId(0L);
         Basket basket = new Basket(client, product, 3);
-        when(mockBasketDao.get(client, 0)).thenReturn(basket);
+        when(mockBasketStore.get(1L, 0L)).thenReturn(basket);
 
-        when(mockBasketDao.get(client)).thenReturn(Collections.singletonList(
-                new Basket(client, product, 10)
-        ));
+        when(mockBasketStore.setCount(1L, 0L, 10)).thenReturn(generateChanges(new Basket(client, product, 10)));
 
         try {
             clientService.editProductCount("token", new ProductDto(
@@ -539,7 +710,7 @@ public class ClientServiceTest {
             ));
         } catch (ServiceException e) {
             assertEquals(ServiceException.ErrorCode.PRODUCT_NOT_FOUND, e.getErrorCode());
-            verify(mockBasketDao, never()).update(basket);
+            verify(mockBasketStore, never()).setCount(anyLong(), anyLong(), anyInt());
             throw e;
         }
     }
@@ -552,11 +723,9 @@ public class ClientServiceTest {
         Product product = new Product("product", 1, 1);
         product.setId(0L);
         Basket basket = new Basket(client, product, 3);
-        when(mockBasketDao.get(client, 0)).thenReturn(basket);
+        when(mockBasketStore.get(1L, 0L)).thenReturn(basket);
 
-        when(mockBasketDao.get(client)).thenReturn(Collections.singletonList(
-                new Basket(client, product, 10)
-        ));
+        when(mockBasketStore.setCount(1L, 0L, 10)).thenReturn(generateChanges(new Basket(client, product, 10)));
 
         try {
             clientService.editProductCount("token", new ProductDto(
@@ -564,7 +733,7 @@ public class ClientServiceTest {
             ));
         } catch (ServiceException e) {
             assertEquals(ServiceException.ErrorCode.WRONG_PRODUCT_INFO, e.getErrorCode());
-            verify(mockBasketDao, never()).update(basket);
+            verify(mockBasketStore, never()).setCount(anyLong(), anyLong(), anyInt());
             throw e;
         }
     }
@@ -578,11 +747,9 @@ public class ClientServiceTest {
         Product product = new Product("product", 1, 1);
         product.setId(0L);
         Basket basket = new Basket(client, product, 3);
-        when(mockBasketDao.get(client, 0)).thenReturn(basket);
+        when(mockBasketStore.get(1L, 0L)).thenReturn(basket);
 
-        when(mockBasketDao.get(client)).thenReturn(Collections.singletonList(
-                new Basket(client, product, 10)
-        ));
+        when(mockBasketStore.setCount(1L, 0L, 10)).thenReturn(generateChanges(new Basket(client, product, 10)));
 
         try {
             clientService.editProductCount("token", new ProductDto(
@@ -590,7 +757,7 @@ public class ClientServiceTest {
             ));
         } catch (ServiceException e) {
             assertEquals(ServiceException.ErrorCode.WRONG_PRODUCT_INFO, e.getErrorCode());
-            verify(mockBasketDao, never()).update(basket);
+            verify(mockBasketStore, never()).setCount(anyLong(), anyLong(), anyInt());
             throw e;
         }
     }
@@ -607,13 +774,79 @@ public class ClientServiceTest {
                 new Basket(client, product1, 1),
                 new Basket(client, product2, 1));
 
-        when(mockBasketDao.get(client)).thenReturn(basket);
+        when(mockBasketStore.get(1L)).thenReturn(basket);
 
         List<ProductDto> result = clientService.getBasket("token");
 
         assertEquals(basket.size(), result.size());
     }
 
+    @Test
+    public void testGetBasketDelta() throws ServiceException {
+
+        Account client = generateClient();
+        when(mockSessionDao.get("token")).thenReturn(new Session("token", client));
+
+        Product product = new Product("product", 1, 20);
+        product.setId(3L);
+        BasketChanges changes = new BasketChanges(15L, false, 4, 10, 200);
+        changes.getChanged().add(new Basket(null, product, 10));
+        changes.getRemoved().add(7L);
+
+        when(mockBasketStore.getChanges(1L, 10L)).thenReturn(changes);
+
+        BasketDeltaDto result = clientService.getBasketDelta("token", 10L);
+
+        assertEquals(15L, (long) result.getVersion());
+        assertFalse(result.getFull());
+        assertEquals(1, result.getChanged().size());
+        assertEquals(3L, (long) result.getChanged().get(0).getId());
+        assertEquals(10, (int) result.getChanged().get(0).getCount());
+        assertEquals(Collections.singletonList(7L), result.getRemoved());
+        assertEquals(4, (int) result.getLines());
+        assertEquals(10L, (long) result.getTotalCount());
+        assertEquals(200L, (long) result.getTotalPrice());
+    }
+
+    /**
+     * В режиме изменений вся корзина не запрашивается
+     */
+    @Test
+    public void testAddToBasketDelta() throws ServiceException {
+
+        Account client = generateClient();
+        when(mockSessionDao.get("token")).thenReturn(new Session("token", client));
+
+        Product product = new Product("product", 5, 10);
+        product.setId(0L);
+        when(mockProductDao.get(0)).thenReturn(product);
+        when(mockBasketStore.add(1L, product, 50)).thenReturn(generateChanges(new Basket(client, product, 50)));
+
+        BasketDeltaDto result = clientService.addToBasketDelta("token", new ProductDto(0L, "product", 10, 50));
+
+        verify(mockBasketStore).add(1L, product, 50);
+        verify(mockBasketStore, never()).get(anyLong());
+        assertEquals(1, result.getChanged().size());
+        assertNull(result.getRemoved());
+        assertEquals(50L, (long) result.getTotalCount());
+    }
+
+    @Test
+    public void testEditProductCountDelta() throws ServiceException {
+
+        Account client = generateClient();
+        when(mockSessionDao.get("token")).thenReturn(new Session("token", client));
+        Product product = new Product("product", 1, 1);
+        product.setId(0L);
+        when(mockBasketStore.get(1L, 0L)).thenReturn(new Basket(client, product, 3));
+        when(mockBasketStore.setCount(1L, 0L, 10)).thenReturn(generateChanges(new Basket(client, product, 10)));
+
+        BasketDeltaDto result = clientService.editProductCountDelta("token", new ProductDto(0L, "product", 1, 10));
+
+        verify(mockBasketStore, never()).get(anyLong());
+        assertEquals(10, (int) result.getChanged().get(0).getCount());
+    }
+
     @Test
     public void testBuyBasket() throws ServiceException {
 
@@ -638,9 +871,10 @@ public class ClientServiceTest {
         for (int i = 0; i < 8; ++i) {
             Basket basketEntity = new Basket(client, products.get(i), 10);
             basket.add(basketEntity);
-            when(mockBasketDao.get(client, i)).thenReturn(basketEntity);
         }
-        when(mockBasketDao.get(client)).thenReturn(basket);
+        when(mockBasketStore.get(1L)).thenReturn(basket);
+        when(mockProductDao.get(anyCollection())).thenReturn(products);
+        when(mockProductDao.getForUpdate(anyCollection())).thenReturn(products);
 
         // Четвёртого продукта должно будет не хватать на складе
         basket.get(3).setCount(20);
@@ -676,20 +910,34 @@ public class ClientServiceTest {
 
         // Проверим сначала вызовы и информацию о клиенте
         assertEquals(1024, (int)client.getDeposit());
-        // Запись о клиенте должна была обновится
-        verify(mockAccountDao).update(client);
+        // Со счёта клиента должны были списаться деньги
+        verify(mockDepositService).withdraw(client, 29_000);
         // И три записи о товаре должны были тоже изменится
         verify(mockProductDao, times(3)).update(any());
-        // И должны были удалится две записи из корзины (потому что весь товар выкуплен)
-        verify(mockBasketDao, times(2)).delete(any());
-        // А одна запись в корзине всего лишь поменяет количество
-        verify(mockBasketDao).update(any());
+        // И три записи корзины уменьшились на купленное количество
+        verify(mockBasketStore).subtract(1L, 0L, 9);
+        verify(mockBasketStore).subtract(1L, 4L, 10);
+        verify(mockBasketStore).subtract(1L, 5L, 10);
+        verify(mockBasketStore, times(3)).subtract(anyLong(), anyLong(), anyInt());
 
         List<ProductDto> bought = result.getBought();
 
         // Проверяем список купленных продуктов
         // Там их трое
         assertEquals(3, bought.size());
+
+        // Остальные товары отклонены с указанием причины
+        List<RejectedProductDto> rejected = result.getRejected();
+        assertEquals(5, rejected.size());
+        assertEquals("ProductNotFound", rejected.get(0).getErrorCode());
+        assertEquals(11L, (long) rejected.get(0).getId());
+        assertEquals("WrongProductInfo", rejected.get(1).getErrorCode());
+        assertEquals("name", rejected.get(1).getField());
+        assertEquals("WrongProductInfo", rejected.get(2).getErrorCode());
+        assertEquals("price", rejected.get(2).getField());
+        assertEquals("NotEnoughProduct", rejected.get(3).getErrorCode());
+        assertEquals("ProductNotFound", rejected.get(4).getErrorCode());
+        assertEquals(7L, (long) rejected.get(4).getId());
     }
 
     @Test(expected = ServiceException.class)
@@ -713,9 +961,10 @@ public class ClientServiceTest {
         for (int i = 0; i < 7; ++i) {
             Basket basketEntity = new Basket(client, products.get(i), 10);
             basket.add(basketEntity);
-            when(mockBasketDao.get(client, i)).thenReturn(basketEntity);
         }
-        when(mockBasketDao.get(client)).thenReturn(basket);
+        when(mockBasketStore.get(1L)).thenReturn(basket);
+        when(mockProductDao.get(anyCollection())).thenReturn(products);
+        when(mockProductDao.getForUpdate(anyCollection())).thenReturn(products);
 
         // Четвёртого продукта должно будет не хватать на складе
         basket.get(3).setCount(20);
@@ -748,17 +997,81 @@ public class ClientServiceTest {
         } catch (ServiceException e) {
             assertEquals(ServiceException.ErrorCode.NOT_ENOUGH_MONEY, e.getErrorCode());
 
-            verify(mockAccountDao, never()).update(any());
-            verify(mockBasketDao, never()).update(any());
-            verify(mockBasketDao, never()).delete(any());
+            verify(mockPurchasesService, never()).saveBasketPurchase(any(), any());
+            verify(mockBasketStore, never()).subtract(anyLong(), anyLong(), anyInt());
             verify(mockProductDao, never()).update(any());
             verify(mockProductDao, never()).delete(any());
+            verify(mockTransactionManager).rollback(any());
 
             throw e;
         }
 
     }
 
+    /**
+     * Остаток товара перепроверяется по заблокированной в транзакции записи: если товар
+     * купили после проверки корзины, то покупка откатывается, а остаток не перезаписывается
+     */
+    @Test
+    public void testBuyBasketStockChanged() throws ServiceException {
+
+        Account client = generateClient();
+        client.setDeposit(10_000);
+        when(mockSessionDao.get("token")).thenReturn(new Session("token", client));
+
+        Product product = new Product("product0", 10, 1000);
+        product.setId(0L);
+        when(mockBasketStore.get(1L)).thenReturn(Collections.singletonList(new Basket(client, product, 5)));
+        when(mockProductDao.get(anyCollection())).thenReturn(Collections.singletonList(product));
+
+        // Пока проверялась корзина, другой клиент купил почти весь товар
+        Product locked = new Product("product0", 3, 1000);
+        locked.setId(0L);
+        when(mockProductDao.getForUpdate(anyCollection())).thenReturn(Collections.singletonList(locked));
+
+        try {
+            clientService.buyBasket("token", Collections.singletonList(new ProductDto(0L, "product0", 1000, 5)));
+            fail();
+
+        } catch (ServiceException e) {
+            assertEquals(ServiceException.ErrorCode.NOT_ENOUGH_PRODUCT, e.getErrorCode());
+
+            verify(mockProductDao).getForUpdate(Collections.singletonList(0L));
+            verify(mockDepositService, never()).withdraw(any(), anyInt());
+            verify(mockProductDao, never()).update(any());
+            verify(mockBasketStore, never()).subtract(anyLong(), anyLong(), anyInt());
+            verify(mockTransactionManager).rollback(any());
+            assertEquals(3, (int) locked.getCount());
+        }
+    }
+
+    /**
+     * Остаток уменьшается у заблокированной в транзакции записи, а не у прочитанной до неё
+     */
+    @Test
+    public void testBuyBasketUpdatesLockedProduct() throws ServiceException {
+
+        Account client = generateClient();
+        client.setDeposit(10_000);
+        when(mockSessionDao.get("token")).thenReturn(new Session("token", client));
+
+        Product product = new Product("product0", 10, 1000);
+        product.setId(0L);
+        when(mockBasketStore.get(1L)).thenReturn(Collections.singletonList(new Basket(client, product, 5)));
+        when(mockProductDao.get(anyCollection())).thenReturn(Collections.singletonList(product));
+
+        // Пока проверялась корзина, другой клиент купил часть товара
+        Product locked = new Product("product0", 7, 1000);
+        locked.setId(0L);
+        when(mockProductDao.getForUpdate(anyCollection())).thenReturn(Collections.singletonList(locked));
+
+        clientService.buyBasket("token", Collections.singletonList(new ProductDto(0L, "product0", 1000, 5)));
+
+        verify(mockProductDao).update(same(locked));
+        assertEquals(2, (int) locked.getCount());
+        assertEquals(10, (int) product.getCount());
+    }
+
     @Test
     public void testAccountIsAdmin() {
 
@@ -864,6 +1177,19 @@ public class ClientServiceTest {
     }
 
 
+    private BasketChanges generateChanges(Basket... lines) {
+        long count = 0;
+        long price = 0;
+        for (Basket line : lines) {
+            count += line.getCount();
+            price += (long) line.getCount() * line.getProduct().getPrice();
+        }
+
+        BasketChanges changes = new BasketChanges(1L, false, lines.length, count, price);
+        changes.getChanged().addAll(Arrays.asList(lines));
+        return changes;
+    }
+
     private Account generateClient() {
         Account account = AccountFactory.createClient(
                 "234324", "234324", "wereww1", "werewr1",
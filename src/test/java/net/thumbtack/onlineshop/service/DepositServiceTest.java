@@ -0,0 +1,236 @@
+package net.thumbtack.onlineshop.service;
+
+import net.thumbtack.onlineshop.domain.dao.DepositDao;
+import net.thumbtack.onlineshop.domain.models.Account;
+import net.thumbtack.onlineshop.domain.models.AccountFactory;
+import net.thumbtack.onlineshop.domain.models.DepositEntry;
+import net.thumbtack.onlineshop.domain.models.DepositSnapshot;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.*;
+
+public class DepositServiceTest {
+
+    private DepositService service;
+
+    @Mock
+    private DepositDao mockDepositDao;
+
+    // Сумма всех движений денег, которые были добавлены в БД
+    private AtomicLong delta = new AtomicLong();
+
+    @Before
+    public void setUpClass() {
+        MockitoAnnotations.initMocks(this);
+
+        service = new DepositService(mockDepositDao);
+
+        doAnswer(invocation -> delta.addAndGet(invocation.<DepositEntry>getArgument(0).getAmount()))
+                .when(mockDepositDao).insert(any(DepositEntry.class));
+        when(mockDepositDao.getDelta(anyLong(), anyLong())).thenAnswer(invocation -> delta.get());
+    }
+
+    /**
+     * Первый снимок остатка создаётся из остатка в аккаунте
+     */
+    @Test
+    public void testGetBalanceCreatesSnapshot() {
+        Account client = generateClient(100);
+
+        assertEquals(100, service.getBalance(client));
+
+        ArgumentCaptor<DepositSnapshot> captor = ArgumentCaptor.forClass(DepositSnapshot.class);
+        verify(mockDepositDao).insertSnapshot(captor.capture());
+        assertEquals(client.getId(), captor.getValue().getAccountId());
+        assertEquals(100, (int) captor.getValue().getBalance());
+        assertEquals(0L, (long) captor.getValue().getEntryId());
+
+        // Снимок берётся из кэша
+        service.getBalance(client);
+        verify(mockDepositDao, times(1)).getSnapshot(client.getId());
+    }
+
+    /**
+     * Остаток - это снимок плюс движения денег после него
+     */
+    @Test
+    public void testGetBalanceFromSnapshot() {
+        Account client = generateClient(0);
+        when(mockDepositDao.getSnapshot(client.getId())).thenReturn(new DepositSnapshot(client.getId(), 500, 7L));
+        when(mockDepositDao.getDelta(client.getId(), 7L)).thenReturn(-120L);
+
+        assertEquals(380, service.getBalance(client));
+        verify(mockDepositDao, never()).insertSnapshot(any());
+    }
+
+    @Test
+    public void testDeposit() {
+        Account client = generateClient(10);
+
+        assertEquals(35, service.deposit(client, 25));
+
+        ArgumentCaptor<DepositEntry> captor = ArgumentCaptor.forClass(DepositEntry.class);
+        verify(mockDepositDao).insert(captor.capture());
+        assertEquals(25, (int) captor.getValue().getAmount());
+        assertEquals(DepositEntry.Type.DEPOSIT, captor.getValue().getType());
+        assertEquals(client, captor.getValue().getAccount());
+
+        // Снимок создан до первой записи
+        verify(mockDepositDao).insertSnapshot(any());
+    }
+
+    @Test
+    public void testWithdraw() throws ServiceException {
+        Account client = generateClient(100);
+
+        assertEquals(70, service.withdraw(client, 30));
+
+        ArgumentCaptor<DepositEntry> captor = ArgumentCaptor.forClass(DepositEntry.class);
+        verify(mockDepositDao).insert(captor.capture());
+        assertEquals(-30, (int) captor.getValue().getAmount());
+        assertEquals(DepositEntry.Type.PURCHASE, captor.getValue().getType());
+
+        // Остаток в аккаунте не изменяется
+        assertEquals(100, (int) client.getDeposit());
+    }
+
+    @Test
+    public void testWithdrawNotEnoughMoney() {
+        Account client = generateClient(100);
+
+        try {
+            service.withdraw(client, 101);
+            fail();
+        } catch (ServiceException e) {
+            assertEquals(ServiceException.ErrorCode.NOT_ENOUGH_MONEY, e.getErrorCode());
+        }
+
+        verify(mockDepositDao, never()).insert(any(DepositEntry.class));
+    }
+
+    /**
+     * Одновременные списания не уводят остаток в минус
+     */
+    @Test
+    public void testWithdrawConcurrent() throws Exception {
+        Account client = generateClient(500);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+
+        try {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (int i = 0; i < 100; ++i) {
+                results.add(executor.submit(() -> {
+                    try {
+                        service.withdraw(client, 10);
+                        return true;
+                    } catch (ServiceException e) {
+                        return false;
+                    }
+                }));
+            }
+
+            int success = 0;
+            for (Future<Boolean> result : results) {
+                if (result.get()) {
+                    success++;
+                }
+            }
+
+            assertEquals(50, success);
+            assertEquals(0, service.getBalance(client));
+
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testLocked() {
+        assertEquals("result", service.locked(Arrays.asList(1L, 2L, 257L), () -> "result"));
+    }
+
+    /**
+     * После компактирования снимки перечитываются из БД
+     */
+    @Test
+    public void testCompact() {
+        Account client = generateClient(100);
+        service.getBalance(client);
+        when(mockDepositDao.getLastEntryId()).thenReturn(42L);
+
+        service.compact();
+
+        verify(mockDepositDao).compact(42L);
+
+        service.getBalance(client);
+        verify(mockDepositDao, times(2)).getSnapshot(client.getId());
+    }
+
+    /**
+     * Граница компактирования читается, пока ни один клиент не может добавить запись
+     */
+    @Test
+    public void testWatermark() throws Exception {
+        Account client = generateClient(100);
+        CountDownLatch reading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        when(mockDepositDao.getLastEntryId()).thenAnswer(invocation -> {
+            reading.countDown();
+            release.await();
+            return 7L;
+        });
+
+        Thread compactor = new Thread(() -> assertEquals(7L, service.getWatermark()));
+        compactor.start();
+        assertTrue(reading.await(5, TimeUnit.SECONDS));
+
+        Thread depositor = new Thread(() -> service.deposit(client, 10));
+        depositor.start();
+        Thread.sleep(100);
+        verify(mockDepositDao, never()).insert(any(DepositEntry.class));
+
+        release.countDown();
+        compactor.join();
+        depositor.join();
+        verify(mockDepositDao).insert(any(DepositEntry.class));
+    }
+
+    @Test
+    public void testClear() {
+        Account client = generateClient(100);
+        service.getBalance(client);
+
+        service.clear();
+        service.getBalance(client);
+
+        verify(mockDepositDao, times(2)).getSnapshot(client.getId());
+    }
+
+    private Account generateClient(int deposit) {
+        Account account = AccountFactory.createClient(
+                "234324", "234324", "wereww1", "werewr1",
+                "wrewf3", "werwer235", "werw23", "ewr23423"
+        );
+        account.setId(1L);
+        account.setDeposit(deposit);
+        return account;
+    }
+}
@@ -0,0 +1,319 @@
+package net.thumbtack.onlineshop.service;
+
+import net.thumbtack.onlineshop.domain.dao.ProductDao;
+import net.thumbtack.onlineshop.domain.models.Account;
+import net.thumbtack.onlineshop.domain.models.AccountFactory;
+import net.thumbtack.onlineshop.domain.models.Product;
+import net.thumbtack.onlineshop.dto.ProductDto;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.*;
+
+public class HotProductAdmissionTest {
+
+    private HotProductAdmission admission;
+
+    @Mock
+    private CheckoutWriter mockWriter;
+
+    @Mock
+    private ProductDao mockProductDao;
+
+    private Product product;
+
+    @Before
+    public void setUpClass() {
+        MockitoAnnotations.initMocks(this);
+
+        admission = new HotProductAdmission(mockWriter, mockProductDao);
+
+        // Товар становится популярным с первой же покупки
+        ReflectionTestUtils.setField(admission, "threshold", 1);
+        ReflectionTestUtils.setField(admission, "windowSeconds", 1);
+        ReflectionTestUtils.setField(admission, "maxHotProducts", 4);
+        ReflectionTestUtils.setField(admission, "batchSize", 16);
+        ReflectionTestUtils.setField(admission, "batchWaitMs", 1L);
+        ReflectionTestUtils.setField(admission, "queueSize", 16);
+        ReflectionTestUtils.setField(admission, "queueTimeoutMs", 10L);
+        ReflectionTestUtils.setField(admission, "awaitTimeoutMs", 5000L);
+
+        product = new Product("product", 5, 10);
+        product.setId(1L);
+        when(mockProductDao.get(1L)).thenReturn(product);
+
+        // Писатель выполняет все покупки
+        doAnswer(invocation -> {
+            List<CheckoutRequest> batch = invocation.getArgument(0);
+            batch.forEach(request -> request.getResult().complete(request.getBuyProduct()));
+            return null;
+        }).when(mockWriter).process(anyList(), any());
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        admission.stop();
+    }
+
+    /**
+     * Пока товар покупают редко, он покупается как обычно
+     */
+    @Test
+    public void testBuyProductNotHot() throws ServiceException {
+        ReflectionTestUtils.setField(admission, "threshold", 1000);
+
+        assertNull(admission.buyProduct(generateClient(), new ProductDto(1L, "product", 10, 1), null));
+
+        verify(mockProductDao, never()).get(anyLong());
+        verify(mockWriter, never()).process(anyList(), any());
+    }
+
+    /**
+     * Очереди можно отключить
+     */
+    @Test
+    public void testBuyProductDisabled() throws ServiceException {
+        ReflectionTestUtils.setField(admission, "threshold", 0);
+
+        assertNull(admission.buyProduct(generateClient(), new ProductDto(1L, "product", 10, 1), null));
+        assertEquals(0, admission.getMetrics().get("enabled"));
+    }
+
+    /**
+     * Популярный товар покупается через очередь
+     */
+    @Test
+    public void testBuyProductHot() throws ServiceException {
+        ProductDto result = admission.buyProduct(generateClient(), new ProductDto(1L, "product", 10, 2), null);
+
+        assertEquals(2, (int) result.getCount());
+        verify(mockWriter).process(anyList(), any());
+
+        Map<String, Number> metrics = admission.getMetrics();
+        assertEquals(1, metrics.get("hot"));
+        assertEquals(1L, metrics.get("promotions"));
+    }
+
+    /**
+     * Когда зарезервирован весь товар, клиент сразу получает ошибку
+     */
+    @Test
+    public void testBuyProductSoldOut() throws ServiceException {
+        admission.buyProduct(generateClient(), new ProductDto(1L, "product", 10, 3), null);
+        admission.buyProduct(generateClient(), new ProductDto(1L, "product", 10, 2), null);
+
+        try {
+            admission.buyProduct(generateClient(), new ProductDto(1L, "product", 10, 1), null);
+            fail();
+        } catch (ServiceException e) {
+            assertEquals(ServiceException.ErrorCode.NOT_ENOUGH_PRODUCT, e.getErrorCode());
+        }
+
+        // Последняя покупка не дошла до БД
+        verify(mockWriter, times(2)).process(anyList(), any());
+        verify(mockProductDao, times(1)).get(1L);
+        assertEquals(1L, admission.getMetrics().get("sold_out"));
+    }
+
+    /**
+     * Название и цена проверяются до резервирования
+     */
+    @Test
+    public void testBuyProductWrongInfo() throws ServiceException {
+        try {
+            admission.buyProduct(generateClient(), new ProductDto(1L, "product", 1, 5), null);
+            fail();
+        } catch (ServiceException e) {
+            assertEquals(ServiceException.ErrorCode.WRONG_PRODUCT_INFO, e.getErrorCode());
+        }
+
+        // Резерв не потрачен
+        admission.buyProduct(generateClient(), new ProductDto(1L, "product", 10, 5), null);
+    }
+
+    /**
+     * Если покупка не удалась, то резерв возвращается
+     */
+    @Test
+    public void testBuyProductRelease() throws ServiceException {
+        doAnswer(invocation -> {
+            List<CheckoutRequest> batch = invocation.getArgument(0);
+            batch.forEach(request -> request.getResult().completeExceptionally(
+                    new ServiceException(ServiceException.ErrorCode.NOT_ENOUGH_MONEY)
+            ));
+            return null;
+        }).when(mockWriter).process(anyList(), any());
+
+        try {
+            admission.buyProduct(generateClient(), new ProductDto(1L, "product", 10, 5), null);
+            fail();
+        } catch (ServiceException e) {
+            assertEquals(ServiceException.ErrorCode.NOT_ENOUGH_MONEY, e.getErrorCode());
+        }
+
+        // Товар по-прежнему популярный, а весь его остаток снова доступен
+        assertEquals(1, admission.getMetrics().get("hot"));
+        doAnswer(invocation -> {
+            List<CheckoutRequest> batch = invocation.getArgument(0);
+            batch.forEach(request -> request.getResult().complete(request.getBuyProduct()));
+            return null;
+        }).when(mockWriter).process(anyList(), any());
+
+        assertEquals(5, (int) admission.buyProduct(generateClient(), new ProductDto(1L, "product", 10, 5), null).getCount());
+    }
+
+    /**
+     * Если поток очереди не выполнил покупку за отведённое время, то клиент получает ошибку,
+     * а покупка, которую поток ещё не начал, отменяется и возвращает резерв
+     */
+    @Test
+    public void testBuyProductTimeout() throws ServiceException {
+        ReflectionTestUtils.setField(admission, "awaitTimeoutMs", 50L);
+        // Поток очереди забирает запросы, но не выполняет их
+        doNothing().when(mockWriter).process(anyList(), any());
+
+        try {
+            admission.buyProduct(generateClient(), new ProductDto(1L, "product", 10, 5), null);
+            fail();
+        } catch (ServiceException e) {
+            assertEquals(ServiceException.ErrorCode.CHECKOUT_OVERLOADED, e.getErrorCode());
+        }
+        assertEquals(1L, admission.getMetrics().get("timeouts"));
+
+        // Весь остаток снова доступен
+        doAnswer(invocation -> {
+            List<CheckoutRequest> batch = invocation.getArgument(0);
+            batch.forEach(request -> request.getResult().complete(request.getBuyProduct()));
+            return null;
+        }).when(mockWriter).process(anyList(), any());
+
+        assertEquals(5, (int) admission.buyProduct(generateClient(), new ProductDto(1L, "product", 10, 5), null).getCount());
+    }
+
+    /**
+     * Если покупка уже выполняется, то резерв возвращается только после её неудачи
+     */
+    @Test
+    public void testBuyProductTimeoutStarted() throws Exception {
+        ReflectionTestUtils.setField(admission, "awaitTimeoutMs", 50L);
+        BlockingQueue<CheckoutRequest> started = new ArrayBlockingQueue<>(1);
+        doAnswer(invocation -> {
+            List<CheckoutRequest> batch = invocation.getArgument(0);
+            batch.forEach(request -> {
+                request.start();
+                started.add(request);
+            });
+            return null;
+        }).when(mockWriter).process(anyList(), any());
+
+        try {
+            admission.buyProduct(generateClient(), new ProductDto(1L, "product", 10, 5), null);
+            fail();
+        } catch (ServiceException e) {
+            assertEquals(ServiceException.ErrorCode.CHECKOUT_OVERLOADED, e.getErrorCode());
+        }
+
+        // Пока покупка выполняется, резерв занят
+        try {
+            admission.buyProduct(generateClient(), new ProductDto(1L, "product", 10, 1), null);
+            fail();
+        } catch (ServiceException e) {
+            assertEquals(ServiceException.ErrorCode.NOT_ENOUGH_PRODUCT, e.getErrorCode());
+        }
+
+        started.take().getResult().completeExceptionally(new IllegalStateException("deadlock"));
+
+        doAnswer(invocation -> {
+            List<CheckoutRequest> batch = invocation.getArgument(0);
+            batch.forEach(request -> request.getResult().complete(request.getBuyProduct()));
+            return null;
+        }).when(mockWriter).process(anyList(), any());
+
+        assertEquals(5, (int) admission.buyProduct(generateClient(), new ProductDto(1L, "product", 10, 5), null).getCount());
+    }
+
+    /**
+     * Если в БД товара меньше, чем в памяти, то остаток в памяти сбрасывается
+     */
+    @Test
+    public void testBuyProductStale() throws ServiceException {
+        doAnswer(invocation -> {
+            List<CheckoutRequest> batch = invocation.getArgument(0);
+            batch.forEach(request -> request.getResult().completeExceptionally(
+                    new ServiceException(ServiceException.ErrorCode.NOT_ENOUGH_PRODUCT, "count")
+            ));
+            return null;
+        }).when(mockWriter).process(anyList(), any());
+
+        try {
+            admission.buyProduct(generateClient(), new ProductDto(1L, "product", 10, 1), null);
+            fail();
+        } catch (ServiceException e) {
+            assertEquals(ServiceException.ErrorCode.NOT_ENOUGH_PRODUCT, e.getErrorCode());
+        }
+
+        assertEquals(0, admission.getMetrics().get("hot"));
+        assertEquals(1L, admission.getMetrics().get("demotions"));
+    }
+
+    /**
+     * После изменения товара его остаток загружается заново
+     */
+    @Test
+    public void testInvalidate() throws ServiceException {
+        admission.buyProduct(generateClient(), new ProductDto(1L, "product", 10, 5), null);
+
+        product.setCount(10);
+        admission.invalidate(1L);
+        assertEquals(0, admission.getMetrics().get("hot"));
+
+        admission.buyProduct(generateClient(), new ProductDto(1L, "product", 10, 10), null);
+        verify(mockProductDao, times(2)).get(1L);
+    }
+
+    /**
+     * Товар перестаёт быть популярным, когда его покупают реже
+     */
+    @Test
+    public void testCooldown() throws ServiceException {
+        admission.buyProduct(generateClient(), new ProductDto(1L, "product", 10, 1), null);
+
+        admission.cooldown();
+        assertEquals(1, admission.getMetrics().get("hot"));
+
+        ReflectionTestUtils.setField(admission, "threshold", 1000);
+        admission.cooldown();
+        assertEquals(0, admission.getMetrics().get("hot"));
+    }
+
+    /**
+     * Несуществующий товар не становится популярным
+     */
+    @Test
+    public void testBuyProductNotFound() throws ServiceException {
+        assertNull(admission.buyProduct(generateClient(), new ProductDto(2L, "product", 10, 1), null));
+        assertEquals(0, admission.getMetrics().get("hot"));
+    }
+
+    private Account generateClient() {
+        Account account = AccountFactory.createClient(
+                "234324", "234324", "wereww1", "werewr1",
+                "wrewf3", "werwer235", "werw23", "ewr23423"
+        );
+        account.setId(1L);
+        return account;
+    }
+}
@@ -0,0 +1,444 @@
+package net.thumbtack.onlineshop.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import net.thumbtack.onlineshop.domain.dao.IdempotencyDao;
+import net.thumbtack.onlineshop.domain.models.Account;
+import net.thumbtack.onlineshop.domain.models.AccountFactory;
+import net.thumbtack.onlineshop.domain.models.IdempotencyRecord;
+import net.thumbtack.onlineshop.dto.ProductDto;
+import net.thumbtack.onlineshop.dto.ResultBasketDto;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.Mockito.*;
+
+public class IdempotencyServiceTest {
+
+    private IdempotencyService service;
+
+    @Mock
+    private IdempotencyDao mockIdempotencyDao;
+
+    private ObjectMapper mapper = new ObjectMapper();
+
+    @Before
+    public void setUpClass() {
+        MockitoAnnotations.initMocks(this);
+
+        service = new IdempotencyService(mockIdempotencyDao, mapper);
+        ReflectionTestUtils.setField(service, "cacheSize", 100);
+        ReflectionTestUtils.setField(service, "ttlSeconds", 60L);
+        ReflectionTestUtils.setField(service, "persistent", false);
+    }
+
+    /**
+     * Без ключа действие выполняется каждый раз
+     */
+    @Test
+    public void testExecuteWithoutKey() throws ServiceException {
+        AtomicInteger calls = new AtomicInteger();
+        Account client = generateClient();
+
+        service.execute(client, null, product(1), ProductDto.class, () -> product(calls.incrementAndGet()));
+        service.execute(client, null, product(1), ProductDto.class, () -> product(calls.incrementAndGet()));
+
+        assertEquals(2, calls.get());
+    }
+
+    /**
+     * Повторный запрос с тем же ключом получает первый результат
+     */
+    @Test
+    public void testExecuteSameKey() throws ServiceException {
+        AtomicInteger calls = new AtomicInteger();
+        Account client = generateClient();
+
+        ProductDto first = service.execute(client, "key", product(1), ProductDto.class, () -> product(calls.incrementAndGet()));
+        ProductDto second = service.execute(client, "key", product(1), ProductDto.class, () -> product(calls.incrementAndGet()));
+
+        assertEquals(1, calls.get());
+        assertSame(first, second);
+
+        // Для другого ключа действие выполняется снова
+        service.execute(client, "key2", product(1), ProductDto.class, () -> product(calls.incrementAndGet()));
+        assertEquals(2, calls.get());
+    }
+
+    /**
+     * Ключи разных клиентов не пересекаются
+     */
+    @Test
+    public void testExecuteSameKeyDifferentAccounts() throws ServiceException {
+        AtomicInteger calls = new AtomicInteger();
+        Account client1 = generateClient();
+        Account client2 = generateClient();
+        client2.setId(2L);
+
+        service.execute(client1, "key", product(1), ProductDto.class, () -> product(calls.incrementAndGet()));
+        service.execute(client2, "key", product(1), ProductDto.class, () -> product(calls.incrementAndGet()));
+
+        assertEquals(2, calls.get());
+    }
+
+    /**
+     * Сервисная ошибка запоминается вместе с ключом
+     */
+    @Test
+    public void testExecuteServiceError() {
+        AtomicInteger calls = new AtomicInteger();
+        Account client = generateClient();
+
+        for (int i = 0; i < 2; ++i) {
+            try {
+                service.execute(client, "key", product(1), ProductDto.class, () -> {
+                    calls.incrementAndGet();
+                    throw new ServiceException(ServiceException.ErrorCode.NOT_ENOUGH_MONEY);
+                });
+                fail();
+            } catch (ServiceException e) {
+                assertEquals(ServiceException.ErrorCode.NOT_ENOUGH_MONEY, e.getErrorCode());
+            }
+        }
+
+        assertEquals(1, calls.get());
+    }
+
+    /**
+     * После непредвиденной ошибки запрос с тем же ключом можно повторить
+     */
+    @Test
+    public void testExecuteRuntimeError() throws ServiceException {
+        AtomicInteger calls = new AtomicInteger();
+        Account client = generateClient();
+
+        try {
+            service.execute(client, "key", product(1), ProductDto.class, () -> {
+                calls.incrementAndGet();
+                throw new IllegalStateException();
+            });
+            fail();
+        } catch (IllegalStateException e) {
+            // Ожидаемая ошибка
+        }
+
+        service.execute(client, "key", product(1), ProductDto.class, () -> product(calls.incrementAndGet()));
+        assertEquals(2, calls.get());
+    }
+
+    /**
+     * Нельзя использовать один и тот же ключ для разных запросов
+     */
+    @Test
+    public void testExecuteWrongType() throws ServiceException {
+        Account client = generateClient();
+
+        service.execute(client, "key", product(1), ProductDto.class, () -> product(1));
+
+        try {
+            service.execute(client, "key", product(1), ResultBasketDto.class, ResultBasketDto::new);
+            fail();
+        } catch (ServiceException e) {
+            assertEquals(ServiceException.ErrorCode.WRONG_IDEMPOTENCY_KEY, e.getErrorCode());
+        }
+    }
+
+    /**
+     * Тот же ключ с другим телом запроса не получает чужой результат
+     */
+    @Test
+    public void testExecuteReusedKey() throws ServiceException {
+        AtomicInteger calls = new AtomicInteger();
+        Account client = generateClient();
+
+        service.execute(client, "key", product(1), ProductDto.class, () -> product(calls.incrementAndGet()));
+
+        try {
+            service.execute(client, "key", product(2), ProductDto.class, () -> product(calls.incrementAndGet()));
+            fail();
+        } catch (ServiceException e) {
+            assertEquals(ServiceException.ErrorCode.IDEMPOTENCY_KEY_REUSED, e.getErrorCode());
+        }
+
+        assertEquals(1, calls.get());
+    }
+
+    /**
+     * Слишком длинный ключ
+     */
+    @Test
+    public void testExecuteLongKey() {
+        StringBuilder key = new StringBuilder();
+        for (int i = 0; i <= IdempotencyService.MAX_KEY_LENGTH; ++i) {
+            key.append('k');
+        }
+
+        try {
+            service.execute(generateClient(), key.toString(), product(1), ProductDto.class, () -> product(1));
+            fail();
+        } catch (ServiceException e) {
+            assertEquals(ServiceException.ErrorCode.WRONG_IDEMPOTENCY_KEY, e.getErrorCode());
+        }
+    }
+
+    /**
+     * Одновременные запросы с одним ключом выполняются только один раз,
+     * а остальные дожидаются результата первого
+     */
+    @Test
+    public void testExecuteConcurrent() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        Account client = generateClient();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+
+        try {
+            Future<ProductDto> first = executor.submit(() ->
+                    service.execute(client, "key", product(1), ProductDto.class, () -> {
+                        started.countDown();
+                        try {
+                            release.await();
+                        } catch (InterruptedException e) {
+                            throw new IllegalStateException(e);
+                        }
+                        return product(calls.incrementAndGet());
+                    })
+            );
+            started.await();
+
+            Future<ProductDto> second = executor.submit(() ->
+                    service.execute(client, "key", product(1), ProductDto.class, () -> product(calls.incrementAndGet()))
+            );
+            Future<ProductDto> third = executor.submit(() ->
+                    service.execute(client, "key", product(1), ProductDto.class, () -> product(calls.incrementAndGet()))
+            );
+
+            release.countDown();
+
+            assertSame(first.get(5, TimeUnit.SECONDS), second.get(5, TimeUnit.SECONDS));
+            assertSame(first.get(), third.get(5, TimeUnit.SECONDS));
+            assertEquals(1, calls.get());
+
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Результат сохраняется в БД, если включено хранение результатов
+     */
+    @Test
+    public void testExecutePersistent() throws Exception {
+        ReflectionTestUtils.setField(service, "persistent", true);
+        Account client = generateClient();
+
+        service.execute(client, "key", product(1), ProductDto.class, () -> product(7));
+
+        verify(mockIdempotencyDao).insert(any(IdempotencyRecord.class));
+    }
+
+    /**
+     * Результат восстанавливается из БД (например, после перезапуска сервера)
+     */
+    @Test
+    public void testExecuteRestore() throws Exception {
+        ReflectionTestUtils.setField(service, "persistent", true);
+        Account client = generateClient();
+
+        IdempotencyRecord record = new IdempotencyRecord(client, "key", ProductDto.class.getName(), new Date());
+        record.setResponse(mapper.writeValueAsString(product(7)));
+        when(mockIdempotencyDao.get(client, "key")).thenReturn(record);
+
+        ProductDto result = service.execute(client, "key", product(1), ProductDto.class, () -> {
+            throw new IllegalStateException("Действие не должно выполняться");
+        });
+
+        assertEquals(7, (int) result.getCount());
+        verify(mockIdempotencyDao, never()).insert(any());
+    }
+
+    /**
+     * Запись в БД, сохранённая для другого тела запроса, не возвращается
+     */
+    @Test
+    public void testExecuteRestoreReusedKey() throws Exception {
+        ReflectionTestUtils.setField(service, "persistent", true);
+        Account client = generateClient();
+
+        IdempotencyRecord record = new IdempotencyRecord(client, "key", ProductDto.class.getName(), new Date());
+        record.setFingerprint("other");
+        record.setResponse(mapper.writeValueAsString(product(7)));
+        when(mockIdempotencyDao.get(client, "key")).thenReturn(record);
+
+        try {
+            service.execute(client, "key", product(1), ProductDto.class, () -> product(1));
+            fail();
+        } catch (ServiceException e) {
+            assertEquals(ServiceException.ErrorCode.IDEMPOTENCY_KEY_REUSED, e.getErrorCode());
+        }
+    }
+
+    /**
+     * Запись без результата означает, что запрос ещё выполняется. Такой ответ
+     * не запоминается, и повторный запрос снова проверяет БД
+     */
+    @Test
+    public void testExecuteRestoreInProgress() throws Exception {
+        ReflectionTestUtils.setField(service, "persistent", true);
+        Account client = generateClient();
+
+        IdempotencyRecord record = new IdempotencyRecord(client, "key", ProductDto.class.getName(), new Date());
+        when(mockIdempotencyDao.get(client, "key")).thenReturn(record);
+
+        try {
+            service.execute(client, "key", product(1), ProductDto.class, () -> product(1));
+            fail();
+        } catch (ServiceException e) {
+            assertEquals(ServiceException.ErrorCode.IDEMPOTENCY_IN_PROGRESS, e.getErrorCode());
+        }
+
+        record.setResponse(mapper.writeValueAsString(product(7)));
+
+        ProductDto result = service.execute(client, "key", product(1), ProductDto.class, () -> product(1));
+
+        assertEquals(7, (int) result.getCount());
+        verify(mockIdempotencyDao, times(2)).get(client, "key");
+    }
+
+    /**
+     * Ключ, занятый в зафиксированной транзакции, дописывается результатом
+     */
+    @Test
+    public void testExecuteClaimCommitted() throws Exception {
+        ReflectionTestUtils.setField(service, "persistent", true);
+        Account client = generateClient();
+
+        ProductDto result = service.execute(client, "key", product(1), ProductDto.class,
+                () -> inTransaction(TransactionSynchronization.STATUS_COMMITTED, () -> product(7))
+        );
+
+        assertEquals(7, (int) result.getCount());
+        verify(mockIdempotencyDao).insert(argThat(record -> record.getFingerprint() != null));
+        verify(mockIdempotencyDao).update(argThat(record -> record.getResponse() != null));
+    }
+
+    /**
+     * Если транзакция откатилась, то вместе с ней пропала и запись о ключе,
+     * поэтому результат сохраняется новой записью
+     */
+    @Test
+    public void testExecuteClaimRolledBack() throws Exception {
+        ReflectionTestUtils.setField(service, "persistent", true);
+        Account client = generateClient();
+
+        try {
+            service.execute(client, "key", product(1), ProductDto.class,
+                    () -> inTransaction(TransactionSynchronization.STATUS_ROLLED_BACK, () -> {
+                        throw new ServiceException(ServiceException.ErrorCode.NOT_ENOUGH_MONEY);
+                    })
+            );
+            fail();
+        } catch (ServiceException e) {
+            assertEquals(ServiceException.ErrorCode.NOT_ENOUGH_MONEY, e.getErrorCode());
+        }
+
+        verify(mockIdempotencyDao, times(2)).insert(any());
+        verify(mockIdempotencyDao, never()).update(any());
+    }
+
+    /**
+     * Если ключ уже занят другим экземпляром сервера, то покупка не выполняется,
+     * а её ошибка не сохраняется
+     */
+    @Test
+    public void testExecuteClaimConflict() throws Exception {
+        ReflectionTestUtils.setField(service, "persistent", true);
+        Account client = generateClient();
+        doThrow(new DataIntegrityViolationException("duplicate")).when(mockIdempotencyDao).insert(any());
+
+        try {
+            service.execute(client, "key", product(1), ProductDto.class,
+                    () -> inTransaction(TransactionSynchronization.STATUS_ROLLED_BACK, () -> {
+                        throw new IllegalStateException("Покупка не должна выполняться");
+                    })
+            );
+            fail();
+        } catch (ServiceException e) {
+            assertEquals(ServiceException.ErrorCode.IDEMPOTENCY_IN_PROGRESS, e.getErrorCode());
+        }
+
+        verify(mockIdempotencyDao, times(1)).insert(any());
+    }
+
+    /**
+     * Вне транзакции ключ не занимается
+     */
+    @Test
+    public void testClaimWithoutTransaction() throws Exception {
+        ReflectionTestUtils.setField(service, "persistent", true);
+
+        service.execute(generateClient(), "key", product(1), ProductDto.class, () -> {
+            service.claim();
+            return product(7);
+        });
+
+        verify(mockIdempotencyDao, times(1)).insert(any());
+        verify(mockIdempotencyDao, never()).update(any());
+    }
+
+    /**
+     * Устаревшие записи удаляются из БД
+     */
+    @Test
+    public void testRemoveExpired() {
+        ReflectionTestUtils.setField(service, "persistent", true);
+
+        service.removeExpired();
+
+        verify(mockIdempotencyDao).deleteOlderThan(any());
+    }
+
+    /**
+     * Выполняет покупку так же, как ClientService: занимает ключ в начале транзакции,
+     * а после её завершения сообщает результат транзакции
+     */
+    private ProductDto inTransaction(int status, IdempotencyService.Action<ProductDto> action) throws ServiceException {
+        TransactionSynchronizationManager.initSynchronization();
+        try {
+            service.claim();
+            return action.run();
+
+        } finally {
+            List<TransactionSynchronization> synchronizations = TransactionSynchronizationManager.getSynchronizations();
+            TransactionSynchronizationManager.clearSynchronization();
+            synchronizations.forEach(synchronization -> synchronization.afterCompletion(status));
+        }
+    }
+
+    private ProductDto product(int count) {
+        return new ProductDto(1L, "product", 10, count);
+    }
+
+    private Account generateClient() {
+        Account account = AccountFactory.createClient(
+                "234324", "234324", "wereww1", "werewr1",
+                "wrewf3", "werwer235", "werw23", "ewr23423"
+        );
+        account.setId(1L);
+        return account;
+    }
+}
@@ -0,0 +1,158 @@
+package net.thumbtack.onlineshop.service;
+
+import net.thumbtack.onlineshop.domain.models.Account;
+import net.thumbtack.onlineshop.domain.models.AccountFactory;
+import net.thumbtack.onlineshop.domain.models.Product;
+import net.thumbtack.onlineshop.domain.models.Purchase;
+import net.thumbtack.onlineshop.service.mail.MailDelivery;
+import net.thumbtack.onlineshop.service.mail.MailMessage;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+public class MailServiceTest {
+
+    private MailService service;
+
+    private MailDelivery delivery;
+
+    private Account client;
+
+    @Before
+    public void setUpClass() {
+        delivery = mock(MailDelivery.class);
+        when(delivery.isEnabled()).thenReturn(true);
+
+        service = new MailService(delivery);
+        ReflectionTestUtils.setField(service, "coalesceWindowMs", 60000);
+        ReflectionTestUtils.setField(service, "coalesceMaxPurchases", 100);
+
+        client = createClient(1L);
+    }
+
+    /**
+     * Покупки одного клиента в окне отправляются одним письмом
+     */
+    @Test
+    public void testCoalesce() {
+        service.sendBuyProductReport(purchase(client, "iphone", 2, 100));
+        service.sendBuyProductReport(purchase(client, "ipad", 1, 500));
+        service.sendBuyBasketReport(client, Arrays.asList(
+                purchase(client, "macbook", 1, 1000),
+                purchase(client, "airpods", 3, 50)));
+
+        // Окно ещё не закончилось
+        service.flush();
+        verify(delivery, never()).send(any());
+
+        service.flush(Long.MAX_VALUE);
+
+        MailMessage message = getMessages(1).get(0);
+        assertEquals("Иван", message.getRecipientName());
+        assertEquals("ivan@mail.ru", message.getRecipientAddress());
+        assertEquals("Уведомление о покупке товаров", message.getTitle());
+        assertTrue(message.getContent().contains("iphone"));
+        assertTrue(message.getContent().contains("airpods"));
+        assertTrue(message.getContent().contains("<b>Общая сумма:</b> 1850 руб."));
+
+        assertEquals(4L, service.getMetrics().get("notifications"));
+        assertEquals(1L, service.getMetrics().get("messages"));
+        assertEquals(0, service.getMetrics().get("pending_clients"));
+    }
+
+    /**
+     * У каждого клиента своё письмо, а одна покупка отправляется обычным уведомлением
+     */
+    @Test
+    public void testCoalescePerClient() {
+        Account other = createClient(2L);
+
+        service.sendBuyProductReport(purchase(client, "iphone", 2, 100));
+        service.sendBuyProductReport(purchase(other, "ipad", 1, 500));
+        assertEquals(2, service.getMetrics().get("pending_clients"));
+
+        service.flush(Long.MAX_VALUE);
+
+        for (MailMessage message : getMessages(2)) {
+            assertEquals("Уведомление о покупке товара", message.getTitle());
+        }
+    }
+
+    /**
+     * Письмо отправляется сразу, если в нём набралось максимальное количество покупок
+     */
+    @Test
+    public void testCoalesceMaxPurchases() {
+        ReflectionTestUtils.setField(service, "coalesceMaxPurchases", 2);
+
+        service.sendBuyProductReport(purchase(client, "iphone", 2, 100));
+        service.sendBuyProductReport(purchase(client, "ipad", 1, 500));
+
+        assertEquals("Уведомление о покупке товаров", getMessages(1).get(0).getTitle());
+        assertEquals(0, service.getMetrics().get("pending_clients"));
+    }
+
+    @Test
+    public void testWithoutWindow() {
+        ReflectionTestUtils.setField(service, "coalesceWindowMs", 0);
+
+        service.sendBuyProductReport(purchase(client, "iphone", 2, 100));
+        service.sendBuyProductReport(purchase(client, "ipad", 1, 500));
+
+        for (MailMessage message : getMessages(2)) {
+            assertEquals("Уведомление о покупке товара", message.getTitle());
+        }
+    }
+
+    /**
+     * Если отправка почты не настроена, то уведомления не накапливаются
+     */
+    @Test
+    public void testDisabled() {
+        when(delivery.isEnabled()).thenReturn(false);
+
+        service.sendBuyProductReport(purchase(client, "iphone", 2, 100));
+
+        assertEquals(0, service.getMetrics().get("pending_clients"));
+        getMessages(1);
+    }
+
+    /**
+     * При остановке сервера накопленные письма отправляются
+     */
+    @Test
+    public void testStop() {
+        service.sendBuyProductReport(purchase(client, "iphone", 2, 100));
+
+        service.stop();
+
+        getMessages(1);
+    }
+
+    private List<MailMessage> getMessages(int count) {
+        ArgumentCaptor<MailMessage> captor = ArgumentCaptor.forClass(MailMessage.class);
+        verify(delivery, times(count)).send(captor.capture());
+        return captor.getAllValues();
+    }
+
+    private static Account createClient(long id) {
+        Account account = AccountFactory.createClient(
+                "Иван", "Иванов", "ivan@mail.ru", "Omsk", "+79001234567", "ivan" + id, "Iddqd225");
+        account.setId(id);
+        return account;
+    }
+
+    private static Purchase purchase(Account client, String name, int count, int price) {
+        return new Purchase(new Product(name, 10, price), client, new Date(), count, price);
+    }
+}
@@ -11,10 +11,12 @@ import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 import org.mockito.stubbing.Answer;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import static junit.framework.TestCase.assertEquals;
 import static junit.framework.TestCase.fail;
@@ -36,10 +38,16 @@ public class ProductServiceTest {
     @Mock
     private CategoryDao mockCategoryDao;
 
+    @Mock
+    private HotProductAdmission mockHotProductAdmission;
+
+    @Mock
+    private BasketStore mockBasketStore;
+
     @Before
     public void setUpClass() {
         MockitoAnnotations.initMocks(this);
-        productService = new ProductService(mockProductDao, mockSessionDao, mockCategoryDao);
+        productService = new ProductService(mockProductDao, mockSessionDao, mockCategoryDao, mockHotProductAdmission, mockBasketStore);
 
         Answer<Product> answer = (invocation) -> {
             Product product = invocation.getArgument(0);
@@ -57,20 +65,23 @@ public class ProductServiceTest {
     public void testAdd() throws ServiceException {
         setAdmin();
 
+        Set<Long> ids = new HashSet<>(Arrays.asList(1L, 2L, 3L));
+
         // Все три категории найдены в БД
-        when(mockCategoryDao.get(1)).thenReturn(new Category());
-        when(mockCategoryDao.get(2)).thenReturn(new Category());
-        when(mockCategoryDao.get(3)).thenReturn(new Category());
+        when(mockCategoryDao.get(ids)).thenReturn(
+                Arrays.asList(new Category(), new Category(), new Category()));
 
         ProductDto request = new ProductDto("product", 10, 1000,
-                Arrays.asList(1L, 2L, 3L));
+                Arrays.asList(1L, 2L, 3L, 2L));
 
         ProductDto result = productService.add("token", request);
 
         // Продукт записан в БД
         verify(mockProductDao).insert(any());
-        // Было получены записи о трёх категориях
-        verify(mockCategoryDao, times(3)).get(anyLong());
+        // Категории проверены и получены одним списком, а не по одной
+        verify(mockCategoryDao).findMissing(ids);
+        verify(mockCategoryDao).get(ids);
+        verify(mockCategoryDao, never()).get(anyLong());
         // Было вставлено три категори продукта
         verify(mockProductDao, times(3)).insertCategory(any());
 
@@ -115,9 +126,9 @@ public class ProductServiceTest {
     public void testAddCategoryNotFound() throws ServiceException {
         setAdmin();
 
-        when(mockCategoryDao.get(1)).thenReturn(new Category());
-        when(mockCategoryDao.get(2)).thenReturn(null);
-        when(mockCategoryDao.get(3)).thenReturn(new Category());
+        // Категории 2 нет в БД
+        when(mockCategoryDao.findMissing(new HashSet<>(Arrays.asList(1L, 2L, 3L))))
+                .thenReturn(Collections.singleton(2L));
 
         ProductDto request = new ProductDto("product", 10, 1000,
                 Arrays.asList(1L, 2L, 3L));
@@ -127,8 +138,8 @@ public class ProductServiceTest {
         } catch (ServiceException e) {
             assertEquals(ServiceException.ErrorCode.CATEGORY_NOT_FOUND, e.getErrorCode());
 
-            // Было получены записи о трёх категориях
-            verify(mockCategoryDao, times(2)).get(anyLong());
+            // Категории не загружались
+            verify(mockCategoryDao, never()).get(anyCollection());
 
             // Никаких вставок в БД не было
             verify(mockProductDao, never()).insertCategory(any());
@@ -146,11 +157,13 @@ public class ProductServiceTest {
         when(mockProductDao.get(0)).thenReturn(new Product("name", 1, 10));
 
         // Все три категори найдены в БД
+        List<Category> categories = new ArrayList<>();
         for (long i = 1; i <= 3; ++i) {
             Category category = new Category();
             category.setId(i);
-            when(mockCategoryDao.get(i)).thenReturn(category);
+            categories.add(category);
         }
+        when(mockCategoryDao.get(new HashSet<>(Arrays.asList(1L, 2L, 3L)))).thenReturn(categories);
 
         // Старый список категорий у продукта
         when(mockProductDao.getCategories(0)).thenReturn(
@@ -171,6 +184,9 @@ public class ProductServiceTest {
         verify(mockProductDao, times(3)).insertCategory(any());
         // И обновил товар
         verify(mockProductDao).update(any());
+        // Остаток товара в памяти сброшен, а корзины получили новые название и цену
+        verify(mockHotProductAdmission).invalidate(0);
+        verify(mockBasketStore).updateProduct(any());
 
         // И в конце проверяем что всё изменили правильно
         assertEquals(request.getName(), result.getName());
@@ -209,10 +225,9 @@ public class ProductServiceTest {
         // Старый товар найден в БД
         when(mockProductDao.get(0)).thenReturn(new Product("name", 1, 10));
 
-        // Все три категори найдены в БД
-        when(mockCategoryDao.get(1)).thenReturn(new Category());
-        when(mockCategoryDao.get(2)).thenReturn(null);
-        when(mockCategoryDao.get(3)).thenReturn(new Category());
+        // Категории 2 нет в БД
+        when(mockCategoryDao.findMissing(new HashSet<>(Arrays.asList(1L, 2L, 3L))))
+                .thenReturn(Collections.singleton(2L));
 
         // Старый список категорий у продукта
         when(mockProductDao.getCategories(0)).thenReturn(
@@ -273,6 +288,8 @@ public class ProductServiceTest {
         verify(mockProductDao).delete(product);
         verify(mockProductDao).deleteCategory(category1);
         verify(mockProductDao).deleteCategory(category2);
+        verify(mockHotProductAdmission).invalidate(0);
+        verify(mockBasketStore).updateProduct(product);
     }
 
     @Test(expected = ServiceException.class)
@@ -0,0 +1,215 @@
+package net.thumbtack.onlineshop.service;
+
+import net.thumbtack.onlineshop.domain.dao.ProductDao;
+import net.thumbtack.onlineshop.domain.dao.PurchaseDao;
+import net.thumbtack.onlineshop.domain.dao.SessionDao;
+import net.thumbtack.onlineshop.domain.models.*;
+import net.thumbtack.onlineshop.dto.AnalyticsDto;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.TimeZone;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.when;
+
+public class PurchaseAnalyticsTest {
+
+    private PurchaseAnalytics analytics;
+
+    @Mock
+    private SessionDao mockSessionDao;
+
+    @Mock
+    private PurchaseDao mockPurchaseDao;
+
+    @Mock
+    private ProductDao mockProductDao;
+
+    private ForkJoinPool pool = new ForkJoinPool(2);
+
+    private SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+
+    @Before
+    public void setUpClass() {
+        MockitoAnnotations.initMocks(this);
+        // Недели считаются по UTC
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+        analytics = new PurchaseAnalytics(mockSessionDao, mockPurchaseDao, mockProductDao);
+        ReflectionTestUtils.setField(analytics, "fetchSize", 100);
+        ReflectionTestUtils.setField(analytics, "pool", pool);
+    }
+
+    @After
+    public void tearDown() {
+        pool.shutdownNow();
+    }
+
+    /**
+     * История загружается из БД, а покупки, о которых пришли события во время загрузки,
+     * добавляются после неё без повторов
+     */
+    @Test
+    public void testLoadAndAppend() throws Exception {
+        setAdmin();
+
+        Purchase loaded = createPurchase(1L, 1L, 10L, 2, 100);
+        Purchase missed = createPurchase(2L, 2L, 10L, 1, 50);
+        Purchase next = createPurchase(3L, 2L, 11L, 1, 500);
+
+        doAnswer(invocation -> {
+            // События приходят во время загрузки
+            analytics.append(Arrays.asList(loaded, missed));
+
+            Consumer<PurchaseRow> consumer = invocation.getArgument(2);
+            consumer.accept(new PurchaseRow(1L, loaded.getDate(), 10L, "name", 1L, "product", 2, 100));
+            return null;
+        }).when(mockPurchaseDao).scroll(any(), eq(100), any());
+
+        analytics.load();
+        analytics.append(Collections.singletonList(next));
+
+        AnalyticsDto result = analytics.getTopProducts("token", 10, null, null);
+
+        assertEquals(2, result.getGroups().size());
+        assertEquals(2L, (long) result.getGroups().get(0).getId());
+        assertEquals(550L, (long) result.getGroups().get(0).getAmount());
+        assertEquals(1L, (long) result.getGroups().get(1).getId());
+        assertEquals(200L, (long) result.getGroups().get(1).getAmount());
+
+        result = analytics.getTopClients("token", 1, "2019-07-01", "2019-07-02");
+
+        assertEquals(1, result.getGroups().size());
+        assertEquals(11L, (long) result.getGroups().get(0).getId());
+    }
+
+    /**
+     * Событие о покупке может прийти уже после того, как загрузка прочитала эту покупку.
+     * Такая покупка не учитывается дважды.
+     */
+    @Test
+    public void testLoadEventAfterScroll() throws Exception {
+        setAdmin();
+
+        Purchase loaded = createPurchase(1L, 1L, 10L, 2, 100);
+        Purchase missed = createPurchase(2L, 1L, 10L, 1, 100);
+
+        doAnswer(invocation -> {
+            Consumer<PurchaseRow> consumer = invocation.getArgument(2);
+            consumer.accept(new PurchaseRow(1L, loaded.getDate(), 10L, "name", 1L, "product", 2, 100));
+
+            // События приходят с задержкой, когда строка уже прочитана
+            analytics.append(Arrays.asList(loaded, missed));
+            return null;
+        }).when(mockPurchaseDao).scroll(any(), eq(100), any());
+
+        analytics.load();
+
+        AnalyticsDto result = analytics.getTopProducts("token", 10, null, null);
+
+        assertEquals(1, result.getGroups().size());
+        assertEquals(1L, (long) result.getGroups().get(0).getId());
+        assertEquals(300L, (long) result.getGroups().get(0).getAmount());
+    }
+
+    @Test
+    public void testCategoriesByWeek() throws Exception {
+        setAdmin();
+        analytics.load();
+
+        Product product = new Product("iphone", 100, 10);
+        product.setId(1L);
+        Category category = new Category("phones");
+        category.setId(5L);
+        when(mockProductDao.getAllWithCategory())
+                .thenReturn(Collections.singletonList(new ProductCategory(product, category)));
+
+        analytics.append(Arrays.asList(
+                createPurchase(1L, 1L, 10L, 2, 100),
+                createPurchase(2L, 2L, 10L, 1, 50)
+        ));
+
+        AnalyticsDto result = analytics.getCategoriesByWeek("token", null, null);
+
+        assertEquals(1, result.getGroups().size());
+        assertEquals(5L, (long) result.getGroups().get(0).getId());
+        assertEquals("2019-07-01", result.getGroups().get(0).getWeek());
+        assertEquals(200L, (long) result.getGroups().get(0).getAmount());
+    }
+
+    @Test
+    public void testNotLoaded() {
+        setAdmin();
+
+        try {
+            analytics.getTopProducts("token", 10, null, null);
+            fail();
+        } catch (ServiceException e) {
+            assertEquals(ServiceException.ErrorCode.ANALYTICS_UNAVAILABLE, e.getErrorCode());
+        }
+    }
+
+    @Test
+    public void testWrongParameters() {
+        setAdmin();
+        analytics.load();
+
+        for (String[] parameters : Arrays.asList(
+                new String[]{"0", null, null, "limit"},
+                new String[]{"10", "01.07.2019", null, "from"},
+                new String[]{"10", "2019-07-02", "2019-07-01", "to"})) {
+            try {
+                analytics.getTopClients("token", Integer.parseInt(parameters[0]), parameters[1], parameters[2]);
+                fail();
+            } catch (ServiceException e) {
+                assertEquals(ServiceException.ErrorCode.WRONG_REPORT_PARAMETER, e.getErrorCode());
+                assertEquals(parameters[3], e.getField());
+            }
+        }
+    }
+
+    @Test(expected = ServiceException.class)
+    public void testNotAdmin() throws ServiceException {
+        when(mockSessionDao.get("token")).thenReturn(new Session("token", AccountFactory.createClient(
+                "wer", "wr", "er", "wer", "ser", "ser", "re"
+        )));
+
+        analytics.getTopProducts("token", 10, null, null);
+    }
+
+    private Purchase createPurchase(long id, long productId, long clientId, int count, int price) throws Exception {
+        Product product = new Product("product", price, 10);
+        product.setId(productId);
+        Account client = new Account();
+        client.setId(clientId);
+
+        // Понедельник
+        Date date = format.parse("2019-07-01 12:00:00");
+
+        Purchase purchase = new Purchase(product, client, date, count, price);
+        purchase.setId(id);
+        return purchase;
+    }
+
+    private void setAdmin() {
+        Account admin = AccountFactory.createAdmin(
+                "vadim", "gush", "vadimovich", "coder", "vadim", "Iddqd225"
+        );
+        when(mockSessionDao.get("token")).thenReturn(new Session("token", admin));
+    }
+}
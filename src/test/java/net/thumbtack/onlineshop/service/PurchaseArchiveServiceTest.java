@@ -0,0 +1,67 @@
+package net.thumbtack.onlineshop.service;
+
+import net.thumbtack.onlineshop.domain.dao.PurchaseDao;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+import static junit.framework.TestCase.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.*;
+
+public class PurchaseArchiveServiceTest {
+
+    @Mock
+    private PurchaseDao mockPurchaseDao;
+
+    private PurchaseArchiveService service;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+
+        service = new PurchaseArchiveService(mockPurchaseDao);
+        ReflectionTestUtils.setField(service, "months", 3);
+        ReflectionTestUtils.setField(service, "chunkSize", 100);
+        ReflectionTestUtils.setField(service, "pauseMs", 0);
+    }
+
+    /**
+     * Записи переносятся частями, пока часть заполнена полностью
+     */
+    @Test
+    public void testArchive() {
+        when(mockPurchaseDao.archive(any(Date.class), eq(100))).thenReturn(100, 100, 30);
+
+        service.archive();
+
+        verify(mockPurchaseDao, times(3)).archive(service.getCutoff(new Date()), 100);
+        assertEquals(230L, service.getMetrics().get("archived_rows"));
+    }
+
+    @Test
+    public void testArchiveDisabled() {
+        ReflectionTestUtils.setField(service, "months", 0);
+
+        service.archive();
+
+        verify(mockPurchaseDao, never()).archive(any(), anyInt());
+    }
+
+    /**
+     * В оперативной таблице остаются текущий месяц и 3 полных месяца до него
+     */
+    @Test
+    public void testGetCutoff() throws Exception {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+
+        assertEquals(format.parse("2019-04-01 00:00:00"), service.getCutoff(format.parse("2019-07-15 13:45:10")));
+        assertEquals(format.parse("2018-10-01 00:00:00"), service.getCutoff(format.parse("2019-01-01 00:00:00")));
+    }
+}
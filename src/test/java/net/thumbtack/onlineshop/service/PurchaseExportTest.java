@@ -0,0 +1,87 @@
+package net.thumbtack.onlineshop.service;
+
+import net.thumbtack.onlineshop.domain.models.PurchaseRow;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.assertEquals;
+
+public class PurchaseExportTest {
+
+    @Test
+    public void testCsv() throws Exception {
+        PurchaseExport export = new PurchaseExport(PurchaseExport.Format.CSV, rows());
+
+        assertEquals(
+                "id,date,clientId,clientFullName,productId,productName,count,price,amount\n" +
+                        "1,2019-07-01 10:15:00,3,Иванов Иван,2,\"iphone, 64 \"\"gb\"\"\",2,10,20\n" +
+                        "5,2019-07-01 10:15:00,,,2,\"iphone, 64 \"\"gb\"\"\",1,10,10\n",
+                write(export));
+    }
+
+    @Test
+    public void testNdjson() throws Exception {
+        PurchaseExport export = new PurchaseExport(PurchaseExport.Format.NDJSON, rows());
+
+        assertEquals(
+                "{\"id\":1,\"date\":\"2019-07-01 10:15:00\",\"clientId\":3,\"clientFullName\":\"Иванов Иван\"," +
+                        "\"productId\":2,\"productName\":\"iphone, 64 \\\"gb\\\"\",\"count\":2,\"price\":10,\"amount\":20}\n" +
+                        "{\"id\":5,\"date\":\"2019-07-01 10:15:00\"," +
+                        "\"productId\":2,\"productName\":\"iphone, 64 \\\"gb\\\"\",\"count\":1,\"price\":10,\"amount\":10}\n",
+                write(export));
+    }
+
+    /**
+     * Если клиент закрыл соединение, то чтение выборки прекращается
+     */
+    @Test(expected = IOException.class)
+    public void testWriteError() throws Exception {
+        PurchaseExport export = new PurchaseExport(PurchaseExport.Format.CSV, consumer -> {
+            PurchaseRow row = new PurchaseRow(1, new Date(), 1L, "a", 1L, "b", 1, 1);
+            while (true) {
+                consumer.accept(row);
+            }
+        });
+
+        export.writeTo(new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException();
+            }
+        });
+    }
+
+    @Test
+    public void testCsvValue() {
+        assertEquals("", PurchaseExport.csv(null));
+        assertEquals("10", PurchaseExport.csv(10L));
+        assertEquals("\"a\nb\"", PurchaseExport.csv("a\nb"));
+    }
+
+    private static String write(PurchaseExport export) throws IOException {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        export.writeTo(stream);
+        return new String(stream.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static Consumer<Consumer<PurchaseRow>> rows() throws Exception {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+
+        List<PurchaseRow> rows = Arrays.asList(
+                new PurchaseRow(1, format.parse("2019-07-01 10:15:00"), 3L, "Иванов Иван", 2L, "iphone, 64 \"gb\"", 2, 10),
+                // Клиент удалён
+                new PurchaseRow(5, format.parse("2019-07-01 10:15:00"), null, null, 2L, "iphone, 64 \"gb\"", 1, 10)
+        );
+
+        return rows::forEach;
+    }
+}
@@ -0,0 +1,335 @@
+package net.thumbtack.onlineshop.service;
+
+import net.thumbtack.onlineshop.domain.dao.AccountDao;
+import net.thumbtack.onlineshop.domain.dao.ProductDao;
+import net.thumbtack.onlineshop.domain.dao.PurchaseDao;
+import net.thumbtack.onlineshop.domain.dao.SessionDao;
+import net.thumbtack.onlineshop.domain.models.*;
+import net.thumbtack.onlineshop.dto.AnalyticsDto;
+import net.thumbtack.onlineshop.dto.PurchasesDto;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+public class PurchaseHistoryTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Mock
+    private SessionDao mockSessionDao;
+
+    @Mock
+    private PurchaseDao mockPurchaseDao;
+
+    @Mock
+    private ProductDao mockProductDao;
+
+    @Mock
+    private AccountDao mockAccountDao;
+
+    private PurchaseHistory history;
+
+    // Два закрытых месяца до текущего
+    private Date first;
+    private Date second;
+    private Date current;
+
+    @Before
+    public void setUpClass() {
+        MockitoAnnotations.initMocks(this);
+
+        history = createHistory();
+
+        current = PurchaseHistory.getMonth(new Date());
+        first = addMonths(current, -2);
+        second = addMonths(current, -1);
+    }
+
+    /**
+     * Выгружаются все закрытые месяцы с первой покупки, текущий месяц остаётся в БД
+     */
+    @Test
+    public void testExport() throws Exception {
+        export();
+
+        assertTrue(Files.exists(folder.getRoot().toPath().resolve(PurchaseHistory.getFileName(first))));
+        assertTrue(Files.exists(folder.getRoot().toPath().resolve(PurchaseHistory.getFileName(second))));
+        assertFalse(Files.exists(folder.getRoot().toPath().resolve(PurchaseHistory.getFileName(current))));
+
+        Map<String, Number> metrics = history.getMetrics();
+        assertEquals(2, metrics.get("files"));
+        assertEquals(3L, metrics.get("file_rows"));
+        assertEquals(3L, metrics.get("exported_rows"));
+
+        verify(mockPurchaseDao, never()).deleteBefore(any(), anyInt());
+
+        // Следующая выгрузка продолжает с текущего месяца
+        history.export();
+        verify(mockPurchaseDao, times(1)).getFirstDate();
+        verify(mockPurchaseDao, times(2)).scroll(any(), anyInt(), any());
+    }
+
+    @Test
+    public void testExportAndDelete() throws Exception {
+        ReflectionTestUtils.setField(history, "delete", true);
+        when(mockPurchaseDao.deleteBefore(current, 100)).thenReturn(100, 20);
+
+        export();
+
+        verify(mockPurchaseDao, times(2)).deleteBefore(current, 100);
+        assertEquals(120L, history.getMetrics().get("deleted_rows"));
+    }
+
+    @Test
+    public void testExportDisabled() throws Exception {
+        ReflectionTestUtils.setField(history, "directory", "");
+
+        history.export();
+
+        verifyZeroInteractions(mockPurchaseDao);
+    }
+
+    /**
+     * Файлы отображаются при запуске сервера
+     */
+    @Test
+    public void testStart() throws Exception {
+        export();
+
+        PurchaseHistory restarted = createHistory();
+        restarted.start();
+
+        assertEquals(2, restarted.getMetrics().get("files"));
+        assertEquals(3L, restarted.getMetrics().get("file_rows"));
+    }
+
+    /**
+     * Месяцы файлов читаются из файлов, а остальное время - из БД
+     */
+    @Test
+    public void testGetTotals() throws Exception {
+        setAdmin();
+        export();
+
+        when(mockPurchaseDao.getTotals(any(PurchaseFilter.class))).thenAnswer(invocation -> {
+            PurchaseFilter filter = invocation.getArgument(0);
+            return current.equals(filter.getSince()) ? new PurchaseTotals(1L, 1000L) : PurchaseTotals.EMPTY;
+        });
+
+        PurchasesDto result = history.getTotals("token", null, null);
+
+        assertEquals(7L, (long) result.getTotalCount());
+        assertEquals(1000L + 2 * 100 + 500 + 3 * 70, (long) result.getTotalAmount());
+
+        verify(mockPurchaseDao).getTotals(argThat(filter ->
+                filter.getSince() == null && first.equals(filter.getUntil())));
+        verify(mockPurchaseDao).getTotals(argThat(filter ->
+                current.equals(filter.getSince()) && filter.getUntil() == null));
+    }
+
+    /**
+     * Промежуток внутри файлов не читает БД
+     */
+    @Test
+    public void testGetTotalsOnlyFiles() throws Exception {
+        setAdmin();
+        export();
+
+        reset(mockPurchaseDao);
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd");
+
+        PurchasesDto result = history.getTotals("token", format.format(first), format.format(current));
+
+        assertEquals(6L, (long) result.getTotalCount());
+        assertEquals(2 * 100 + 500 + 3 * 70, (long) result.getTotalAmount());
+        verifyZeroInteractions(mockPurchaseDao);
+    }
+
+    @Test
+    public void testGetTopProducts() throws Exception {
+        setAdmin();
+        export();
+
+        Map<Long, Long> amounts = new HashMap<>();
+        amounts.put(2L, 150L);
+        amounts.put(5L, 1000L);
+        when(mockPurchaseDao.getProductsAmounts(any())).thenReturn(Collections.emptyMap());
+        when(mockPurchaseDao.getProductsAmounts(argThat(filter -> current.equals(filter.getSince()))))
+                .thenReturn(amounts);
+
+        AnalyticsDto result = history.getTopProducts("token", 2, null, null);
+
+        assertEquals(2, result.getGroups().size());
+        assertEquals(5L, (long) result.getGroups().get(0).getId());
+        assertEquals(1000L, (long) result.getGroups().get(0).getAmount());
+        assertEquals(1L, (long) result.getGroups().get(1).getId());
+        assertEquals(500L, (long) result.getGroups().get(1).getAmount());
+    }
+
+    @Test
+    public void testGetTopClients() throws Exception {
+        setAdmin();
+        export();
+
+        when(mockPurchaseDao.getClientsAmounts(any())).thenReturn(Collections.emptyMap());
+
+        AnalyticsDto result = history.getTopClients("token", 10, null, null);
+
+        // Покупка удалённого клиента не учитывается
+        assertEquals(2, result.getGroups().size());
+        assertEquals(4L, (long) result.getGroups().get(0).getId());
+        assertEquals(3L, (long) result.getGroups().get(1).getId());
+    }
+
+    /**
+     * Покупки клиента идут по порядку: сначала из файлов, затем из БД
+     */
+    @Test
+    public void testGetClientPurchases() throws Exception {
+        setAdmin();
+        export();
+
+        Account client = AccountFactory.createClient(
+                "Иван", "Иванов", "ivan@mail.ru", "Omsk", "+79001234567", "ivan", "Iddqd225");
+        client.setId(3L);
+        when(mockAccountDao.get(3L)).thenReturn(client);
+
+        Product product = new Product("iphone", 1, 100);
+        product.setId(2L);
+        when(mockProductDao.get(any(Collection.class))).thenReturn(Collections.singletonList(product));
+
+        PurchaseRow row = new PurchaseRow(20L, new Date(), 3L, "Иванов Иван", 7L, "ipad", 1, 300);
+        when(mockPurchaseDao.getPurchases(any(PurchaseQuery.class)))
+                .thenReturn(Collections.emptyList());
+        when(mockPurchaseDao.getPurchases(argThat(query -> query != null
+                && query.getSort() == PurchaseQuery.Sort.CLIENT && current.equals(query.getFilter().getSince()))))
+                .thenReturn(Collections.singletonList(row));
+
+        PurchasesDto result = history.getClientPurchases("token", 3L, 10, null, null);
+
+        assertEquals(2, result.getPurchases().size());
+        assertEquals("iphone", result.getPurchases().get(0).getProductName());
+        assertEquals("Иванов Иван", result.getPurchases().get(0).getClientFullName());
+        assertEquals(200, (int) result.getPurchases().get(0).getAmount());
+        assertEquals("ipad", result.getPurchases().get(1).getProductName());
+        assertEquals(3L, (long) result.getTotalCount());
+        assertEquals(500L, (long) result.getTotalAmount());
+
+        // Первая покупка уже из файла, БД после файлов не читается
+        result = history.getClientPurchases("token", 3L, 1, null, null);
+
+        assertEquals(1, result.getPurchases().size());
+        verify(mockPurchaseDao, times(1)).getPurchases(
+                argThat(query -> query != null && current.equals(query.getFilter().getSince())));
+    }
+
+    @Test
+    public void testGetClientPurchasesNotFound() throws Exception {
+        setAdmin();
+
+        try {
+            history.getClientPurchases("token", 3L, 10, null, null);
+            fail();
+        } catch (ServiceException e) {
+            assertEquals(ServiceException.ErrorCode.USER_NOT_FOUND, e.getErrorCode());
+        }
+    }
+
+    @Test
+    public void testGetTopWrongLimit() throws Exception {
+        setAdmin();
+
+        try {
+            history.getTopProducts("token", 0, null, null);
+            fail();
+        } catch (ServiceException e) {
+            assertEquals(ServiceException.ErrorCode.WRONG_REPORT_PARAMETER, e.getErrorCode());
+        }
+    }
+
+    /**
+     * Без файлов отчёт целиком читается из БД
+     */
+    @Test
+    public void testGetTotalsWithoutFiles() throws Exception {
+        setAdmin();
+        when(mockPurchaseDao.getTotals(any(PurchaseFilter.class))).thenReturn(new PurchaseTotals(2L, 200L));
+
+        PurchasesDto result = history.getTotals("token", null, null);
+
+        assertEquals(2L, (long) result.getTotalCount());
+        verify(mockPurchaseDao).getTotals(argThat(filter ->
+                filter.getSince() == null && filter.getUntil() == null));
+    }
+
+    @Test
+    public void testClear() throws Exception {
+        export();
+
+        history.clear();
+
+        assertEquals(0, history.getMetrics().get("files"));
+        assertEquals(0, folder.getRoot().list().length);
+    }
+
+    /**
+     * Выгружает два месяца: три покупки в первом и ни одной во втором
+     */
+    @SuppressWarnings("unchecked")
+    private void export() throws Exception {
+        when(mockPurchaseDao.getFirstDate()).thenReturn(new Date(first.getTime() + 5000));
+
+        doAnswer(invocation -> {
+            PurchaseFilter filter = invocation.getArgument(0);
+            Consumer<PurchaseRow> consumer = invocation.getArgument(2);
+
+            if (first.equals(filter.getSince())) {
+                Date date = new Date(first.getTime() + 60000);
+                consumer.accept(new PurchaseRow(1L, date, 3L, "Иванов Иван", 2L, "iphone", 2, 100));
+                consumer.accept(new PurchaseRow(2L, date, 4L, "Петров Пётр", 1L, "ipad", 1, 500));
+                consumer.accept(new PurchaseRow(3L, date, null, null, null, null, 3, 70));
+            }
+            return null;
+        }).when(mockPurchaseDao).scroll(any(PurchaseFilter.class), eq(100), any(Consumer.class));
+
+        history.export();
+    }
+
+    private PurchaseHistory createHistory() {
+        PurchaseHistory result = new PurchaseHistory(mockSessionDao, mockPurchaseDao, mockProductDao, mockAccountDao);
+        ReflectionTestUtils.setField(result, "directory", folder.getRoot().getPath());
+        ReflectionTestUtils.setField(result, "chunkSize", 100);
+        ReflectionTestUtils.setField(result, "fetchSize", 100);
+        return result;
+    }
+
+    private static Date addMonths(Date month, int months) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTime(month);
+        calendar.add(Calendar.MONTH, months);
+        return calendar.getTime();
+    }
+
+    private void setAdmin() {
+        Account admin = AccountFactory.createAdmin(
+                "vadim", "gush", "vadimovich", "coder", "vadim", "Iddqd225"
+        );
+        when(mockSessionDao.get("token")).thenReturn(new Session("token", admin));
+    }
+}
@@ -0,0 +1,181 @@
+package net.thumbtack.onlineshop.service;
+
+import net.thumbtack.onlineshop.domain.dao.OutboxDao;
+import net.thumbtack.onlineshop.domain.dao.PurchaseDao;
+import net.thumbtack.onlineshop.domain.models.*;
+import net.thumbtack.onlineshop.service.events.BasketPurchaseEvent;
+import net.thumbtack.onlineshop.service.events.OutboxEvent;
+import net.thumbtack.onlineshop.service.events.ProductPurchaseEvent;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.context.ApplicationEvent;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+public class PurchaseOutboxTest {
+
+    @Mock
+    private OutboxDao mockOutboxDao;
+
+    @Mock
+    private PurchaseDao mockPurchaseDao;
+
+    @Mock
+    private ApplicationEventPublisher mockEventPublisher;
+
+    @Mock
+    private PlatformTransactionManager mockTransactionManager;
+
+    private PurchaseOutbox outbox;
+
+    private Account client;
+
+    @Before
+    public void setUpClass() {
+        MockitoAnnotations.initMocks(this);
+
+        outbox = new PurchaseOutbox(mockOutboxDao, mockPurchaseDao, mockEventPublisher, mockTransactionManager);
+        ReflectionTestUtils.setField(outbox, "batchSize", 10);
+        ReflectionTestUtils.setField(outbox, "leaseMs", 60000);
+
+        client = AccountFactory.createClient(
+                "Иван", "Иванов", "ivan@mail.ru", "Omsk", "+79001234567", "ivan", "Iddqd225");
+        client.setId(1L);
+    }
+
+    /**
+     * Запись о событии сохраняется вместе с id покупок
+     */
+    @Test
+    public void testAdd() {
+        outbox.add(client, Arrays.asList(purchase(2L), purchase(3L)));
+
+        ArgumentCaptor<OutboxEntry> captor = ArgumentCaptor.forClass(OutboxEntry.class);
+        verify(mockOutboxDao).insert(captor.capture());
+        verify(mockEventPublisher).publishEvent(any(OutboxEvent.class));
+
+        assertEquals(OutboxEntry.Type.BASKET, captor.getValue().getType());
+        assertEquals(1L, (long) captor.getValue().getAccountId());
+        assertEquals(Arrays.asList(2L, 3L), captor.getValue().getPurchaseIds());
+    }
+
+    @Test
+    public void testDispatch() {
+        OutboxEntry product = entry(10L, OutboxEntry.Type.PRODUCT, 2L);
+        OutboxEntry basket = entry(11L, OutboxEntry.Type.BASKET, 3L, 4L);
+
+        when(mockOutboxDao.claim(anyString(), any(), any(), eq(10))).thenReturn(Arrays.asList(product, basket));
+        when(mockPurchaseDao.get(new HashSet<>(Arrays.asList(2L, 3L, 4L))))
+                .thenReturn(Arrays.asList(purchase(2L), purchase(3L), purchase(4L)));
+
+        assertEquals(2, outbox.dispatch());
+
+        ArgumentCaptor<ApplicationEvent> captor = ArgumentCaptor.forClass(ApplicationEvent.class);
+        verify(mockEventPublisher, times(2)).publishEvent(captor.capture());
+
+        ProductPurchaseEvent productEvent = (ProductPurchaseEvent) captor.getAllValues().get(0);
+        assertEquals(2L, (long) productEvent.getPurchase().getId());
+
+        BasketPurchaseEvent basketEvent = (BasketPurchaseEvent) captor.getAllValues().get(1);
+        assertEquals(client, basketEvent.getClient());
+        assertEquals(2, basketEvent.getPurchases().size());
+
+        // Каждая запись удаляется в транзакции, в которой доставлено её событие
+        verify(mockOutboxDao).delete(Collections.singletonList(10L));
+        verify(mockOutboxDao).delete(Collections.singletonList(11L));
+        verify(mockTransactionManager, times(2)).commit(any());
+        assertEquals(2L, outbox.getMetrics().get("dispatched"));
+        assertEquals(1L, outbox.getMetrics().get("batches"));
+    }
+
+    /**
+     * Если покупок уже нет (товар удалён), то запись удаляется без события
+     */
+    @Test
+    public void testDispatchDeletedPurchases() {
+        when(mockOutboxDao.claim(anyString(), any(), any(), eq(10)))
+                .thenReturn(Collections.singletonList(entry(10L, OutboxEntry.Type.PRODUCT, 2L)));
+        when(mockPurchaseDao.get(any())).thenReturn(Collections.emptyList());
+
+        assertEquals(1, outbox.dispatch());
+
+        verifyZeroInteractions(mockEventPublisher);
+        verify(mockOutboxDao).delete(Collections.singletonList(10L));
+    }
+
+    /**
+     * Запись, которую не удалось доставить, не удаляется: транзакция её доставки откатывается
+     */
+    @Test
+    public void testDispatchFailure() {
+        OutboxEntry first = entry(10L, OutboxEntry.Type.PRODUCT, 2L);
+        OutboxEntry second = entry(11L, OutboxEntry.Type.PRODUCT, 3L);
+
+        when(mockOutboxDao.claim(anyString(), any(), any(), eq(10))).thenReturn(Arrays.asList(first, second));
+        when(mockPurchaseDao.get(any())).thenReturn(Arrays.asList(purchase(2L), purchase(3L)));
+        doThrow(new IllegalStateException()).doNothing().when(mockEventPublisher).publishEvent(any(ApplicationEvent.class));
+
+        assertEquals(2, outbox.dispatch());
+
+        verify(mockOutboxDao, never()).delete(Collections.singletonList(10L));
+        verify(mockOutboxDao).delete(Collections.singletonList(11L));
+        verify(mockTransactionManager).rollback(any());
+        verify(mockTransactionManager).commit(any());
+        assertEquals(1L, outbox.getMetrics().get("failed"));
+        assertEquals(1L, outbox.getMetrics().get("dispatched"));
+    }
+
+    @Test
+    public void testDispatchNothing() {
+        when(mockOutboxDao.claim(anyString(), any(), any(), eq(10))).thenReturn(Collections.emptyList());
+
+        assertEquals(0, outbox.dispatch());
+
+        verifyZeroInteractions(mockPurchaseDao, mockEventPublisher);
+        verify(mockOutboxDao, never()).delete(any());
+    }
+
+    /**
+     * Поток-обработчик доставляет записи после события записи в outbox
+     */
+    @Test
+    public void testWakeUp() throws Exception {
+        ReflectionTestUtils.setField(outbox, "pollIntervalMs", 60000);
+        when(mockOutboxDao.claim(anyString(), any(), any(), eq(10))).thenReturn(Collections.emptyList());
+
+        outbox.start();
+        try {
+            verify(mockOutboxDao, timeout(5000).times(1)).claim(anyString(), any(), any(), eq(10));
+
+            outbox.wakeUp(new OutboxEvent(this));
+
+            verify(mockOutboxDao, timeout(5000).times(2)).claim(anyString(), any(), any(), eq(10));
+        } finally {
+            outbox.stop();
+        }
+    }
+
+    private OutboxEntry entry(long id, OutboxEntry.Type type, Long... purchases) {
+        OutboxEntry entry = new OutboxEntry(type, client.getId(), Arrays.asList(purchases), new Date());
+        entry.setId(id);
+        return entry;
+    }
+
+    private Purchase purchase(long id) {
+        Purchase purchase = new Purchase(new Product("iphone", 1, 100), client, new Date(), 1, 100);
+        purchase.setId(id);
+        return purchase;
+    }
+}
@@ -0,0 +1,72 @@
+package net.thumbtack.onlineshop.service;
+
+import net.thumbtack.onlineshop.domain.models.PurchaseTotals;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class PurchaseTotalsCacheTest {
+
+    private PurchaseTotalsCache cache;
+
+    @Before
+    public void setUpClass() {
+        cache = new PurchaseTotalsCache();
+        ReflectionTestUtils.setField(cache, "cacheSize", 2);
+    }
+
+    /**
+     * Итоги считаются заново только после новых покупок
+     */
+    @Test
+    public void testReset() {
+        AtomicInteger loads = new AtomicInteger();
+        PurchaseTotals totals = new PurchaseTotals(1L, 10L);
+
+        assertSame(totals, cache.get("*", () -> { loads.incrementAndGet(); return totals; }));
+        assertSame(totals, cache.get("*", () -> { loads.incrementAndGet(); return totals; }));
+        assertEquals(1, loads.get());
+
+        cache.reset();
+        cache.get("*", () -> { loads.incrementAndGet(); return totals; });
+        assertEquals(2, loads.get());
+    }
+
+    /**
+     * Итоги, посчитанные одновременно с покупкой, не остаются в кэше
+     */
+    @Test
+    public void testResetDuringLoad() {
+        AtomicInteger loads = new AtomicInteger();
+
+        cache.get("*", () -> {
+            loads.incrementAndGet();
+            cache.reset();
+            return PurchaseTotals.EMPTY;
+        });
+        cache.get("*", () -> { loads.incrementAndGet(); return PurchaseTotals.EMPTY; });
+
+        assertEquals(2, loads.get());
+    }
+
+    /**
+     * Кэш ограничен по размеру
+     */
+    @Test
+    public void testEviction() {
+        AtomicInteger loads = new AtomicInteger();
+
+        cache.get("a", () -> { loads.incrementAndGet(); return PurchaseTotals.EMPTY; });
+        cache.get("b", () -> { loads.incrementAndGet(); return PurchaseTotals.EMPTY; });
+        cache.get("c", () -> { loads.incrementAndGet(); return PurchaseTotals.EMPTY; });
+        cache.get("a", () -> { loads.incrementAndGet(); return PurchaseTotals.EMPTY; });
+
+        assertEquals(4, loads.get());
+    }
+
+}
@@ -6,19 +6,26 @@ import net.thumbtack.onlineshop.domain.dao.PurchaseDao;
 import net.thumbtack.onlineshop.domain.dao.SessionDao;
 import net.thumbtack.onlineshop.domain.models.*;
 import net.thumbtack.onlineshop.dto.PurchasesDto;
-import net.thumbtack.onlineshop.service.events.BasketPurchaseEvent;
-import net.thumbtack.onlineshop.service.events.ProductPurchaseEvent;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
-import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.test.util.ReflectionTestUtils;
 
+import java.io.ByteArrayOutputStream;
+import java.text.SimpleDateFormat;
 import java.util.*;
 
-import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.*;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
 import static org.mockito.internal.verification.VerificationModeFactory.times;
 
@@ -27,7 +34,7 @@ public class PurchasesServiceTest {
     private PurchasesService service;
 
     @Mock
-    private ApplicationEventPublisher mockEventPublisher;
+    private PurchaseOutbox mockOutbox;
 
     @Mock
     private PurchaseDao mockPurchaseDao;
@@ -41,17 +48,25 @@ public class PurchasesServiceTest {
     @Mock
     private SessionDao mockSessionDao;
 
+    private PurchaseTotalsCache totalsCache;
+
     @Before
     public void setUpClass() {
         MockitoAnnotations.initMocks(this);
 
+        totalsCache = new PurchaseTotalsCache();
+        ReflectionTestUtils.setField(totalsCache, "cacheSize", 10);
+
         service = new PurchasesService(
                 mockSessionDao,
                 mockPurchaseDao,
                 mockAccountDao,
                 mockProductDao,
-                mockEventPublisher
+                totalsCache,
+                mockOutbox
         );
+
+        when(mockPurchaseDao.getTotals(any())).thenReturn(PurchaseTotals.EMPTY);
     }
 
     /**
@@ -66,7 +81,7 @@ public class PurchasesServiceTest {
 
         // Просто проверим, что данные методы были вызваны
         verify(mockPurchaseDao).insert(any());
-        verify(mockEventPublisher).publishEvent(any(ProductPurchaseEvent.class));
+        verify(mockOutbox).add(any(Purchase.class));
     }
 
     /**
@@ -89,7 +104,88 @@ public class PurchasesServiceTest {
 
         // Так же просто проверим вызовы
         verify(mockPurchaseDao, times(2)).insert(any());
-        verify(mockEventPublisher).publishEvent(any(BasketPurchaseEvent.class));
+        verify(mockOutbox).add(any(Account.class), anyList());
+    }
+
+    /**
+     * Страница после указанной записи и позиция следующей страницы
+     */
+    @Test
+    public void testGetPurchasesAfter() throws ServiceException {
+        setAdmin();
+
+        Product product = new Product("iphone", 100, 10);
+        product.setId(7L);
+        Account client = generateClient();
+
+        Purchase last = new Purchase(product, client, new Date(), 2, 10);
+        last.setId(42L);
+
+        List<PurchaseRow> purchases = rows(
+                new Purchase(product, client, new Date(), 10, 10),
+                last
+        );
+
+        when(mockPurchaseDao.getPurchases(after(PurchaseQuery.Sort.PRODUCT, 5L, 20L, 2))).thenReturn(purchases);
+
+        PurchasesDto result = service.getPurchases(
+                "token", PurchasesService.Target.PRODUCT, 100, 2, null, null, "5_20", null, null);
+
+        // Смещение не используется
+        verify(mockPurchaseDao).getPurchases(after(PurchaseQuery.Sort.PRODUCT, 5L, 20L, 2));
+        assertEquals(2, result.getPurchases().size());
+        assertEquals("7_42", result.getNext());
+
+        // Неполная страница - последняя
+        when(mockPurchaseDao.getPurchases(after(PurchaseQuery.Sort.PRODUCT, 7L, 42L, 3))).thenReturn(purchases);
+        result = service.getPurchases(
+                "token", PurchasesService.Target.PRODUCT, 0, 3, null, null, "7_42", null, null);
+        assertNull(result.getNext());
+    }
+
+    /**
+     * Если у последней записи страницы нет товара, то позиция следующей страницы задаётся только id записи
+     */
+    @Test
+    public void testGetPurchasesAfterWithoutKey() throws ServiceException {
+        setAdmin();
+
+        List<PurchaseRow> purchases = Arrays.asList(
+                new PurchaseRow(41L, new Date(), 3L, "Иванов Иван", null, null, 1, 10),
+                new PurchaseRow(42L, new Date(), 3L, "Иванов Иван", null, null, 2, 10));
+
+        when(mockPurchaseDao.getPurchases(page(PurchaseQuery.Sort.PRODUCT, 2, 0))).thenReturn(purchases);
+
+        PurchasesDto result = service.getPurchases(
+                "token", PurchasesService.Target.PRODUCT, 0, 2, null, null, null, null, null);
+        assertEquals("_42", result.getNext());
+
+        // Позицию можно передать обратно
+        when(mockPurchaseDao.getPurchases(after(PurchaseQuery.Sort.PRODUCT, null, 42L, 2)))
+                .thenReturn(Collections.emptyList());
+
+        result = service.getPurchases(
+                "token", PurchasesService.Target.PRODUCT, 0, 2, null, null, result.getNext(), null, null);
+
+        verify(mockPurchaseDao).getPurchases(after(PurchaseQuery.Sort.PRODUCT, null, 42L, 2));
+        assertNull(result.getNext());
+    }
+
+    @Test
+    public void testGetPurchasesWrongPosition() throws ServiceException {
+        setAdmin();
+
+        for (String after : Arrays.asList("1", "a_1", "1_2_3", "1_", "_")) {
+            try {
+                service.getPurchases("token", PurchasesService.Target.CLIENT, 0, 10, null, null, after, null, null);
+                fail();
+            } catch (ServiceException e) {
+                assertEquals(ServiceException.ErrorCode.WRONG_PAGE_POSITION, e.getErrorCode());
+                assertEquals("after", e.getField());
+            }
+        }
+
+        verifyZeroInteractions(mockPurchaseDao);
     }
 
     /**
@@ -105,20 +201,23 @@ public class PurchasesServiceTest {
         Account client = generateClient();
 
         // Создаём список, который якобы вернётся из БД
-        List<Purchase> purchases = Arrays.asList(
+        List<PurchaseRow> purchases = rows(
                 new Purchase(product, client, new Date(), 10, 10),
                 new Purchase(product, client, new Date(), 2, 10),
                 new Purchase(product, client, new Date(), 3, 10)
         );
-        when(mockPurchaseDao.getPurchasesSortedByClients(3, 5))
+        when(mockPurchaseDao.getPurchases(page(PurchaseQuery.Sort.CLIENT, 3, 5)))
                 .thenReturn(purchases);
 
+        // Итоги по всей выборке, а не только по странице
+        when(mockPurchaseDao.getTotals(all())).thenReturn(new PurchaseTotals(150L, 1500L));
+
         // Получаем результат
         PurchasesDto result = service.getPurchases(
-                "token", PurchasesService.Target.CLIENT, 5, 3, null, null);
+                "token", PurchasesService.Target.CLIENT, 5, 3, null, null, null, null, null);
 
-        assertEquals((int)result.getTotalCount(), 15);
-        assertEquals((int)result.getTotalAmount(), 150);
+        assertEquals(150L, (long)result.getTotalCount());
+        assertEquals(1500L, (long)result.getTotalAmount());
         assertEquals(3, result.getPurchases().size());
 
         assertEquals("iphone", result.getPurchases().get(0).getProductName());
@@ -150,22 +249,25 @@ public class PurchasesServiceTest {
         Account client = generateClient();
 
         // Создаём список, который якобы вернётся из БД
-        List<Purchase> purchases = Arrays.asList(
+        List<PurchaseRow> purchases = rows(
                 new Purchase(product, client, new Date(), 10, 10),
                 new Purchase(product, client, new Date(), 2, 10),
                 new Purchase(product, client, new Date(), 3, 10)
         );
-        when(mockPurchaseDao.getPurchasesSortedByProducts(3, 5))
+        when(mockPurchaseDao.getPurchases(page(PurchaseQuery.Sort.PRODUCT, 3, 5)))
                 .thenReturn(purchases);
 
+        // Итоги по всей выборке, а не только по странице
+        when(mockPurchaseDao.getTotals(all())).thenReturn(new PurchaseTotals(150L, 1500L));
+
         // Получаем результат
         // Так же проверяем, что если передавать пустой список категорий, то выборки по ним
         // всё равно происходить не будет
         PurchasesDto result = service.getPurchases(
-                "token", PurchasesService.Target.PRODUCT, 5, 3, null, Collections.emptyList());
+                "token", PurchasesService.Target.PRODUCT, 5, 3, null, Collections.emptyList(), null, null, null);
 
-        assertEquals((int)result.getTotalCount(), 15);
-        assertEquals((int)result.getTotalAmount(), 150);
+        assertEquals(150L, (long)result.getTotalCount());
+        assertEquals(1500L, (long)result.getTotalAmount());
         assertEquals(3, result.getPurchases().size());
 
         assertEquals("iphone", result.getPurchases().get(0).getProductName());
@@ -199,7 +301,7 @@ public class PurchasesServiceTest {
         Account client = generateClient();
 
         // Создаём список, который якобы вернётся из БД
-        List<Purchase> purchases = Arrays.asList(
+        List<PurchaseRow> purchases = rows(
                 new Purchase(product, client, new Date(), 10, 10),
                 new Purchase(product, client, new Date(), 2, 10),
                 new Purchase(product, client, new Date(), 3, 10)
@@ -208,49 +310,133 @@ public class PurchasesServiceTest {
         // Создаём какой-нибудь список категорий
         List<Long> categories = Arrays.asList(1L, 2L, 3L);
 
-        // Dao должно будет в ответ вернуть множество товаров
-        Set<Product> products = new HashSet<>();
-        Product temp = new Product();
-        temp.setId(1L);
-        products.add(temp);
+        // История покупок товаров из категорий выбирается одним запросом
+        when(mockPurchaseDao.getPurchases(page(PurchaseQuery.Sort.PRODUCT, 3, 5)))
+                .thenReturn(purchases);
+
+        // Итоги по всей выборке, а не только по странице
+        when(mockPurchaseDao.getTotals(any())).thenReturn(new PurchaseTotals(150L, 1500L));
+
+        // Получаем результат
+        PurchasesDto result = service.getPurchases(
+                "token", PurchasesService.Target.PRODUCT, 5, 3, null, categories, null, null, null);
+
+        // Таблица товаров и категорий в память не загружается
+        verify(mockProductDao, never()).getAllWithCategories(any());
+
+        ArgumentCaptor<PurchaseQuery> query = ArgumentCaptor.forClass(PurchaseQuery.class);
+        verify(mockPurchaseDao).getPurchases(query.capture());
+        assertEquals(categories, query.getValue().getFilter().getCategories());
+        assertNull(query.getValue().getFilter().getProducts());
+
+        // Состав категорий меняется без новых покупок, поэтому итоги не кэшируются
+        service.getPurchases("token", PurchasesService.Target.PRODUCT, 5, 3, null, categories, null, null, null);
+        verify(mockPurchaseDao, times(2)).getTotals(
+                argThat(filter -> filter != null && categories.equals(filter.getCategories())));
+
+        assertEquals(150L, (long)result.getTotalCount());
+        assertEquals(1500L, (long)result.getTotalAmount());
+        assertEquals(3, result.getPurchases().size());
+    }
 
-        temp = new Product();
-        temp.setId(2L);
-        products.add(temp);
+    /**
+     * История покупок товаров из категорий за промежуток времени
+     */
+    @Test
+    public void testGetPurchasesProductsInRange() throws Exception {
+        setAdmin();
 
-        temp = new Product();
-        temp.setId(3L);
-        products.add(temp);
-        when(mockProductDao.getAllWithCategories(categories))
-                .thenReturn(products);
+        List<Long> categories = Arrays.asList(1L, 2L);
+        List<PurchaseRow> purchases = rows(new Purchase(new Product("iphone", 100, 10), generateClient(), new Date(), 1, 10));
 
-        // Теперь можем вернуть историю покупок
-        when(mockPurchaseDao.getProductsPurchases(Arrays.asList(2L, 3L, 1L), 3, 5))
+        when(mockPurchaseDao.getPurchases(page(PurchaseQuery.Sort.PRODUCT, 3, 5)))
                 .thenReturn(purchases);
+        when(mockPurchaseDao.getTotals(any(PurchaseFilter.class)))
+                .thenReturn(new PurchaseTotals(1L, 10L));
 
-        // Получаем результат
         PurchasesDto result = service.getPurchases(
-                "token", PurchasesService.Target.PRODUCT, 5, 3, null, categories);
+                "token", PurchasesService.Target.PRODUCT, 5, 3, null, categories, null, "2019-07-01", "2019-07-02");
+
+        ArgumentCaptor<PurchaseFilter> filter = ArgumentCaptor.forClass(PurchaseFilter.class);
+        verify(mockPurchaseDao).getTotals(filter.capture());
+        verify(mockPurchaseDao).getPurchases(page(PurchaseQuery.Sort.PRODUCT, 3, 5));
+
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd");
+        assertNull(filter.getValue().getClients());
+        assertNull(filter.getValue().getProducts());
+        assertEquals(categories, filter.getValue().getCategories());
+        assertEquals(format.parse("2019-07-01"), filter.getValue().getSince());
+        assertEquals(format.parse("2019-07-02"), filter.getValue().getUntil());
+
+        // Итоги за промежуток не совпадают с итогами всей истории
+        verify(mockPurchaseDao, never()).getTotals(all());
+        assertEquals(1L, (long) result.getTotalCount());
+        assertEquals(1, result.getPurchases().size());
+    }
 
-        assertEquals(15, (int)result.getTotalCount());
-        assertEquals(150, (int)result.getTotalAmount());
-        assertEquals(3, result.getPurchases().size());
+    /**
+     * Страница истории покупок клиентов с начала промежутка времени после указанной записи
+     */
+    @Test
+    public void testGetPurchasesClientsInRangeAfter() throws Exception {
+        setAdmin();
 
-        assertEquals("iphone", result.getPurchases().get(0).getProductName());
-        assertEquals(10, (int)result.getPurchases().get(0).getCount());
-        assertEquals(10, (int)result.getPurchases().get(0).getPrice());
-        assertEquals(client.getFullName(), result.getPurchases().get(0).getClientFullName());
+        List<Long> ids = Arrays.asList(3L, 4L);
+        when(mockAccountDao.findMissing(ids)).thenReturn(Collections.emptySet());
+        when(mockPurchaseDao.getPurchases(any())).thenReturn(Collections.emptyList());
 
-        assertEquals("iphone", result.getPurchases().get(1).getProductName());
-        assertEquals(2, (int)result.getPurchases().get(1).getCount());
-        assertEquals(10, (int)result.getPurchases().get(1).getPrice());
-        assertEquals(client.getFullName(), result.getPurchases().get(1).getClientFullName());
+        service.getPurchases("token", PurchasesService.Target.CLIENT, 0, 10, ids, null, "3_20", "2019-07-01", null);
 
-        assertEquals("iphone", result.getPurchases().get(2).getProductName());
-        assertEquals(3, (int)result.getPurchases().get(2).getCount());
-        assertEquals(10, (int)result.getPurchases().get(2).getPrice());
-        assertEquals(client.getFullName(), result.getPurchases().get(2).getClientFullName());
+        ArgumentCaptor<PurchaseQuery> query = ArgumentCaptor.forClass(PurchaseQuery.class);
+        verify(mockPurchaseDao).getPurchases(query.capture());
 
+        assertEquals(PurchaseQuery.Sort.CLIENT, query.getValue().getSort());
+        assertEquals(3L, (long) query.getValue().getAfterKey());
+        assertEquals(20L, (long) query.getValue().getAfterId());
+        assertEquals(10, query.getValue().getLimit());
+
+        PurchaseFilter filter = query.getValue().getFilter();
+        assertEquals(ids, filter.getClients());
+        assertEquals(new SimpleDateFormat("yyyy-MM-dd").parse("2019-07-01"), filter.getSince());
+        assertNull(filter.getUntil());
+    }
+
+    /**
+     * Клиенты проверяются и при выборке за промежуток времени
+     */
+    @Test(expected = ServiceException.class)
+    public void testGetPurchasesInRangeClientNotFound() throws ServiceException {
+        setAdmin();
+
+        List<Long> ids = Arrays.asList(3L, 4L);
+        when(mockAccountDao.findMissing(ids)).thenReturn(Collections.singleton(4L));
+
+        try {
+            service.getPurchases("token", PurchasesService.Target.CLIENT, 0, 10, ids, null, null, "2019-07-01", null);
+        } catch (ServiceException e) {
+            assertEquals(ServiceException.ErrorCode.USER_NOT_FOUND, e.getErrorCode());
+            verify(mockPurchaseDao, never()).getTotals(any(PurchaseFilter.class));
+            throw e;
+        }
+    }
+
+    /**
+     * Конец промежутка времени раньше его начала
+     */
+    @Test
+    public void testGetPurchasesWrongRange() {
+        setAdmin();
+
+        for (String[] range : new String[][]{{"2019-07-02", "2019-07-01"}, {"2019-07-01", "2019-07-01"}, {"01.07.2019", null}}) {
+            try {
+                service.getPurchases("token", PurchasesService.Target.PRODUCT, 0, 10, null, null, null, range[0], range[1]);
+                fail();
+            } catch (ServiceException e) {
+                assertEquals(ServiceException.ErrorCode.WRONG_REPORT_PARAMETER, e.getErrorCode());
+            }
+        }
+
+        verifyZeroInteractions(mockPurchaseDao);
     }
 
     /**
@@ -266,43 +452,35 @@ public class PurchasesServiceTest {
         Account client = generateClient();
 
         // Создаём список, который якобы вернётся из БД
-        List<Purchase> purchases = Arrays.asList(
+        List<PurchaseRow> purchases = rows(
                 new Purchase(product, client, new Date(), 10, 10),
                 new Purchase(product, client, new Date(), 2, 10),
                 new Purchase(product, client, new Date(), 3, 10)
         );
 
-        // Клиент существует
-        when(mockAccountDao.exists(3L)).thenReturn(true);
-
         List<Long> ids = Collections.singletonList(3L);
 
+        // Клиент существует
+        when(mockAccountDao.findMissing(ids)).thenReturn(Collections.emptySet());
+
         // Возвращаем список его покупок
-        when(mockPurchaseDao.getClientsPurchases(ids, 3, 5))
+        when(mockPurchaseDao.getPurchases(page(PurchaseQuery.Sort.CLIENT, 3, 5)))
                 .thenReturn(purchases);
 
+        // Итоги по всей выборке, а не только по странице
+        when(mockPurchaseDao.getTotals(clients(ids))).thenReturn(new PurchaseTotals(150L, 1500L));
+
         // Получаем результат
         PurchasesDto result = service.getPurchases(
-                "token", PurchasesService.Target.CLIENT, 5, 3, ids, null);
+                "token", PurchasesService.Target.CLIENT, 5, 3, ids, null, null, null, null);
 
-        assertEquals((int)result.getTotalCount(), 15);
-        assertEquals((int)result.getTotalAmount(), 150);
-        assertEquals(3, result.getPurchases().size());
+        ArgumentCaptor<PurchaseQuery> query = ArgumentCaptor.forClass(PurchaseQuery.class);
+        verify(mockPurchaseDao).getPurchases(query.capture());
+        assertEquals(ids, query.getValue().getFilter().getClients());
 
-        assertEquals("iphone", result.getPurchases().get(0).getProductName());
-        assertEquals(10, (int)result.getPurchases().get(0).getCount());
-        assertEquals(10, (int)result.getPurchases().get(0).getPrice());
-        assertEquals(client.getFullName(), result.getPurchases().get(0).getClientFullName());
-
-        assertEquals("iphone", result.getPurchases().get(1).getProductName());
-        assertEquals(2, (int)result.getPurchases().get(1).getCount());
-        assertEquals(10, (int)result.getPurchases().get(1).getPrice());
-        assertEquals(client.getFullName(), result.getPurchases().get(1).getClientFullName());
-
-        assertEquals("iphone", result.getPurchases().get(2).getProductName());
-        assertEquals(3, (int)result.getPurchases().get(2).getCount());
-        assertEquals(10, (int)result.getPurchases().get(2).getPrice());
-        assertEquals(client.getFullName(), result.getPurchases().get(2).getClientFullName());
+        assertEquals(150L, (long)result.getTotalCount());
+        assertEquals(1500L, (long)result.getTotalAmount());
+        assertEquals(3, result.getPurchases().size());
     }
 
     /**
@@ -318,43 +496,131 @@ public class PurchasesServiceTest {
         Account client = generateClient();
 
         // Создаём список, который якобы вернётся из БД
-        List<Purchase> purchases = Arrays.asList(
+        List<PurchaseRow> purchases = rows(
                 new Purchase(product, client, new Date(), 10, 10),
                 new Purchase(product, client, new Date(), 2, 10),
                 new Purchase(product, client, new Date(), 3, 10)
         );
 
-        // Товар существует
-        when(mockProductDao.exists(3L)).thenReturn(true);
-
         List<Long> ids = Collections.singletonList(3L);
 
+        // Товар существует
+        when(mockProductDao.findMissing(ids)).thenReturn(Collections.emptySet());
+
         // Возвращаем список его покупок
-        when(mockPurchaseDao.getProductsPurchases(ids, 3, 5))
+        when(mockPurchaseDao.getPurchases(page(PurchaseQuery.Sort.PRODUCT, 3, 5)))
                 .thenReturn(purchases);
 
+        // Итоги по всей выборке, а не только по странице
+        when(mockPurchaseDao.getTotals(products(ids))).thenReturn(new PurchaseTotals(150L, 1500L));
+
         // Получаем результат
         PurchasesDto result = service.getPurchases(
-                "token", PurchasesService.Target.PRODUCT, 5, 3, ids, null);
+                "token", PurchasesService.Target.PRODUCT, 5, 3, ids, null, null, null, null);
+
+        ArgumentCaptor<PurchaseQuery> query = ArgumentCaptor.forClass(PurchaseQuery.class);
+        verify(mockPurchaseDao).getPurchases(query.capture());
+        assertEquals(ids, query.getValue().getFilter().getProducts());
 
-        assertEquals((int)result.getTotalCount(), 15);
-        assertEquals((int)result.getTotalAmount(), 150);
+        assertEquals(150L, (long)result.getTotalCount());
+        assertEquals(1500L, (long)result.getTotalAmount());
         assertEquals(3, result.getPurchases().size());
+    }
 
-        assertEquals("iphone", result.getPurchases().get(0).getProductName());
-        assertEquals(10, (int)result.getPurchases().get(0).getCount());
-        assertEquals(10, (int)result.getPurchases().get(0).getPrice());
-        assertEquals(client.getFullName(), result.getPurchases().get(0).getClientFullName());
+    /**
+     * Итоги считаются один раз для условия выборки, пока не появятся новые покупки
+     */
+    @Test
+    public void testGetPurchasesTotalsCached() throws ServiceException {
+        setAdmin();
 
-        assertEquals("iphone", result.getPurchases().get(1).getProductName());
-        assertEquals(2, (int)result.getPurchases().get(1).getCount());
-        assertEquals(10, (int)result.getPurchases().get(1).getPrice());
-        assertEquals(client.getFullName(), result.getPurchases().get(1).getClientFullName());
+        when(mockAccountDao.findMissing(any())).thenReturn(Collections.emptySet());
+        when(mockPurchaseDao.getTotals(clients(Arrays.asList(3L, 4L))))
+                .thenReturn(new PurchaseTotals(5L, 50L));
 
-        assertEquals("iphone", result.getPurchases().get(2).getProductName());
-        assertEquals(3, (int)result.getPurchases().get(2).getCount());
-        assertEquals(10, (int)result.getPurchases().get(2).getPrice());
-        assertEquals(client.getFullName(), result.getPurchases().get(2).getClientFullName());
+        // Страницы одной выборки и тот же список id в другом порядке
+        service.getPurchases("token", PurchasesService.Target.CLIENT, 0, 3, Arrays.asList(3L, 4L), null, null, null, null);
+        service.getPurchases("token", PurchasesService.Target.CLIENT, 3, 3, Arrays.asList(3L, 4L), null, null, null, null);
+        PurchasesDto result = service.getPurchases(
+                "token", PurchasesService.Target.CLIENT, 0, 3, Arrays.asList(4L, 3L), null, null, null, null);
+
+        verify(mockPurchaseDao).getTotals(clients(Arrays.asList(3L, 4L)));
+        assertEquals(5L, (long) result.getTotalCount());
+        assertEquals(50L, (long) result.getTotalAmount());
+
+        // Другая выборка
+        service.getPurchases("token", PurchasesService.Target.CLIENT, 0, 3, Collections.singletonList(3L), null, null, null, null);
+        verify(mockPurchaseDao).getTotals(clients(Collections.singletonList(3L)));
+
+        // Новая покупка
+        totalsCache.reset();
+        service.getPurchases("token", PurchasesService.Target.CLIENT, 0, 3, Arrays.asList(3L, 4L), null, null, null, null);
+        verify(mockPurchaseDao, times(2)).getTotals(clients(Arrays.asList(3L, 4L)));
+    }
+
+    /**
+     * Выгрузка читает выборку из БД только во время записи
+     */
+    @Test
+    public void testExport() throws Exception {
+        setAdmin();
+        ReflectionTestUtils.setField(service, "exportFetchSize", 500);
+
+        List<Long> clients = Collections.singletonList(3L);
+        PurchaseExport export = service.export(
+                "token", "ndjson", clients, null, null, "2019-07-01", null);
+
+        assertEquals(PurchaseExport.Format.NDJSON, export.getFormat());
+        verifyZeroInteractions(mockPurchaseDao);
+
+        export.writeTo(new ByteArrayOutputStream());
+
+        ArgumentCaptor<PurchaseFilter> filter = ArgumentCaptor.forClass(PurchaseFilter.class);
+        verify(mockPurchaseDao).scroll(filter.capture(), eq(500), any());
+        assertEquals(clients, filter.getValue().getClients());
+        assertNull(filter.getValue().getProducts());
+        assertEquals(new SimpleDateFormat("yyyy-MM-dd").parse("2019-07-01"), filter.getValue().getSince());
+        assertNull(filter.getValue().getUntil());
+    }
+
+    @Test
+    public void testExportWrongParameters() throws ServiceException {
+        setAdmin();
+
+        for (String[] parameters : Arrays.asList(
+                new String[]{"xml", null, null, "format"},
+                new String[]{"csv", "2019-07-32", null, "from"},
+                new String[]{"csv", "2019-07-02", "2019-07-01", "to"})) {
+            try {
+                service.export("token", parameters[0], null, null, null, parameters[1], parameters[2]);
+                fail();
+            } catch (ServiceException e) {
+                assertEquals(ServiceException.ErrorCode.WRONG_REPORT_PARAMETER, e.getErrorCode());
+                assertEquals(parameters[3], e.getField());
+            }
+        }
+    }
+
+    /**
+     * Существование списка товаров проверяется одним запросом, а не по одному товару
+     */
+    @Test
+    public void testGetPurchasesProductsCheckedAtOnce() throws ServiceException {
+        setAdmin();
+
+        List<Long> ids = Arrays.asList(1L, 2L, 3L, 4L, 5L);
+        when(mockProductDao.findMissing(ids)).thenReturn(Collections.singleton(4L));
+
+        try {
+            service.getPurchases("token", PurchasesService.Target.PRODUCT, 0, 3, ids, null, null, null, null);
+            fail();
+        } catch (ServiceException e) {
+            assertEquals(ServiceException.ErrorCode.PRODUCT_NOT_FOUND, e.getErrorCode());
+        }
+
+        verify(mockProductDao).findMissing(ids);
+        verify(mockProductDao, never()).exists(anyLong());
+        verifyZeroInteractions(mockPurchaseDao);
     }
 
     /**
@@ -365,10 +631,10 @@ public class PurchasesServiceTest {
         setAdmin();
 
         List<Long> ids = Collections.singletonList(3L);
-        when(mockProductDao.exists(3L)).thenReturn(false);
+        when(mockProductDao.findMissing(ids)).thenReturn(Collections.singleton(3L));
 
         try {
-            service.getPurchases("token", PurchasesService.Target.PRODUCT, 5, 3, ids, null);
+            service.getPurchases("token", PurchasesService.Target.PRODUCT, 5, 3, ids, null, null, null, null);
         } catch (ServiceException e) {
             assertEquals(ServiceException.ErrorCode.PRODUCT_NOT_FOUND, e.getErrorCode());
             throw e;
@@ -384,10 +650,10 @@ public class PurchasesServiceTest {
         setAdmin();
 
         List<Long> ids = Collections.singletonList(3L);
-        when(mockAccountDao.exists(3L)).thenReturn(false);
+        when(mockAccountDao.findMissing(ids)).thenReturn(Collections.singleton(3L));
 
         try {
-            service.getPurchases("token", PurchasesService.Target.CLIENT, 5, 3, ids, null);
+            service.getPurchases("token", PurchasesService.Target.CLIENT, 5, 3, ids, null, null, null, null);
         } catch (ServiceException e) {
             assertEquals(ServiceException.ErrorCode.USER_NOT_FOUND, e.getErrorCode());
             throw e;
@@ -402,7 +668,7 @@ public class PurchasesServiceTest {
     public void testGetPurchasesNotLogin() throws ServiceException {
 
         try {
-            service.getPurchases("erewr", PurchasesService.Target.CLIENT, 0, 0, null, null);
+            service.getPurchases("erewr", PurchasesService.Target.CLIENT, 0, 0, null, null, null, null, null);
         } catch (ServiceException e) {
             assertEquals(ServiceException.ErrorCode.NOT_LOGIN, e.getErrorCode());
             throw e;
@@ -417,7 +683,7 @@ public class PurchasesServiceTest {
     public void testGetPurchasesNotAdmin() throws ServiceException {
         setClient();
         try {
-            service.getPurchases("token", PurchasesService.Target.CLIENT, 0, 0, null, null);
+            service.getPurchases("token", PurchasesService.Target.CLIENT, 0, 0, null, null, null, null, null);
         } catch (ServiceException e) {
             assertEquals(ServiceException.ErrorCode.NOT_ADMIN, e.getErrorCode());
             throw e;
@@ -445,4 +711,62 @@ public class PurchasesServiceTest {
                 "vadim", "gush", "vadimovich", "coder", "vadim", "Iddqd225"
         );
     }
+
+    /**
+     * Строки истории покупок, которые вернёт запрос с проекцией
+     */
+    private static List<PurchaseRow> rows(Purchase... purchases) {
+        List<PurchaseRow> result = new ArrayList<>();
+
+        for (Purchase purchase : purchases) {
+            result.add(new PurchaseRow(
+                    purchase.getId() == null ? 0L : purchase.getId(),
+                    purchase.getDate(),
+                    purchase.getAccount().getId(),
+                    purchase.getAccount().getFullName(),
+                    purchase.getProduct().getId(),
+                    purchase.getProduct().getName(),
+                    purchase.getCount(),
+                    purchase.getPrice()));
+        }
+
+        return result;
+    }
+
+    /**
+     * Страница со смещением
+     */
+    private static PurchaseQuery page(PurchaseQuery.Sort sort, int limit, int offset) {
+        return argThat(query -> query != null && query.getSort() == sort && query.getAfterId() == null
+                && query.getLimit() == limit && query.getOffset() == offset);
+    }
+
+    /**
+     * Страница после указанной записи
+     */
+    private static PurchaseQuery after(PurchaseQuery.Sort sort, Long afterKey, long afterId, int limit) {
+        return argThat(query -> query != null && query.getSort() == sort
+                && Objects.equals(query.getAfterKey(), afterKey) && Objects.equals(query.getAfterId(), afterId)
+                && query.getLimit() == limit && query.getOffset() == 0);
+    }
+
+    /**
+     * Вся история покупок
+     */
+    private static PurchaseFilter all() {
+        return argThat(filter -> filter != null && isEmpty(filter.getClients()) && isEmpty(filter.getProducts())
+                && isEmpty(filter.getCategories()) && filter.getSince() == null && filter.getUntil() == null);
+    }
+
+    private static PurchaseFilter clients(List<Long> ids) {
+        return argThat(filter -> filter != null && ids.equals(filter.getClients()));
+    }
+
+    private static PurchaseFilter products(List<Long> ids) {
+        return argThat(filter -> filter != null && ids.equals(filter.getProducts()));
+    }
+
+    private static boolean isEmpty(List<Long> ids) {
+        return ids == null || ids.isEmpty();
+    }
 }
@@ -0,0 +1,191 @@
+package net.thumbtack.onlineshop.service;
+
+import net.thumbtack.onlineshop.domain.dao.ProductDao;
+import net.thumbtack.onlineshop.domain.dao.SalesRollupDao;
+import net.thumbtack.onlineshop.domain.dao.SessionDao;
+import net.thumbtack.onlineshop.domain.models.*;
+import net.thumbtack.onlineshop.domain.models.SalesRollup.Dimension;
+import net.thumbtack.onlineshop.domain.models.SalesRollup.Period;
+import net.thumbtack.onlineshop.dto.SalesDto;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+public class SalesRollupServiceTest {
+
+    private SalesRollupService service;
+
+    @Mock
+    private SessionDao mockSessionDao;
+
+    @Mock
+    private SalesRollupDao mockRollupDao;
+
+    @Mock
+    private ProductDao mockProductDao;
+
+    @Mock
+    private PlatformTransactionManager mockTransactionManager;
+
+    private SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+
+    @Before
+    public void setUpClass() {
+        MockitoAnnotations.initMocks(this);
+
+        service = new SalesRollupService(mockSessionDao, mockRollupDao, mockProductDao, mockTransactionManager);
+    }
+
+    /**
+     * Покупки складываются в сводки по товару, категориям и клиенту за час и за день
+     */
+    @Test
+    public void testRecord() throws Exception {
+        Product product = new Product("iphone", 100, 10);
+        product.setId(2L);
+        Account client = new Account();
+        client.setId(1L);
+
+        Category category = new Category("phones");
+        category.setId(5L);
+        when(mockProductDao.getCategories(2L))
+                .thenReturn(Collections.singletonList(new ProductCategory(product, category)));
+
+        List<Purchase> purchases = Arrays.asList(
+                new Purchase(product, client, format.parse("2019-07-01 10:15:00"), 2, 10),
+                new Purchase(product, client, format.parse("2019-07-01 10:45:00"), 3, 20),
+                new Purchase(product, client, format.parse("2019-07-01 11:05:00"), 1, 10)
+        );
+
+        service.record(purchases);
+
+        Date day = format.parse("2019-07-01 00:00:00");
+        Date hour10 = format.parse("2019-07-01 10:00:00");
+        Date hour11 = format.parse("2019-07-01 11:00:00");
+
+        // Категории товара получаем один раз
+        verify(mockProductDao).getCategories(2L);
+
+        InOrder order = inOrder(mockRollupDao);
+        order.verify(mockRollupDao).add(Dimension.PRODUCT, Period.HOUR, 2L, hour10, 5L, 80L);
+        order.verify(mockRollupDao).add(Dimension.PRODUCT, Period.HOUR, 2L, hour11, 1L, 10L);
+        order.verify(mockRollupDao).add(Dimension.PRODUCT, Period.DAY, 2L, day, 6L, 90L);
+        order.verify(mockRollupDao).add(Dimension.CATEGORY, Period.HOUR, 5L, hour10, 5L, 80L);
+        order.verify(mockRollupDao).add(Dimension.CATEGORY, Period.HOUR, 5L, hour11, 1L, 10L);
+        order.verify(mockRollupDao).add(Dimension.CATEGORY, Period.DAY, 5L, day, 6L, 90L);
+        order.verify(mockRollupDao).add(Dimension.CLIENT, Period.HOUR, 1L, hour10, 5L, 80L);
+        order.verify(mockRollupDao).add(Dimension.CLIENT, Period.HOUR, 1L, hour11, 1L, 10L);
+        order.verify(mockRollupDao).add(Dimension.CLIENT, Period.DAY, 1L, day, 6L, 90L);
+        verifyNoMoreInteractions(mockRollupDao);
+
+        // Одной транзакцией
+        verify(mockTransactionManager).commit(any());
+    }
+
+    /**
+     * Отчёт читает только сводки
+     */
+    @Test
+    public void testGetSales() throws Exception {
+        setAdmin();
+
+        Date day1 = format.parse("2019-07-01 00:00:00");
+        Date day2 = format.parse("2019-07-02 00:00:00");
+        List<Long> ids = Arrays.asList(1L, 2L);
+
+        when(mockRollupDao.get(Dimension.PRODUCT, Period.DAY, ids, day1, format.parse("2019-07-03 00:00:00")))
+                .thenReturn(Arrays.asList(
+                        new SalesRollup(Dimension.PRODUCT, Period.DAY, 1L, day1, 3L, 30L),
+                        new SalesRollup(Dimension.PRODUCT, Period.DAY, 2L, day2, 2L, 40L)
+                ));
+
+        SalesDto result = service.getSales("token", "product", "day", ids, "2019-07-01", "2019-07-03");
+
+        assertEquals(2, result.getSales().size());
+        assertEquals(1L, (long) result.getSales().get(0).getId());
+        assertEquals("2019-07-01 00:00", result.getSales().get(0).getDate());
+        assertEquals(3L, (long) result.getSales().get(0).getCount());
+        assertEquals(40L, (long) result.getSales().get(1).getAmount());
+        assertEquals(5L, (long) result.getTotalCount());
+        assertEquals(70L, (long) result.getTotalAmount());
+    }
+
+    @Test
+    public void testGetSalesWrongParameters() {
+        setAdmin();
+
+        assertWrongParameter("dimension", () -> service.getSales("token", "store", "day", null, "2019-07-01", "2019-07-02"));
+        assertWrongParameter("period", () -> service.getSales("token", "client", "week", null, "2019-07-01", "2019-07-02"));
+        assertWrongParameter("from", () -> service.getSales("token", "client", "day", null, "2019-13-01", "2019-07-02"));
+        assertWrongParameter("to", () -> service.getSales("token", "client", "day", null, "2019-07-01", "2019-07-01"));
+        assertWrongParameter("to", () -> service.rebuild("token", "2019-07-02", null));
+
+        verifyZeroInteractions(mockRollupDao);
+    }
+
+    @Test(expected = ServiceException.class)
+    public void testGetSalesNotAdmin() throws ServiceException {
+        when(mockSessionDao.get("token")).thenReturn(new Session("token", generateClient()));
+
+        service.getSales("token", "client", "day", null, "2019-07-01", "2019-07-02");
+    }
+
+    /**
+     * Пересчёт сводок за промежуток одной транзакцией
+     */
+    @Test
+    public void testRebuild() throws Exception {
+        setAdmin();
+
+        Date from = format.parse("2019-07-01 00:00:00");
+        Date to = format.parse("2019-08-01 00:00:00");
+        when(mockRollupDao.rebuild(from, to)).thenReturn(42);
+
+        assertEquals(42, service.rebuild("token", "2019-07-01", "2019-08-01"));
+
+        verify(mockRollupDao).rebuild(from, to);
+        verify(mockTransactionManager).commit(any());
+    }
+
+    @FunctionalInterface
+    private interface Action {
+        void run() throws ServiceException;
+    }
+
+    private static void assertWrongParameter(String field, Action action) {
+        try {
+            action.run();
+            fail();
+        } catch (ServiceException e) {
+            assertEquals(ServiceException.ErrorCode.WRONG_REPORT_PARAMETER, e.getErrorCode());
+            assertEquals(field, e.getField());
+        }
+    }
+
+    private void setAdmin() {
+        Account admin = AccountFactory.createAdmin(
+                "vadim", "gush", "vadimovich", "coder", "vadim", "Iddqd225"
+        );
+        when(mockSessionDao.get("token")).thenReturn(new Session("token", admin));
+    }
+
+    private Account generateClient() {
+        return AccountFactory.createClient(
+                "wer", "wr", "er", "wer", "ser", "ser", "re"
+        );
+    }
+}
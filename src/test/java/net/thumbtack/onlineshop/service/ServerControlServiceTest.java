@@ -7,6 +7,7 @@ import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
 import java.util.Arrays;
+import java.util.Collections;
 
 import static org.mockito.Mockito.verify;
 
@@ -18,16 +19,23 @@ public class ServerControlServiceTest {
     @Mock
     private ProductDao mockProductDao;
 
+    @Mock
+    private DepositService mockDepositService;
+
     @Test
     public void testClear() {
         ServerControlService service;
 
         MockitoAnnotations.initMocks(this);
-        service = new ServerControlService(Arrays.asList(mockAccountDao, mockProductDao));
+        service = new ServerControlService(
+                Arrays.asList(mockAccountDao, mockProductDao),
+                Collections.singletonList(mockDepositService)
+        );
 
         service.clear();
 
         verify(mockAccountDao).clear();
         verify(mockProductDao).clear();
+        verify(mockDepositService).clear();
     }
 }
@@ -0,0 +1,134 @@
+package net.thumbtack.onlineshop.service.analytics;
+
+import net.thumbtack.onlineshop.service.analytics.PurchaseColumns.Group;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class PurchaseColumnsTest {
+
+    private ForkJoinPool pool;
+    private PurchaseColumns columns;
+
+    private SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm");
+
+    @Before
+    public void setUpClass() {
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+        pool = new ForkJoinPool(4);
+        columns = new PurchaseColumns(pool);
+    }
+
+    @After
+    public void tearDown() {
+        pool.shutdownNow();
+    }
+
+    @Test
+    public void testTopProducts() throws Exception {
+        columns.append(1, 10, format.parse("2019-07-01 10:00"), 2, 100);
+        columns.append(2, 10, format.parse("2019-07-01 11:00"), 1, 500);
+        columns.append(3, 11, format.parse("2019-07-02 10:00"), 1, 150);
+        columns.append(1, 11, format.parse("2019-07-03 10:00"), 1, 100);
+
+        List<Group> top = columns.topProducts(2, null, null);
+
+        assertEquals(2, top.size());
+        assertEquals(2, top.get(0).getKey());
+        assertEquals(500, top.get(0).getAmount());
+        assertEquals(1, top.get(1).getKey());
+        assertEquals(300, top.get(1).getAmount());
+        assertNull(top.get(0).getWeek());
+
+        // Конец промежутка не включается
+        top = columns.topProducts(10, format.parse("2019-07-01 11:00"), format.parse("2019-07-03 10:00"));
+
+        assertEquals(2, top.size());
+        assertEquals(2, top.get(0).getKey());
+        assertEquals(3, top.get(1).getKey());
+    }
+
+    @Test
+    public void testTopClients() throws Exception {
+        columns.append(1, 10, format.parse("2019-07-01 10:00"), 2, 100);
+        columns.append(2, 11, format.parse("2019-07-01 11:00"), 1, 150);
+        columns.append(3, 12, format.parse("2019-07-02 10:00"), 1, 150);
+
+        List<Group> top = columns.topClients(3, null, null);
+
+        // При равных суммах первым идёт меньший id
+        assertEquals(Arrays.asList(10L, 11L, 12L), keys(top));
+        assertEquals(200, top.get(0).getAmount());
+    }
+
+    /**
+     * Недели начинаются в понедельник, товар учитывается в каждой своей категории
+     */
+    @Test
+    public void testCategoriesByWeek() throws Exception {
+        // 2019-07-01 - понедельник
+        columns.append(1, 10, format.parse("2019-07-01 00:00"), 1, 100);
+        columns.append(1, 10, format.parse("2019-07-07 23:59"), 1, 100);
+        columns.append(2, 10, format.parse("2019-07-08 00:00"), 1, 50);
+        // Товар без категорий
+        columns.append(3, 10, format.parse("2019-07-08 00:00"), 1, 70);
+
+        int[][] categories = {null, {5, 6}, {5}};
+        List<Group> groups = columns.categoriesByWeek(categories, null, null);
+
+        assertEquals(3, groups.size());
+        assertEquals(format.parse("2019-07-01 00:00"), groups.get(0).getWeek());
+        assertEquals(5, groups.get(0).getKey());
+        assertEquals(200, groups.get(0).getAmount());
+        assertEquals(format.parse("2019-07-01 00:00"), groups.get(1).getWeek());
+        assertEquals(6, groups.get(1).getKey());
+        assertEquals(format.parse("2019-07-08 00:00"), groups.get(2).getWeek());
+        assertEquals(5, groups.get(2).getKey());
+        assertEquals(50, groups.get(2).getAmount());
+    }
+
+    /**
+     * Параллельная группировка по нескольким блокам совпадает с последовательной
+     */
+    @Test
+    public void testManyChunks() {
+        Random random = new Random(42);
+        Map<Long, Long> expected = new HashMap<>();
+        long start = 1561939200000L;
+
+        for (int i = 0; i < PurchaseColumns.CHUNK_SIZE * 3 + 123; ++i) {
+            int product = random.nextInt(1000);
+            int count = 1 + random.nextInt(5);
+            int price = 1 + random.nextInt(1000);
+
+            columns.append(product, random.nextInt(100), new Date(start + i * 60_000L), count, price);
+            expected.merge((long) product, (long) count * price, Long::sum);
+        }
+
+        assertEquals(PurchaseColumns.CHUNK_SIZE * 3 + 123, columns.size());
+
+        List<Group> top = columns.topProducts(1000, null, null);
+        assertEquals(expected.size(), top.size());
+        for (Group group : top) {
+            assertEquals((long) expected.get(group.getKey()), group.getAmount());
+        }
+
+        columns.clear();
+        assertEquals(0, columns.size());
+        assertEquals(0, columns.topProducts(10, null, null).size());
+    }
+
+    private static List<Long> keys(List<Group> groups) {
+        List<Long> result = new ArrayList<>();
+        groups.forEach(group -> result.add(group.getKey()));
+        return result;
+    }
+}
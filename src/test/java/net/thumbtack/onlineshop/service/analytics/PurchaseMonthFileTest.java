@@ -0,0 +1,154 @@
+package net.thumbtack.onlineshop.service.analytics;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PurchaseMonthFileTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+
+    private Date month;
+    private Path path;
+
+    @Before
+    public void setUpClass() throws Exception {
+        month = format.parse("2019-07-01 00:00:00");
+        path = folder.getRoot().toPath().resolve("purchases-2019-07.pmf");
+    }
+
+    @Test
+    public void testWriteAndScan() throws Exception {
+        PurchaseMonthWriter writer = new PurchaseMonthWriter(month);
+        writer.append(10, format.parse("2019-07-01 10:00:00"), 2L, 3L, 2, 100);
+        // Id и время могут идти не по возрастанию
+        writer.append(8, format.parse("2019-07-01 09:00:00"), 1L, 4L, 1, 500);
+        // Товар и клиент удалены
+        writer.append(12, format.parse("2019-07-31 23:59:59"), null, null, 3, 70);
+        writer.write(path);
+
+        PurchaseMonthFile file = PurchaseMonthFile.open(path);
+
+        assertEquals(month, file.getMonth());
+        assertEquals(3, file.size());
+
+        List<long[]> rows = scan(file, null, null, null);
+
+        assertEquals(3, rows.size());
+        assertRow(rows.get(0), 10, "2019-07-01 10:00:00", 2, 3, 2, 100);
+        assertRow(rows.get(1), 8, "2019-07-01 09:00:00", 1, 4, 1, 500);
+        assertRow(rows.get(2), 12, "2019-07-31 23:59:59", PurchaseMonthFile.NONE, PurchaseMonthFile.NONE, 3, 70);
+    }
+
+    @Test
+    public void testScanRangeAndClient() throws Exception {
+        PurchaseMonthWriter writer = new PurchaseMonthWriter(month);
+        writer.append(1, format.parse("2019-07-01 10:00:00"), 1L, 3L, 1, 100);
+        writer.append(2, format.parse("2019-07-02 10:00:00"), 1L, 4L, 1, 100);
+        writer.append(3, format.parse("2019-07-03 10:00:00"), 2L, 3L, 1, 100);
+        writer.append(4, format.parse("2019-07-04 10:00:00"), 2L, 3L, 1, 100);
+        writer.write(path);
+
+        PurchaseMonthFile file = PurchaseMonthFile.open(path);
+
+        // Конец промежутка не включается
+        List<long[]> rows = scan(file, format.parse("2019-07-02 10:00:00"), format.parse("2019-07-04 10:00:00"), null);
+        assertEquals(2, rows.size());
+        assertEquals(2, rows.get(0)[0]);
+        assertEquals(3, rows.get(1)[0]);
+
+        rows = scan(file, null, null, 3L);
+        assertEquals(3, rows.size());
+        assertEquals(1, rows.get(0)[0]);
+        assertEquals(3, rows.get(1)[0]);
+        assertEquals(4, rows.get(2)[0]);
+
+        // Клиента нет в файле
+        assertTrue(scan(file, null, null, 5L).isEmpty());
+    }
+
+    /**
+     * Если товаров больше 256, то номер товара занимает 2 байта
+     */
+    @Test
+    public void testWideDictionary() throws Exception {
+        PurchaseMonthWriter writer = new PurchaseMonthWriter(month);
+        for (int i = 0; i < 3000; ++i) {
+            writer.append(i + 1, new Date(month.getTime() + i * 1000L), (long) i + 1, 1L, 1, i);
+        }
+        writer.write(path);
+
+        PurchaseMonthFile file = PurchaseMonthFile.open(path);
+        List<long[]> rows = scan(file, null, null, 1L);
+
+        assertEquals(3000, rows.size());
+        for (int i = 0; i < 3000; ++i) {
+            assertEquals(i + 1, rows.get(i)[0]);
+            assertEquals(i + 1, rows.get(i)[2]);
+            assertEquals(i, rows.get(i)[5]);
+        }
+    }
+
+    @Test
+    public void testEmpty() throws Exception {
+        new PurchaseMonthWriter(month).write(path);
+
+        PurchaseMonthFile file = PurchaseMonthFile.open(path);
+
+        assertEquals(0, file.size());
+        assertTrue(scan(file, null, null, null).isEmpty());
+    }
+
+    @Test(expected = IOException.class)
+    public void testDamaged() throws Exception {
+        PurchaseMonthWriter writer = new PurchaseMonthWriter(month);
+        writer.append(1, format.parse("2019-07-01 10:00:00"), 1L, 3L, 1, 100);
+        writer.write(path);
+
+        byte[] data = Files.readAllBytes(path);
+        Files.write(path, Arrays.copyOf(data, data.length - 1));
+
+        PurchaseMonthFile.open(path);
+    }
+
+    @Test(expected = IOException.class)
+    public void testNotArchive() throws Exception {
+        Files.write(path, new byte[64]);
+
+        PurchaseMonthFile.open(path);
+    }
+
+    private static List<long[]> scan(PurchaseMonthFile file, Date since, Date until, Long accountId) {
+        List<long[]> rows = new ArrayList<>();
+        file.scan(since, until, accountId, (id, date, productId, clientId, count, price) ->
+                rows.add(new long[]{id, date, productId, clientId, count, price})
+        );
+        return rows;
+    }
+
+    private void assertRow(long[] row, long id, String date, long productId, long accountId, int count, int price)
+            throws Exception {
+        assertEquals(id, row[0]);
+        assertEquals(format.parse(date).getTime(), row[1]);
+        assertEquals(productId, row[2]);
+        assertEquals(accountId, row[3]);
+        assertEquals(count, row[4]);
+        assertEquals(price, row[5]);
+    }
+}
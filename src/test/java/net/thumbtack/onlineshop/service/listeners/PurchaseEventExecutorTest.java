@@ -0,0 +1,115 @@
+package net.thumbtack.onlineshop.service.listeners;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PurchaseEventExecutorTest {
+
+    private PurchaseEventExecutor executor;
+
+    private CountDownLatch started = new CountDownLatch(1);
+    private CountDownLatch release = new CountDownLatch(1);
+
+    @Before
+    public void setUpClass() {
+        executor = new PurchaseEventExecutor();
+        ReflectionTestUtils.setField(executor, "threads", 1);
+        ReflectionTestUtils.setField(executor, "queueSize", 1);
+    }
+
+    @After
+    public void tearDown() {
+        release.countDown();
+        executor.shutdown();
+    }
+
+    @Test
+    public void testExecute() throws Exception {
+        executor.initialize();
+
+        CountDownLatch done = new CountDownLatch(2);
+        executor.execute(done::countDown);
+        executor.execute(done::countDown);
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(1, executor.getMetrics().get("threads"));
+
+        // Дожидаемся завершения задач
+        executor.shutdown();
+
+        Map<String, Number> metrics = executor.getMetrics();
+        assertEquals(2L, metrics.get("tasks"));
+        assertEquals(0L, metrics.get("rejected"));
+        assertEquals(0, metrics.get("queue_size"));
+    }
+
+    /**
+     * Если очередь заполнена, то задача выполняется в отправившем её потоке
+     */
+    @Test
+    public void testCallerRuns() throws Exception {
+        executor.initialize();
+        blockThread();
+
+        executor.execute(() -> { });
+
+        Thread caller = Thread.currentThread();
+        AtomicInteger inCaller = new AtomicInteger();
+        executor.execute(() -> {
+            if (Thread.currentThread() == caller) {
+                inCaller.incrementAndGet();
+            }
+        });
+
+        assertEquals(1, inCaller.get());
+
+        Map<String, Number> metrics = executor.getMetrics();
+        assertEquals(1L, metrics.get("rejected"));
+        assertEquals(1, metrics.get("active_threads"));
+        assertEquals(1, metrics.get("queue_size"));
+    }
+
+    @Test
+    public void testDiscard() throws Exception {
+        ReflectionTestUtils.setField(executor, "rejection", "discard");
+        executor.initialize();
+        blockThread();
+
+        executor.execute(() -> { });
+
+        AtomicInteger executed = new AtomicInteger();
+        executor.execute(executed::incrementAndGet);
+
+        release.countDown();
+        executor.shutdown();
+
+        assertEquals(0, executed.get());
+        assertEquals(1L, executor.getMetrics().get("rejected"));
+        assertEquals(2L, executor.getMetrics().get("tasks"));
+    }
+
+    /**
+     * Занимает единственный поток пула
+     */
+    private void blockThread() throws InterruptedException {
+        executor.execute(() -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+    }
+}
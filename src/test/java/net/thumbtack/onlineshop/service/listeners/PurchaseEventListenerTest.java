@@ -3,6 +3,9 @@ package net.thumbtack.onlineshop.service.listeners;
 import net.thumbtack.onlineshop.domain.models.Account;
 import net.thumbtack.onlineshop.domain.models.Purchase;
 import net.thumbtack.onlineshop.service.MailService;
+import net.thumbtack.onlineshop.service.PurchaseAnalytics;
+import net.thumbtack.onlineshop.service.PurchaseTotalsCache;
+import net.thumbtack.onlineshop.service.SalesRollupService;
 import net.thumbtack.onlineshop.service.events.BasketPurchaseEvent;
 import net.thumbtack.onlineshop.service.events.ProductPurchaseEvent;
 import org.junit.Before;
@@ -11,7 +14,9 @@ import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
 import java.util.Arrays;
+import java.util.Collections;
 
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
 public class PurchaseEventListenerTest {
@@ -21,11 +26,20 @@ public class PurchaseEventListenerTest {
     @Mock
     private MailService service;
 
+    @Mock
+    private PurchaseTotalsCache totalsCache;
+
+    @Mock
+    private SalesRollupService salesService;
+
+    @Mock
+    private PurchaseAnalytics analytics;
+
     @Before
     public void setUpClass() {
         MockitoAnnotations.initMocks(this);
 
-        listener = new PurchaseEventListener(service);
+        listener = new PurchaseEventListener(service, totalsCache, salesService, analytics);
     }
 
     /**
@@ -65,4 +79,54 @@ public class PurchaseEventListenerTest {
         verify(service).sendBuyBasketReport(client, Arrays.asList(purchase1, purchase2));
 
     }
+
+    /**
+     * Новые покупки сбрасывают итоги истории покупок
+     */
+    @Test
+    public void testResetTotals() {
+        listener.resetTotalsAfterProductPurchase(new ProductPurchaseEvent(this, new Purchase()));
+        listener.resetTotalsAfterBasketPurchase(
+                new BasketPurchaseEvent(this, new Account(), Arrays.asList(new Purchase())));
+
+        verify(totalsCache, times(2)).reset();
+    }
+
+    /**
+     * Покупки добавляются к сводкам продаж
+     */
+    @Test
+    public void testRecordSales() {
+        Purchase purchase1 = new Purchase();
+        purchase1.setId(3L);
+
+        Purchase purchase2 = new Purchase();
+        purchase2.setId(1L);
+
+        listener.recordProductSales(new ProductPurchaseEvent(this, purchase1));
+        listener.recordBasketSales(
+                new BasketPurchaseEvent(this, new Account(), Arrays.asList(purchase1, purchase2)));
+
+        verify(salesService).record(Collections.singletonList(purchase1));
+        verify(salesService).record(Arrays.asList(purchase1, purchase2));
+    }
+
+    /**
+     * Покупки добавляются к истории покупок для аналитики
+     */
+    @Test
+    public void testAppendAnalytics() {
+        Purchase purchase1 = new Purchase();
+        purchase1.setId(3L);
+
+        Purchase purchase2 = new Purchase();
+        purchase2.setId(1L);
+
+        listener.appendProductAnalytics(new ProductPurchaseEvent(this, purchase1));
+        listener.appendBasketAnalytics(
+                new BasketPurchaseEvent(this, new Account(), Arrays.asList(purchase1, purchase2)));
+
+        verify(analytics).append(Collections.singletonList(purchase1));
+        verify(analytics).append(Arrays.asList(purchase1, purchase2));
+    }
 }
@@ -0,0 +1,68 @@
+package net.thumbtack.onlineshop.service.mail;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CircuitBreakerTest {
+
+    @Test
+    public void testOpen() {
+        CircuitBreaker breaker = new CircuitBreaker(3, 1000);
+
+        breaker.failure(0);
+        breaker.failure(0);
+        assertTrue(breaker.allow(0));
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+
+        breaker.failure(0);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.allow(999));
+        assertEquals(1, breaker.getOpens());
+    }
+
+    /**
+     * Удачная отправка сбрасывает счётчик ошибок
+     */
+    @Test
+    public void testSuccessResetsFailures() {
+        CircuitBreaker breaker = new CircuitBreaker(2, 1000);
+
+        breaker.failure(0);
+        breaker.success();
+        breaker.failure(0);
+
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void testHalfOpen() {
+        CircuitBreaker breaker = new CircuitBreaker(1, 1000);
+        breaker.failure(0);
+
+        // Разрешается только одна пробная отправка
+        assertTrue(breaker.allow(1000));
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertFalse(breaker.allow(1000));
+
+        breaker.success();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.allow(1000));
+    }
+
+    @Test
+    public void testHalfOpenFailure() {
+        CircuitBreaker breaker = new CircuitBreaker(5, 1000);
+        for (int i = 0; i < 5; ++i) {
+            breaker.failure(0);
+        }
+
+        assertTrue(breaker.allow(1000));
+        breaker.failure(1000);
+
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.allow(1999));
+        assertTrue(breaker.allow(2000));
+        assertEquals(2, breaker.getOpens());
+    }
+}
@@ -0,0 +1,330 @@
+package net.thumbtack.onlineshop.service.mail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.*;
+
+public class MailDeliveryTest {
+
+    private FakeTransport transport;
+
+    private MailDelivery delivery;
+
+    @Before
+    public void setUpClass() {
+        transport = new FakeTransport();
+
+        delivery = new MailDelivery(Arrays.asList(new StubTransport(), transport));
+        ReflectionTestUtils.setField(delivery, "transportName", "fake");
+        ReflectionTestUtils.setField(delivery, "queueSize", 3);
+        ReflectionTestUtils.setField(delivery, "maxConcurrency", 2);
+        ReflectionTestUtils.setField(delivery, "maxAttempts", 3);
+        ReflectionTestUtils.setField(delivery, "retryInitialMs", 1L);
+        ReflectionTestUtils.setField(delivery, "retryMaxMs", 4L);
+        ReflectionTestUtils.setField(delivery, "breakerFailures", 3);
+        ReflectionTestUtils.setField(delivery, "breakerOpenMs", 60000L);
+        ReflectionTestUtils.setField(delivery, "shutdownTimeoutMs", 50L);
+        delivery.start();
+    }
+
+    @After
+    public void tearDown() {
+        delivery.stop();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testUnknownTransport() {
+        ReflectionTestUtils.setField(delivery, "transportName", "smtp");
+        restart();
+    }
+
+    /**
+     * Одновременно отправляется не больше mail_max_concurrency писем, остальные ждут в очереди
+     */
+    @Test
+    public void testConcurrency() {
+        for (int i = 0; i < 5; ++i) {
+            delivery.send(message());
+        }
+
+        assertEquals(2, transport.pending.size());
+        assertEquals(3, delivery.getMetrics().get("queue_size"));
+        assertEquals(2, delivery.getMetrics().get("in_flight"));
+
+        // Завершённая отправка освобождает место для следующего письма
+        transport.pending.get(0).complete(null);
+        assertEquals(3, transport.pending.size());
+        assertEquals(2, delivery.getMetrics().get("queue_size"));
+
+        for (int i = 1; i < 5; ++i) {
+            transport.pending.get(i).complete(null);
+        }
+
+        assertEquals(5L, delivery.getMetrics().get("delivered"));
+        assertEquals(0, delivery.getMetrics().get("in_flight"));
+    }
+
+    /**
+     * Если очередь заполнена, то письмо отбрасывается
+     */
+    @Test
+    public void testRejected() {
+        for (int i = 0; i < 6; ++i) {
+            delivery.send(message());
+        }
+
+        assertEquals(6L, delivery.getMetrics().get("queued"));
+        assertEquals(1L, delivery.getMetrics().get("rejected"));
+    }
+
+    @Test
+    public void testRetry() throws Exception {
+        transport.complete = true;
+        transport.failures = 2;
+
+        delivery.send(message());
+
+        waitFor(() -> (Long) delivery.getMetrics().get("delivered") == 1L);
+        assertEquals(3, transport.sent);
+        assertEquals(2L, delivery.getMetrics().get("retries"));
+        assertEquals(0L, delivery.getMetrics().get("failed"));
+    }
+
+    /**
+     * После mail_max_attempts неудачных попыток письмо не отправляется
+     */
+    @Test
+    public void testRetryExhausted() throws Exception {
+        ReflectionTestUtils.setField(delivery, "breakerFailures", 10);
+        restart();
+        transport.failures = 10;
+
+        delivery.send(message());
+
+        waitFor(() -> (Long) delivery.getMetrics().get("failed") == 1L);
+        assertEquals(3, transport.sent);
+    }
+
+    /**
+     * Отказ почтового сервиса принять письмо не повторяется и не размыкает выключатель
+     */
+    @Test
+    public void testNotRetryable() {
+        transport.error = new MailException("Bad address", false);
+
+        for (int i = 0; i < 3; ++i) {
+            delivery.send(message());
+        }
+
+        assertEquals(3, transport.sent);
+        assertEquals(3L, delivery.getMetrics().get("failed"));
+        assertEquals(0L, delivery.getMetrics().get("retries"));
+        assertEquals(CircuitBreaker.State.CLOSED.ordinal(), delivery.getMetrics().get("breaker_state"));
+    }
+
+    /**
+     * Пока выключатель разомкнут, письма отбрасываются без обращения к почтовому сервису
+     */
+    @Test
+    public void testBreaker() throws Exception {
+        ReflectionTestUtils.setField(delivery, "maxAttempts", 1);
+        restart();
+        transport.failures = 3;
+
+        for (int i = 0; i < 5; ++i) {
+            delivery.send(message());
+        }
+
+        assertEquals(3, transport.sent);
+        assertEquals(3L, delivery.getMetrics().get("failed"));
+        assertEquals(2L, delivery.getMetrics().get("shed"));
+        assertEquals(CircuitBreaker.State.OPEN.ordinal(), delivery.getMetrics().get("breaker_state"));
+        assertEquals(1L, delivery.getMetrics().get("breaker_opens"));
+    }
+
+    /**
+     * При остановке письма из очереди и те, что уже отправляются, успевают уйти
+     */
+    @Test
+    public void testStopDrainsQueue() throws Exception {
+        ReflectionTestUtils.setField(delivery, "shutdownTimeoutMs", 5000L);
+
+        for (int i = 0; i < 3; ++i) {
+            delivery.send(message());
+        }
+        assertEquals(2, transport.pending.size());
+
+        Thread completer = new Thread(() -> {
+            try {
+                for (int i = 0; i < 3; ++i) {
+                    int sent = i;
+                    waitFor(() -> transport.sent > sent);
+                    Thread.sleep(20);
+                    transport.complete(sent);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        completer.start();
+
+        delivery.stop();
+        completer.join();
+
+        assertEquals(3L, delivery.getMetrics().get("delivered"));
+        assertEquals(0L, delivery.getMetrics().get("failed"));
+        assertEquals(0, delivery.getMetrics().get("queue_size"));
+    }
+
+    /**
+     * Отложенный повтор отправляется при остановке, не дожидаясь своей задержки
+     */
+    @Test
+    public void testStopSendsDelayedRetry() throws Exception {
+        ReflectionTestUtils.setField(delivery, "retryInitialMs", 60000L);
+        ReflectionTestUtils.setField(delivery, "retryMaxMs", 60000L);
+        transport.complete = true;
+        transport.failures = 1;
+
+        delivery.send(message());
+        assertEquals(1L, delivery.getMetrics().get("retries"));
+
+        delivery.stop();
+
+        assertEquals(2, transport.sent);
+        assertEquals(1L, delivery.getMetrics().get("delivered"));
+        assertEquals(0L, delivery.getMetrics().get("failed"));
+    }
+
+    /**
+     * Письма, которые не успели отправиться за mail_shutdown_timeout_ms, считаются неотправленными,
+     * даже если отправка завершится позже
+     */
+    @Test
+    public void testStopTimeout() {
+        for (int i = 0; i < 5; ++i) {
+            delivery.send(message());
+        }
+
+        delivery.stop();
+
+        assertEquals(5L, delivery.getMetrics().get("failed"));
+        assertEquals(0, delivery.getMetrics().get("queue_size"));
+
+        transport.complete(0);
+        transport.complete(1);
+
+        assertEquals(0L, delivery.getMetrics().get("delivered"));
+        assertEquals(5L, delivery.getMetrics().get("failed"));
+    }
+
+    @Test
+    public void testDisabled() {
+        transport.enabled = false;
+
+        delivery.send(message());
+
+        assertFalse(delivery.isEnabled());
+        assertEquals(0, transport.sent);
+        assertEquals(0L, delivery.getMetrics().get("queued"));
+    }
+
+    @Test
+    public void testBackoff() {
+        ReflectionTestUtils.setField(delivery, "retryInitialMs", 100L);
+        ReflectionTestUtils.setField(delivery, "retryMaxMs", 1000L);
+
+        for (int i = 0; i < 100; ++i) {
+            long first = delivery.getBackoff(1);
+            assertTrue(first >= 50 && first <= 100);
+
+            long third = delivery.getBackoff(3);
+            assertTrue(third >= 200 && third <= 400);
+
+            long last = delivery.getBackoff(100);
+            assertTrue(last >= 500 && last <= 1000);
+        }
+    }
+
+    private void restart() {
+        delivery.stop();
+        delivery.start();
+    }
+
+    private static MailMessage message() {
+        return new MailMessage("Иван", "ivan@mail.ru", "Тема", "Текст");
+    }
+
+    private static void waitFor(Condition condition) throws InterruptedException {
+        for (int i = 0; i < 500 && !condition.check(); ++i) {
+            Thread.sleep(10);
+        }
+        assertTrue(condition.check());
+    }
+
+    private interface Condition {
+        boolean check();
+    }
+
+    /**
+     * Способ отправки, которым управляет тест
+     * <br>
+     * Если complete = false, то удачные отправки не завершаются, пока тест не завершит их сам.
+     */
+    private static class FakeTransport implements MailTransport {
+
+        private final List<CompletableFuture<Void>> pending = new ArrayList<>();
+        private volatile boolean enabled = true;
+        private volatile boolean complete;
+        private volatile int failures;
+        private volatile MailException error;
+        private volatile int sent;
+
+        @Override
+        public String getName() {
+            return "fake";
+        }
+
+        @Override
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        @Override
+        public synchronized CompletableFuture<Void> send(MailMessage message) {
+            ++sent;
+            CompletableFuture<Void> result = new CompletableFuture<>();
+
+            if (error != null) {
+                result.completeExceptionally(error);
+            } else if (failures > 0) {
+                --failures;
+                result.completeExceptionally(new MailException("Service unavailable", true));
+            } else if (complete) {
+                result.complete(null);
+            } else {
+                pending.add(result);
+            }
+            return result;
+        }
+
+        /**
+         * Завершает удачей отправку письма с указанным номером
+         */
+        private void complete(int index) {
+            CompletableFuture<Void> result;
+            synchronized (this) {
+                result = pending.get(index);
+            }
+            result.complete(null);
+        }
+    }
+}
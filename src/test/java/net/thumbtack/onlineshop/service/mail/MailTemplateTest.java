@@ -0,0 +1,48 @@
+package net.thumbtack.onlineshop.service.mail;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class MailTemplateTest {
+
+    @Test
+    public void testRender() {
+        MailTemplate template = MailTemplate.compile("<b>{{name}}</b>: {{ count }} x {{price}} ({{name}})",
+                "name", "count", "price");
+
+        StringBuilder out = new StringBuilder("start ");
+        template.render(out, "iphone", 2, 100L);
+
+        assertEquals("start <b>iphone</b>: 2 x 100 (iphone)", out.toString());
+    }
+
+    @Test
+    public void testRenderWithoutParameters() {
+        StringBuilder out = new StringBuilder();
+        MailTemplate.compile("<hr>").render(out);
+
+        assertEquals("<hr>", out.toString());
+    }
+
+    /**
+     * Строковые значения экранируются, а текст шаблона - нет
+     */
+    @Test
+    public void testEscape() {
+        StringBuilder out = new StringBuilder();
+        MailTemplate.compile("<i>{{name}}</i>", "name").render(out, "<script>\"Tom & Jerry's\"</script>");
+
+        assertEquals("<i>&lt;script&gt;&quot;Tom &amp; Jerry&#39;s&quot;&lt;/script&gt;</i>", out.toString());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownParameter() {
+        MailTemplate.compile("{{name}} {{size}}", "name");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnclosedParameter() {
+        MailTemplate.compile("{{name}} {{name", "name");
+    }
+}
@@ -0,0 +1,64 @@
+package net.thumbtack.onlineshop.service.mail;
+
+import net.thumbtack.onlineshop.domain.models.Product;
+import net.thumbtack.onlineshop.domain.models.Purchase;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PurchaseMailRendererTest {
+
+    @Test
+    public void testRenderProduct() {
+        String content = PurchaseMailRenderer.render("Уведомление о покупке товара",
+                Collections.singletonList(purchase("iphone", 2, 100)));
+
+        assertEquals("<h4>Уведомление о покупке товара</h4>" +
+                "<b>Товар:</b>iphone<br>" +
+                "<b>Количество:</b> 2<br>" +
+                "<b>Цена за единицу:</b> 100руб. <br>" +
+                "<hr>" +
+                "<b>Общая сумма:</b> 200 руб." +
+                "<br><br>" +
+                "<b>Спасибо за покупку!</b>", content);
+    }
+
+    @Test
+    public void testRenderBasket() {
+        String content = PurchaseMailRenderer.render("Уведомление о покупке товаров", Arrays.asList(
+                purchase("iphone", 2, 100),
+                purchase("<ipad>", 1, 500)));
+
+        assertTrue(content.startsWith("<h4>Уведомление о покупке товаров</h4><b>Товар:</b>iphone<br>"));
+        assertTrue(content.contains("<b>Товар:</b>&lt;ipad&gt;<br>"));
+        assertTrue(content.endsWith("<hr><b>Общая сумма:</b> 700 руб.<br><br><b>Спасибо за покупку!</b>"));
+    }
+
+    /**
+     * Большое письмо не портит следующие письма того же потока
+     */
+    @Test
+    public void testRenderAfterLargeMail() {
+        List<Purchase> purchases = new ArrayList<>();
+        for (int i = 0; i < 10000; ++i) {
+            purchases.add(purchase("product" + i, 1, 10));
+        }
+
+        assertTrue(PurchaseMailRenderer.render("Большое", purchases).contains("100000 руб."));
+
+        String content = PurchaseMailRenderer.render("Маленькое", Collections.singletonList(purchase("iphone", 1, 1)));
+        assertTrue(content.startsWith("<h4>Маленькое</h4>"));
+        assertTrue(content.contains("<b>Общая сумма:</b> 1 руб."));
+    }
+
+    private static Purchase purchase(String name, int count, int price) {
+        return new Purchase(new Product(name, 10, price), null, new Date(), count, price);
+    }
+}
@@ -0,0 +1,54 @@
+package net.thumbtack.onlineshop.service.mail;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class StubTransportTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testCapacity() {
+        StubTransport transport = createTransport(2, "");
+
+        transport.send(new MailMessage("Иван", "ivan@mail.ru", "1", "a"));
+        transport.send(new MailMessage("Иван", "ivan@mail.ru", "2", "b"));
+        assertTrue(transport.send(new MailMessage("Иван", "ivan@mail.ru", "3", "c")).isDone());
+
+        List<MailMessage> messages = transport.getMessages();
+        assertEquals(2, messages.size());
+        assertEquals("2", messages.get(0).getTitle());
+        assertEquals("3", messages.get(1).getTitle());
+    }
+
+    @Test
+    public void testFile() throws Exception {
+        File file = new File(folder.getRoot(), "mail.txt");
+        StubTransport transport = createTransport(10, file.getPath());
+
+        transport.send(new MailMessage("Иван", "ivan@mail.ru", "Тема", "<b>первая</b>\nвторая"));
+        transport.send(new MailMessage("Иван", "ivan@mail.ru", "Тема", "третья"));
+
+        List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+        assertEquals(2, lines.size());
+        assertEquals("ivan@mail.ru | Тема | <b>первая</b> вторая", lines.get(0));
+    }
+
+    private static StubTransport createTransport(int capacity, String file) {
+        StubTransport transport = new StubTransport();
+        ReflectionTestUtils.setField(transport, "capacity", capacity);
+        ReflectionTestUtils.setField(transport, "file", file);
+        return transport;
+    }
+}
@@ -0,0 +1,67 @@
+package net.thumbtack.onlineshop.service.metrics;
+
+import net.thumbtack.onlineshop.domain.dao.SessionDao;
+import net.thumbtack.onlineshop.domain.models.Account;
+import net.thumbtack.onlineshop.domain.models.AccountFactory;
+import net.thumbtack.onlineshop.domain.models.Session;
+import net.thumbtack.onlineshop.service.ServiceException;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.Collections;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.when;
+
+public class MetricsServiceTest {
+
+    private MetricsService service;
+
+    @Mock
+    private SessionDao mockSessionDao;
+
+    @Mock
+    private MetricsSource mockSource;
+
+    @Before
+    public void setUpClass() {
+        MockitoAnnotations.initMocks(this);
+
+        service = new MetricsService(mockSessionDao, Collections.singletonList(mockSource));
+    }
+
+    @Test
+    public void testGetMetrics() throws ServiceException {
+        Account admin = AccountFactory.createAdmin(
+                "werew", "rewrew", "rewrew", "rewrew", "rewrew"
+        );
+        when(mockSessionDao.get("token")).thenReturn(new Session("token", admin));
+        when(mockSource.getMetricsName()).thenReturn("checkout");
+        when(mockSource.getMetrics()).thenReturn(Collections.singletonMap("batches", 5L));
+
+        Map<String, Map<String, Number>> result = service.getMetrics("token");
+
+        assertEquals(1, result.size());
+        assertEquals(5L, result.get("checkout").get("batches"));
+    }
+
+    @Test
+    public void testGetMetricsNotAdmin() {
+        Account client = AccountFactory.createClient(
+                "234324", "234324", "wereww1", "werewr1",
+                "wrewf3", "werwer235", "werw23", "ewr23423"
+        );
+        when(mockSessionDao.get("token")).thenReturn(new Session("token", client));
+
+        try {
+            service.getMetrics("token");
+            fail();
+        } catch (ServiceException e) {
+            assertEquals(ServiceException.ErrorCode.NOT_ADMIN, e.getErrorCode());
+        }
+    }
+}
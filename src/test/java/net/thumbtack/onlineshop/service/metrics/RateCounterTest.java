@@ -0,0 +1,33 @@
+package net.thumbtack.onlineshop.service.metrics;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class RateCounterTest {
+
+    @Test
+    public void testRate() {
+        RateCounter counter = new RateCounter(10);
+
+        counter.add(50, 100_000);
+        counter.add(50, 101_500);
+
+        // 100 событий за окно в 10 секунд
+        assertEquals(10.0, counter.getRate(102_000), 0.001);
+    }
+
+    @Test
+    public void testRateWindow() {
+        RateCounter counter = new RateCounter(10);
+
+        counter.add(100, 100_000);
+
+        // События вышли за пределы окна
+        assertEquals(0.0, counter.getRate(110_000), 0.001);
+
+        // Ячейка старой секунды используется заново
+        counter.add(20, 110_000);
+        assertEquals(2.0, counter.getRate(110_500), 0.001);
+    }
+}
@@ -0,0 +1,69 @@
+package net.thumbtack.onlineshop.utils;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class LongHashMapTest {
+
+    @Test
+    public void testPutGet() {
+        LongHashMap<String> map = new LongHashMap<>();
+
+        assertTrue(map.isEmpty());
+        assertNull(map.put(1, "one"));
+        assertNull(map.put(-1, "minus one"));
+        assertNull(map.put(0, "zero"));
+
+        assertEquals("one", map.get(1));
+        assertEquals("minus one", map.get(-1));
+        assertEquals("zero", map.get(0));
+        assertNull(map.get(2));
+        assertFalse(map.containsKey(2));
+        assertEquals(3, map.size());
+
+        // Замена значения
+        assertEquals("one", map.put(1, "first"));
+        assertEquals("first", map.get(1));
+        assertEquals(3, map.size());
+    }
+
+    @Test
+    public void testPutIfAbsent() {
+        LongHashMap<String> map = new LongHashMap<>();
+
+        assertNull(map.putIfAbsent(5, "five"));
+        assertEquals("five", map.putIfAbsent(5, "other"));
+        assertEquals("five", map.get(5));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testPutNull() {
+        new LongHashMap<String>().put(1, null);
+    }
+
+    /**
+     * Таблица растёт и ведёт себя так же, как HashMap
+     */
+    @Test
+    public void testResize() {
+        LongHashMap<Long> map = new LongHashMap<>(1);
+        Map<Long, Long> expected = new HashMap<>();
+        Random random = new Random(42);
+
+        for (int i = 0; i < 10_000; ++i) {
+            long key = i % 2 == 0 ? i : random.nextLong();
+            map.put(key, key * 3);
+            expected.put(key, key * 3);
+        }
+
+        assertEquals(expected.size(), map.size());
+        for (Map.Entry<Long, Long> entry : expected.entrySet()) {
+            assertEquals(entry.getValue(), map.get(entry.getKey()));
+        }
+    }
+}
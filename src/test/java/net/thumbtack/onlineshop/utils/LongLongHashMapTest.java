@@ -0,0 +1,69 @@
+package net.thumbtack.onlineshop.utils;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class LongLongHashMapTest {
+
+    @Test
+    public void testAdd() {
+        LongLongHashMap map = new LongLongHashMap();
+
+        assertTrue(map.isEmpty());
+        map.add(1, 10);
+        map.add(-1, 5);
+        map.add(0, 7);
+        map.add(1, 15);
+
+        assertEquals(25, map.get(1));
+        assertEquals(5, map.get(-1));
+        assertEquals(7, map.get(0));
+        assertEquals(0, map.get(2));
+        assertEquals(3, map.size());
+    }
+
+    @Test
+    public void testAddAll() {
+        LongLongHashMap first = new LongLongHashMap();
+        first.add(1, 10);
+        first.add(2, 20);
+
+        LongLongHashMap second = new LongLongHashMap();
+        second.add(2, 5);
+        second.add(3, 30);
+
+        first.addAll(second);
+
+        assertEquals(3, first.size());
+        assertEquals(10, first.get(1));
+        assertEquals(25, first.get(2));
+        assertEquals(30, first.get(3));
+    }
+
+    /**
+     * Таблица растёт и складывает значения так же, как HashMap
+     */
+    @Test
+    public void testResize() {
+        LongLongHashMap map = new LongLongHashMap(1);
+        Map<Long, Long> expected = new HashMap<>();
+        Random random = new Random(42);
+
+        for (int i = 0; i < 10_000; ++i) {
+            long key = i % 2 == 0 ? i % 1000 : random.nextLong();
+            map.add(key, i);
+            expected.merge(key, (long) i, Long::sum);
+        }
+
+        assertEquals(expected.size(), map.size());
+
+        Map<Long, Long> actual = new HashMap<>();
+        map.forEach(actual::put);
+        assertEquals(expected, actual);
+    }
+}